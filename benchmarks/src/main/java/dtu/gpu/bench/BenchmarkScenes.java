@@ -0,0 +1,66 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.raytracer.Camera;
+import dtu.gpu.raytracer.Vector3;
+import dtu.gpu.raytracer.scene.Material;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.Sphere;
+import java.util.Random;
+
+/**
+ * Deterministic scenes for the benchmarks, so every run and every commit measures the same work.
+ */
+final class BenchmarkScenes {
+    private BenchmarkScenes() {
+    }
+
+    static Camera camera() {
+        return new Camera(16.0 / 9.0, 20.0, 1.0, new Vector3(13, 2, 3), new Vector3(0, 0, 0));
+    }
+
+    /**
+     * The scene of RayTracer.main, with a seeded random generator instead of Math.random.
+     */
+    static Scene weekend(long seed) {
+        Random random = new Random(seed);
+        Scene scene = new Scene(camera());
+        scene.addSphere(new Sphere(new Vector3(0, -1000, 0), 1000, Material.lambertian(new Vector3(0.5, 0.5, 0.5))));
+        for (int a = -11; a < 11; a++) {
+            for (int b = -11; b < 11; b++) {
+                double chooseMat = random.nextDouble();
+                Vector3 center = new Vector3(a + 0.9 * random.nextDouble(), 0.2, b + 0.9 * random.nextDouble());
+                if (center.subtract(new Vector3(4, 0.2, 0)).length() > 0.9) {
+                    scene.addSphere(new Sphere(center, 0.2, randomMaterial(random, chooseMat)));
+                }
+            }
+        }
+        scene.addSphere(new Sphere(new Vector3(0, 1, 0), 1.0, Material.dielectric(1.5)));
+        scene.addSphere(new Sphere(new Vector3(-4, 1, 0), 1.0, Material.lambertian(new Vector3(0.4, 0.2, 0.1))));
+        scene.addSphere(new Sphere(new Vector3(4, 1, 0), 1.0, Material.metal(new Vector3(0.7, 0.6, 0.5), 0.0)));
+        return scene;
+    }
+
+    /**
+     * A palette of materials, drawn with the same odds as in the weekend scene.
+     */
+    static Material[] palette(long seed, int size) {
+        Random random = new Random(seed);
+        Material[] materials = new Material[size];
+        for (int i = 0; i < size; i++) {
+            materials[i] = randomMaterial(random, random.nextDouble());
+        }
+        return materials;
+    }
+
+    private static Material randomMaterial(Random random, double chooseMat) {
+        if (chooseMat < 0.8) {
+            return Material.lambertian(new Vector3(random.nextDouble() * random.nextDouble(),
+                    random.nextDouble() * random.nextDouble(), random.nextDouble() * random.nextDouble()));
+        } else if (chooseMat < 0.95) {
+            return Material.metal(new Vector3(0.5 + random.nextDouble() * 0.5, 0.5 + random.nextDouble() * 0.5,
+                    0.5 + random.nextDouble() * 0.5), random.nextDouble() * 0.5);
+        } else {
+            return Material.dielectric(1.5);
+        }
+    }
+}
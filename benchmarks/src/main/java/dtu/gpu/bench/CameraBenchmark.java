@@ -0,0 +1,61 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.raytracer.Camera;
+import dtu.gpu.raytracer.Vector3;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The camera updates run once per input event and recompute all derived vectors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraBenchmark {
+    private Camera camera;
+    private Vector3 forward, back;
+    private double yawDelta;
+
+    @Setup
+    public void setup() {
+        camera = BenchmarkScenes.camera();
+        forward = new Vector3(0.01, 0.0, -0.01);
+        back = new Vector3(-0.01, 0.0, 0.01);
+        yawDelta = 0.5;
+    }
+
+    /**
+     * Turns back and forth so the camera stays in the same region
+     */
+    @Benchmark
+    public Camera rotate() {
+        camera.rotate(yawDelta, 0.1);
+        camera.rotate(-yawDelta, -0.1);
+        return camera;
+    }
+
+    @Benchmark
+    public Camera move() {
+        camera.move(forward);
+        camera.move(back);
+        return camera;
+    }
+
+    @Benchmark
+    public Camera lookAt() {
+        camera.lookAt(new Vector3(13, 2, 3), new Vector3(0, 0, 0));
+        return camera;
+    }
+}
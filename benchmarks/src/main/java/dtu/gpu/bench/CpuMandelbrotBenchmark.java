@@ -0,0 +1,76 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.madelbrot.CpuIterations;
+import dtu.gpu.madelbrot.Mandelbrot;
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One view of the Mandelbrot viewer computed by the CPU engines, the scalar baseline against
+ * the Vector API. Both split the rows over the common fork join pool, so the ratio is what
+ * the lanes gain. Either can iterate every pixel or use Mariani-Silver subdivision.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "--add-modules=jdk.incubator.vector" })
+public class CpuMandelbrotBenchmark {
+    @Param({ "scalar", "vector" })
+    public String engine;
+
+    /**
+     * The whole set, where most pixels escape early, or the seahorse valley, where most
+     * pixels take hundreds of iterations
+     */
+    @Param({ "overview", "seahorse" })
+    public String view;
+
+    @Param({ "false", "true" })
+    public boolean subdivide;
+
+    private static final int SIZE = 600;
+    private static final int MAX_ITERATIONS = 1000;
+
+    private CpuIterations iterations;
+    private double[] area;
+    private int[] colorMap;
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        if (engine.equals("vector") && !CpuIterations.isVectorAvailable()) {
+            throw new IllegalStateException("jdk.incubator.vector is not available");
+        }
+        iterations = CpuIterations.create(engine.equals("vector"));
+        area = view.equals("overview")
+                ? new double[]{ -2.0, -1.3, 0.6, 1.3 }
+                : new double[]{ -0.75, 0.1, -0.74, 0.11 };
+        colorMap = Mandelbrot.createColorMap(32, Color.RED, Color.GREEN, Color.BLUE);
+        pixels = new int[SIZE * SIZE];
+    }
+
+    @Benchmark
+    public int[] computeColors() {
+        if (subdivide) {
+            iterations.computeColorsSubdivided(area[0], area[1], area[2], area[3], SIZE, SIZE, MAX_ITERATIONS,
+                    colorMap, pixels);
+        } else {
+            iterations.computeColors(area[0], area[1], area[2], area[3], SIZE, SIZE, MAX_ITERATIONS, colorMap,
+                    pixels);
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,67 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.raytracer.RenderSettings;
+import dtu.gpu.raytracer.cpu.CpuRenderBackend;
+import dtu.gpu.raytracer.scene.Scene;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One progressive pass of the CPU backend over the weekend scene, the path that runs when
+ * no OpenCL device is present.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CpuRenderBenchmark {
+    /**
+     * Worker threads; 0 uses all processors
+     */
+    @Param({ "1", "0" })
+    public int threads;
+
+    @Param({ "1" })
+    public int samples;
+
+    private CpuRenderBackend backend;
+    private Scene scene;
+    private RenderSettings settings;
+    private int[] pixels;
+
+    @Setup
+    public void setup() {
+        backend = threads == 0 ? new CpuRenderBackend() : new CpuRenderBackend(threads);
+        scene = BenchmarkScenes.weekend(42);
+        settings = new RenderSettings(320, 180);
+        settings.setMaxDepth(8);
+        pixels = new int[settings.getWidth() * settings.getHeight()];
+        backend.resize(settings.getWidth(), settings.getHeight());
+        // Builds the scene snapshot and BVH, which later passes reuse
+        backend.render(scene, settings, 0, samples, pixels, null);
+    }
+
+    @TearDown
+    public void tearDown() {
+        backend.release();
+    }
+
+    @Benchmark
+    public int[] renderPass() {
+        backend.render(scene, settings, 0, samples, pixels, null);
+        return pixels;
+    }
+}
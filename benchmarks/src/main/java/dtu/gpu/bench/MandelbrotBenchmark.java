@@ -0,0 +1,36 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.madelbrot.Mandelbrot;
+import java.awt.Color;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The host side of the Mandelbrot viewer that does not need a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class MandelbrotBenchmark {
+    @Param({ "32", "1024" })
+    public int stepSize;
+
+    private final Color[] colors = { Color.RED, Color.GREEN, Color.BLUE };
+
+    @Benchmark
+    public int[] createColorMap() {
+        return Mandelbrot.createColorMap(stepSize, colors);
+    }
+}
@@ -0,0 +1,111 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.raytracer.Vector3;
+import dtu.gpu.raytracer.scene.Bvh;
+import dtu.gpu.raytracer.scene.Material;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.SceneFormat;
+import dtu.gpu.raytracer.scene.Sphere;
+import dtu.gpu.raytracer.scene.SphereStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the host side of a scene: the sphere records the device buffers are uploaded
+ * from (what used to be the marshalling into per-field arrays), the BVH and the binary
+ * scene file. Each benchmark is one whole scene, so the scores are per scene.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SceneBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int spheres;
+
+    private float[] geometry;
+    private Material[] materials;
+    private int[] materialChoice;
+
+    private SphereStore store;
+    private Path sceneFile;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        geometry = new float[spheres * SphereStore.GEOMETRY_STRIDE];
+        materialChoice = new int[spheres];
+        materials = BenchmarkScenes.palette(42, 64);
+        float extent = (float) Math.cbrt(spheres) * 2.0f;
+        for (int i = 0; i < spheres; i++) {
+            int g = i * SphereStore.GEOMETRY_STRIDE;
+            geometry[g + SphereStore.CENTER_X] = (random.nextFloat() - 0.5f) * extent;
+            geometry[g + SphereStore.CENTER_Y] = (random.nextFloat() - 0.5f) * extent;
+            geometry[g + SphereStore.CENTER_Z] = (random.nextFloat() - 0.5f) * extent;
+            geometry[g + SphereStore.RADIUS] = 0.1f + 0.4f * random.nextFloat();
+            materialChoice[i] = random.nextInt(materials.length);
+        }
+        store = buildStore();
+        sceneFile = Files.createTempFile("benchmark", ".dtus");
+        SceneFormat.write(new Scene(BenchmarkScenes.camera(), store), sceneFile);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(sceneFile);
+    }
+
+    /**
+     * Appends every sphere to a store, deduplicating the materials on the way
+     */
+    @Benchmark
+    public SphereStore buildStore() {
+        SphereStore result = new SphereStore();
+        for (int i = 0; i < spheres; i++) {
+            int g = i * SphereStore.GEOMETRY_STRIDE;
+            result.add(geometry[g], geometry[g + 1], geometry[g + 2], geometry[g + 3], materials[materialChoice[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * The same through the object API: one Sphere per sphere, copied into the scene
+     */
+    @Benchmark
+    public Scene buildScene() {
+        Scene scene = new Scene(BenchmarkScenes.camera());
+        for (int i = 0; i < spheres; i++) {
+            int g = i * SphereStore.GEOMETRY_STRIDE;
+            scene.addSphere(new Sphere(new Vector3(geometry[g], geometry[g + 1], geometry[g + 2]), geometry[g + 3],
+                    materials[materialChoice[i]]));
+        }
+        return scene;
+    }
+
+    @Benchmark
+    public Bvh buildBvh() {
+        return Bvh.build(store);
+    }
+
+    @Benchmark
+    public SphereStore mapSceneFile() throws IOException {
+        return SceneFormat.mapSpheres(sceneFile);
+    }
+}
@@ -0,0 +1,79 @@
+package dtu.gpu.bench;
+
+import dtu.gpu.raytracer.Vector3;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Vector3 is immutable, so every operation that returns a vector allocates one; the GC
+ * profiler shows how much of that escape analysis removes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Vector3Benchmark {
+    private Vector3 a, b;
+    private double scalar;
+
+    @Setup
+    public void setup() {
+        a = new Vector3(1.5, -2.0, 0.25);
+        b = new Vector3(-0.5, 0.75, 3.0);
+        scalar = 0.75;
+    }
+
+    @Benchmark
+    public Vector3 add() {
+        return a.add(b);
+    }
+
+    @Benchmark
+    public Vector3 subtract() {
+        return a.subtract(b);
+    }
+
+    @Benchmark
+    public Vector3 multiply() {
+        return a.multiply(scalar);
+    }
+
+    @Benchmark
+    public double dot() {
+        return a.dot(b);
+    }
+
+    @Benchmark
+    public Vector3 cross() {
+        return a.cross(b);
+    }
+
+    @Benchmark
+    public Vector3 normalize() {
+        return a.normalize();
+    }
+
+    @Benchmark
+    public double length() {
+        return a.length();
+    }
+
+    /**
+     * A chain like the ones in Camera, with temporaries that never escape
+     */
+    @Benchmark
+    public Vector3 chain() {
+        return a.add(b.multiply(scalar)).subtract(a.cross(b).multiply(0.5)).normalize();
+    }
+}
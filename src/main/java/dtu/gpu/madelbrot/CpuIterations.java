@@ -0,0 +1,151 @@
+package dtu.gpu.madelbrot;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the Mandelbrot set on the CPU, with the iteration counts and colors of
+ * computeMandelbrot in SimpleMandelbrot.cl, for machines without an OpenCL device that
+ * supports cl_khr_fp64. The rows are split into small tasks on the common
+ * {@link ForkJoinPool}, whose work stealing evens out rows through the set, which take
+ * maxIterations per pixel, and rows that escape right away.
+ * <p>
+ * {@link #create} returns the implementation that iterates several pixels at once with the
+ * Vector API if the {@code jdk.incubator.vector} module is available (run with
+ * {@code --add-modules jdk.incubator.vector}), and one that iterates pixel by pixel otherwise.
+ */
+public abstract class CpuIterations implements IterationSource {
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * Rows below which a task is not split any further
+     */
+    private static final int ROWS_PER_TASK = 2;
+
+    /**
+     * Returns the vectorized implementation if requested and available, the scalar one
+     * otherwise.
+     */
+    public static CpuIterations create(boolean vector) {
+        return vector && isVectorAvailable() ? new VectorIterations() : new ScalarIterations();
+    }
+
+    public static boolean isVectorAvailable() {
+        return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+    }
+
+    /**
+     * A short description for logs and benchmarks, e.g. "vector (4 lanes)"
+     */
+    public abstract String getName();
+
+    /**
+     * The coordinates of the pixels of an image: pixel (ix, iy) lies at
+     * (x0 + ix * spanX / columns, y0 + iy * spanY / rows), the expressions of
+     * computeMandelbrot, so the engines compute the same doubles as the kernel.
+     */
+    record Grid(double x0, double y0, double spanX, double spanY, double columns, double rows) {
+        /**
+         * The grid of computeIterations, where dividing by 1 is exact
+         */
+        static Grid ofStep(double x0, double y0, double step) {
+            return new Grid(x0, y0, step, step, 1, 1);
+        }
+
+        double x(int ix) {
+            return x0 + (double) ix * spanX / columns;
+        }
+
+        double y(int iy) {
+            return y0 + (double) iy * spanY / rows;
+        }
+    }
+
+    @Override
+    public void computeIterations(double x0, double y0, double step, int width, int height, int maxIterations,
+                                  int[] iterations) {
+        Grid grid = Grid.ofStep(x0, y0, step);
+        forEachRow(height, row -> computeLine(grid, 0, row, width, false, maxIterations, iterations,
+                row * width, 1));
+    }
+
+    /**
+     * Computes the colors computeMandelbrot writes for the area from (x0, y0) to (x1, y1), with
+     * the same arguments. The pixel coordinates are computed by the same expressions, e.g.
+     * x0 + ix * (x1 - x0) / width, so they are the same doubles.
+     */
+    public void computeColors(double x0, double y0, double x1, double y1, int width, int height,
+                              int maxIterations, int[] colorMap, int[] pixels) {
+        Grid grid = new Grid(x0, y0, x1 - x0, y1 - y0, width, height);
+        forEachRow(height, row -> {
+            computeLine(grid, 0, row, width, false, maxIterations, pixels, row * width, 1);
+            colorRow(pixels, row * width, width, maxIterations, colorMap);
+        });
+    }
+
+    /**
+     * Computes the colors of {@link #computeColors} by Mariani-Silver subdivision, which fills
+     * rectangles whose border and dividing line have a single iteration count without
+     * iterating their inside. This matches {@link #computeColors} on the test views, but a
+     * channel narrower than a pixel inside a filled rectangle can be missed, see
+     * {@link MarianiSilver}.
+     *
+     * @return the number of pixels that were filled without iterating
+     */
+    public long computeColorsSubdivided(double x0, double y0, double x1, double y1, int width, int height,
+                                        int maxIterations, int[] colorMap, int[] pixels) {
+        Grid grid = new Grid(x0, y0, x1 - x0, y1 - y0, width, height);
+        long skipped = MarianiSilver.compute(this, grid, width, height, maxIterations, pixels);
+        forEachRow(height, row -> colorRow(pixels, row * width, width, maxIterations, colorMap));
+        return skipped;
+    }
+
+    private static void colorRow(int[] pixels, int offset, int width, int maxIterations, int[] colorMap) {
+        for (int p = offset; p < offset + width; p++) {
+            pixels[p] = Mandelbrot.colorOf(pixels[p], maxIterations, colorMap);
+        }
+    }
+
+    /**
+     * Writes the iteration counts of length pixels of the grid, starting at (ix, iy) and going
+     * right, or down if vertical, to out[offset], out[offset + stride], ...
+     */
+    abstract void computeLine(Grid grid, int ix, int iy, int length, boolean vertical, int maxIterations,
+                              int[] out, int offset, int stride);
+
+    private static void forEachRow(int height, RowAction action) {
+        ForkJoinPool.commonPool().invoke(new RowTask(0, height, action));
+    }
+
+    private interface RowAction {
+        void run(int row);
+    }
+
+    // Fork join tasks are never serialized
+    @SuppressWarnings("serial")
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final RowAction action;
+
+        RowTask(int from, int to, RowAction action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                for (int row = from; row < to; row++) {
+                    action.run(row);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RowTask(from, middle, action), new RowTask(middle, to, action));
+        }
+    }
+}
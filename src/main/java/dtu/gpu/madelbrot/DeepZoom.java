@@ -0,0 +1,96 @@
+package dtu.gpu.madelbrot;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import dtu.gpu.opencl.KernelSource;
+import dtu.gpu.opencl.ProgramCache;
+import java.math.BigDecimal;
+import org.jocl.*;
+
+/**
+ * Host side of the perturbation kernel in PerturbationMandelbrot.cl, for views too narrow
+ * for plain doubles. The {@link ReferenceOrbit} is computed on the host and uploaded only
+ * when the view no longer contains its reference point, needs more digits or more
+ * iterations; the {@link SeriesApproximation} is cheap and follows every view.
+ */
+class DeepZoom {
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private final cl_kernel kernel;
+
+    private ReferenceOrbit reference;
+    private cl_mem orbitMem;
+
+    DeepZoom(cl_context context, cl_device_id device, cl_command_queue commandQueue, FrameProfiler profiler) {
+        this.context = context;
+        this.commandQueue = commandQueue;
+        this.profiler = profiler;
+        String source = KernelSource.load("kernels/PerturbationMandelbrot.cl");
+        cl_program program = ProgramCache.build(context, device, source, "-cl-mad-enable");
+        this.kernel = clCreateKernel(program, "computeMandelbrotPerturbed", null);
+    }
+
+    /**
+     * Enqueues the kernel for the view with the given center and size. The arguments are
+     * set on the host, so this counts as host time of the current frame.
+     */
+    void enqueue(cl_mem pixelMem, int sizeX, int sizeY, BigDecimal centerX, BigDecimal centerY,
+                 double width, double height, int maxIterations, cl_mem colorMapMem, int colorMapSize) {
+        double stepX = width / sizeX;
+        double stepY = height / sizeY;
+        int digits = ReferenceOrbit.digitsFor(Math.min(stepX, stepY));
+        if (reference == null || !reference.covers(centerX, centerY, width, height, digits, maxIterations)) {
+            // Digits and iterations to spare, since zooming in raises both
+            reference = ReferenceOrbit.compute(centerX, centerY, digits + 8,
+                    maxIterations + maxIterations / 4);
+            uploadOrbit();
+        }
+
+        // The upper left pixel relative to the reference point
+        double offsetX = centerX.subtract(reference.getCenterX()).doubleValue() - width / 2;
+        double offsetY = centerY.subtract(reference.getCenterY()).doubleValue() - height / 2;
+        double[] corners = {
+                offsetX, offsetY,
+                offsetX + sizeX * stepX, offsetY,
+                offsetX, offsetY + sizeY * stepY,
+                offsetX + sizeX * stepX, offsetY + sizeY * stepY
+        };
+        SeriesApproximation series = SeriesApproximation.compute(reference, corners, maxIterations);
+        double[] coefficients = series.getCoefficients();
+
+        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(pixelMem));
+        clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ sizeX }));
+        clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ sizeY }));
+        clSetKernelArg(kernel, 3, Sizeof.cl_double, Pointer.to(new double[]{ offsetX }));
+        clSetKernelArg(kernel, 4, Sizeof.cl_double, Pointer.to(new double[]{ offsetY }));
+        clSetKernelArg(kernel, 5, Sizeof.cl_double, Pointer.to(new double[]{ stepX }));
+        clSetKernelArg(kernel, 6, Sizeof.cl_double, Pointer.to(new double[]{ stepY }));
+        clSetKernelArg(kernel, 7, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
+        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(colorMapMem));
+        clSetKernelArg(kernel, 9, Sizeof.cl_int, Pointer.to(new int[]{ colorMapSize }));
+        clSetKernelArg(kernel, 10, Sizeof.cl_mem, Pointer.to(orbitMem));
+        clSetKernelArg(kernel, 11, Sizeof.cl_int, Pointer.to(new int[]{ reference.getLength() }));
+        clSetKernelArg(kernel, 12, Sizeof.cl_int, Pointer.to(new int[]{ series.getSkip() }));
+        clSetKernelArg(kernel, 13, Sizeof.cl_double, Pointer.to(new double[]{ series.getScale() }));
+        for (int i = 0; i < 3; i++) {
+            clSetKernelArg(kernel, 14 + i, 2 * Sizeof.cl_double,
+                    Pointer.to(new double[]{ coefficients[2 * i], coefficients[2 * i + 1] }));
+        }
+
+        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null, new long[]{ sizeX, sizeY }, null, 0, null,
+                profiler.event(Phase.KERNEL, 0));
+    }
+
+    private void uploadOrbit() {
+        if (orbitMem != null) {
+            clReleaseMemObject(orbitMem);
+        }
+        long bytes = (long) reference.getLength() * 2 * Sizeof.cl_double;
+        orbitMem = clCreateBuffer(context, CL_MEM_READ_ONLY, bytes, null, null);
+        clEnqueueWriteBuffer(commandQueue, orbitMem, CL_TRUE, 0, bytes, Pointer.to(reference.getOrbit()), 0, null,
+                profiler.event(Phase.UPLOAD, bytes));
+    }
+}
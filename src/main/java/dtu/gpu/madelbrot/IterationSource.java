@@ -0,0 +1,15 @@
+package dtu.gpu.madelbrot;
+
+/**
+ * Computes the iteration counts of computeMandelbrot in SimpleMandelbrot.cl for a block of
+ * pixels: the iteration in which |z| reached 2, or maxIterations for the pixels in the set.
+ * Pixel (ix, iy) of the block lies at (x0 + ix * step, y0 + iy * step).
+ */
+interface IterationSource {
+    /**
+     * Writes the counts of the block row by row into the first width * height entries of the
+     * array.
+     */
+    void computeIterations(double x0, double y0, double step, int width, int height, int maxIterations,
+                           int[] iterations);
+}
@@ -11,15 +11,52 @@ import static org.jocl.CL.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.*;
-import java.io.*;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Locale;
 
 import javax.swing.*;
 
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import dtu.gpu.opencl.KernelSource;
+import dtu.gpu.opencl.ProgramCache;
 import org.jocl.*;
 
 /**
  * A class that uses a simple OpenCL kernel to compute the
- * Mandelbrot set and displays it in an image
+ * Mandelbrot set and displays it in an image.
+ * <p>
+ * Views narrower than {@link #DEEP_ZOOM_WIDTH}, or all views if
+ * started with -Dmandelbrot.deep=true, are computed by perturbation
+ * around a high precision reference orbit, see {@link DeepZoom}.
+ * <p>
+ * Started with -Dmandelbrot.tiles=true, the other views are put
+ * together from cached tiles by a {@link TileRenderer}, so panning
+ * only computes what scrolls into view. The cache holds
+ * -Dmandelbrot.tileCacheMB megabytes of tiles (default 256).
+ * <p>
+ * -Dmandelbrot.engine selects what computes the views that are not
+ * deep: opencl, vector or scalar ({@link CpuIterations}), or auto
+ * (the default), which uses OpenCL and falls back to the CPU if
+ * there is no usable device. The E key switches between the
+ * available engines. Deep views always need OpenCL; on the CPU the
+ * zoom stops where doubles run out.
+ * <p>
+ * With -Dmandelbrot.subdivide=true, or after pressing S, the CPU
+ * engines skip the inside of rectangles whose border has a single
+ * iteration count, see {@link MarianiSilver}, and the title shows
+ * how many pixels were skipped.
+ * <p>
+ * -Dmandelbrot.checks lists the early outs the kernels are built
+ * with for the points in the set: cardioid, bulb and periodicity
+ * (default cardioid,bulb), see {@link #kernelOptions()}.
+ * <p>
+ * The OpenCL engine keeps the state of every pixel on the device,
+ * see {@link ResumableIterations}: + and - double and halve the
+ * iteration limit, and P switches to the next color map, and for the
+ * same view neither starts the pixels again.
  */
 public class Mandelbrot
 {
@@ -70,10 +107,16 @@ public class Mandelbrot
     private cl_command_queue commandQueue;
 
     /**
-     * The OpenCL kernel which will actually compute the Mandelbrot
-     * set and store the pixel data in a CL memory object
+     * Times every image update if started with -Dopencl.profiling=true
+     */
+    private FrameProfiler profiler;
+
+    /**
+     * Computes the Mandelbrot set for the OpenCL engine and stores
+     * the pixel data in a CL memory object, keeping the iterations
+     * for the next image
      */
-    private cl_kernel kernel;
+    private ResumableIterations resumable;
 
     /**
      * The OpenCL memory object which stores the pixel data
@@ -87,6 +130,11 @@ public class Mandelbrot
      */
     private cl_mem colorMapMem;
 
+    /**
+     * The number of colors {@link #colorMapMem} holds
+     */
+    private int colorMapSize;
+
     /**
      * The color map which will be copied to OpenCL for filling
      * the PBO.
@@ -94,28 +142,134 @@ public class Mandelbrot
     private int colorMap[];
 
     /**
-     * The minimum x-value of the area in which the Mandelbrot
-     * set should be computed
+     * The colors the color maps are interpolated through, switched
+     * with the P key
+     */
+    private static final Color PALETTES[][] = {
+            { Color.RED, Color.GREEN, Color.BLUE },
+            { Color.BLUE, Color.WHITE, Color.ORANGE },
+            { Color.MAGENTA, Color.YELLOW, Color.CYAN },
+    };
+
+    /**
+     * The index of the current palette
+     */
+    private int palette = 0;
+
+    /**
+     * The factor on the iteration limit, changed with the + and -
+     * keys
+     */
+    private double iterationScale = 1.0;
+
+    /**
+     * The width below which plain doubles no longer tell the
+     * pixels apart well, and the view is computed by perturbation
+     */
+    private static final double DEEP_ZOOM_WIDTH = 1e-10;
+
+    /**
+     * The narrowest view: the perturbation kernel iterates the
+     * differences between pixels in doubles, which underflow below
+     * about 1e-300
+     */
+    private static final double MIN_WIDTH = 1e-280;
+
+    /**
+     * Whether to use perturbation for all views
+     */
+    private static final boolean ALWAYS_DEEP = Boolean.getBoolean("mandelbrot.deep");
+
+    /**
+     * Whether to compose the views from cached tiles
+     */
+    private static final boolean TILED = Boolean.getBoolean("mandelbrot.tiles");
+
+    /**
+     * Composes the views from cached tiles if {@link #TILED}
+     */
+    private TileRenderer tileRenderer;
+
+    /**
+     * The x-value of the center of the area in which the Mandelbrot
+     * set should be computed, with as many digits as the zoom needs
+     */
+    private BigDecimal centerX = new BigDecimal("-0.7");
+
+    /**
+     * The y-value of the center of the area in which the Mandelbrot
+     * set should be computed, with as many digits as the zoom needs
+     */
+    private BigDecimal centerY = BigDecimal.ZERO;
+
+    /**
+     * The width of the area in which the Mandelbrot set should be
+     * computed
+     */
+    private double width = 2.6;
+
+    /**
+     * The height of the area in which the Mandelbrot set should be
+     * computed
+     */
+    private double height = 2.6;
+
+    /**
+     * Computes the views that are too narrow for doubles,
+     * created on first use
+     */
+    private DeepZoom deepZoom;
+
+    /**
+     * The OpenCL device
+     */
+    private cl_device_id device;
+
+    /**
+     * What computes the views that are not deep
+     */
+    enum Engine
+    {
+        OPENCL, VECTOR, SCALAR
+    }
+
+    /**
+     * The engine in use
+     */
+    private Engine engine;
+
+    /**
+     * The narrowest view without OpenCL, where the pixels no longer
+     * differ in doubles
+     */
+    private static final double MIN_CPU_WIDTH = 1e-13;
+
+    /**
+     * Computes the views on the CPU for the vector and scalar
+     * engines
+     */
+    private CpuIterations cpuIterations;
+
+    /**
+     * Computes the tiles for the OpenCL engine, if {@link #TILED}
      */
-    private double x0 = -2f;
+    private OpenCLIterations openCLIterations;
 
     /**
-     * The minimum y-value of the area in which the Mandelbrot
-     * set should be computed
+     * The main frame, whose title shows the engine
      */
-    private double y0 = -1.3f;
+    private JFrame frame;
 
     /**
-     * The maximum x-value of the area in which the Mandelbrot
-     * set should be computed
+     * Whether the CPU engines use Mariani-Silver subdivision
      */
-    private double x1 = 0.6f;
+    private boolean subdivide = Boolean.getBoolean("mandelbrot.subdivide");
 
     /**
-     * The maximum y-value of the area in which the Mandelbrot
-     * set should be computed
+     * The share of the pixels of the last view that subdivision
+     * filled without iterating, or -1 if it was not used
      */
-    private double y1 = 1.3f;
+    private double skippedShare = -1;
 
 
     /**
@@ -150,9 +304,12 @@ public class Mandelbrot
                 image = new BufferedImage(sizeX, sizeY, BufferedImage.TYPE_INT_RGB);
 
                 // Re-create or update your OpenCL buffer for the new image size:
-                clReleaseMemObject(pixelMem);
-                pixelMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
-                        sizeX * sizeY * Sizeof.cl_uint, null, null);
+                if (context != null)
+                {
+                    clReleaseMemObject(pixelMem);
+                    pixelMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY,
+                            sizeX * sizeY * Sizeof.cl_uint, null, null);
+                }
                 updateImage();
             }
         });
@@ -160,15 +317,64 @@ public class Mandelbrot
         // Initialize the mouse interaction
         initInteraction();
 
-        // Initialize OpenCL
-        initCL();
+        profiler = FrameProfiler.create("Mandelbrot");
+        initColorMap(32, PALETTES[palette]);
+
+        // Initialize OpenCL if there is a device, and choose the
+        // engine
+        initEngine();
 
         // Initial image update
         updateImage();
 
         // Create the main frame
-        JFrame frame = new JFrame("JOCL Simple Mandelbrot");
+        frame = new JFrame();
+        updateTitle();
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.addKeyListener(new KeyAdapter()
+        {
+            @Override
+            public void keyPressed(KeyEvent e)
+            {
+                if (e.getKeyCode() == KeyEvent.VK_E)
+                {
+                    // Compare the engines on the same view
+                    setEngine(nextEngine());
+                    updateImage();
+                }
+                else if (e.getKeyCode() == KeyEvent.VK_S)
+                {
+                    // Compare subdivision with iterating every pixel
+                    subdivide = !subdivide;
+                    updateImage();
+                }
+                else if (e.getKeyCode() == KeyEvent.VK_PLUS
+                        || e.getKeyCode() == KeyEvent.VK_ADD
+                        || e.getKeyCode() == KeyEvent.VK_EQUALS)
+                {
+                    iterationScale *= 2;
+                    updateImage();
+                    updateTitle();
+                }
+                else if (e.getKeyCode() == KeyEvent.VK_MINUS
+                        || e.getKeyCode() == KeyEvent.VK_SUBTRACT)
+                {
+                    iterationScale /= 2;
+                    updateImage();
+                    updateTitle();
+                }
+                else if (e.getKeyCode() == KeyEvent.VK_P)
+                {
+                    palette = (palette + 1) % PALETTES.length;
+                    initColorMap(32, PALETTES[palette]);
+                    if (context != null)
+                    {
+                        uploadColorMap();
+                    }
+                    updateImage();
+                }
+            }
+        });
         frame.setLayout(new BorderLayout());
         imageComponent.setPreferredSize(new Dimension(width, height));
         frame.add(imageComponent, BorderLayout.CENTER);
@@ -177,6 +383,124 @@ public class Mandelbrot
         frame.setVisible(true);
     }
 
+    /**
+     * Selects the engine given by -Dmandelbrot.engine, and initializes
+     * OpenCL for the OpenCL engine and for the deep views.
+     */
+    private void initEngine()
+    {
+        String name = System.getProperty("mandelbrot.engine", "auto");
+        Engine requested;
+        switch (name)
+        {
+            case "opencl":
+                requested = Engine.OPENCL;
+                break;
+            case "vector":
+            case "auto":
+                requested = Engine.VECTOR;
+                break;
+            case "scalar":
+                requested = Engine.SCALAR;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "Unknown Mandelbrot engine: " + name);
+        }
+        try
+        {
+            initCL();
+            if (name.equals("auto"))
+            {
+                requested = Engine.OPENCL;
+            }
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            if (requested == Engine.OPENCL)
+            {
+                throw e;
+            }
+            context = null;
+            System.err.println("OpenCL unavailable (" + e.getMessage()
+                    + "), computing on the CPU");
+        }
+        setEngine(requested);
+        if (TILED)
+        {
+            long cacheBytes = Long.getLong("mandelbrot.tileCacheMB", 256) << 20;
+            tileRenderer = new TileRenderer(
+                    engine == Engine.OPENCL ? openCLIterations : cpuIterations,
+                    cacheBytes,
+                    level -> calculateMaxIterations(
+                            sizeX * TileRenderer.spacingOf(level)),
+                    this::updateImage);
+        }
+    }
+
+    /**
+     * Switches to the given engine, or to the vector engine without
+     * OpenCL, or to the scalar one without the Vector API. The tiles
+     * in the cache are kept, all engines compute the same counts.
+     */
+    private void setEngine(Engine engine)
+    {
+        if (engine == Engine.OPENCL && context == null)
+        {
+            engine = Engine.VECTOR;
+        }
+        if (engine == Engine.VECTOR && !CpuIterations.isVectorAvailable())
+        {
+            engine = Engine.SCALAR;
+        }
+        this.engine = engine;
+        if (engine != Engine.OPENCL)
+        {
+            cpuIterations = CpuIterations.create(engine == Engine.VECTOR);
+        }
+        if (tileRenderer != null)
+        {
+            tileRenderer.setSource(engine == Engine.OPENCL
+                    ? openCLIterations : cpuIterations);
+        }
+        skippedShare = -1;
+        updateTitle();
+    }
+
+    /**
+     * The engine after the current one that is available
+     */
+    private Engine nextEngine()
+    {
+        Engine engines[] = Engine.values();
+        for (int i = 1; i < engines.length; i++)
+        {
+            Engine next = engines[(engine.ordinal() + i) % engines.length];
+            if ((next != Engine.OPENCL || context != null)
+                    && (next != Engine.VECTOR || CpuIterations.isVectorAvailable()))
+            {
+                return next;
+            }
+        }
+        return engine;
+    }
+
+    private void updateTitle()
+    {
+        if (frame != null)
+        {
+            String title = "JOCL Simple Mandelbrot - " + (engine == Engine.OPENCL
+                    ? "OpenCL" : cpuIterations.getName())
+                    + ", " + calculateMaxIterations(width) + " iterations";
+            if (skippedShare >= 0)
+            {
+                title += String.format(Locale.ROOT,
+                        ", subdivision skipped %.1f%%", 100 * skippedShare);
+            }
+            frame.setTitle(title);
+        }
+    }
+
     /**
      * Initialize OpenCL: Create the context, the command queue
      * and the kernel.
@@ -212,31 +536,32 @@ public class Mandelbrot
         // Obtain a device ID
         cl_device_id devices[] = new cl_device_id[numDevices];
         clGetDeviceIDs(platform, deviceType, numDevices, devices, null);
-        cl_device_id device = devices[deviceIndex];
+        device = devices[deviceIndex];
 
         // Create a context for the selected device
         context = clCreateContext(
                 contextProperties, 1, new cl_device_id[]{device},
                 null, null, null);
 
-        // Create a command-queue for the selected device
-        cl_queue_properties properties = new cl_queue_properties();
+        // Create a command-queue for the selected device, with
+        // profiling enabled if requested
         commandQueue = clCreateCommandQueueWithProperties(
-                context, device, properties, null);
+                context, device, FrameProfiler.queueProperties(), null);
 
         // Program Setup
-        String source =
-                readFile("src/main/resources/kernels/SimpleMandelbrot.cl");
-
-        // Create the program
-        cl_program cpProgram = clCreateProgramWithSource(context, 1,
-                new String[]{ source }, null, null);
+        String source = KernelSource.load("kernels/SimpleMandelbrot.cl");
 
-        // Build the program
-        clBuildProgram(cpProgram, 0, null, "-cl-mad-enable", null, null);
+        // Create and build the program, or load it from the binary cache
+        cl_program cpProgram = ProgramCache.build(context, device,
+                source, kernelOptions());
 
-        // Create the kernel
-        kernel = clCreateKernel(cpProgram, "computeMandelbrot", null);
+        // Create the kernels
+        resumable = new ResumableIterations(context, commandQueue,
+                cpProgram, profiler);
+        if (TILED)
+        {
+            openCLIterations = new OpenCLIterations(context, commandQueue, cpProgram);
+        }
 
         // Create the memory object which will be filled with the
         // pixel data
@@ -244,61 +569,70 @@ public class Mandelbrot
                 sizeX * sizeY * Sizeof.cl_uint, null, null);
 
         // Create and fill the memory object containing the color map
-        initColorMap(32, Color.RED, Color.GREEN, Color.BLUE);
-        colorMapMem = clCreateBuffer(context, CL_MEM_READ_WRITE,
-                colorMap.length * Sizeof.cl_uint, null, null);
-        clEnqueueWriteBuffer(commandQueue, colorMapMem, true, 0,
-                colorMap.length * Sizeof.cl_uint, Pointer.to(colorMap), 0, null, null);
+        uploadColorMap();
     }
 
     /**
-     * Helper function which reads the file with the given name and returns
-     * the contents of this file as a String. Will exit the application
-     * if the file can not be read.
-     *
-     * @param fileName The name of the file to read.
-     * @return The contents of the file
+     * Copies the color map to its memory object, which is created
+     * again if the size of the map changed
      */
-    private String readFile(String fileName)
+    private void uploadColorMap()
     {
-        BufferedReader br = null;
-        try
+        if (colorMapMem != null && colorMapSize != colorMap.length)
         {
-            br = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
+            clReleaseMemObject(colorMapMem);
+            colorMapMem = null;
         }
-        catch (IOException e)
+        if (colorMapMem == null)
         {
-            e.printStackTrace();
-            System.exit(1);
-            return null;
+            colorMapMem = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                    colorMap.length * Sizeof.cl_uint, null, null);
+            colorMapSize = colorMap.length;
         }
-        finally
+        clEnqueueWriteBuffer(commandQueue, colorMapMem, true, 0,
+                colorMap.length * Sizeof.cl_uint, Pointer.to(colorMap), 0, null,
+                profiler.event(Phase.UPLOAD, colorMap.length * Sizeof.cl_uint));
+    }
+
+    /**
+     * The build options of SimpleMandelbrot.cl: the early outs listed
+     * in -Dmandelbrot.checks, and the tolerance of the periodicity
+     * check, -Dmandelbrot.periodicityTolerance (default 1e-10).
+     * The periodicity check costs a little in every iteration and
+     * only pays off at high iteration limits, so it is off by
+     * default; the others only cost a test per pixel.
+     *
+     * @return The options for the program
+     */
+    static String kernelOptions()
+    {
+        String checks = System.getProperty("mandelbrot.checks", "cardioid,bulb");
+        StringBuilder options = new StringBuilder("-cl-mad-enable");
+        for (String check : checks.split(","))
         {
-            if (br != null)
+            switch (check.trim())
             {
-                try
-                {
-                    br.close();
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+                case "":
+                case "none":
+                    break;
+                case "cardioid":
+                    options.append(" -D MANDELBROT_CARDIOID_CHECK");
+                    break;
+                case "bulb":
+                    options.append(" -D MANDELBROT_BULB_CHECK");
+                    break;
+                case "periodicity":
+                    options.append(" -D MANDELBROT_PERIODICITY_CHECK");
+                    break;
+                default:
+                    throw new IllegalArgumentException(
+                            "Unknown Mandelbrot check: " + check);
             }
         }
+        double tolerance = Double.parseDouble(System.getProperty(
+                "mandelbrot.periodicityTolerance", "1e-10"));
+        options.append(" -D MANDELBROT_PERIODICITY_TOLERANCE=").append(tolerance);
+        return options.toString();
     }
 
     /**
@@ -311,7 +645,20 @@ public class Mandelbrot
      */
     private void initColorMap(int stepSize, Color ... colors)
     {
-        colorMap = new int[stepSize*colors.length];
+        colorMap = createColorMap(stepSize, colors);
+    }
+
+    /**
+     * Computes the color map used by {@link #initColorMap}. It needs no
+     * OpenCL or display, so it can also be benchmarked on its own.
+     *
+     * @param stepSize The number of interpolation steps between two colors
+     * @param colors The colors for the map
+     * @return The colors as integers combining the RGB components
+     */
+    public static int[] createColorMap(int stepSize, Color ... colors)
+    {
+        int colorMap[] = new int[stepSize*colors.length];
         int index = 0;
         for (int i=0; i<colors.length-1; i++)
         {
@@ -342,9 +689,26 @@ public class Mandelbrot
                 colorMap[index++] = rgb;
             }
         }
+        return colorMap;
     }
 
 
+    /**
+     * The color of a pixel with the given iteration count, like
+     * computeMandelbrot: black for the pixels in the set, and the
+     * entry of the color map for the fraction of maxIterations
+     * otherwise
+     */
+    static int colorOf(int iteration, int maxIterations, int colorMap[])
+    {
+        if (iteration == maxIterations)
+        {
+            return 0;
+        }
+        float alpha = (float)iteration / (float)maxIterations;
+        return colorMap[(int)(alpha * colorMap.length)];
+    }
+
     /**
      * Attach the mouse- and mouse wheel listeners to the glComponent
      * which allow zooming and panning the fractal
@@ -361,14 +725,14 @@ public class Mandelbrot
                 int dx = previousPoint.x - e.getX();
                 int dy = previousPoint.y - e.getY();
 
-                double wdx = x1-x0;
-                double wdy = y1-y0;
-
-                x0 += (dx / 150.0f) * wdx;
-                x1 += (dx / 150.0f) * wdx;
-
-                y0 += (dy / 150.0f) * wdy;
-                y1 += (dy / 150.0f) * wdy;
+                // Round to the digits the zoom needs, the sum would
+                // otherwise keep all digits of every step
+                MathContext mc = new MathContext(
+                        ReferenceOrbit.digitsFor(width / sizeX));
+                centerX = centerX.add(
+                        new BigDecimal((dx / 150.0f) * width), mc);
+                centerY = centerY.add(
+                        new BigDecimal((dy / 150.0f) * height), mc);
 
                 previousPoint.setLocation(e.getX(), e.getY());
 
@@ -388,15 +752,18 @@ public class Mandelbrot
             @Override
             public void mouseWheelMoved(MouseWheelEvent e)
             {
-                double dx = x1-x0;
-                double dy = y1-y0;
                 double delta = e.getWheelRotation() / 20.0f;
-                x0 += delta * dx;
-                x1 -= delta * dx;
-                y0 += delta * dy;
-                y1 -= delta * dy;
+                double minWidth = context != null ? MIN_WIDTH : MIN_CPU_WIDTH;
+                if (width * (1 - 2 * delta) < minWidth)
+                {
+                    return;
+                }
+                width -= 2 * delta * width;
+                height -= 2 * delta * height;
 
                 updateImage();
+                // The iteration count depends on the width
+                updateTitle();
             }
         });
     }
@@ -408,38 +775,88 @@ public class Mandelbrot
      */
     private void updateImage()
     {
-        // Set work size and execute the kernel
-        long globalWorkSize[] = new long[2];
-        globalWorkSize[0] = sizeX;
-        globalWorkSize[1] = sizeY;
-
-        int maxIterations = calculateMaxIterations();
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(pixelMem));
-        clSetKernelArg(kernel, 1, Sizeof.cl_uint, Pointer.to(new int[]{sizeX}));
-        clSetKernelArg(kernel, 2, Sizeof.cl_uint, Pointer.to(new int[]{sizeY}));
-        clSetKernelArg(kernel, 3, Sizeof.cl_double, Pointer.to(new double[]{ x0 }));
-        clSetKernelArg(kernel, 4, Sizeof.cl_double, Pointer.to(new double[]{ y0 }));
-        clSetKernelArg(kernel, 5, Sizeof.cl_double, Pointer.to(new double[]{ x1 }));
-        clSetKernelArg(kernel, 6, Sizeof.cl_double, Pointer.to(new double[]{ y1 }));
-        clSetKernelArg(kernel, 7, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
-        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(colorMapMem));
-        clSetKernelArg(kernel, 9, Sizeof.cl_int, Pointer.to(new int[]{ colorMap.length }));
-
-        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null,
-                globalWorkSize, null, 0, null, null);
+        long hostStart = profiler.startHost();
+        int maxIterations = calculateMaxIterations(width);
+        skippedShare = -1;
+        boolean deep = context != null && (ALWAYS_DEEP || width < DEEP_ZOOM_WIDTH);
+        if (tileRenderer != null && !deep)
+        {
+            // Snap to the nearest level, keeping the center in place
+            int level = TileRenderer.levelOf(width / sizeX);
+            double step = TileRenderer.spacingOf(level);
+            long originX = Math.round(centerX.doubleValue() / step) - sizeX / 2;
+            long originY = Math.round(centerY.doubleValue() / step) - sizeY / 2;
+            int data[] = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            tileRenderer.render(data, sizeX, sizeY, level, originX, originY, colorMap);
+            profiler.endHost(hostStart);
+            // The tiles are computed in the background
+            profiler.endFrame(-1, (long) sizeX * sizeY).complete();
+            imageComponent.repaint();
+            return;
+        }
+        if (deep)
+        {
+            if (deepZoom == null)
+            {
+                deepZoom = new DeepZoom(context, device, commandQueue, profiler);
+            }
+            // The reference orbit and series are computed on the host
+            deepZoom.enqueue(pixelMem, sizeX, sizeY, centerX, centerY,
+                    width, height, maxIterations, colorMapMem, colorMap.length);
+            profiler.endHost(hostStart);
+        }
+        else if (engine != Engine.OPENCL)
+        {
+            double x0 = centerX.doubleValue() - width / 2;
+            double y0 = centerY.doubleValue() - height / 2;
+            int data[] = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+            if (subdivide)
+            {
+                long skipped = cpuIterations.computeColorsSubdivided(
+                        x0, y0, x0 + width, y0 + height,
+                        sizeX, sizeY, maxIterations, colorMap, data);
+                skippedShare = (double) skipped / ((long) sizeX * sizeY);
+            }
+            else
+            {
+                cpuIterations.computeColors(x0, y0, x0 + width, y0 + height,
+                        sizeX, sizeY, maxIterations, colorMap, data);
+            }
+            profiler.endHost(hostStart);
+            updateTitle();
+            profiler.endFrame(-1, (long) sizeX * sizeY).complete();
+            imageComponent.repaint();
+            return;
+        }
+        else
+        {
+            // Continues the pixels of the last image if only the
+            // iteration limit or the color map changed
+            double x0 = centerX.doubleValue() - width / 2;
+            double y0 = centerY.doubleValue() - height / 2;
+            resumable.enqueue(pixelMem, sizeX, sizeY, x0, y0,
+                    x0 + width, y0 + height, maxIterations,
+                    colorMapMem, colorMap.length);
+            profiler.endHost(hostStart);
+        }
 
         // Read the pixel data into the BufferedImage
         DataBufferInt dataBuffer = (DataBufferInt)image.getRaster().getDataBuffer();
         int data[] = dataBuffer.getData();
         clEnqueueReadBuffer(commandQueue, pixelMem, CL_TRUE, 0,
-                Sizeof.cl_int * sizeY * sizeX, Pointer.to(data), 0, null, null);
+                Sizeof.cl_int * sizeY * sizeX, Pointer.to(data), 0, null,
+                profiler.event(Phase.READBACK, Sizeof.cl_int * sizeY * sizeX));
+
+        // One sample per pixel, and no rays
+        profiler.endFrame(-1, (long) sizeX * sizeY).complete();
 
         imageComponent.repaint();
     }
 
-    private int calculateMaxIterations() {
+    private int calculateMaxIterations(double width) {
         // Increase iterations as you zoom in.
-        double zoomLevel = Math.log10(2.0 / (x1 - x0));
-        return 100 + (int)(zoomLevel * 50); // Adjust the scaling factor as needed
+        double zoomLevel = Math.log10(2.0 / width);
+        int iterations = 100 + (int)(zoomLevel * 50); // Adjust the scaling factor as needed
+        return Math.max(1, (int)(iterations * iterationScale));
     }
 }
\ No newline at end of file
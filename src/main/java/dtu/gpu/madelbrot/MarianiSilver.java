@@ -0,0 +1,171 @@
+package dtu.gpu.madelbrot;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mariani-Silver subdivision: the iteration counts of a rectangle are computed on its border
+ * first. If the whole border has the same count, the inside is filled with it without
+ * iterating; otherwise the rectangle is split in two across its longer side, the dividing
+ * line is computed, and both halves are handled the same way, in parallel on the common
+ * {@link ForkJoinPool}.
+ * <p>
+ * The fill relies on the sets of points with at least and at most a given count being
+ * connected and without holes, which holds for the Mandelbrot set and the bands around it: a
+ * region of other counts inside a uniform border would have to cross it. At a finite
+ * resolution a filament thinner than a pixel can pass between two border pixels, so the
+ * dividing line has to be uniform as well before a rectangle is filled, and rectangles below
+ * {@link #MIN_SIZE} are always iterated. With that every test view, at 900x900 and 640x480
+ * with both engines, has exactly the counts of iterating every pixel. Sampling cannot rule out
+ * a channel narrower than a pixel that only a single inside pixel hits, though: at 333x217 two
+ * such pixels of the full view are filled, which is why this is not the default. Large
+ * interior areas, where every pixel would take maxIterations, are where subdivision gains the
+ * most.
+ */
+final class MarianiSilver {
+    /**
+     * Rectangles with a smaller inside in either direction are iterated in full, never filled
+     */
+    private static final int MIN_SIZE = 8;
+
+    private MarianiSilver() {
+    }
+
+    /**
+     * Writes the iteration counts of the width x height pixels of the grid to iterations.
+     *
+     * @return the number of pixels that were filled without iterating
+     */
+    static long compute(CpuIterations engine, CpuIterations.Grid grid, int width, int height, int maxIterations,
+                        int[] iterations) {
+        Context context = new Context(engine, grid, width, maxIterations, iterations);
+        // The border of the whole image
+        engine.computeLine(grid, 0, 0, width, false, maxIterations, iterations, 0, 1);
+        if (height > 1) {
+            engine.computeLine(grid, 0, height - 1, width, false, maxIterations, iterations,
+                    (height - 1) * width, 1);
+        }
+        if (height > 2) {
+            engine.computeLine(grid, 0, 1, height - 2, true, maxIterations, iterations, width, width);
+            if (width > 1) {
+                engine.computeLine(grid, width - 1, 1, height - 2, true, maxIterations, iterations,
+                        2 * width - 1, width);
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new Rectangle(context, 0, 0, width - 1, height - 1));
+        return context.skipped.sum();
+    }
+
+    private record Context(CpuIterations engine, CpuIterations.Grid grid, int width, int maxIterations,
+                           int[] iterations, LongAdder skipped) {
+        Context(CpuIterations engine, CpuIterations.Grid grid, int width, int maxIterations, int[] iterations) {
+            this(engine, grid, width, maxIterations, iterations, new LongAdder());
+        }
+    }
+
+    /**
+     * A rectangle whose border pixels, from (left, top) to (right, bottom) inclusive, are
+     * computed
+     */
+    // Fork join tasks are never serialized
+    @SuppressWarnings("serial")
+    private static final class Rectangle extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Context context;
+        private final int left;
+        private final int top;
+        private final int right;
+        private final int bottom;
+
+        Rectangle(Context context, int left, int top, int right, int bottom) {
+            this.context = context;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        @Override
+        protected void compute() {
+            int insideWidth = right - left - 1;
+            int insideHeight = bottom - top - 1;
+            if (insideWidth <= 0 || insideHeight <= 0) {
+                return;
+            }
+            CpuIterations engine = context.engine();
+            CpuIterations.Grid grid = context.grid();
+            int[] iterations = context.iterations();
+            int width = context.width();
+            int maxIterations = context.maxIterations();
+            if (insideWidth < MIN_SIZE || insideHeight < MIN_SIZE) {
+                for (int y = top + 1; y < bottom; y++) {
+                    engine.computeLine(grid, left + 1, y, insideWidth, false, maxIterations, iterations,
+                            y * width + left + 1, 1);
+                }
+                return;
+            }
+
+            // The line that splits the rectangle across its longer side is computed even if
+            // the border is uniform, and has to be uniform as well before the rectangle is
+            // filled: a thin region of other counts that passes between two border pixels
+            // rarely misses it too
+            Rectangle first;
+            Rectangle second;
+            int lineLength;
+            if (insideWidth >= insideHeight) {
+                int middle = (left + right) >>> 1;
+                engine.computeLine(grid, middle, top + 1, insideHeight, true, maxIterations, iterations,
+                        (top + 1) * width + middle, width);
+                first = new Rectangle(context, left, top, middle, bottom);
+                second = new Rectangle(context, middle, top, right, bottom);
+                lineLength = insideHeight;
+            } else {
+                int middle = (top + bottom) >>> 1;
+                engine.computeLine(grid, left + 1, middle, insideWidth, false, maxIterations, iterations,
+                        middle * width + left + 1, 1);
+                first = new Rectangle(context, left, top, right, middle);
+                second = new Rectangle(context, left, middle, right, bottom);
+                lineLength = insideWidth;
+            }
+            int count = first.uniformBorder();
+            if (count >= 0 && second.uniformBorder() == count) {
+                fill(count);
+                context.skipped().add((long) insideWidth * insideHeight - lineLength);
+                return;
+            }
+            invokeAll(first, second);
+        }
+
+        private void fill(int count) {
+            int[] iterations = context.iterations();
+            int width = context.width();
+            for (int y = top + 1; y < bottom; y++) {
+                int offset = y * width + left + 1;
+                Arrays.fill(iterations, offset, offset + right - left - 1, count);
+            }
+        }
+
+        /**
+         * The count all border pixels have, or -1 if they differ
+         */
+        private int uniformBorder() {
+            int[] iterations = context.iterations();
+            int width = context.width();
+            int count = iterations[top * width + left];
+            for (int x = left; x <= right; x++) {
+                if (iterations[top * width + x] != count || iterations[bottom * width + x] != count) {
+                    return -1;
+                }
+            }
+            for (int y = top + 1; y < bottom; y++) {
+                if (iterations[y * width + left] != count || iterations[y * width + right] != count) {
+                    return -1;
+                }
+            }
+            return count;
+        }
+    }
+}
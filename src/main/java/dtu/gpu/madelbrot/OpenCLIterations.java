@@ -0,0 +1,48 @@
+package dtu.gpu.madelbrot;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+/**
+ * Runs the computeIterations kernel in SimpleMandelbrot.cl and reads the counts back. The
+ * kernel and its buffer are not shared, so blocks can be computed from any one thread at a
+ * time while the viewer uses the same command queue for its own kernels.
+ */
+final class OpenCLIterations implements IterationSource {
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final cl_kernel kernel;
+
+    private cl_mem iterationMem;
+    private int capacity;
+
+    OpenCLIterations(cl_context context, cl_command_queue commandQueue, cl_program program) {
+        this.context = context;
+        this.commandQueue = commandQueue;
+        this.kernel = clCreateKernel(program, "computeIterations", null);
+    }
+
+    @Override
+    public synchronized void computeIterations(double x0, double y0, double step, int width, int height,
+                                               int maxIterations, int[] iterations) {
+        int pixels = width * height;
+        if (pixels > capacity) {
+            if (iterationMem != null) {
+                clReleaseMemObject(iterationMem);
+            }
+            capacity = pixels;
+            iterationMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) capacity * Sizeof.cl_int, null, null);
+        }
+        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(iterationMem));
+        clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ width }));
+        clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ height }));
+        clSetKernelArg(kernel, 3, Sizeof.cl_double, Pointer.to(new double[]{ x0 }));
+        clSetKernelArg(kernel, 4, Sizeof.cl_double, Pointer.to(new double[]{ y0 }));
+        clSetKernelArg(kernel, 5, Sizeof.cl_double, Pointer.to(new double[]{ step }));
+        clSetKernelArg(kernel, 6, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
+        clEnqueueNDRangeKernel(commandQueue, kernel, 2, null, new long[]{ width, height }, null, 0, null, null);
+        clEnqueueReadBuffer(commandQueue, iterationMem, CL_TRUE, 0, (long) pixels * Sizeof.cl_int,
+                Pointer.to(iterations), 0, null, null);
+    }
+}
@@ -0,0 +1,129 @@
+package dtu.gpu.madelbrot;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * The orbit Z<sub>n+1</sub> = Z<sub>n</sub>² + C of one reference point, iterated at the
+ * precision the zoom needs and stored rounded to doubles. The values of the orbit stay below
+ * 2 in magnitude until it escapes, so doubles hold them well enough; only C itself and the
+ * iteration need all the digits.
+ * <p>
+ * The iteration uses fixed point numbers, {@link BigInteger}s scaled by a power of two, since
+ * none of the values grows beyond a few units. That needs no rounding to a {@link MathContext}
+ * after every operation, only a shift, and is several times faster than {@link BigDecimal}
+ * at the same precision.
+ * <p>
+ * The perturbation kernel iterates every pixel as a small difference from this orbit, see
+ * PerturbationMandelbrot.cl. An orbit can be reused for any view that contains its reference
+ * point, needs no more digits and no more iterations, which keeps panning cheap.
+ */
+final class ReferenceOrbit {
+    private static final double LOG2_10 = Math.log(10) / Math.log(2);
+
+    private final BigDecimal centerX;
+    private final BigDecimal centerY;
+    private final int digits;
+    private final int maxIterations;
+
+    /**
+     * Z<sub>0</sub> .. Z<sub>length-1</sub>, real and imaginary part interleaved
+     */
+    private final double[] orbit;
+    private final int length;
+
+    private ReferenceOrbit(BigDecimal centerX, BigDecimal centerY, int digits, int maxIterations, double[] orbit,
+                           int length) {
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.digits = digits;
+        this.maxIterations = maxIterations;
+        this.orbit = orbit;
+        this.length = length;
+    }
+
+    /**
+     * Iterates the orbit of the given point until it escapes or for maxIterations iterations,
+     * with the given number of significant digits.
+     */
+    static ReferenceOrbit compute(BigDecimal centerX, BigDecimal centerY, int digits, int maxIterations) {
+        MathContext mc = new MathContext(digits);
+        BigDecimal roundedX = centerX.round(mc);
+        BigDecimal roundedY = centerY.round(mc);
+        // The binary digits, and a few more for the rounding of every step
+        int bits = (int) Math.ceil(digits * LOG2_10) + 8;
+        BigDecimal one = new BigDecimal(BigInteger.ONE.shiftLeft(bits));
+        BigInteger cx = roundedX.multiply(one).toBigInteger();
+        BigInteger cy = roundedY.multiply(one).toBigInteger();
+
+        double[] orbit = new double[2 * (maxIterations + 1)];
+        BigInteger x = BigInteger.ZERO;
+        BigInteger y = BigInteger.ZERO;
+        int n = 0;
+        while (true) {
+            double zx = Math.scalb(x.doubleValue(), -bits);
+            double zy = Math.scalb(y.doubleValue(), -bits);
+            orbit[2 * n] = zx;
+            orbit[2 * n + 1] = zy;
+            n++;
+            // Escaped: keep the first value outside, the kernel rebases before it runs out
+            if (n > maxIterations || zx * zx + zy * zy > 4) {
+                break;
+            }
+            BigInteger xx = x.multiply(x).shiftRight(bits);
+            BigInteger yy = y.multiply(y).shiftRight(bits);
+            // 2xy
+            BigInteger xy2 = x.multiply(y).shiftRight(bits - 1);
+            x = xx.subtract(yy).add(cx);
+            y = xy2.add(cy);
+        }
+        return new ReferenceOrbit(roundedX, roundedY, digits, maxIterations, orbit, n);
+    }
+
+    /**
+     * Whether this orbit serves a view with the given center and size: its reference point
+     * lies in the view, it has at least the given digits, and it either escaped or was
+     * iterated at least maxIterations times.
+     */
+    boolean covers(BigDecimal viewX, BigDecimal viewY, double width, double height, int digits,
+                   int maxIterations) {
+        if (digits > this.digits || (maxIterations > this.maxIterations && !escaped())) {
+            return false;
+        }
+        return Math.abs(centerX.subtract(viewX).doubleValue()) <= width / 2
+                && Math.abs(centerY.subtract(viewY).doubleValue()) <= height / 2;
+    }
+
+    boolean escaped() {
+        return length <= maxIterations;
+    }
+
+    BigDecimal getCenterX() {
+        return centerX;
+    }
+
+    BigDecimal getCenterY() {
+        return centerY;
+    }
+
+    /**
+     * The values Z<sub>0</sub> .. Z<sub>length-1</sub>, real and imaginary part interleaved;
+     * the array may be longer.
+     */
+    double[] getOrbit() {
+        return orbit;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * The significant digits needed to tell apart two points the given distance apart, when
+     * neither coordinate is larger than 2
+     */
+    static int digitsFor(double spacing) {
+        return Math.max(17, (int) Math.ceil(-Math.log10(spacing)) + 8);
+    }
+}
@@ -0,0 +1,101 @@
+package dtu.gpu.madelbrot;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import java.util.Arrays;
+import org.jocl.*;
+
+/**
+ * Host side of continueIterations and colorIterations in SimpleMandelbrot.cl. The orbit, the
+ * iteration count and the state of every pixel stay on the device between frames, so for the
+ * same view a higher iteration limit only continues the pixels that have not escaped, and a
+ * lower limit or a new color map needs no iterations at all, only the coloring. A new view
+ * or image size starts every pixel again.
+ */
+final class ResumableIterations {
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private final cl_kernel continueKernel;
+    private final cl_kernel colorKernel;
+
+    private cl_mem zMem;
+    private cl_mem iterationMem;
+    private cl_mem stateMem;
+    private int sizeX;
+    private int sizeY;
+
+    // The view of the stored state, and the limit its counts reached
+    private double[] view;
+    private int computedIterations;
+
+    ResumableIterations(cl_context context, cl_command_queue commandQueue, cl_program program,
+                        FrameProfiler profiler) {
+        this.context = context;
+        this.commandQueue = commandQueue;
+        this.profiler = profiler;
+        this.continueKernel = clCreateKernel(program, "continueIterations", null);
+        this.colorKernel = clCreateKernel(program, "colorIterations", null);
+    }
+
+    /**
+     * Enqueues the iterations the view from (x0, y0) to (x1, y1) still needs for the given
+     * limit, and the coloring of the counts into pixelMem.
+     */
+    void enqueue(cl_mem pixelMem, int sizeX, int sizeY, double x0, double y0, double x1, double y1,
+                 int maxIterations, cl_mem colorMapMem, int colorMapSize) {
+        if (sizeX != this.sizeX || sizeY != this.sizeY) {
+            allocate(sizeX, sizeY);
+        }
+        double[] requested = { x0, y0, x1, y1 };
+        boolean restart = !Arrays.equals(requested, view);
+        if (restart || maxIterations > computedIterations) {
+            clSetKernelArg(continueKernel, 0, Sizeof.cl_mem, Pointer.to(zMem));
+            clSetKernelArg(continueKernel, 1, Sizeof.cl_mem, Pointer.to(iterationMem));
+            clSetKernelArg(continueKernel, 2, Sizeof.cl_mem, Pointer.to(stateMem));
+            clSetKernelArg(continueKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ sizeX }));
+            clSetKernelArg(continueKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ sizeY }));
+            for (int i = 0; i < 4; i++) {
+                clSetKernelArg(continueKernel, 5 + i, Sizeof.cl_double, Pointer.to(new double[]{ requested[i] }));
+            }
+            clSetKernelArg(continueKernel, 9, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
+            clSetKernelArg(continueKernel, 10, Sizeof.cl_int, Pointer.to(new int[]{ restart ? 1 : 0 }));
+            clEnqueueNDRangeKernel(commandQueue, continueKernel, 2, null, new long[]{ sizeX, sizeY }, null, 0, null,
+                    profiler.event(Phase.KERNEL, 0));
+            view = requested;
+            computedIterations = restart ? maxIterations : Math.max(computedIterations, maxIterations);
+        }
+
+        clSetKernelArg(colorKernel, 0, Sizeof.cl_mem, Pointer.to(pixelMem));
+        clSetKernelArg(colorKernel, 1, Sizeof.cl_mem, Pointer.to(iterationMem));
+        clSetKernelArg(colorKernel, 2, Sizeof.cl_mem, Pointer.to(stateMem));
+        clSetKernelArg(colorKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ maxIterations }));
+        clSetKernelArg(colorKernel, 4, Sizeof.cl_mem, Pointer.to(colorMapMem));
+        clSetKernelArg(colorKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{ colorMapSize }));
+        clEnqueueNDRangeKernel(commandQueue, colorKernel, 1, null, new long[]{ (long) sizeX * sizeY }, null, 0,
+                null, profiler.event(Phase.KERNEL, 0));
+    }
+
+    private void allocate(int sizeX, int sizeY) {
+        release();
+        long pixels = (long) sizeX * sizeY;
+        zMem = clCreateBuffer(context, CL_MEM_READ_WRITE, pixels * 2 * Sizeof.cl_double, null, null);
+        iterationMem = clCreateBuffer(context, CL_MEM_READ_WRITE, pixels * Sizeof.cl_int, null, null);
+        stateMem = clCreateBuffer(context, CL_MEM_READ_WRITE, pixels * Sizeof.cl_uchar, null, null);
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        // Nothing stored yet
+        view = null;
+    }
+
+    void release() {
+        if (zMem != null) {
+            clReleaseMemObject(zMem);
+            clReleaseMemObject(iterationMem);
+            clReleaseMemObject(stateMem);
+            zMem = null;
+        }
+    }
+}
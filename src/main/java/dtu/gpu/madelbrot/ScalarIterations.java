@@ -0,0 +1,34 @@
+package dtu.gpu.madelbrot;
+
+/**
+ * Iterates one pixel at a time, the loop of computeMandelbrot as it is. The baseline for
+ * {@link VectorIterations}.
+ */
+final class ScalarIterations extends CpuIterations {
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    @Override
+    void computeLine(Grid grid, int ix, int iy, int length, boolean vertical, int maxIterations,
+                     int[] out, int offset, int stride) {
+        for (int k = 0; k < length; k++) {
+            double r = grid.x(vertical ? ix : ix + k);
+            double i = grid.y(vertical ? iy + k : iy);
+            double x = 0.0;
+            double y = 0.0;
+            double magnitudeSquared = 0.0;
+            int iteration = 0;
+            while (iteration < maxIterations && magnitudeSquared < 4.0) {
+                double xx = x * x;
+                double yy = y * y;
+                y = 2.0 * x * y + i;
+                x = xx - yy + r;
+                magnitudeSquared = xx + yy;
+                iteration++;
+            }
+            out[offset + k * stride] = iteration;
+        }
+    }
+}
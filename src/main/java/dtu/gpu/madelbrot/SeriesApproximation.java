@@ -0,0 +1,165 @@
+package dtu.gpu.madelbrot;
+
+/**
+ * Skips the first iterations that all pixels of a view share. Near the reference point the
+ * difference dz<sub>n</sub> of a pixel from the reference orbit is, to a very good
+ * approximation, a cubic polynomial of the difference dc of their C values:
+ * <pre>
+ * dz<sub>n</sub> = A<sub>n</sub> dc + B<sub>n</sub> dc² + C<sub>n</sub> dc³
+ * </pre>
+ * with coefficients that follow from the orbit alone. The kernel evaluates the polynomial
+ * once and starts iterating at n instead of 0.
+ * <p>
+ * The coefficients are stored for u = dc / scale, where scale is the largest |dc| in the
+ * view, so that |u| &lt;= 1 and the powers of dc cannot underflow at deep zooms. The
+ * approximation is used up to the last iteration where the cubic term is still negligible
+ * against the quadratic one, and only as far as it matches the plain iteration of a few
+ * probe points at the edges of the view.
+ */
+final class SeriesApproximation {
+    /**
+     * How small the cubic term has to stay relative to the quadratic one
+     */
+    private static final double TOLERANCE = 1e-4;
+
+    /**
+     * How close the polynomial has to come to the iterated difference at the probes
+     */
+    private static final double PROBE_TOLERANCE = 1e-6;
+
+    static final SeriesApproximation NONE = new SeriesApproximation(0, 1, new double[6]);
+
+    private final int skip;
+    private final double scale;
+    // A, B and C for u at iteration skip, real and imaginary part interleaved
+    private final double[] coefficients;
+
+    private SeriesApproximation(int skip, double scale, double[] coefficients) {
+        this.skip = skip;
+        this.scale = scale;
+        this.coefficients = coefficients;
+    }
+
+    /**
+     * Finds the iterations the pixels can skip.
+     *
+     * @param probes        dc of the probe points, real and imaginary part interleaved; the
+     *                      largest of them is the scale, so they have to include the points of
+     *                      the view farthest from the reference
+     * @param maxIterations the iteration limit of the view
+     */
+    static SeriesApproximation compute(ReferenceOrbit reference, double[] probes, int maxIterations) {
+        double scale = 0;
+        for (int p = 0; p < probes.length; p += 2) {
+            scale = Math.max(scale, Math.hypot(probes[p], probes[p + 1]));
+        }
+        if (scale == 0) {
+            return NONE;
+        }
+        double[] orbit = reference.getOrbit();
+        int limit = Math.min(reference.getLength() - 1, maxIterations);
+
+        // Coefficients of every iteration, so that the probes can step back
+        double[] history = new double[6 * (limit + 1)];
+        double ar = 0, ai = 0, br = 0, bi = 0, cr = 0, ci = 0;
+        int skip = 0;
+        while (skip < limit) {
+            double zr = 2 * orbit[2 * skip], zi = 2 * orbit[2 * skip + 1];
+            // A' = 2ZA + 1, B' = 2ZB + A², C' = 2ZC + 2AB, all scaled to u
+            double nar = zr * ar - zi * ai + scale;
+            double nai = zr * ai + zi * ar;
+            double nbr = zr * br - zi * bi + ar * ar - ai * ai;
+            double nbi = zr * bi + zi * br + 2 * ar * ai;
+            double ncr = zr * cr - zi * ci + 2 * (ar * br - ai * bi);
+            double nci = zr * ci + zi * cr + 2 * (ar * bi + ai * br);
+            if (!Double.isFinite(ncr + nci)
+                    || Math.hypot(ncr, nci) > TOLERANCE * Math.hypot(nbr, nbi) && skip > 0) {
+                break;
+            }
+            ar = nar; ai = nai; br = nbr; bi = nbi; cr = ncr; ci = nci;
+            skip++;
+            int h = 6 * skip;
+            history[h] = ar;
+            history[h + 1] = ai;
+            history[h + 2] = br;
+            history[h + 3] = bi;
+            history[h + 4] = cr;
+            history[h + 5] = ci;
+        }
+
+        for (int p = 0; p < probes.length && skip > 0; p += 2) {
+            skip = probeLimit(orbit, history, probes[p], probes[p + 1], scale, skip);
+        }
+        if (skip == 0) {
+            return NONE;
+        }
+        double[] coefficients = new double[6];
+        System.arraycopy(history, 6 * skip, coefficients, 0, 6);
+        return new SeriesApproximation(skip, scale, coefficients);
+    }
+
+    /**
+     * Iterates the difference of one probe from the reference and returns the largest
+     * iteration up to skip where the polynomial still matches it. The probe must neither
+     * escape nor need a rebase (see the kernel) before that iteration.
+     */
+    private static int probeLimit(double[] orbit, double[] history, double dcr, double dci, double scale,
+                                  int skip) {
+        double[] dzHistory = new double[2 * (skip + 1)];
+        double dzr = 0, dzi = 0;
+        for (int n = 0; n < skip; n++) {
+            double zr = orbit[2 * n], zi = orbit[2 * n + 1];
+            double fullR = zr + dzr, fullI = zi + dzi;
+            double full = fullR * fullR + fullI * fullI;
+            if (full >= 4 || full < dzr * dzr + dzi * dzi) {
+                skip = n;
+                break;
+            }
+            double r = 2 * (zr * dzr - zi * dzi) + dzr * dzr - dzi * dzi + dcr;
+            dzi = 2 * (zr * dzi + zi * dzr) + 2 * dzr * dzi + dci;
+            dzr = r;
+            dzHistory[2 * (n + 1)] = dzr;
+            dzHistory[2 * (n + 1) + 1] = dzi;
+        }
+        double ur = dcr / scale, ui = dci / scale;
+        while (skip > 0) {
+            int h = 6 * skip;
+            double[] series = evaluate(history[h], history[h + 1], history[h + 2], history[h + 3],
+                    history[h + 4], history[h + 5], ur, ui);
+            double iteratedR = dzHistory[2 * skip], iteratedI = dzHistory[2 * skip + 1];
+            double error = Math.hypot(series[0] - iteratedR, series[1] - iteratedI);
+            if (error <= PROBE_TOLERANCE * Math.hypot(iteratedR, iteratedI)) {
+                break;
+            }
+            skip /= 2;
+        }
+        return skip;
+    }
+
+    /**
+     * A u + B u² + C u³, by Horner's scheme: u (A + u (B + u C))
+     */
+    private static double[] evaluate(double ar, double ai, double br, double bi, double cr, double ci,
+                                     double ur, double ui) {
+        double tr = br + ur * cr - ui * ci;
+        double ti = bi + ur * ci + ui * cr;
+        double sr = ar + ur * tr - ui * ti;
+        double si = ai + ur * ti + ui * tr;
+        return new double[]{ ur * sr - ui * si, ur * si + ui * sr };
+    }
+
+    int getSkip() {
+        return skip;
+    }
+
+    double getScale() {
+        return scale;
+    }
+
+    /**
+     * A, B and C for u = dc / scale, real and imaginary part interleaved
+     */
+    double[] getCoefficients() {
+        return coefficients;
+    }
+}
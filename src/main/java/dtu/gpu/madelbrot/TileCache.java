@@ -0,0 +1,55 @@
+package dtu.gpu.madelbrot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The iteration counts of recently computed tiles, least recently used first, limited to a
+ * number of bytes. Tiles are only ever replaced as a whole, so the arrays are shared with
+ * the callers and must not be modified.
+ * <p>
+ * Accessed by the event dispatch thread, which composes the image, and the thread that
+ * computes the tiles.
+ */
+final class TileCache {
+    /**
+     * A tile of the grid of one zoom level; tile (x, y) covers the pixels
+     * [x, x + 1) * {@link TileRenderer#TILE_SIZE} of the level, in both directions. The tiles
+     * of the same place differ with the iteration limit.
+     */
+    record Key(int level, long x, long y, int maxIterations) {
+    }
+
+    private final long maxBytes;
+    private long bytes;
+    private final LinkedHashMap<Key, int[]> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized int[] get(Key key) {
+        return tiles.get(key);
+    }
+
+    synchronized void put(Key key, int[] iterations) {
+        int[] previous = tiles.put(key, iterations);
+        if (previous != null) {
+            bytes -= (long) previous.length * Integer.BYTES;
+        }
+        bytes += (long) iterations.length * Integer.BYTES;
+        var eldest = tiles.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<Key, int[]> entry = eldest.next();
+            if (entry.getKey().equals(key)) {
+                break;
+            }
+            bytes -= (long) entry.getValue().length * Integer.BYTES;
+            eldest.remove();
+        }
+    }
+
+    synchronized int size() {
+        return tiles.size();
+    }
+}
@@ -0,0 +1,197 @@
+package dtu.gpu.madelbrot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntUnaryOperator;
+import javax.swing.SwingUtilities;
+
+/**
+ * Composes the view from tiles of iteration counts, so that panning only computes the tiles
+ * that scroll into view. The pixels of every zoom level lie on a fixed grid: level L has a
+ * pixel spacing of 2<sup>-L / {@link #LEVELS_PER_OCTAVE}</sup> and pixel (x, y) of the level
+ * lies at (x, y) times the spacing. The view snaps to the nearest level and to whole pixels
+ * of it, so a tile can be reused for every view of the same level.
+ * <p>
+ * Missing tiles are computed one at a time on a background thread, nearest to the center of
+ * the view first, and the viewer is told when they are ready. Until then the area shows the
+ * tile of the nearest coarser level in the cache, scaled up, e.g. the previous view while
+ * zooming in. Tiles that are no longer in view when their turn comes are skipped.
+ */
+final class TileRenderer {
+    static final int TILE_SIZE = 256;
+    static final int LEVELS_PER_OCTAVE = 8;
+
+    /**
+     * How many levels coarser to look for a preview of a missing tile
+     */
+    private static final int PREVIEW_LEVELS = 2 * LEVELS_PER_OCTAVE;
+
+    private volatile IterationSource source;
+    private final TileCache cache;
+    private final IntUnaryOperator maxIterationsOfLevel;
+    private final Runnable onTilesReady;
+    private final ExecutorService worker;
+
+    // Tiles queued on the worker, and the tiles the last view still needs
+    private final Set<TileCache.Key> pending = ConcurrentHashMap.newKeySet();
+    private volatile Set<TileCache.Key> wanted = Set.of();
+    private final AtomicBoolean readyPosted = new AtomicBoolean();
+
+    /**
+     * @param maxIterationsOfLevel the iteration limit of the tiles of a level
+     * @param onTilesReady         called on the event dispatch thread when tiles of the last
+     *                             view are ready, e.g. to render the view again
+     */
+    TileRenderer(IterationSource source, long cacheBytes, IntUnaryOperator maxIterationsOfLevel,
+                 Runnable onTilesReady) {
+        this.source = source;
+        this.cache = new TileCache(cacheBytes);
+        this.maxIterationsOfLevel = maxIterationsOfLevel;
+        this.onTilesReady = onTilesReady;
+        this.worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "mandelbrot-tiles");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Computes the tiles requested from now on with the given source. The tiles in the cache
+     * are kept, so the sources must compute the same counts.
+     */
+    void setSource(IterationSource source) {
+        this.source = source;
+    }
+
+    /**
+     * The level whose pixel spacing is nearest to the given one
+     */
+    static int levelOf(double spacing) {
+        return (int) Math.round(-Math.log(spacing) / Math.log(2) * LEVELS_PER_OCTAVE);
+    }
+
+    static double spacingOf(int level) {
+        return Math.pow(2, -(double) level / LEVELS_PER_OCTAVE);
+    }
+
+    /**
+     * Fills the image with the view of the given level whose upper left pixel is pixel
+     * (originX, originY) of the level, and requests the tiles that are not in the cache.
+     *
+     * @return the number of tiles that are still missing
+     */
+    int render(int[] image, int sizeX, int sizeY, int level, long originX, long originY, int[] colorMap) {
+        int maxIterations = maxIterationsOfLevel.applyAsInt(level);
+        List<TileCache.Key> missing = new ArrayList<>();
+        for (long ty = Math.floorDiv(originY, TILE_SIZE); ty <= Math.floorDiv(originY + sizeY - 1, TILE_SIZE); ty++) {
+            for (long tx = Math.floorDiv(originX, TILE_SIZE); tx <= Math.floorDiv(originX + sizeX - 1, TILE_SIZE); tx++) {
+                // The part of the image the tile covers
+                int left = (int) Math.max(0, tx * TILE_SIZE - originX);
+                int right = (int) Math.min(sizeX, (tx + 1) * TILE_SIZE - originX);
+                int top = (int) Math.max(0, ty * TILE_SIZE - originY);
+                int bottom = (int) Math.min(sizeY, (ty + 1) * TILE_SIZE - originY);
+
+                TileCache.Key key = new TileCache.Key(level, tx, ty, maxIterations);
+                int[] tile = cache.get(key);
+                if (tile == null) {
+                    missing.add(key);
+                    drawPreview(image, sizeX, level, originX, originY, left, top, right, bottom, colorMap);
+                    continue;
+                }
+                for (int iy = top; iy < bottom; iy++) {
+                    int row = (int) (originY + iy - ty * TILE_SIZE) * TILE_SIZE - (int) (tx * TILE_SIZE - originX);
+                    for (int ix = left; ix < right; ix++) {
+                        image[iy * sizeX + ix] = Mandelbrot.colorOf(tile[row + ix], maxIterations, colorMap);
+                    }
+                }
+            }
+        }
+
+        double centerX = (originX + sizeX / 2.0) / TILE_SIZE - 0.5;
+        double centerY = (originY + sizeY / 2.0) / TILE_SIZE - 0.5;
+        missing.sort(Comparator.comparingDouble(key -> Math.hypot(key.x() - centerX, key.y() - centerY)));
+        wanted = Set.copyOf(missing);
+        for (TileCache.Key key : missing) {
+            if (pending.add(key)) {
+                worker.execute(() -> computeTile(key));
+            }
+        }
+        return missing.size();
+    }
+
+    private void computeTile(TileCache.Key key) {
+        try {
+            // Out of view, or the view asked again while the tile was being stored
+            if (!wanted.contains(key) || cache.get(key) != null) {
+                return;
+            }
+            double step = spacingOf(key.level());
+            int[] tile = new int[TILE_SIZE * TILE_SIZE];
+            source.computeIterations(key.x() * TILE_SIZE * step, key.y() * TILE_SIZE * step, step,
+                    TILE_SIZE, TILE_SIZE, key.maxIterations(), tile);
+            cache.put(key, tile);
+        } finally {
+            pending.remove(key);
+        }
+        // One notification for all tiles that are ready before the viewer gets to it
+        if (readyPosted.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                readyPosted.set(false);
+                onTilesReady.run();
+            });
+        }
+    }
+
+    /**
+     * Fills the given part of the image from the finest coarser level that has any of the
+     * tiles covering it, scaled up; black where none is cached.
+     */
+    private void drawPreview(int[] image, int sizeX, int level, long originX, long originY,
+                             int left, int top, int right, int bottom, int[] colorMap) {
+        for (int coarse = level - 1; coarse >= level - PREVIEW_LEVELS; coarse--) {
+            // Pixels of the coarse level per pixel of this one
+            double ratio = spacingOf(level) / spacingOf(coarse);
+            long firstX = Math.floorDiv((long) Math.floor((originX + left) * ratio), TILE_SIZE);
+            long firstY = Math.floorDiv((long) Math.floor((originY + top) * ratio), TILE_SIZE);
+            long lastX = Math.floorDiv((long) Math.floor((originX + right - 1) * ratio), TILE_SIZE);
+            long lastY = Math.floorDiv((long) Math.floor((originY + bottom - 1) * ratio), TILE_SIZE);
+            int maxIterations = maxIterationsOfLevel.applyAsInt(coarse);
+
+            int[][] tiles = new int[(int) ((lastY - firstY + 1) * (lastX - firstX + 1))][];
+            boolean any = false;
+            for (long ty = firstY; ty <= lastY; ty++) {
+                for (long tx = firstX; tx <= lastX; tx++) {
+                    int[] tile = cache.get(new TileCache.Key(coarse, tx, ty, maxIterations));
+                    tiles[(int) ((ty - firstY) * (lastX - firstX + 1) + tx - firstX)] = tile;
+                    any |= tile != null;
+                }
+            }
+            if (!any) {
+                continue;
+            }
+            for (int iy = top; iy < bottom; iy++) {
+                long y = (long) Math.floor((originY + iy) * ratio);
+                long ty = Math.floorDiv(y, TILE_SIZE);
+                for (int ix = left; ix < right; ix++) {
+                    long x = (long) Math.floor((originX + ix) * ratio);
+                    long tx = Math.floorDiv(x, TILE_SIZE);
+                    int[] tile = tiles[(int) ((ty - firstY) * (lastX - firstX + 1) + tx - firstX)];
+                    image[iy * sizeX + ix] = tile == null ? 0 : Mandelbrot.colorOf(
+                            tile[(int) (y - ty * TILE_SIZE) * TILE_SIZE + (int) (x - tx * TILE_SIZE)],
+                            maxIterations, colorMap);
+                }
+            }
+            return;
+        }
+        for (int iy = top; iy < bottom; iy++) {
+            Arrays.fill(image, iy * sizeX + left, iy * sizeX + right, 0);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package dtu.gpu.madelbrot;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Iterates as many neighboring pixels of a row or column at once as the CPU has double lanes,
+ * with the Vector API. A lane whose pixel escaped is masked off: it keeps its values and
+ * stops counting, and the group stops when no lane is left or maxIterations is reached. The
+ * operations are those of computeMandelbrot in the same order, so the counts are the same.
+ * <p>
+ * Only loaded if the {@code jdk.incubator.vector} module is present, see
+ * {@link CpuIterations#create}.
+ */
+final class VectorIterations extends CpuIterations {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    /**
+     * 0, 1, 2, ... for the offsets of the lanes
+     */
+    private static final DoubleVector LANE_INDEX = DoubleVector.broadcast(SPECIES, 0).addIndex(1);
+
+    @Override
+    public String getName() {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+
+    @Override
+    void computeLine(Grid grid, int ix, int iy, int length, boolean vertical, int maxIterations,
+                     int[] out, int offset, int stride) {
+        int lanes = SPECIES.length();
+        double[] counts = new double[lanes];
+        DoubleVector zero = DoubleVector.zero(SPECIES);
+        // The coordinate that is the same for all pixels of the line
+        DoubleVector fixed = DoubleVector.broadcast(SPECIES, vertical ? grid.x(ix) : grid.y(iy));
+        for (int k = 0; k < length; k += lanes) {
+            // Lanes past the end of the line are computed and dropped
+            DoubleVector varying = vertical
+                    ? LANE_INDEX.add(iy + k).mul(grid.spanY()).div(grid.rows()).add(grid.y0())
+                    : LANE_INDEX.add(ix + k).mul(grid.spanX()).div(grid.columns()).add(grid.x0());
+            DoubleVector real = vertical ? fixed : varying;
+            DoubleVector imaginary = vertical ? varying : fixed;
+            DoubleVector x = zero;
+            DoubleVector y = zero;
+            DoubleVector magnitudeSquared = zero;
+            DoubleVector iteration = zero;
+            for (int n = 0; n < maxIterations; n++) {
+                VectorMask<Double> active = magnitudeSquared.lt(4.0);
+                if (!active.anyTrue()) {
+                    break;
+                }
+                DoubleVector xx = x.mul(x);
+                DoubleVector yy = y.mul(y);
+                y = y.blend(x.mul(2.0).mul(y).add(imaginary), active);
+                x = x.blend(xx.sub(yy).add(real), active);
+                magnitudeSquared = magnitudeSquared.blend(xx.add(yy), active);
+                iteration = iteration.add(1.0, active);
+            }
+            iteration.intoArray(counts, 0);
+            for (int lane = 0; lane < lanes && k + lane < length; lane++) {
+                out[offset + (k + lane) * stride] = (int) counts[lane];
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package dtu.gpu.opencl;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The frame measurements of one profiled device, summed up since the start and published
+ * as an MBean. Frames are recorded by the rendering thread while JMX and the
+ * {@link MetricsSink} read from their own threads.
+ */
+public class DeviceMetrics implements DeviceMetricsMBean {
+    private static final String DOMAIN = "dtu.gpu";
+
+    private final String name;
+    private ObjectName objectName;
+
+    private Totals totals = Totals.ZERO;
+    private FrameProfile last;
+
+    /**
+     * Running sums over the recorded frames. Two snapshots can be subtracted to get the
+     * figures of the frames in between.
+     *
+     * @param rayWallNanos wall time of the frames whose rays were counted
+     */
+    public record Totals(long frames, long wallNanos, long hostNanos, long kernelNanos, long uploadNanos,
+                         long readbackNanos, long waitNanos, long uploadBytes, long readbackBytes,
+                         long rays, long rayWallNanos, long samples, long transferBoundFrames) {
+        static final Totals ZERO = new Totals(0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+        Totals plus(FrameProfile frame) {
+            boolean countsRays = frame.rays() >= 0;
+            return new Totals(frames + 1, wallNanos + frame.wallNanos(), hostNanos + frame.hostNanos(),
+                    kernelNanos + frame.busyNanos(FrameProfiler.Phase.KERNEL),
+                    uploadNanos + frame.busyNanos(FrameProfiler.Phase.UPLOAD),
+                    readbackNanos + frame.busyNanos(FrameProfiler.Phase.READBACK),
+                    waitNanos + frame.waitNanos(),
+                    uploadBytes + frame.bytes(FrameProfiler.Phase.UPLOAD),
+                    readbackBytes + frame.bytes(FrameProfiler.Phase.READBACK),
+                    rays + (countsRays ? frame.rays() : 0), rayWallNanos + (countsRays ? frame.wallNanos() : 0),
+                    samples + frame.samples(), transferBoundFrames + (frame.isTransferBound() ? 1 : 0));
+        }
+
+        public Totals minus(Totals other) {
+            return new Totals(frames - other.frames, wallNanos - other.wallNanos, hostNanos - other.hostNanos,
+                    kernelNanos - other.kernelNanos, uploadNanos - other.uploadNanos,
+                    readbackNanos - other.readbackNanos, waitNanos - other.waitNanos,
+                    uploadBytes - other.uploadBytes, readbackBytes - other.readbackBytes,
+                    rays - other.rays, rayWallNanos - other.rayWallNanos, samples - other.samples,
+                    transferBoundFrames - other.transferBoundFrames);
+        }
+
+        /**
+         * Average per frame of a sum in nanoseconds, in milliseconds
+         */
+        public double perFrameMillis(long nanos) {
+            return frames == 0 ? 0 : nanos / 1e6 / frames;
+        }
+
+        /**
+         * -1 if no frame counted its rays
+         */
+        public double mraysPerSecond() {
+            return rayWallNanos == 0 ? -1 : rays * 1e3 / rayWallNanos;
+        }
+
+        public double samplesPerSecond() {
+            return wallNanos == 0 ? 0 : samples * 1e9 / wallNanos;
+        }
+
+        public boolean isTransferBound() {
+            return uploadNanos + readbackNanos > kernelNanos;
+        }
+    }
+
+    DeviceMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Creates the metrics for a device and publishes them through JMX and the sink. A
+     * number is appended to the name if it is already taken, e.g. by a second identical GPU.
+     */
+    static DeviceMetrics register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (int i = 1; ; i++) {
+            String uniqueName = i == 1 ? name : name + " #" + i;
+            DeviceMetrics metrics = new DeviceMetrics(uniqueName);
+            try {
+                ObjectName objectName = new ObjectName(DOMAIN + ":type=DeviceMetrics,name=" + ObjectName.quote(uniqueName));
+                if (server.isRegistered(objectName)) {
+                    continue;
+                }
+                server.registerMBean(metrics, objectName);
+                metrics.objectName = objectName;
+            } catch (JMException e) {
+                System.err.println("Could not register the metrics of " + uniqueName + " with JMX: " + e.getMessage());
+            }
+            MetricsSink.register(metrics);
+            return metrics;
+        }
+    }
+
+    void unregister() {
+        MetricsSink.unregister(this);
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ignored) {
+                // Already gone
+            }
+            objectName = null;
+        }
+    }
+
+    synchronized void record(FrameProfile frame) {
+        totals = totals.plus(frame);
+        last = frame;
+    }
+
+    public synchronized Totals getTotals() {
+        return totals;
+    }
+
+    /**
+     * The last completed frame, or null if there is none
+     */
+    public synchronized FrameProfile getLastFrame() {
+        return last;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getFrames() {
+        return getTotals().frames();
+    }
+
+    @Override
+    public double getLastFrameMillis() {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? 0 : frame.wallNanos() / 1e6;
+    }
+
+    @Override
+    public double getLastKernelMillis() {
+        return lastBusyMillis(FrameProfiler.Phase.KERNEL);
+    }
+
+    @Override
+    public double getLastUploadMillis() {
+        return lastBusyMillis(FrameProfiler.Phase.UPLOAD);
+    }
+
+    @Override
+    public double getLastReadbackMillis() {
+        return lastBusyMillis(FrameProfiler.Phase.READBACK);
+    }
+
+    private double lastBusyMillis(FrameProfiler.Phase phase) {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? 0 : frame.busyNanos(phase) / 1e6;
+    }
+
+    @Override
+    public double getLastQueueWaitMillis() {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? 0 : frame.waitNanos() / 1e6;
+    }
+
+    @Override
+    public double getLastHostMillis() {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? 0 : frame.hostNanos() / 1e6;
+    }
+
+    @Override
+    public double getLastMraysPerSecond() {
+        FrameProfile frame = getLastFrame();
+        return frame == null || frame.rays() < 0 ? -1 : frame.raysPerSecond() / 1e6;
+    }
+
+    @Override
+    public double getLastSamplesPerSecond() {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? 0 : frame.samplesPerSecond();
+    }
+
+    @Override
+    public String getLastBound() {
+        FrameProfile frame = getLastFrame();
+        return frame == null ? "" : frame.isTransferBound() ? "transfer" : "compute";
+    }
+
+    @Override
+    public double getAverageFrameMillis() {
+        Totals t = getTotals();
+        return t.perFrameMillis(t.wallNanos());
+    }
+
+    @Override
+    public double getAverageKernelMillis() {
+        Totals t = getTotals();
+        return t.perFrameMillis(t.kernelNanos());
+    }
+
+    @Override
+    public double getAverageTransferMillis() {
+        Totals t = getTotals();
+        return t.perFrameMillis(t.uploadNanos() + t.readbackNanos());
+    }
+
+    @Override
+    public double getAverageHostMillis() {
+        Totals t = getTotals();
+        return t.perFrameMillis(t.hostNanos());
+    }
+
+    @Override
+    public double getAverageMraysPerSecond() {
+        return getTotals().mraysPerSecond();
+    }
+
+    @Override
+    public double getAverageSamplesPerSecond() {
+        return getTotals().samplesPerSecond();
+    }
+
+    @Override
+    public long getUploadBytes() {
+        return getTotals().uploadBytes();
+    }
+
+    @Override
+    public long getReadbackBytes() {
+        return getTotals().readbackBytes();
+    }
+
+    @Override
+    public double getTransferBoundFraction() {
+        Totals t = getTotals();
+        return t.frames() == 0 ? 0 : (double) t.transferBoundFrames() / t.frames();
+    }
+
+    /**
+     * Starts the sums over; the sink keeps reporting the frames recorded from now on.
+     */
+    @Override
+    public synchronized void reset() {
+        totals = Totals.ZERO;
+        last = null;
+    }
+}
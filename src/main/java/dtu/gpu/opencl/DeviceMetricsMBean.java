@@ -0,0 +1,64 @@
+package dtu.gpu.opencl;
+
+/**
+ * The JMX view of a {@link DeviceMetrics}, registered as
+ * {@code dtu.gpu:type=DeviceMetrics,name=<device>}. Times are in milliseconds; the
+ * {@code Last} attributes describe the last completed frame, the {@code Average} ones all
+ * frames since the start or the last {@link #reset()}.
+ */
+public interface DeviceMetricsMBean {
+
+    String getName();
+
+    long getFrames();
+
+    double getLastFrameMillis();
+
+    double getLastKernelMillis();
+
+    double getLastUploadMillis();
+
+    double getLastReadbackMillis();
+
+    /**
+     * Time the commands of the last frame waited in their queues before they started
+     */
+    double getLastQueueWaitMillis();
+
+    double getLastHostMillis();
+
+    /**
+     * Millions of rays per second in the last frame, -1 if its rays were not counted
+     */
+    double getLastMraysPerSecond();
+
+    double getLastSamplesPerSecond();
+
+    /**
+     * "compute" or "transfer", whichever kept the device busier in the last frame
+     */
+    String getLastBound();
+
+    double getAverageFrameMillis();
+
+    double getAverageKernelMillis();
+
+    double getAverageTransferMillis();
+
+    double getAverageHostMillis();
+
+    double getAverageMraysPerSecond();
+
+    double getAverageSamplesPerSecond();
+
+    long getUploadBytes();
+
+    long getReadbackBytes();
+
+    /**
+     * The share of frames that were bound by transfers, between 0 and 1
+     */
+    double getTransferBoundFraction();
+
+    void reset();
+}
@@ -0,0 +1,99 @@
+package dtu.gpu.opencl;
+
+import java.util.List;
+
+/**
+ * The measurements of one frame, as collected by a {@link FrameProfiler}: the device
+ * timestamps of every profiled command, the time the host spent preparing the frame and
+ * what the frame produced.
+ *
+ * @param wallNanos the time from the first command or host step of the frame until its last
+ *                  command ended, on the host or on the device, whichever is longer
+ * @param hostNanos time spent on the host preparing the frame, e.g. building the BVH and
+ *                  setting kernel arguments
+ * @param rays      rays intersected with the scene, or -1 if they were not counted
+ * @param samples   samples computed, i.e. pixels times samples per pixel
+ * @param commands  the profiled commands in the order they were enqueued
+ */
+public record FrameProfile(long wallNanos, long hostNanos, long rays, long samples, List<Command> commands) {
+
+    /**
+     * The profiling info of one command, in nanoseconds of the device clock.
+     */
+    public record Command(FrameProfiler.Phase phase, long bytes, long queued, long submit, long start, long end) {
+
+        /**
+         * Time from being enqueued on the host until the device started the command
+         */
+        public long waitNanos() {
+            return start - queued;
+        }
+
+        /**
+         * Time the device spent executing the command
+         */
+        public long busyNanos() {
+            return end - start;
+        }
+    }
+
+    /**
+     * The time the device was busy with the commands of the given phase
+     */
+    public long busyNanos(FrameProfiler.Phase phase) {
+        long sum = 0;
+        for (Command command : commands) {
+            if (command.phase() == phase) {
+                sum += command.busyNanos();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * The time the commands of all phases waited in their queues
+     */
+    public long waitNanos() {
+        long sum = 0;
+        for (Command command : commands) {
+            sum += command.waitNanos();
+        }
+        return sum;
+    }
+
+    public long bytes(FrameProfiler.Phase phase) {
+        long sum = 0;
+        for (Command command : commands) {
+            if (command.phase() == phase) {
+                sum += command.bytes();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Time the device spent on uploads and readbacks together
+     */
+    public long transferNanos() {
+        return busyNanos(FrameProfiler.Phase.UPLOAD) + busyNanos(FrameProfiler.Phase.READBACK);
+    }
+
+    /**
+     * True if the device spent more time on transfers than on kernels, so a faster kernel
+     * would not make the frame much faster.
+     */
+    public boolean isTransferBound() {
+        return transferNanos() > busyNanos(FrameProfiler.Phase.KERNEL);
+    }
+
+    /**
+     * Rays per second of wall time, or -1 if the rays were not counted
+     */
+    public double raysPerSecond() {
+        return rays < 0 ? -1 : rays * 1e9 / Math.max(1, wallNanos);
+    }
+
+    public double samplesPerSecond() {
+        return samples * 1e9 / Math.max(1, wallNanos);
+    }
+}
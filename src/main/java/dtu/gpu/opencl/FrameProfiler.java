@@ -0,0 +1,269 @@
+package dtu.gpu.opencl;
+
+import static org.jocl.CL.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jocl.*;
+
+/**
+ * Opt-in timing of the commands a frame consists of. Profiling is switched on with
+ * {@code -Dopencl.profiling=true}; command queues created with {@link #queueProperties()}
+ * then record when each command was queued, submitted, started and ended on the device.
+ * <p>
+ * Code that enqueues a command passes {@link #event(Phase, long)} as its event. The profiled
+ * commands, and the host time measured with {@link #startHost()} and {@link #endHost(long)},
+ * make up the open frame until {@link #endFrame(long, long)} closes it. Once its commands have
+ * completed, {@link Frame#complete()} reads their timestamps and reports the frame to the
+ * {@link DeviceMetrics} of the profiler, which publish it through JMX and the
+ * {@link MetricsSink}.
+ * <p>
+ * Without the property {@link #event(Phase, long)} returns null, so the queues create no
+ * events at all, and none of the methods do any work. A profiler belongs to the thread that
+ * enqueues the commands, like the queue it profiles.
+ */
+public final class FrameProfiler {
+    public static final String PROPERTY = "opencl.profiling";
+
+    /**
+     * What a command does, so the time of a frame can be split into compute and transfer
+     */
+    public enum Phase { UPLOAD, KERNEL, READBACK }
+
+    // Null if profiling is disabled
+    private final DeviceMetrics metrics;
+
+    private List<PendingCommand> commands = new ArrayList<>();
+    private long frameStart = -1;
+    private long hostNanos;
+
+    private record PendingCommand(Phase phase, long bytes, cl_event event) {
+    }
+
+    private FrameProfiler(DeviceMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a profiler whose frames are published under the given name, e.g. the device
+     * name, or one that does nothing if profiling is disabled.
+     */
+    public static FrameProfiler create(String name) {
+        return new FrameProfiler(isEnabled() ? DeviceMetrics.register(name) : null);
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean(PROPERTY);
+    }
+
+    /**
+     * The properties for a new command queue: with {@code CL_QUEUE_PROFILING_ENABLE} if
+     * profiling is enabled, empty otherwise.
+     */
+    public static cl_queue_properties queueProperties() {
+        cl_queue_properties properties = new cl_queue_properties();
+        if (isEnabled()) {
+            properties.addProperty(CL_QUEUE_PROPERTIES, CL_QUEUE_PROFILING_ENABLE);
+        }
+        return properties;
+    }
+
+    public boolean isProfiling() {
+        return metrics != null;
+    }
+
+    /**
+     * Marks the start of a frame, unless something was already recorded for it.
+     */
+    public void startFrame() {
+        if (metrics != null && frameStart < 0) {
+            frameStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns a new event to pass to the enqueue call of a command that belongs to the open
+     * frame, or null if profiling is disabled.
+     *
+     * @param bytes the bytes the command transfers, 0 for kernels
+     */
+    public cl_event event(Phase phase, long bytes) {
+        if (metrics == null) {
+            return null;
+        }
+        startFrame();
+        cl_event event = new cl_event();
+        commands.add(new PendingCommand(phase, bytes, event));
+        return event;
+    }
+
+    /**
+     * Adds a command whose event the caller created and keeps using, e.g. to wait for it.
+     * The event is retained, so the caller can still release it whenever it likes.
+     */
+    public void record(Phase phase, long bytes, cl_event event) {
+        if (metrics == null) {
+            return;
+        }
+        startFrame();
+        clRetainEvent(event);
+        commands.add(new PendingCommand(phase, bytes, event));
+    }
+
+    /**
+     * Starts measuring host time, returns the value to pass to {@link #endHost(long)}.
+     */
+    public long startHost() {
+        if (metrics == null) {
+            return 0;
+        }
+        startFrame();
+        return System.nanoTime();
+    }
+
+    public void endHost(long start) {
+        if (metrics != null) {
+            hostNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Closes the open frame; the next command starts a new one. Call {@link Frame#complete()}
+     * on the result once the commands of the frame are done, or right away to wait for them.
+     *
+     * @param rays    rays intersected with the scene, -1 if not counted
+     * @param samples pixels times samples per pixel
+     */
+    public Frame endFrame(long rays, long samples) {
+        if (metrics == null) {
+            return Frame.NOT_PROFILED;
+        }
+        startFrame();
+        Frame frame = new Frame(metrics, commands, frameStart, System.nanoTime(), hostNanos, rays, samples);
+        reset();
+        return frame;
+    }
+
+    /**
+     * Drops the open frame, e.g. of a cancelled pass, without reporting it.
+     */
+    public void discardFrame() {
+        if (metrics != null) {
+            release(commands);
+            reset();
+        }
+    }
+
+    /**
+     * Drops the open frame and removes the metrics of this profiler from JMX and the sink.
+     */
+    public void release() {
+        if (metrics != null) {
+            discardFrame();
+            metrics.unregister();
+        }
+    }
+
+    private void reset() {
+        commands = new ArrayList<>();
+        frameStart = -1;
+        hostNanos = 0;
+    }
+
+    private static void release(List<PendingCommand> commands) {
+        for (PendingCommand command : commands) {
+            // A command that failed to enqueue never got its event
+            if (command.event().getNativePointer() != 0) {
+                clReleaseEvent(command.event());
+            }
+        }
+    }
+
+    /**
+     * A closed frame whose commands may still be running.
+     */
+    public static final class Frame {
+        static final Frame NOT_PROFILED = new Frame(null, List.of(), 0, 0, 0, -1, 0);
+
+        private final DeviceMetrics metrics;
+        private final List<PendingCommand> commands;
+        private final long hostStart, hostEnd, hostNanos, rays, samples;
+        private boolean completed;
+
+        private Frame(DeviceMetrics metrics, List<PendingCommand> commands, long hostStart, long hostEnd,
+                      long hostNanos, long rays, long samples) {
+            this.metrics = metrics;
+            this.commands = commands;
+            this.hostStart = hostStart;
+            this.hostEnd = hostEnd;
+            this.hostNanos = hostNanos;
+            this.rays = rays;
+            this.samples = samples;
+        }
+
+        /**
+         * Waits for the commands of the frame, reads their profiling info, releases their
+         * events and reports the frame. Returns null if profiling is disabled or the frame was
+         * already completed.
+         */
+        public FrameProfile complete() {
+            if (metrics == null || completed) {
+                return null;
+            }
+            completed = true;
+            List<cl_event> events = new ArrayList<>();
+            for (PendingCommand command : commands) {
+                if (command.event().getNativePointer() != 0) {
+                    events.add(command.event());
+                }
+            }
+            if (!events.isEmpty()) {
+                clWaitForEvents(events.size(), events.toArray(new cl_event[0]));
+            }
+
+            List<FrameProfile.Command> timings = new ArrayList<>(events.size());
+            long firstStart = Long.MAX_VALUE, lastEnd = Long.MIN_VALUE;
+            try {
+                for (PendingCommand command : commands) {
+                    if (command.event().getNativePointer() == 0) {
+                        continue;
+                    }
+                    FrameProfile.Command timing = new FrameProfile.Command(command.phase(), command.bytes(),
+                            timestamp(command.event(), CL_PROFILING_COMMAND_QUEUED),
+                            timestamp(command.event(), CL_PROFILING_COMMAND_SUBMIT),
+                            timestamp(command.event(), CL_PROFILING_COMMAND_START),
+                            timestamp(command.event(), CL_PROFILING_COMMAND_END));
+                    firstStart = Math.min(firstStart, timing.start());
+                    lastEnd = Math.max(lastEnd, timing.end());
+                    timings.add(timing);
+                }
+            } finally {
+                release(commands);
+            }
+            // Pipelined frames are submitted long before they end, so the device span can be longer
+            long wall = hostEnd - hostStart;
+            if (!timings.isEmpty()) {
+                wall = Math.max(wall, lastEnd - firstStart);
+            }
+            FrameProfile profile = new FrameProfile(wall, hostNanos, rays, samples, List.copyOf(timings));
+            metrics.record(profile);
+            return profile;
+        }
+
+        /**
+         * Releases the events of the frame without reporting it, e.g. if one of its commands failed.
+         */
+        public void discard() {
+            if (metrics != null && !completed) {
+                completed = true;
+                release(commands);
+            }
+        }
+
+        private static long timestamp(cl_event event, int name) {
+            long[] value = new long[1];
+            clGetEventProfilingInfo(event, name, Sizeof.cl_ulong, Pointer.to(value), null);
+            return value[0];
+        }
+    }
+}
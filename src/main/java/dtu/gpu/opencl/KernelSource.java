@@ -0,0 +1,60 @@
+package dtu.gpu.opencl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loads OpenCL C sources from the classpath, so the kernels also work from a packaged jar.
+ * Local {@code #include "file.cl"} directives are resolved relative to the including file
+ * and inlined, which gives the driver a single self-contained source without any include
+ * path and gives the {@link ProgramCache} the complete text to hash.
+ */
+public final class KernelSource {
+    private static final Pattern INCLUDE = Pattern.compile("^\\s*#\\s*include\\s+\"([^\"]+)\"\\s*$");
+
+    private KernelSource() {
+    }
+
+    /**
+     * Returns the source of the given classpath resource (e.g. {@code kernels/SimpleMandelbrot.cl})
+     * with all local includes inlined. Every file is inlined only once, like with include guards.
+     */
+    public static String load(String resourcePath) {
+        StringBuilder sb = new StringBuilder();
+        append(resourcePath, sb, new HashSet<>());
+        return sb.toString();
+    }
+
+    private static void append(String resourcePath, StringBuilder sb, Set<String> included) {
+        if (!included.add(resourcePath)) {
+            return;
+        }
+        String directory = resourcePath.contains("/")
+                ? resourcePath.substring(0, resourcePath.lastIndexOf('/') + 1) : "";
+        for (String line : read(resourcePath).split("\r?\n", -1)) {
+            Matcher include = INCLUDE.matcher(line);
+            if (include.matches()) {
+                append(directory + include.group(1), sb, included);
+            } else {
+                sb.append(line).append('\n');
+            }
+        }
+    }
+
+    private static String read(String resourcePath) {
+        try (InputStream in = KernelSource.class.getClassLoader().getResourceAsStream(resourcePath)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Kernel source not found on the classpath: " + resourcePath);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read kernel source " + resourcePath, e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package dtu.gpu.opencl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the frames every profiled device completed in the last interval, as one log line
+ * per device on {@code System.out} and, if {@code -Dopencl.profiling.csv=<file>} is given,
+ * as one row per device appended to that CSV file. The interval is 5 seconds unless
+ * {@code -Dopencl.profiling.interval=<seconds>} says otherwise, and
+ * {@code -Dopencl.profiling.log=false} turns the log lines off. Devices without frames in an
+ * interval are skipped; the last interval is reported when the JVM exits.
+ */
+final class MetricsSink {
+    private static final String INTERVAL_PROPERTY = "opencl.profiling.interval";
+    private static final String CSV_PROPERTY = "opencl.profiling.csv";
+    private static final String LOG_PROPERTY = "opencl.profiling.log";
+
+    private static final String CSV_HEADER = "time,device,frames,frame_ms,kernel_ms,upload_ms,readback_ms,"
+            + "queue_wait_ms,host_ms,upload_bytes,readback_bytes,mrays_per_s,samples_per_s,transfer_bound_frames,bound";
+
+    private static MetricsSink instance;
+
+    // The totals of every device at the end of the last interval
+    private final Map<DeviceMetrics, DeviceMetrics.Totals> reported = new LinkedHashMap<>();
+    private final Path csvFile;
+    private final boolean log;
+    private boolean csvFailed;
+
+    private MetricsSink(Path csvFile, boolean log) {
+        this.csvFile = csvFile;
+        this.log = log;
+    }
+
+    static synchronized void register(DeviceMetrics metrics) {
+        if (instance == null) {
+            instance = start();
+        }
+        synchronized (instance) {
+            instance.reported.put(metrics, metrics.getTotals());
+        }
+    }
+
+    /**
+     * Reports what the device did since the last interval and stops reporting it.
+     */
+    static synchronized void unregister(DeviceMetrics metrics) {
+        if (instance != null) {
+            synchronized (instance) {
+                instance.report(metrics, Instant.now());
+                instance.reported.remove(metrics);
+            }
+        }
+    }
+
+    private static MetricsSink start() {
+        String csv = System.getProperty(CSV_PROPERTY);
+        MetricsSink sink = new MetricsSink(csv == null || csv.isBlank() ? null : Paths.get(csv),
+                !"false".equalsIgnoreCase(System.getProperty(LOG_PROPERTY)));
+        long interval = Math.max(1, Long.getLong(INTERVAL_PROPERTY, 5));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "opencl-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(sink::flush, interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(sink::flush, "opencl-metrics-shutdown"));
+        return sink;
+    }
+
+    synchronized void flush() {
+        Instant now = Instant.now();
+        for (DeviceMetrics metrics : reported.keySet()) {
+            report(metrics, now);
+        }
+    }
+
+    private void report(DeviceMetrics metrics, Instant now) {
+        DeviceMetrics.Totals totals = metrics.getTotals();
+        DeviceMetrics.Totals previous = reported.get(metrics);
+        reported.put(metrics, totals);
+        // After a reset the totals start over
+        DeviceMetrics.Totals interval = previous == null || totals.frames() < previous.frames()
+                ? totals : totals.minus(previous);
+        if (interval.frames() == 0) {
+            return;
+        }
+        if (log) {
+            System.out.println(logLine(metrics.getName(), interval));
+        }
+        if (csvFile != null) {
+            appendCsv(now, metrics.getName(), interval);
+        }
+    }
+
+    private static String logLine(String device, DeviceMetrics.Totals t) {
+        double mrays = t.mraysPerSecond();
+        return String.format(Locale.ROOT,
+                "[profile] %s: %d frames, %.2f ms/frame (kernel %.2f, upload %.2f, readback %.2f, "
+                        + "queue wait %.2f, host %.2f), %s, %.2f Msamples/s, %s uploaded, %s read back, %s-bound",
+                device, t.frames(), t.perFrameMillis(t.wallNanos()), t.perFrameMillis(t.kernelNanos()),
+                t.perFrameMillis(t.uploadNanos()), t.perFrameMillis(t.readbackNanos()),
+                t.perFrameMillis(t.waitNanos()), t.perFrameMillis(t.hostNanos()),
+                mrays < 0 ? "rays not counted" : String.format(Locale.ROOT, "%.1f Mrays/s", mrays),
+                t.samplesPerSecond() / 1e6, bytes(t.uploadBytes()), bytes(t.readbackBytes()),
+                t.isTransferBound() ? "transfer" : "compute");
+    }
+
+    private static String bytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private void appendCsv(Instant now, String device, DeviceMetrics.Totals t) {
+        if (csvFailed) {
+            return;
+        }
+        String row = String.format(Locale.ROOT, "%s,\"%s\",%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%.3f,%.1f,%d,%s%n",
+                now, device.replace("\"", "\"\""), t.frames(), t.perFrameMillis(t.wallNanos()),
+                t.perFrameMillis(t.kernelNanos()), t.perFrameMillis(t.uploadNanos()),
+                t.perFrameMillis(t.readbackNanos()), t.perFrameMillis(t.waitNanos()),
+                t.perFrameMillis(t.hostNanos()), t.uploadBytes(), t.readbackBytes(), t.mraysPerSecond(),
+                t.samplesPerSecond(), t.transferBoundFrames(), t.isTransferBound() ? "transfer" : "compute");
+        try {
+            if (!Files.exists(csvFile) || Files.size(csvFile) == 0) {
+                row = CSV_HEADER + System.lineSeparator() + row;
+            }
+            Files.writeString(csvFile, row, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // Keep rendering, but do not repeat the message every interval
+            csvFailed = true;
+            System.err.println("Could not write profiling metrics to " + csvFile + ": " + e.getMessage());
+        }
+    }
+}
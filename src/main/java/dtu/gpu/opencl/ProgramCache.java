@@ -0,0 +1,169 @@
+package dtu.gpu.opencl;
+
+import static org.jocl.CL.*;
+
+import org.jocl.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Builds OpenCL programs and keeps their compiled binaries on disk, so that later starts on
+ * the same machine skip the compiler. A binary is stored per SHA-256 of the source, the
+ * build options and the platform, device and driver, so any change to one of them simply
+ * misses the cache. A binary the driver rejects is deleted and the program is built from
+ * source again.
+ * <p>
+ * The cache lives in {@code ~/.cache/dtu-gpu/opencl} unless the {@code opencl.cache.dir}
+ * system property names another directory; {@code -Dopencl.cache.dir=none} disables it.
+ * The cache is best effort: if it cannot be read or written the program is just built.
+ */
+public final class ProgramCache {
+    private static final String CACHE_DIR_PROPERTY = "opencl.cache.dir";
+
+    private ProgramCache() {
+    }
+
+    /**
+     * Returns a built program for the device, from the cache if possible.
+     */
+    public static cl_program build(cl_context context, cl_device_id device, String source, String options) {
+        Path cacheFile = cacheFile(device, source, options);
+        if (cacheFile != null && Files.isRegularFile(cacheFile)) {
+            cl_program program = buildFromBinary(context, device, cacheFile, options);
+            if (program != null) {
+                return program;
+            }
+        }
+
+        cl_program program = clCreateProgramWithSource(context, 1, new String[]{ source }, null, null);
+        try {
+            clBuildProgram(program, 1, new cl_device_id[]{ device }, options, null, null);
+        } catch (CLException e) {
+            String log = buildLog(program, device);
+            clReleaseProgram(program);
+            throw new CLException(e.getMessage() + "\n" + log, e.getStatus());
+        }
+        if (cacheFile != null) {
+            store(program, cacheFile);
+        }
+        return program;
+    }
+
+    private static cl_program buildFromBinary(cl_context context, cl_device_id device, Path cacheFile, String options) {
+        cl_program program = null;
+        try {
+            byte[] binary = Files.readAllBytes(cacheFile);
+            int[] binaryStatus = new int[1];
+            program = clCreateProgramWithBinary(context, 1, new cl_device_id[]{ device },
+                    new long[]{ binary.length }, new byte[][]{ binary }, binaryStatus, null);
+            // A program created from a binary still has to be built, which only links it
+            clBuildProgram(program, 1, new cl_device_id[]{ device }, options, null, null);
+            return program;
+        } catch (IOException | CLException e) {
+            System.err.println("Ignoring cached OpenCL program " + cacheFile + ": " + e.getMessage());
+            if (program != null) {
+                clReleaseProgram(program);
+            }
+            try {
+                Files.deleteIfExists(cacheFile);
+            } catch (IOException ignored) {
+                // Overwritten after the source build anyway
+            }
+            return null;
+        }
+    }
+
+    private static void store(cl_program program, Path cacheFile) {
+        long[] sizes = new long[1];
+        clGetProgramInfo(program, CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(sizes), null);
+        if (sizes[0] == 0) {
+            return;
+        }
+        byte[] binary = new byte[(int) sizes[0]];
+        clGetProgramInfo(program, CL_PROGRAM_BINARIES, Sizeof.POINTER,
+                Pointer.to(new Pointer[]{ Pointer.to(binary) }), null);
+        try {
+            // Write to a temporary file first so that concurrent starts never see half a binary
+            Files.createDirectories(cacheFile.getParent());
+            Path tmp = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+            Files.write(tmp, binary);
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache OpenCL program in " + cacheFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The cache file for the program, or null if caching is disabled.
+     */
+    private static Path cacheFile(cl_device_id device, String source, String options) {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY,
+                Paths.get(System.getProperty("user.home"), ".cache", "dtu-gpu", "opencl").toString());
+        if (dir.isEmpty() || dir.equals("none")) {
+            return null;
+        }
+        cl_platform_id platform = new cl_platform_id();
+        clGetDeviceInfo(device, CL_DEVICE_PLATFORM, Sizeof.cl_platform_id, Pointer.to(platform), null);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (String part : new String[]{
+                source,
+                options,
+                platformInfo(platform, CL_PLATFORM_NAME),
+                platformInfo(platform, CL_PLATFORM_VERSION),
+                deviceInfo(device, CL_DEVICE_NAME),
+                deviceInfo(device, CL_DEVICE_VERSION),
+                deviceInfo(device, CL_DRIVER_VERSION) }) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            // Separate the parts so that moving text between them changes the hash
+            digest.update((byte) 0);
+        }
+        return Paths.get(dir, HexFormat.of().formatHex(digest.digest()) + ".bin");
+    }
+
+    private static String buildLog(cl_program program, cl_device_id device) {
+        long[] size = new long[1];
+        clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetProgramBuildInfo(program, device, CL_PROGRAM_BUILD_LOG, buffer.length, Pointer.to(buffer), null);
+        return toString(buffer);
+    }
+
+    private static String deviceInfo(cl_device_id device, int paramName) {
+        long[] size = new long[1];
+        clGetDeviceInfo(device, paramName, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetDeviceInfo(device, paramName, buffer.length, Pointer.to(buffer), null);
+        return toString(buffer);
+    }
+
+    private static String platformInfo(cl_platform_id platform, int paramName) {
+        long[] size = new long[1];
+        clGetPlatformInfo(platform, paramName, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetPlatformInfo(platform, paramName, buffer.length, Pointer.to(buffer), null);
+        return toString(buffer);
+    }
+
+    // OpenCL strings are null terminated
+    private static String toString(byte[] buffer) {
+        int length = buffer.length;
+        while (length > 0 && buffer[length - 1] == 0) {
+            length--;
+        }
+        return new String(buffer, 0, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,214 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import org.jocl.*;
+
+/**
+ * Host side of the adaptive sampling kernels in adaptive.cl. The per pixel mean and variance
+ * and the list of pixels that still need samples stay on the device; a round traces a batch
+ * of samples for the pixels of the list, in chunks so it can be cancelled in between, and
+ * then compacts the list. Only the length of the new list is read back.
+ * <p>
+ * Round 0 covers every pixel. Later rounds are limited by the sample budget of the
+ * {@link RenderSettings}: once what is left does not cover a full batch for every active
+ * pixel, the batches get smaller, and in the end only part of the list is traced.
+ */
+public class AdaptiveSampler {
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private final cl_program program;
+    private final cl_kernel sampleKernel;
+    private final cl_kernel compactKernel;
+
+    /**
+     * Number of pixels the buffers hold
+     */
+    private int capacity;
+
+    // Mean (xyz) and sample count (w), and M2 (xyz), per pixel
+    private cl_mem mean, m2;
+    // The pixels of the next round and their number
+    private cl_mem activePixels;
+    private final cl_mem activeCountMem;
+    private final cl_mem rayCounter;
+
+    // Where round 0 writes the auxiliary buffers of the denoiser, null if it does not
+    private DeviceDenoiser auxTarget;
+
+    private int activeCount;
+    private int round;
+    private int roundSamples;
+    // Samples requested since round 0, counted against the budget
+    private long samplesTraced;
+
+    public AdaptiveSampler(OpenCLManager openCLManager) {
+        this.context = openCLManager.getContext();
+        this.commandQueue = openCLManager.getCommandQueue();
+        this.profiler = openCLManager.getProfiler();
+        this.program = openCLManager.buildProgram("adaptive.cl");
+        this.sampleKernel = clCreateKernel(program, "adaptive_sample", null);
+        this.compactKernel = clCreateKernel(program, "adaptive_compact", null);
+        this.activeCountMem = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+        this.rayCounter = clCreateBuffer(context, CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+    }
+
+    /**
+     * Sets up a round and returns the number of entries of the active list it traces, to be
+     * passed to {@link #sample} in chunks. Pass 0, or a new image size, starts over with
+     * every pixel.
+     */
+    public int startRound(RenderSettings settings, Camera.View camera, DeviceSceneBuffers sceneBuffers, int pass,
+                          int samples) {
+        int numPixels = settings.getWidth() * settings.getHeight();
+        if (pass == 0 || capacity != numPixels) {
+            ensureCapacity(numPixels);
+            activeCount = numPixels;
+            samplesTraced = 0;
+            pass = 0;
+        }
+        round = pass;
+        roundSamples = samples;
+        int roundPixels = activeCount;
+        if (pass > 0) {
+            // Spread what is left of the budget over the active pixels
+            long remaining = settings.getTotalSampleBudget() - samplesTraced;
+            roundSamples = remaining <= 0 ? 0 : (int) Math.min(samples, Math.max(1, remaining / Math.max(1, roundPixels)));
+            roundPixels = roundSamples == 0 ? 0 : (int) Math.min(roundPixels, remaining / roundSamples);
+        }
+        samplesTraced += (long) roundPixels * roundSamples;
+        setSampleArgs(settings, camera, sceneBuffers);
+        return roundPixels;
+    }
+
+    /**
+     * Sets the denoiser whose auxiliary buffers round 0 writes, null to not write them.
+     */
+    public void setAuxTarget(DeviceDenoiser auxTarget) {
+        this.auxTarget = auxTarget;
+    }
+
+    /**
+     * Traces the entries [from, to) of the active list.
+     *
+     * @return the number of rays intersected with the scene
+     */
+    public long sample(int from, int to) {
+        int[] rays = { 0 };
+        clEnqueueWriteBuffer(commandQueue, rayCounter, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(rays), 0, null,
+                profiler.event(Phase.UPLOAD, Sizeof.cl_int));
+        clSetKernelArg(sampleKernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ to }));
+        clEnqueueNDRangeKernel(commandQueue, sampleKernel, 1, new long[]{ from }, new long[]{ to - from }, null,
+                0, null, profiler.event(Phase.KERNEL, 0));
+        clEnqueueReadBuffer(commandQueue, rayCounter, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(rays), 0, null,
+                profiler.event(Phase.READBACK, Sizeof.cl_int));
+        return rays[0] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Compacts the active list after the chunks of a round and returns its new length, 0 if
+     * the image has converged or the budget is used up.
+     */
+    public int finishRound(RenderSettings settings) {
+        if (samplesTraced >= settings.getTotalSampleBudget()) {
+            activeCount = 0;
+            return 0;
+        }
+        int[] count = { 0 };
+        clEnqueueWriteBuffer(commandQueue, activeCountMem, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(count), 0, null,
+                profiler.event(Phase.UPLOAD, Sizeof.cl_int));
+        clSetKernelArg(compactKernel, 0, Sizeof.cl_mem, Pointer.to(mean));
+        clSetKernelArg(compactKernel, 1, Sizeof.cl_mem, Pointer.to(m2));
+        clSetKernelArg(compactKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ capacity }));
+        clSetKernelArg(compactKernel, 3, Sizeof.cl_float, Pointer.to(new float[]{ settings.getAdaptiveThreshold() }));
+        clSetKernelArg(compactKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ settings.getSamplesPrPixel() }));
+        clSetKernelArg(compactKernel, 5, Sizeof.cl_mem, Pointer.to(activePixels));
+        clSetKernelArg(compactKernel, 6, Sizeof.cl_mem, Pointer.to(activeCountMem));
+        clEnqueueNDRangeKernel(commandQueue, compactKernel, 1, null, new long[]{ capacity }, null, 0, null,
+                profiler.event(Phase.KERNEL, 0));
+        clEnqueueReadBuffer(commandQueue, activeCountMem, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(count), 0, null,
+                profiler.event(Phase.READBACK, Sizeof.cl_int));
+        activeCount = count[0];
+        return activeCount;
+    }
+
+    /**
+     * The running means, laid out like the accumulation buffer of one sample, for the
+     * resolve kernel
+     */
+    public cl_mem getMeanBuffer() {
+        return mean;
+    }
+
+    private void setSampleArgs(RenderSettings settings, Camera.View camera, DeviceSceneBuffers sceneBuffers) {
+        clSetKernelArg(sampleKernel, 0, Sizeof.cl_mem, Pointer.to(activePixels));
+        clSetKernelArg(sampleKernel, 2, Sizeof.cl_mem, Pointer.to(mean));
+        clSetKernelArg(sampleKernel, 3, Sizeof.cl_mem, Pointer.to(m2));
+        clSetKernelArg(sampleKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ settings.getWidth() }));
+        clSetKernelArg(sampleKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{ settings.getHeight() }));
+        clSetKernelArg(sampleKernel, 6, 4 * Sizeof.cl_float, Pointer.to(float4(camera.origin())));
+        clSetKernelArg(sampleKernel, 7, 4 * Sizeof.cl_float, Pointer.to(float4(camera.lowerLeftCorner())));
+        clSetKernelArg(sampleKernel, 8, 4 * Sizeof.cl_float, Pointer.to(float4(camera.horizontal())));
+        clSetKernelArg(sampleKernel, 9, 4 * Sizeof.cl_float, Pointer.to(float4(camera.vertical())));
+        clSetKernelArg(sampleKernel, 10, Sizeof.cl_mem, Pointer.to(sceneBuffers.getGeometryBuffer()));
+        clSetKernelArg(sampleKernel, 11, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialIdBuffer()));
+        clSetKernelArg(sampleKernel, 12, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialBuffer()));
+        clSetKernelArg(sampleKernel, 13, sceneBuffers.getMaterialCacheSize(), null);
+        clSetKernelArg(sampleKernel, 14, Sizeof.cl_int, Pointer.to(new int[]{ sceneBuffers.getCachedMaterials() }));
+        clSetKernelArg(sampleKernel, 15, Sizeof.cl_int, Pointer.to(new int[]{ sceneBuffers.getCount() }));
+        clSetKernelArg(sampleKernel, 16, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhNodes()));
+        clSetKernelArg(sampleKernel, 17, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhPrimIndices()));
+        clSetKernelArg(sampleKernel, 18, Sizeof.cl_int, Pointer.to(new int[]{ roundSamples }));
+        clSetKernelArg(sampleKernel, 19, Sizeof.cl_int, Pointer.to(new int[]{ settings.getSamplesPrPixel() }));
+        clSetKernelArg(sampleKernel, 20, Sizeof.cl_int, Pointer.to(new int[]{ settings.getMaxDepth() }));
+        clSetKernelArg(sampleKernel, 21, Sizeof.cl_uint, Pointer.to(new int[]{ round }));
+        clSetKernelArg(sampleKernel, 22, Sizeof.cl_mem, Pointer.to(rayCounter));
+        clSetKernelArg(sampleKernel, 23, Sizeof.cl_int, Pointer.to(new int[]{ auxTarget != null ? 1 : 0 }));
+        if (auxTarget != null) {
+            auxTarget.ensureCapacity(capacity);
+            clSetKernelArg(sampleKernel, 24, Sizeof.cl_mem, Pointer.to(auxTarget.getAlbedoBuffer()));
+            clSetKernelArg(sampleKernel, 25, Sizeof.cl_mem, Pointer.to(auxTarget.getNormalDepthBuffer()));
+        } else {
+            clSetKernelArg(sampleKernel, 24, Sizeof.cl_mem, null);
+            clSetKernelArg(sampleKernel, 25, Sizeof.cl_mem, null);
+        }
+    }
+
+    private static float[] float4(Vector3 v) {
+        return new float[]{ (float) v.getX(), (float) v.getY(), (float) v.getZ(), 0.0f };
+    }
+
+    private void ensureCapacity(int pixels) {
+        if (pixels == capacity) {
+            return;
+        }
+        releasePixelBuffers();
+        capacity = pixels;
+        long float4Bytes = (long) capacity * 4 * Sizeof.cl_float;
+        mean = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        m2 = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        activePixels = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) capacity * Sizeof.cl_int, null, null);
+    }
+
+    private void releasePixelBuffers() {
+        if (capacity == 0) {
+            return;
+        }
+        clReleaseMemObject(mean);
+        clReleaseMemObject(m2);
+        clReleaseMemObject(activePixels);
+        capacity = 0;
+    }
+
+    public void release() {
+        releasePixelBuffers();
+        clReleaseMemObject(activeCountMem);
+        clReleaseMemObject(rayCounter);
+        clReleaseKernel(sampleKernel);
+        clReleaseKernel(compactKernel);
+        clReleaseProgram(program);
+    }
+}
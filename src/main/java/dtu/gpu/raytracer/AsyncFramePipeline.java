@@ -0,0 +1,160 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.jocl.*;
+
+/**
+ * Lets the frames of an {@link OpenCLBackend} overlap: while the device computes frame N+1
+ * on the compute queue, frame N is copied to the host on a separate transfer queue.
+ * <p>
+ * Every frame in flight owns a slot with its own device pixel buffer and a host buffer
+ * allocated with {@code CL_MEM_ALLOC_HOST_PTR} that stays mapped, so the non-blocking read
+ * goes to pinned memory. The read waits for the resolve kernel through a {@code cl_event},
+ * and an event callback copies the pixels out and completes the frame's future. Submitting
+ * more frames than there are slots blocks until the oldest one has been delivered.
+ */
+class AsyncFramePipeline {
+    private final cl_command_queue computeQueue;
+    private final cl_command_queue transferQueue;
+    private final FrameProfiler profiler;
+    private final int width, height;
+    private final Slot[] slots;
+    private int nextSlot;
+
+    private static final class Slot {
+        cl_mem pixelMem;
+        cl_mem hostMem;
+        ByteBuffer mapped;
+        cl_event resolved, read;
+        CompletableFuture<int[]> done;
+        // Completed once the frame has been delivered
+        FrameProfiler.Frame profile;
+    }
+
+    AsyncFramePipeline(OpenCLManager openCLManager, int width, int height, int depth) {
+        this.computeQueue = openCLManager.getCommandQueue();
+        this.transferQueue = clCreateCommandQueueWithProperties(openCLManager.getContext(),
+                openCLManager.getDevice(), FrameProfiler.queueProperties(), null);
+        this.profiler = openCLManager.getProfiler();
+        this.width = width;
+        this.height = height;
+        this.slots = new Slot[depth];
+
+        long bytes = (long) width * height * Sizeof.cl_int;
+        for (int i = 0; i < depth; i++) {
+            Slot slot = new Slot();
+            slot.pixelMem = clCreateBuffer(openCLManager.getContext(), CL_MEM_WRITE_ONLY, bytes, null, null);
+            slot.hostMem = clCreateBuffer(openCLManager.getContext(), CL_MEM_READ_WRITE | CL_MEM_ALLOC_HOST_PTR,
+                    bytes, null, null);
+            slot.mapped = clEnqueueMapBuffer(transferQueue, slot.hostMem, CL_TRUE, CL_MAP_READ | CL_MAP_WRITE,
+                    0, bytes, 0, null, null, null).order(ByteOrder.nativeOrder());
+            slots[i] = slot;
+        }
+    }
+
+    boolean matches(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    /**
+     * Enqueues the raytrace kernel (arguments already set) for the given tiles, then the
+     * resolve kernel into the next free slot and the read of that slot. Returns as soon as
+     * the commands are submitted, unless all slots are still busy.
+     * <p>
+     * The commands close the open frame of the profiler, which is completed when the slot
+     * is reused, so reading the timestamps never waits for a frame still in flight.
+     *
+     * @param samples pixels times samples per pixel of the frame, for the profile
+     */
+    CompletableFuture<int[]> submit(cl_kernel raytraceKernel, cl_kernel resolveKernel, List<Tile> tiles, int[] pixels,
+                                    long samples) {
+        Slot slot = slots[nextSlot];
+        nextSlot = (nextSlot + 1) % slots.length;
+        awaitAndRelease(slot);
+
+        for (Tile tile : tiles) {
+            clEnqueueNDRangeKernel(computeQueue, raytraceKernel, 2,
+                    new long[]{ tile.getX(), tile.getY() }, new long[]{ tile.getWidth(), tile.getHeight() },
+                    null, 0, null, profiler.event(Phase.KERNEL, 0));
+        }
+        clSetKernelArg(resolveKernel, 1, Sizeof.cl_mem, Pointer.to(slot.pixelMem));
+        slot.resolved = new cl_event();
+        clEnqueueNDRangeKernel(computeQueue, resolveKernel, 2, null, new long[]{ width, height },
+                null, 0, null, slot.resolved);
+        profiler.record(Phase.KERNEL, 0, slot.resolved);
+
+        CompletableFuture<int[]> done = new CompletableFuture<>();
+        slot.done = done;
+        slot.read = new cl_event();
+        long bytes = (long) width * height * Sizeof.cl_int;
+        clEnqueueReadBuffer(transferQueue, slot.pixelMem, CL_FALSE, 0, bytes,
+                Pointer.to(slot.mapped), 1, new cl_event[]{ slot.resolved }, slot.read);
+        profiler.record(Phase.READBACK, bytes, slot.read);
+        // Rays would need a blocking read per frame
+        slot.profile = profiler.endFrame(-1, samples);
+        ByteBuffer mapped = slot.mapped;
+        clSetEventCallback(slot.read, CL_COMPLETE, (event, status, userData) -> {
+            // Runs on a driver thread, so no blocking OpenCL calls here
+            if (status < 0) {
+                done.completeExceptionally(new CLException("Frame readback failed: " + CL.stringFor_errorCode(status), status));
+            } else {
+                mapped.asIntBuffer().get(0, pixels, 0, width * height);
+                done.complete(pixels);
+            }
+        }, null);
+
+        // Submit both queues now, the callback only fires for commands the device has seen
+        clFlush(computeQueue);
+        clFlush(transferQueue);
+        return done;
+    }
+
+    private static void awaitAndRelease(Slot slot) {
+        if (slot.done == null) {
+            return;
+        }
+        boolean delivered = true;
+        try {
+            slot.done.join();
+        } catch (RuntimeException ignored) {
+            // The failure was reported to whoever waits for that frame
+            delivered = false;
+        }
+        if (delivered) {
+            slot.profile.complete();
+        } else {
+            slot.profile.discard();
+        }
+        clReleaseEvent(slot.resolved);
+        clReleaseEvent(slot.read);
+        slot.done = null;
+        slot.profile = null;
+    }
+
+    /**
+     * Waits until all submitted frames have been delivered.
+     */
+    void finish() {
+        for (Slot slot : slots) {
+            awaitAndRelease(slot);
+        }
+    }
+
+    void release() {
+        finish();
+        for (Slot slot : slots) {
+            clEnqueueUnmapMemObject(transferQueue, slot.hostMem, slot.mapped, 0, null, null);
+            clFinish(transferQueue);
+            clReleaseMemObject(slot.hostMem);
+            clReleaseMemObject(slot.pixelMem);
+        }
+        clReleaseCommandQueue(transferQueue);
+    }
+}
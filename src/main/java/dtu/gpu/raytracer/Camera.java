@@ -1,6 +1,13 @@
 package dtu.gpu.raytracer;
 
 public class Camera {
+    /**
+     * The parameters rays are generated from, as they were after one move or rotation
+     */
+    public record View(Vector3 origin, Vector3 lowerLeftCorner, Vector3 horizontal, Vector3 vertical,
+                       long version) {
+    }
+
     private final double aspectRatio;
     private final double vfov;  // Vertical Field of View
     private final double focalLength;
@@ -18,6 +25,12 @@ public class Camera {
     private Vector3 right;
     private Vector3 up;
 
+    // Replaced after every move or rotation, with a version incremented so renderers can tell
+    // when accumulated samples are stale. The fields above are changed on the event dispatch
+    // thread while the render thread builds a pass, so the render thread reads only this
+    // immutable view, which is consistent even if the camera moves in between.
+    private volatile View view;
+
     /**
      * Constructs a camera with the given parameters and an initial "look at" point.
      *
@@ -31,23 +44,40 @@ public class Camera {
         this.aspectRatio = aspectRatio;
         this.vfov = vfov;
         this.focalLength = focalLength;
-        this.origin = origin;
         this.worldUp = new Vector3(0, 1, 0);
+        setOrientation(origin, lookAt);
+        publish(0);
+    }
 
-        // Calculate the initial look direction from origin to lookAt.
-        Vector3 initialDirection = lookAt.subtract(origin).normalize();
+    private void setOrientation(Vector3 origin, Vector3 lookAt) {
+        this.origin = origin;
+
+        // Calculate the look direction from origin to lookAt.
+        Vector3 direction = lookAt.subtract(origin).normalize();
 
         // Calculate pitch from the y component.
-        this.pitch = Math.toDegrees(Math.asin(initialDirection.getY()));
+        this.pitch = Math.toDegrees(Math.asin(direction.getY()));
 
         // Calculate yaw using the x and z components.
         // Note: atan2 returns the angle relative to the positive x-axis.
-        this.yaw = Math.toDegrees(Math.atan2(initialDirection.getZ(), initialDirection.getX()));
+        this.yaw = Math.toDegrees(Math.atan2(direction.getZ(), direction.getX()));
 
         updateCameraVectors();
         computeCameraParameters();
     }
 
+    /**
+     * Places the camera at the given position, looking at the given point.
+     */
+    public synchronized void lookAt(Vector3 origin, Vector3 lookAt) {
+        setOrientation(origin, lookAt);
+        publish(view.version() + 1);
+    }
+
+    private void publish(long version) {
+        view = new View(origin, lowerLeftCorner, horizontal, vertical, version);
+    }
+
     // Recalculate the camera’s basis vectors based on the current yaw and pitch.
     private void updateCameraVectors() {
         double yawRad = Math.toRadians(yaw);
@@ -85,7 +115,7 @@ public class Camera {
     /**
      * Rotates the camera by the given yaw (left/right) and pitch (up/down) deltas.
      */
-    public void rotate(double yawDelta, double pitchDelta) {
+    public synchronized void rotate(double yawDelta, double pitchDelta) {
         yaw += yawDelta;
         pitch += pitchDelta;
         // Clamp pitch to avoid extreme angles (and potential gimbal lock)
@@ -94,14 +124,24 @@ public class Camera {
 
         updateCameraVectors();
         computeCameraParameters();
+        publish(view.version() + 1);
     }
 
     /**
      * Moves the camera by the given delta and updates the derived parameters.
      */
-    public void move(Vector3 delta) {
+    public synchronized void move(Vector3 delta) {
         this.origin = this.origin.add(delta);
         computeCameraParameters();
+        publish(view.version() + 1);
+    }
+
+    /**
+     * The current parameters as one consistent snapshot; threads other than the one moving
+     * the camera use this instead of the getters below.
+     */
+    public View getView() {
+        return view;
     }
 
     // Getters for camera parameters
@@ -144,4 +184,7 @@ public class Camera {
     public Vector3 getUp() {
         return up;
     }
+    public long getVersion() {
+        return view.version();
+    }
 }
@@ -0,0 +1,147 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import dtu.gpu.raytracer.post.AtrousDenoiser;
+import dtu.gpu.raytracer.post.PostProcess;
+import java.util.List;
+import org.jocl.*;
+
+/**
+ * Host side of the à-trous filter in denoise.cl, and owner of the auxiliary buffers the
+ * raytrace and adaptive_sample kernels write on pass 0 (see aux.cl). The filter runs entirely
+ * on the device: the colors are demodulated once, every {@link AtrousDenoiser} stage adds its
+ * iterations, ping-ponging between two buffers, and the result is written straight into the
+ * pixel buffer.
+ */
+public class DeviceDenoiser {
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private final cl_program program;
+    private final cl_kernel demodulateKernel;
+    private final cl_kernel atrousKernel;
+    private final cl_kernel remodulateKernel;
+
+    /**
+     * Number of pixels the buffers hold
+     */
+    private int capacity;
+
+    // Auxiliary buffers, see aux.cl
+    private cl_mem albedo, normalDepth;
+    // Demodulated colors, the input and output of an iteration
+    private final cl_mem[] pingPong = new cl_mem[2];
+
+    public DeviceDenoiser(OpenCLManager openCLManager) {
+        this.context = openCLManager.getContext();
+        this.commandQueue = openCLManager.getCommandQueue();
+        this.profiler = openCLManager.getProfiler();
+        this.program = openCLManager.buildProgram("denoise.cl");
+        this.demodulateKernel = clCreateKernel(program, "denoise_demodulate", null);
+        this.atrousKernel = clCreateKernel(program, "denoise_atrous", null);
+        this.remodulateKernel = clCreateKernel(program, "denoise_remodulate", null);
+    }
+
+    /**
+     * Makes sure the buffers hold an image with the given number of pixels. Their contents
+     * are undefined afterwards if the size changed.
+     */
+    public void ensureCapacity(int pixels) {
+        if (pixels == capacity) {
+            return;
+        }
+        releasePixelBuffers();
+        capacity = pixels;
+        long float4Bytes = (long) capacity * 4 * Sizeof.cl_float;
+        albedo = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        normalDepth = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        for (int i = 0; i < pingPong.length; i++) {
+            pingPong[i] = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        }
+    }
+
+    public cl_mem getAlbedoBuffer() {
+        return albedo;
+    }
+
+    public cl_mem getNormalDepthBuffer() {
+        return normalDepth;
+    }
+
+    /**
+     * Filters the colors with the given stages and writes the gamma corrected result into
+     * the pixel buffer.
+     *
+     * @param color      float4 per pixel, multiplied by colorScale to get the means
+     * @param hasAux     whether the auxiliary buffers were written for this image
+     */
+    public void denoise(List<PostProcess> stages, cl_mem color, float colorScale, boolean hasAux,
+                        int width, int height, cl_mem pixels) {
+        int numPixels = width * height;
+        ensureCapacity(numPixels);
+        int aux = hasAux ? 1 : 0;
+
+        clSetKernelArg(demodulateKernel, 0, Sizeof.cl_mem, Pointer.to(color));
+        clSetKernelArg(demodulateKernel, 1, Sizeof.cl_float, Pointer.to(new float[]{ colorScale }));
+        clSetKernelArg(demodulateKernel, 2, Sizeof.cl_mem, Pointer.to(albedo));
+        clSetKernelArg(demodulateKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ aux }));
+        clSetKernelArg(demodulateKernel, 4, Sizeof.cl_mem, Pointer.to(pingPong[0]));
+        clSetKernelArg(demodulateKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{ numPixels }));
+        enqueue(demodulateKernel, new long[]{ numPixels });
+
+        clSetKernelArg(atrousKernel, 2, Sizeof.cl_mem, Pointer.to(normalDepth));
+        clSetKernelArg(atrousKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ aux }));
+        clSetKernelArg(atrousKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ width }));
+        clSetKernelArg(atrousKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{ height }));
+        int current = 0;
+        for (PostProcess stage : stages) {
+            AtrousDenoiser denoiser = (AtrousDenoiser) stage;
+            clSetKernelArg(atrousKernel, 8, Sizeof.cl_float, Pointer.to(new float[]{ denoiser.getSigmaNormal() }));
+            clSetKernelArg(atrousKernel, 9, Sizeof.cl_float, Pointer.to(new float[]{ denoiser.getSigmaDepth() }));
+            for (int iteration = 0; iteration < denoiser.getIterations(); iteration++) {
+                int step = 1 << iteration;
+                clSetKernelArg(atrousKernel, 0, Sizeof.cl_mem, Pointer.to(pingPong[current]));
+                clSetKernelArg(atrousKernel, 1, Sizeof.cl_mem, Pointer.to(pingPong[1 - current]));
+                clSetKernelArg(atrousKernel, 6, Sizeof.cl_int, Pointer.to(new int[]{ step }));
+                // The color tolerance halves every iteration
+                clSetKernelArg(atrousKernel, 7, Sizeof.cl_float,
+                        Pointer.to(new float[]{ denoiser.getSigmaColor() / step }));
+                enqueue(atrousKernel, new long[]{ width, height });
+                current = 1 - current;
+            }
+        }
+
+        clSetKernelArg(remodulateKernel, 0, Sizeof.cl_mem, Pointer.to(pingPong[current]));
+        clSetKernelArg(remodulateKernel, 1, Sizeof.cl_mem, Pointer.to(albedo));
+        clSetKernelArg(remodulateKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ aux }));
+        clSetKernelArg(remodulateKernel, 3, Sizeof.cl_mem, Pointer.to(pixels));
+        clSetKernelArg(remodulateKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ numPixels }));
+        enqueue(remodulateKernel, new long[]{ numPixels });
+    }
+
+    private void enqueue(cl_kernel kernel, long[] globalWorkSize) {
+        clEnqueueNDRangeKernel(commandQueue, kernel, globalWorkSize.length, null, globalWorkSize, null, 0, null,
+                profiler.event(Phase.KERNEL, 0));
+    }
+
+    private void releasePixelBuffers() {
+        if (capacity == 0) {
+            return;
+        }
+        for (cl_mem mem : new cl_mem[]{ albedo, normalDepth, pingPong[0], pingPong[1] }) {
+            clReleaseMemObject(mem);
+        }
+        capacity = 0;
+    }
+
+    public void release() {
+        releasePixelBuffers();
+        clReleaseKernel(demodulateKernel);
+        clReleaseKernel(atrousKernel);
+        clReleaseKernel(remodulateKernel);
+        clReleaseProgram(program);
+    }
+}
@@ -0,0 +1,338 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import dtu.gpu.raytracer.scene.Bvh;
+import dtu.gpu.raytracer.scene.MaterialTable;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.SphereStore;
+import java.util.BitSet;
+import org.jocl.*;
+
+/**
+ * Keeps the sphere records alive on the device across frames.
+ * <p>
+ * Only the spheres the scene reports as dirty are written, one {@code clEnqueueWriteBuffer}
+ * per buffer and contiguous range, and the buffers grow geometrically so adding spheres
+ * does not re-allocate them every frame. A frame in which only the camera moved touches
+ * no buffers at all.
+ * <p>
+ * Next to the sphere data it holds the flattened {@link Bvh} the kernel traverses, which is
+ * rebuilt on the host whenever the spheres change.
+ * <p>
+ * The sphere buffers match the arrays of the scene's {@link SphereStore}: a {@code float4}
+ * of geometry per sphere, which is all the intersection tests read, and an {@code int}
+ * material id per sphere, read once per bounce for the closest hit. Every range is written
+ * straight from the store's arrays without marshalling.
+ * <p>
+ * The {@link MaterialTable} has a buffer of its own. It is small and uploaded as a whole
+ * when it changes, without touching the spheres. The kernels copy its first
+ * {@link #getCachedMaterials()} entries into local memory once per work group.
+ */
+public class DeviceSceneBuffers {
+    public static final long GEOMETRY_SIZE = (long) SphereStore.GEOMETRY_STRIDE * Sizeof.cl_float;
+    public static final long MATERIAL_SIZE = (long) MaterialTable.STRIDE * Sizeof.cl_float;
+
+    /**
+     * Materials cached in local memory by the kernels; 8 KB, well below the 32 KB of local
+     * memory every OpenCL 1.2 device has
+     */
+    public static final int LOCAL_MATERIAL_CACHE = 256;
+
+    private static final int MIN_CAPACITY = 64;
+
+    /**
+     * Dirty ranges separated by fewer clean spheres than this are uploaded as one range
+     */
+    private static final int MERGE_GAP = 32;
+
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private cl_mem geometry, materialIds;
+    private int capacity, count;
+
+    private cl_mem materials;
+    private int materialCapacity, materialCount;
+
+    private cl_mem bvhNodes, bvhPrimIndices;
+    private int bvhNodeCapacity, bvhPrimCapacity;
+    private Bvh bvh;
+
+    private Scene uploadedScene;
+    private long uploadedVersion;
+    private long uploadedSphereVersion;
+    private long uploadedMaterialVersion;
+
+    /**
+     * @param profiler times the uploads and the BVH builds as part of the open frame
+     */
+    public DeviceSceneBuffers(cl_context context, cl_command_queue commandQueue, FrameProfiler profiler) {
+        this.context = context;
+        this.commandQueue = commandQueue;
+        this.profiler = profiler;
+    }
+
+    /**
+     * Brings the device buffers in line with the scene, uploading only what changed.
+     */
+    public void update(Scene scene) {
+        if (isCurrent(scene)) {
+            return;
+        }
+        boolean spheresChanged = !areSpheresCurrent(scene);
+        Bvh sceneBvh = null;
+        if (spheresChanged) {
+            long hostStart = profiler.startHost();
+            sceneBvh = Bvh.build(scene);
+            profiler.endHost(hostStart);
+        }
+        update(scene, spheresChanged ? scene.takeDirtySpheres() : null, sceneBvh);
+    }
+
+    /**
+     * Like {@link #update(Scene)}, for callers that keep several devices in line with one
+     * scene: the dirty set can only be taken from the scene once, and the BVH only needs to
+     * be built once, so both are passed in and shared by all devices. Both may be null if
+     * {@link #areSpheresCurrent(Scene) only the materials changed}.
+     */
+    public void update(Scene scene, BitSet dirtySpheres, Bvh sceneBvh) {
+        if (isCurrent(scene)) {
+            return;
+        }
+        if (!areSpheresCurrent(scene)) {
+            updateSpheres(scene, dirtySpheres, sceneBvh);
+        }
+        MaterialTable table = scene.getMaterials();
+        if (scene != uploadedScene || table.getVersion() != uploadedMaterialVersion) {
+            uploadMaterials(table);
+        }
+        uploadedScene = scene;
+        uploadedVersion = scene.getVersion();
+        uploadedSphereVersion = scene.getSphereStore().getVersion();
+        uploadedMaterialVersion = table.getVersion();
+    }
+
+    private void updateSpheres(Scene scene, BitSet dirtySpheres, Bvh sceneBvh) {
+        boolean fullUpload = scene != uploadedScene;
+        SphereStore spheres = scene.getSphereStore();
+        int numSpheres = spheres.size();
+        BitSet dirty = dirtySpheres;
+        if (fullUpload) {
+            dirty = new BitSet();
+            dirty.set(0, numSpheres);
+        }
+        if (numSpheres > capacity) {
+            grow(numSpheres, fullUpload ? 0 : Math.min(count, numSpheres));
+        }
+
+        int from = dirty.nextSetBit(0);
+        while (from >= 0 && from < numSpheres) {
+            int to = dirty.nextClearBit(from);
+            int next = dirty.nextSetBit(to);
+            while (next >= 0 && next - to < MERGE_GAP) {
+                to = dirty.nextClearBit(next);
+                next = dirty.nextSetBit(to);
+            }
+            upload(spheres, from, Math.min(to, numSpheres));
+            from = next;
+        }
+
+        count = numSpheres;
+        uploadBvh(sceneBvh);
+    }
+
+    /**
+     * True if the buffers hold the current version of the scene.
+     */
+    public boolean isCurrent(Scene scene) {
+        return scene == uploadedScene && scene.getVersion() == uploadedVersion;
+    }
+
+    /**
+     * True if the sphere buffers and the BVH hold the current version of the scene's
+     * spheres; only the materials may have changed.
+     */
+    public boolean areSpheresCurrent(Scene scene) {
+        return scene == uploadedScene && scene.getSphereStore().getVersion() == uploadedSphereVersion;
+    }
+
+    /**
+     * Re-allocates both sphere buffers with at least the given capacity (doubling the current one),
+     * copying over the first {@code keep} spheres on the device.
+     */
+    private void grow(int required, int keep) {
+        int newCapacity = Math.max(capacity, MIN_CAPACITY);
+        while (newCapacity < required) {
+            newCapacity *= 2;
+        }
+        geometry = grow(geometry, newCapacity * GEOMETRY_SIZE, keep * GEOMETRY_SIZE);
+        materialIds = grow(materialIds, (long) newCapacity * Sizeof.cl_int, (long) keep * Sizeof.cl_int);
+        capacity = newCapacity;
+    }
+
+    private cl_mem grow(cl_mem buffer, long size, long keep) {
+        cl_mem newBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY, size, null, null);
+        if (buffer != null) {
+            if (keep > 0) {
+                clEnqueueCopyBuffer(commandQueue, buffer, newBuffer, 0, 0, keep, 0, null, null);
+            }
+            clReleaseMemObject(buffer);
+        }
+        return newBuffer;
+    }
+
+    /**
+     * Writes the records of the spheres [from, to) into the same range of both buffers,
+     * straight from the arrays of the store or from its mapped scene file.
+     */
+    private void upload(SphereStore spheres, int from, int to) {
+        long geometryBytes = (to - from) * GEOMETRY_SIZE;
+        clEnqueueWriteBuffer(commandQueue, geometry, CL_TRUE, from * GEOMETRY_SIZE, geometryBytes,
+                Pointer.to(spheres.getGeometryBuffer()).withByteOffset(from * GEOMETRY_SIZE), 0, null,
+                profiler.event(Phase.UPLOAD, geometryBytes));
+        long idBytes = (long) (to - from) * Sizeof.cl_int;
+        clEnqueueWriteBuffer(commandQueue, materialIds, CL_TRUE, (long) from * Sizeof.cl_int, idBytes,
+                Pointer.to(spheres.getMaterialIdBuffer()).withByteOffset((long) from * Sizeof.cl_int), 0, null,
+                profiler.event(Phase.UPLOAD, idBytes));
+    }
+
+    /**
+     * Writes the whole material table, re-allocating its buffer (with headroom) if it no longer fits.
+     */
+    private void uploadMaterials(MaterialTable table) {
+        int size = Math.max(1, table.size());
+        if (size > materialCapacity) {
+            if (materials != null) {
+                clReleaseMemObject(materials);
+            }
+            materialCapacity = Math.max(size, materialCapacity * 2);
+            materials = clCreateBuffer(context, CL_MEM_READ_ONLY, materialCapacity * MATERIAL_SIZE, null, null);
+        }
+        if (table.size() > 0) {
+            clEnqueueWriteBuffer(commandQueue, materials, CL_TRUE, 0, table.size() * MATERIAL_SIZE,
+                    Pointer.to(table.getRecords()), 0, null, profiler.event(Phase.UPLOAD, table.size() * MATERIAL_SIZE));
+        }
+        materialCount = table.size();
+    }
+
+    /**
+     * Writes the BVH into its buffers, re-allocating them (with headroom) if it no longer fits.
+     */
+    private void uploadBvh(Bvh newBvh) {
+        int nodeCount = newBvh.getNodeCount();
+        int primCount = Math.max(1, newBvh.getPrimitiveIndices().length);
+        if (nodeCount > bvhNodeCapacity) {
+            if (bvhNodes != null) {
+                clReleaseMemObject(bvhNodes);
+            }
+            bvhNodeCapacity = Math.max(nodeCount, bvhNodeCapacity * 2);
+            bvhNodes = clCreateBuffer(context, CL_MEM_READ_ONLY,
+                    (long) bvhNodeCapacity * Bvh.FLOATS_PER_NODE * Sizeof.cl_float, null, null);
+        }
+        if (primCount > bvhPrimCapacity) {
+            if (bvhPrimIndices != null) {
+                clReleaseMemObject(bvhPrimIndices);
+            }
+            bvhPrimCapacity = Math.max(primCount, bvhPrimCapacity * 2);
+            bvhPrimIndices = clCreateBuffer(context, CL_MEM_READ_ONLY,
+                    (long) bvhPrimCapacity * Sizeof.cl_int, null, null);
+        }
+        long nodeBytes = (long) nodeCount * Bvh.FLOATS_PER_NODE * Sizeof.cl_float;
+        clEnqueueWriteBuffer(commandQueue, bvhNodes, CL_TRUE, 0, nodeBytes, Pointer.to(newBvh.getNodes()), 0, null,
+                profiler.event(Phase.UPLOAD, nodeBytes));
+        if (newBvh.getPrimitiveIndices().length > 0) {
+            long primBytes = (long) newBvh.getPrimitiveIndices().length * Sizeof.cl_int;
+            clEnqueueWriteBuffer(commandQueue, bvhPrimIndices, CL_TRUE, 0, primBytes,
+                    Pointer.to(newBvh.getPrimitiveIndices()), 0, null, profiler.event(Phase.UPLOAD, primBytes));
+        }
+        bvh = newBvh;
+    }
+
+    /**
+     * One {@code float4} per sphere: center x, y, z and radius
+     */
+    public cl_mem getGeometryBuffer() {
+        return geometry;
+    }
+
+    /**
+     * One {@code int} per sphere: the id of its material
+     */
+    public cl_mem getMaterialIdBuffer() {
+        return materialIds;
+    }
+
+    /**
+     * Two {@code float4} per material: albedo r, g, b, fuzz, then refIdx and the material type
+     */
+    public cl_mem getMaterialBuffer() {
+        return materials;
+    }
+
+    public int getMaterialCount() {
+        return materialCount;
+    }
+
+    /**
+     * The number of materials the kernels keep in local memory, the rest is read from global memory
+     */
+    public int getCachedMaterials() {
+        return Math.min(materialCount, LOCAL_MATERIAL_CACHE);
+    }
+
+    /**
+     * The size of the local memory argument holding the cached materials; never 0
+     */
+    public long getMaterialCacheSize() {
+        return Math.max(1, getCachedMaterials()) * MATERIAL_SIZE;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public cl_mem getBvhNodes() {
+        return bvhNodes;
+    }
+
+    public cl_mem getBvhPrimIndices() {
+        return bvhPrimIndices;
+    }
+
+    public Bvh getBvh() {
+        return bvh;
+    }
+
+    public void release() {
+        if (geometry != null) {
+            clReleaseMemObject(geometry);
+            clReleaseMemObject(materialIds);
+            geometry = null;
+            materialIds = null;
+        }
+        if (materials != null) {
+            clReleaseMemObject(materials);
+            materials = null;
+        }
+        materialCapacity = 0;
+        materialCount = 0;
+        if (bvhNodes != null) {
+            clReleaseMemObject(bvhNodes);
+            clReleaseMemObject(bvhPrimIndices);
+            bvhNodes = null;
+            bvhPrimIndices = null;
+        }
+        bvhNodeCapacity = 0;
+        bvhPrimCapacity = 0;
+        bvh = null;
+        capacity = 0;
+        count = 0;
+        uploadedScene = null;
+    }
+}
@@ -0,0 +1,74 @@
+package dtu.gpu.raytracer;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+
+/**
+ * The pixels of the rendered image. The {@link BufferedImage} is built around an
+ * {@code int[]} owned by this class, so backends write packed RGB pixels straight into the
+ * raster that Swing paints from, without a copy through {@code setRGB} and its colour model
+ * conversion.
+ * <p>
+ * Pixel (x, y) is at index {@code y * width + x}; the array may be longer than
+ * {@code width * height} because {@link #resize(int, int)} keeps the array when the image
+ * shrinks, so only a larger image allocates.
+ */
+public class FrameBuffer {
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xff0000, 0x00ff00, 0x0000ff);
+
+    private int[] pixels = new int[0];
+    private int width, height;
+    private BufferedImage image;
+
+    public FrameBuffer(int width, int height) {
+        resize(width, height);
+    }
+
+    /**
+     * Changes the size of the image. The array is only replaced if it is too small; either
+     * way a new image is created, images returned before keep their old size and may show
+     * garbage once the buffer is rendered into at the new size.
+     */
+    public void resize(int width, int height) {
+        int size = width * height;
+        if (pixels.length < size) {
+            pixels = new int[size];
+        }
+        this.width = width;
+        this.height = height;
+        DataBufferInt dataBuffer = new DataBufferInt(pixels, size);
+        WritableRaster raster = Raster.createPackedRaster(dataBuffer, width, height, width,
+                RGB.getMasks(), new Point(0, 0));
+        image = new BufferedImage(RGB, raster, false, null);
+    }
+
+    /**
+     * The backing array of the image raster, to be passed to the backend as the render target
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The number of pixels the array can hold without reallocating
+     */
+    public int getCapacity() {
+        return pixels.length;
+    }
+}
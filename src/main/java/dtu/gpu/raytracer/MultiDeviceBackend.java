@@ -0,0 +1,261 @@
+package dtu.gpu.raytracer;
+
+import dtu.gpu.raytracer.scene.Bvh;
+import dtu.gpu.raytracer.scene.Scene;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jocl.cl_device_id;
+
+/**
+ * Renders every pass on all OpenCL devices at once, GPUs and CPUs alike. Each device has its
+ * own {@link OpenCLBackend} (context, queue and buffers) and renders a horizontal band of
+ * the image from its own thread; the bands are assembled in the shared pixel array.
+ * <p>
+ * The band heights follow the throughput each device reached so far (pixel samples per
+ * second, smoothed over passes), so a slow device gets fewer rows in the next pass. When a
+ * band boundary moves, the accumulated samples of the rows that change hands are copied to
+ * their new device, which keeps progressive rendering intact while the split adapts.
+ */
+public class MultiDeviceBackend implements RenderBackend {
+    /**
+     * Weight of the latest measurement in the smoothed throughput
+     */
+    private static final double SMOOTHING = 0.5;
+
+    /**
+     * Bands are only moved if a boundary shifts by more than this fraction of the image
+     */
+    private static final double REBALANCE_THRESHOLD = 0.02;
+
+    private final List<OpenCLBackend> devices = new ArrayList<>();
+    private final ExecutorService executor;
+
+    // Smoothed pixel samples per second of every device, 0 until measured
+    private final double[] throughput;
+    // Device i renders rows [bandStart[i], bandStart[i + 1])
+    private int[] bandStart;
+    private int bandHeight = -1;
+
+    private long raysTraced = -1;
+    private float[] transferRows = new float[0];
+
+    /**
+     * Creates a backend on every available OpenCL device.
+     */
+    public MultiDeviceBackend(int width, int height) {
+        this(width, height, OpenCLManager.allDevices());
+    }
+
+    public MultiDeviceBackend(int width, int height, List<cl_device_id> deviceIds) {
+        if (deviceIds.isEmpty()) {
+            throw new IllegalStateException("No OpenCL device found");
+        }
+        for (cl_device_id device : deviceIds) {
+            devices.add(new OpenCLBackend(width, height, device));
+        }
+        throughput = new double[devices.size()];
+        executor = Executors.newFixedThreadPool(devices.size(), r -> {
+            Thread thread = new Thread(r, "opencl-device");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean render(Scene scene, RenderSettings settings, int pass, int samples, int[] pixels,
+                          TileListener listener) {
+        OpenCLBackend.ensureNotEmpty(scene);
+        // The dirty set can only be taken once, and the BVH is the same for all devices
+        DeviceSceneBuffers firstBuffers = devices.get(0).getSceneBuffers();
+        boolean sceneChanged = !firstBuffers.isCurrent(scene);
+        boolean spheresChanged = !firstBuffers.areSpheresCurrent(scene);
+        BitSet dirty = spheresChanged ? scene.takeDirtySpheres() : null;
+        Bvh bvh = spheresChanged ? Bvh.build(scene) : null;
+
+        updateBands(settings, pass);
+        // Read once, so that all bands show the camera in the same place
+        Camera.View camera = scene.getCamera().getView();
+
+        // The tile listener is not meant to be called from several threads at once
+        Object listenerLock = new Object();
+        TileListener sharedListener = listener == null ? null : (tile, tilePixels) -> {
+            synchronized (listenerLock) {
+                listener.tileFinished(tile, tilePixels);
+            }
+        };
+
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            OpenCLBackend device = devices.get(i);
+            Tile band = new Tile(0, bandStart[i], settings.getWidth(), bandStart[i + 1] - bandStart[i]);
+            int index = i;
+            results.add(executor.submit(() -> {
+                if (sceneChanged) {
+                    device.getSceneBuffers().update(scene, dirty, bvh);
+                }
+                // Also called for an empty band, so the device keeps counting the accumulated samples
+                long start = System.nanoTime();
+                boolean finished = device.renderRegion(camera, settings, pass, samples, pixels, sharedListener, band);
+                if (finished && band.getHeight() > 0) {
+                    double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+                    double measured = (double) band.getWidth() * band.getHeight() * samples / seconds;
+                    throughput[index] = throughput[index] == 0
+                            ? measured : SMOOTHING * measured + (1 - SMOOTHING) * throughput[index];
+                }
+                return finished;
+            }));
+        }
+
+        boolean finished = true;
+        long rays = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                finished &= results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                finished = false;
+            } catch (ExecutionException e) {
+                cancel();
+                if (e.getCause() instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw new IllegalStateException("Rendering failed on " + devices.get(i).getName(), e.getCause());
+            }
+            rays += Math.max(0, devices.get(i).getRaysTraced());
+        }
+        if (finished) {
+            raysTraced = rays;
+        }
+        return finished;
+    }
+
+    /**
+     * Splits the rows between the devices by their throughput. On pass 0 the bands can move
+     * freely; on later passes the accumulated rows that change owner are copied along, and
+     * small shifts are ignored to avoid moving rows back and forth.
+     */
+    private void updateBands(RenderSettings settings, int pass) {
+        int height = settings.getHeight();
+        int[] target = proportionalBands(height);
+        if (bandStart == null || bandHeight != height) {
+            bandStart = target;
+            bandHeight = height;
+            return;
+        }
+        int maxShift = 0;
+        for (int i = 1; i < devices.size(); i++) {
+            maxShift = Math.max(maxShift, Math.abs(target[i] - bandStart[i]));
+        }
+        if (maxShift == 0 || (pass > 0 && maxShift <= REBALANCE_THRESHOLD * height)) {
+            return;
+        }
+        if (pass > 0) {
+            transferAccumulation(settings.getWidth(), bandStart, target);
+        }
+        bandStart = target;
+    }
+
+    private int[] proportionalBands(int height) {
+        int n = devices.size();
+        double total = 0;
+        boolean measured = true;
+        for (double t : throughput) {
+            total += t;
+            measured &= t > 0;
+        }
+        int[] starts = new int[n + 1];
+        double position = 0;
+        for (int i = 0; i < n; i++) {
+            // Equal bands until every device has been measured once
+            position += measured ? height * throughput[i] / total : (double) height / n;
+            starts[i + 1] = (int) Math.round(position);
+        }
+        starts[n] = height;
+        return starts;
+    }
+
+    /**
+     * Moves the accumulated rows that change device from their old to their new owner.
+     */
+    private void transferAccumulation(int width, int[] oldStart, int[] newStart) {
+        for (int newOwner = 0; newOwner < devices.size(); newOwner++) {
+            for (int oldOwner = 0; oldOwner < devices.size(); oldOwner++) {
+                if (oldOwner == newOwner) {
+                    continue;
+                }
+                int from = Math.max(newStart[newOwner], oldStart[oldOwner]);
+                int to = Math.min(newStart[newOwner + 1], oldStart[oldOwner + 1]);
+                if (from >= to) {
+                    continue;
+                }
+                int floats = (to - from) * width * 4;
+                if (transferRows.length < floats) {
+                    transferRows = new float[floats];
+                }
+                devices.get(oldOwner).readAccumulation(width, from, to, transferRows);
+                devices.get(newOwner).writeAccumulation(width, from, to, transferRows);
+            }
+        }
+    }
+
+    @Override
+    public void cancel() {
+        for (OpenCLBackend device : devices) {
+            device.cancel();
+        }
+    }
+
+    @Override
+    public void resetCancel() {
+        for (OpenCLBackend device : devices) {
+            device.resetCancel();
+        }
+    }
+
+    @Override
+    public long getRaysTraced() {
+        return raysTraced;
+    }
+
+    /**
+     * The current band heights in rows, one per device, e.g. to log the balance.
+     */
+    public int[] getBandHeights() {
+        int[] heights = new int[devices.size()];
+        for (int i = 0; i < heights.length && bandStart != null; i++) {
+            heights[i] = bandStart[i + 1] - bandStart[i];
+        }
+        return heights;
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        for (OpenCLBackend device : devices) {
+            device.resize(width, height);
+        }
+        bandStart = null;
+    }
+
+    @Override
+    public String getName() {
+        List<String> names = new ArrayList<>();
+        for (OpenCLBackend device : devices) {
+            names.add(device.getName());
+        }
+        return "Multi-device " + names;
+    }
+
+    @Override
+    public void release() {
+        executor.shutdown();
+        for (OpenCLBackend device : devices) {
+            device.release();
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import dtu.gpu.raytracer.post.LinearFrame;
+import dtu.gpu.raytracer.post.PostProcessPipeline;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.Sphere;
+import java.util.concurrent.CompletableFuture;
+import org.jocl.*;
+
+/**
+ * Renders the scene with the {@code raytrace} kernel in raytracer.cl, which accumulates
+ * samples on the device, followed by the {@code resolve} kernel that averages them.
+ * Both kernels are launched tile by tile with a global work offset, so no single launch
+ * runs long enough to trip the driver watchdog and a pass can be cancelled between tiles.
+ * In {@link RenderMode#WAVEFRONT} mode the raytrace kernel is replaced by the kernels of a
+ * {@link WavefrontPipeline}.
+ * <p>
+ * With adaptive sampling in {@link RenderMode#MEGAKERNEL} mode every pass is a round of an
+ * {@link AdaptiveSampler}, whose running means are resolved into the whole image at the end.
+ * <p>
+ * With {@link RenderSettings#isAuxBuffers()} set, pass 0 of the megakernel and round 0 of
+ * adaptive sampling also write the auxiliary buffers of a {@link DeviceDenoiser}, and a
+ * pipeline made only of à-trous stages is applied on the device. Other pipelines, and every
+ * pipeline if denoise.cl cannot be built, run on the host.
+ * <p>
+ * With {@code -Dopencl.profiling=true} every command of a pass is timed by the
+ * {@link FrameProfiler} of the device, and each completed pass is reported as one frame.
+ */
+public class OpenCLBackend implements RenderBackend {
+    private final OpenCLManager openCLManager;
+    private final DeviceSceneBuffers sceneBuffers;
+    private final FrameProfiler profiler;
+
+    /**
+     * The number of samples per pixel accumulated since the last pass 0
+     */
+    private int accumulatedSamples;
+
+    private volatile boolean cancelled;
+
+    // Created on first use
+    private WavefrontPipeline wavefront;
+
+    // Rays counted by the raytrace kernel, and the total of the last completed pass
+    private final cl_mem rayCounterMem;
+    private long raysTraced = -1;
+
+    // Created on first use, and the pixels the last adaptive round left active
+    private AdaptiveSampler adaptive;
+    private long activePixels = -1;
+
+    // Active list entries traced per launch in adaptive rounds
+    private static final int ADAPTIVE_CHUNK = 16384;
+
+    // Created on first use, null after denoise.cl failed to build, and whether the auxiliary
+    // buffers hold the current image
+    private DeviceDenoiser denoiser;
+    private boolean denoiserFailed;
+    private boolean auxWritten;
+
+    // The float4s read back by readFrame, reallocated when the resolution changes
+    private float[] readbackFloat4s = new float[0];
+
+    // Frames in flight in renderAsync, created on first use
+    private static final int ASYNC_FRAMES = 2;
+    private AsyncFramePipeline asyncPipeline;
+
+    public OpenCLBackend(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Creates a backend on the given device, or on the default device if it is null
+     */
+    public OpenCLBackend(int width, int height, cl_device_id device) {
+        this.openCLManager = new OpenCLManager(width, height, device);
+        this.profiler = openCLManager.getProfiler();
+        this.sceneBuffers = new DeviceSceneBuffers(openCLManager.getContext(), openCLManager.getCommandQueue(),
+                profiler);
+        this.rayCounterMem = clCreateBuffer(openCLManager.getContext(), CL_MEM_READ_WRITE, Sizeof.cl_int, null, null);
+    }
+
+    @Override
+    public boolean render(Scene scene, RenderSettings settings, int pass, int samples, int[] pixels,
+                          TileListener listener) {
+        ensureNotEmpty(scene);
+        sceneBuffers.update(scene);
+        Camera.View camera = scene.getCamera().getView();
+        if (settings.isAdaptiveSampling() && settings.getRenderMode() == RenderMode.MEGAKERNEL) {
+            return renderAdaptive(camera, settings, pass, samples, pixels, listener);
+        }
+        activePixels = -1;
+        return renderRegion(camera, settings, pass, samples, pixels, listener,
+                new Tile(0, 0, settings.getWidth(), settings.getHeight()));
+    }
+
+    /**
+     * One round of adaptive sampling, traced in chunks of the active list so it can be
+     * cancelled in between, followed by the resolve and readback of the whole image.
+     */
+    private boolean renderAdaptive(Camera.View camera, RenderSettings settings, int pass, int samples, int[] pixels,
+                                   TileListener listener) {
+        if (adaptive == null) {
+            adaptive = new AdaptiveSampler(openCLManager);
+        }
+        long hostStart = profiler.startHost();
+        DeviceDenoiser auxTarget = auxTarget(settings);
+        adaptive.setAuxTarget(auxTarget);
+        if (pass == 0) {
+            auxWritten = auxTarget != null;
+        }
+        int roundPixels = adaptive.startRound(settings, camera, sceneBuffers, pass, samples);
+        profiler.endHost(hostStart);
+
+        int chunk = Math.max(ADAPTIVE_CHUNK, settings.getTileSize() * settings.getTileSize());
+        long rays = 0;
+        for (int from = 0; from < roundPixels; from += chunk) {
+            if (cancelled) {
+                profiler.discardFrame();
+                return false;
+            }
+            rays += adaptive.sample(from, Math.min(roundPixels, from + chunk));
+        }
+        activePixels = adaptive.finishRound(settings);
+
+        cl_kernel resolveKernel = openCLManager.getResolveKernel();
+        clSetKernelArg(resolveKernel, 0, Sizeof.cl_mem, Pointer.to(adaptive.getMeanBuffer()));
+        clSetKernelArg(resolveKernel, 1, Sizeof.cl_mem, Pointer.to(openCLManager.getPixelMem()));
+        clSetKernelArg(resolveKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ settings.getWidth() }));
+        clSetKernelArg(resolveKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ settings.getHeight() }));
+        clSetKernelArg(resolveKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ 1 }));
+        Tile image = new Tile(0, 0, settings.getWidth(), settings.getHeight());
+        resolveTile(resolveKernel, image, settings.getWidth(), pixels);
+        if (listener != null) {
+            listener.tileFinished(image, pixels);
+        }
+        raysTraced = rays;
+        profiler.endFrame(rays, (long) roundPixels * samples).complete();
+        return true;
+    }
+
+    /**
+     * The kernel needs at least one sphere to bind its buffers
+     */
+    static void ensureNotEmpty(Scene scene) {
+        if (scene.getSpheres().isEmpty()) {
+            scene.addSphere(new Sphere(
+                    new Vector3(0, -100.5, -1), 100, 0,
+                    new Vector3(0.8, 0.8, 0.0)));  // Ground (lambertian)
+        }
+    }
+
+    /**
+     * Renders only the tiles of the given region, with scene buffers that are already up to
+     * date. Accumulation and readback happen at the same place as for the whole image, so
+     * several backends can each render a part of one image.
+     * <p>
+     * A completed region closes the profiler's frame, which also holds the scene uploads
+     * made since the previous one.
+     */
+    boolean renderRegion(Camera.View camera, RenderSettings settings, int pass, int samples, int[] pixels,
+                         TileListener listener, Tile region) {
+        int width = settings.getWidth();
+        long hostStart = profiler.startHost();
+        setKernelArgs(camera, settings, pass, samples);
+        cl_kernel kernel = openCLManager.getKernel();
+        cl_kernel resolveKernel = openCLManager.getResolveKernel();
+        clSetKernelArg(resolveKernel, 1, Sizeof.cl_mem, Pointer.to(openCLManager.getPixelMem()));
+        profiler.endHost(hostStart);
+
+        boolean useWavefront = settings.getRenderMode() == RenderMode.WAVEFRONT;
+        if (useWavefront && wavefront == null) {
+            wavefront = new WavefrontPipeline(openCLManager);
+        }
+
+        cl_command_queue queue = openCLManager.getCommandQueue();
+        long rays = 0;
+        int[] tileRays = new int[1];
+        for (Tile tile : Tile.cover(region, settings.getTileSize(), settings.isCenterOutTiles())) {
+            if (cancelled) {
+                profiler.discardFrame();
+                return false;
+            }
+            long[] globalWorkOffset = { tile.getX(), tile.getY() };
+            long[] globalWorkSize = { tile.getWidth(), tile.getHeight() };
+            if (useWavefront) {
+                rays += wavefront.renderTile(tile, settings, camera, sceneBuffers,
+                        openCLManager.getAccumulationMem(), pass, samples);
+            } else {
+                // The counter is per tile so that it cannot overflow on long passes
+                tileRays[0] = 0;
+                clEnqueueWriteBuffer(queue, rayCounterMem, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(tileRays), 0, null,
+                        profiler.event(Phase.UPLOAD, Sizeof.cl_int));
+                clEnqueueNDRangeKernel(queue, kernel, 2, globalWorkOffset, globalWorkSize, null, 0, null,
+                        profiler.event(Phase.KERNEL, 0));
+                clEnqueueReadBuffer(queue, rayCounterMem, CL_TRUE, 0, Sizeof.cl_int, Pointer.to(tileRays), 0, null,
+                        profiler.event(Phase.READBACK, Sizeof.cl_int));
+            }
+            resolveTile(resolveKernel, tile, width, pixels);
+            if (!useWavefront) {
+                rays += tileRays[0] & 0xFFFFFFFFL;
+            }
+            if (listener != null) {
+                listener.tileFinished(tile, pixels);
+            }
+        }
+        raysTraced = rays;
+        profiler.endFrame(rays, (long) region.getWidth() * region.getHeight() * samples).complete();
+        return true;
+    }
+
+    /**
+     * Resolves the tile into the pixel buffer and reads back only its rows, into the same
+     * place of the host array.
+     */
+    private void resolveTile(cl_kernel resolveKernel, Tile tile, int width, int[] pixels) {
+        cl_command_queue queue = openCLManager.getCommandQueue();
+        long[] globalWorkOffset = { tile.getX(), tile.getY() };
+        long[] globalWorkSize = { tile.getWidth(), tile.getHeight() };
+        clEnqueueNDRangeKernel(queue, resolveKernel, 2, globalWorkOffset, globalWorkSize, null, 0, null,
+                profiler.event(Phase.KERNEL, 0));
+
+        long rowPitch = (long) width * Sizeof.cl_int;
+        long[] origin = { (long) tile.getX() * Sizeof.cl_int, tile.getY(), 0 };
+        long[] tileRegion = { (long) tile.getWidth() * Sizeof.cl_int, tile.getHeight(), 1 };
+        clEnqueueReadBufferRect(queue, openCLManager.getPixelMem(), CL_TRUE,
+                origin, origin, tileRegion, rowPitch, 0, rowPitch, 0, Pointer.to(pixels), 0, null,
+                profiler.event(Phase.READBACK, (long) tile.getWidth() * tile.getHeight() * Sizeof.cl_int));
+    }
+
+    /**
+     * Sets the camera, scene and pass arguments of the raytrace kernel and all arguments of
+     * the resolve kernel except its pixel buffer, and counts the samples of the pass.
+     */
+    private void setKernelArgs(Camera.View camera, RenderSettings settings, int pass, int samples) {
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        sendCameraDataToOpenCL(camera, width, height);
+
+        int numSpheres = sceneBuffers.getCount();
+        cl_kernel kernel = openCLManager.getKernel();
+
+        clSetKernelArg(kernel, 7, Sizeof.cl_mem, Pointer.to(sceneBuffers.getGeometryBuffer()));
+        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialIdBuffer()));
+        clSetKernelArg(kernel, 9, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialBuffer()));
+        // Local memory for the material cache, filled by the kernel itself
+        clSetKernelArg(kernel, 10, sceneBuffers.getMaterialCacheSize(), null);
+        clSetKernelArg(kernel, 11, Sizeof.cl_int, Pointer.to(new int[]{ sceneBuffers.getCachedMaterials() }));
+        clSetKernelArg(kernel, 12, Sizeof.cl_int, Pointer.to(new int[]{ numSpheres }));
+        clSetKernelArg(kernel, 13, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhNodes()));
+        clSetKernelArg(kernel, 14, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhPrimIndices()));
+
+
+        // Convert the boolean to an int: 1 for true, 0 for false
+        int debugFlag = settings.isDebug() ? 1 : 0;
+        clSetKernelArg(kernel, 15, Sizeof.cl_int, Pointer.to(new int[] { debugFlag }));
+        clSetKernelArg(kernel, 16, Sizeof.cl_int, Pointer.to(new int[] { samples }));
+        clSetKernelArg(kernel, 17, Sizeof.cl_int, Pointer.to(new int[] { settings.getMaxDepth() }));
+        clSetKernelArg(kernel, 18, Sizeof.cl_uint, Pointer.to(new int[] { pass }));
+        clSetKernelArg(kernel, 19, Sizeof.cl_mem, Pointer.to(rayCounterMem));
+
+        // The wavefront kernels do not write the auxiliary buffers
+        DeviceDenoiser auxTarget = settings.getRenderMode() == RenderMode.MEGAKERNEL ? auxTarget(settings) : null;
+        clSetKernelArg(kernel, 20, Sizeof.cl_int, Pointer.to(new int[] { auxTarget != null ? 1 : 0 }));
+        if (auxTarget != null) {
+            auxTarget.ensureCapacity(width * height);
+            clSetKernelArg(kernel, 21, Sizeof.cl_mem, Pointer.to(auxTarget.getAlbedoBuffer()));
+            clSetKernelArg(kernel, 22, Sizeof.cl_mem, Pointer.to(auxTarget.getNormalDepthBuffer()));
+        } else {
+            clSetKernelArg(kernel, 21, Sizeof.cl_mem, null);
+            clSetKernelArg(kernel, 22, Sizeof.cl_mem, null);
+        }
+        if (pass == 0) {
+            auxWritten = auxTarget != null;
+        }
+
+        accumulatedSamples = (pass == 0) ? samples : accumulatedSamples + samples;
+        cl_kernel resolveKernel = openCLManager.getResolveKernel();
+        clSetKernelArg(resolveKernel, 0, Sizeof.cl_mem, Pointer.to(openCLManager.getAccumulationMem()));
+        clSetKernelArg(resolveKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ width }));
+        clSetKernelArg(resolveKernel, 3, Sizeof.cl_int, Pointer.to(new int[]{ height }));
+        clSetKernelArg(resolveKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ accumulatedSamples }));
+    }
+
+    /**
+     * The denoiser whose auxiliary buffers the next pass 0 writes, or null if the settings do
+     * not ask for them or the denoiser is not available
+     */
+    private DeviceDenoiser auxTarget(RenderSettings settings) {
+        return settings.isAuxBuffers() ? denoiser() : null;
+    }
+
+    private DeviceDenoiser denoiser() {
+        if (denoiser == null && !denoiserFailed) {
+            try {
+                denoiser = new DeviceDenoiser(openCLManager);
+            } catch (CLException e) {
+                denoiserFailed = true;
+                System.err.println("OpenCL denoiser unavailable (" + e.getMessage() + "), denoising on the host");
+            }
+        }
+        return denoiser;
+    }
+
+    /**
+     * The buffer holding the colors of the last completed pass, the adaptive means or the
+     * accumulated samples
+     */
+    private cl_mem frameColors() {
+        return activePixels >= 0 ? adaptive.getMeanBuffer() : openCLManager.getAccumulationMem();
+    }
+
+    private float frameColorScale() {
+        return activePixels >= 0 ? 1.0f : 1.0f / accumulatedSamples;
+    }
+
+    @Override
+    public boolean readFrame(RenderSettings settings, LinearFrame frame) {
+        if (accumulatedSamples == 0 && activePixels < 0) {
+            return false;
+        }
+        int numPixels = settings.getWidth() * settings.getHeight();
+        frame.resize(settings.getWidth(), settings.getHeight());
+        if (readbackFloat4s.length != 4 * numPixels) {
+            readbackFloat4s = new float[4 * numPixels];
+        }
+        float[] float4s = readbackFloat4s;
+        readFloat4s(frameColors(), float4s);
+        float scale = frameColorScale();
+        float[] color = frame.getColor();
+        for (int i = 0; i < numPixels; i++) {
+            color[3 * i] = float4s[4 * i] * scale;
+            color[3 * i + 1] = float4s[4 * i + 1] * scale;
+            color[3 * i + 2] = float4s[4 * i + 2] * scale;
+        }
+        frame.setAux(auxWritten && denoiser != null);
+        if (frame.hasAux()) {
+            float[] albedo = frame.getAlbedo();
+            readFloat4s(denoiser.getAlbedoBuffer(), float4s);
+            for (int i = 0; i < numPixels; i++) {
+                albedo[3 * i] = float4s[4 * i];
+                albedo[3 * i + 1] = float4s[4 * i + 1];
+                albedo[3 * i + 2] = float4s[4 * i + 2];
+            }
+            float[] normal = frame.getNormal();
+            float[] depth = frame.getDepth();
+            readFloat4s(denoiser.getNormalDepthBuffer(), float4s);
+            for (int i = 0; i < numPixels; i++) {
+                normal[3 * i] = float4s[4 * i];
+                normal[3 * i + 1] = float4s[4 * i + 1];
+                normal[3 * i + 2] = float4s[4 * i + 2];
+                depth[i] = float4s[4 * i + 3];
+            }
+        }
+        return true;
+    }
+
+    private void readFloat4s(cl_mem buffer, float[] target) {
+        long bytes = (long) target.length * Sizeof.cl_float;
+        clEnqueueReadBuffer(openCLManager.getCommandQueue(), buffer, CL_TRUE, 0, bytes, Pointer.to(target), 0, null,
+                profiler.event(Phase.READBACK, bytes));
+    }
+
+    /**
+     * Runs a pipeline of à-trous stages on the device, straight from the accumulated colors
+     * into the pixel buffer, so only the final pixels are read back. Anything else goes
+     * through {@link #readFrame} and the host.
+     */
+    @Override
+    public boolean postProcess(PostProcessPipeline pipeline, RenderSettings settings, LinearFrame frame,
+                               int[] pixels) {
+        if (!pipeline.isDenoiseOnly() || denoiser() == null) {
+            return RenderBackend.super.postProcess(pipeline, settings, frame, pixels);
+        }
+        if (accumulatedSamples == 0 && activePixels < 0) {
+            return false;
+        }
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        denoiser.denoise(pipeline.getStages(), frameColors(), frameColorScale(), auxWritten, width, height,
+                openCLManager.getPixelMem());
+        long bytes = (long) width * height * Sizeof.cl_int;
+        clEnqueueReadBuffer(openCLManager.getCommandQueue(), openCLManager.getPixelMem(), CL_TRUE, 0, bytes,
+                Pointer.to(pixels), 0, null, profiler.event(Phase.READBACK, bytes));
+        return true;
+    }
+
+    /**
+     * Pipelined version of render: the pass is enqueued behind the frames still in flight
+     * and read back through an {@link AsyncFramePipeline}, so computing this frame overlaps
+     * with transferring the previous one. Only the megakernel is pipelined; in wavefront mode,
+     * which needs the queue lengths on the host, this renders synchronously.
+     */
+    @Override
+    public CompletableFuture<int[]> renderAsync(Scene scene, RenderSettings settings, int pass, int samples,
+                                                int[] pixels) {
+        if (settings.getRenderMode() == RenderMode.WAVEFRONT) {
+            return RenderBackend.super.renderAsync(scene, settings, pass, samples, pixels);
+        }
+        int width = settings.getWidth();
+        int height = settings.getHeight();
+        if (asyncPipeline != null && !asyncPipeline.matches(width, height)) {
+            asyncPipeline.release();
+            asyncPipeline = null;
+        }
+        if (asyncPipeline == null) {
+            asyncPipeline = new AsyncFramePipeline(openCLManager, width, height, ASYNC_FRAMES);
+        }
+        ensureNotEmpty(scene);
+        sceneBuffers.update(scene);
+        long hostStart = profiler.startHost();
+        setKernelArgs(scene.getCamera().getView(), settings, pass, samples);
+        profiler.endHost(hostStart);
+        // Ray counts would need a blocking read per frame
+        raysTraced = -1;
+        return asyncPipeline.submit(openCLManager.getKernel(), openCLManager.getResolveKernel(),
+                Tile.cover(width, height, settings.getTileSize(), false), pixels, (long) width * height * samples);
+    }
+
+    @Override
+    public long getRaysTraced() {
+        return raysTraced;
+    }
+
+    @Override
+    public long getActivePixels() {
+        return activePixels;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void resetCancel() {
+        cancelled = false;
+    }
+
+    DeviceSceneBuffers getSceneBuffers() {
+        return sceneBuffers;
+    }
+
+    /**
+     * Copies the accumulated samples of rows [fromRow, toRow) into the given array, 4 floats
+     * per pixel.
+     */
+    void readAccumulation(int width, int fromRow, int toRow, float[] target) {
+        long rowBytes = (long) width * 4 * Sizeof.cl_float;
+        clEnqueueReadBuffer(openCLManager.getCommandQueue(), openCLManager.getAccumulationMem(), CL_TRUE,
+                fromRow * rowBytes, (toRow - fromRow) * rowBytes, Pointer.to(target), 0, null,
+                profiler.event(Phase.READBACK, (toRow - fromRow) * rowBytes));
+    }
+
+    /**
+     * Replaces the accumulated samples of rows [fromRow, toRow), e.g. with rows another device
+     * accumulated so far.
+     */
+    void writeAccumulation(int width, int fromRow, int toRow, float[] source) {
+        long rowBytes = (long) width * 4 * Sizeof.cl_float;
+        clEnqueueWriteBuffer(openCLManager.getCommandQueue(), openCLManager.getAccumulationMem(), CL_TRUE,
+                fromRow * rowBytes, (toRow - fromRow) * rowBytes, Pointer.to(source), 0, null,
+                profiler.event(Phase.UPLOAD, (toRow - fromRow) * rowBytes));
+    }
+
+    /**
+     * Prepares and sends camera data to the kernel.
+     * Kernel expects:
+     * arg0: accumulationMem (__global float4*)
+     * arg1: imageWidth (int)
+     * arg2: imageHeight (int)
+     * arg3: camera_center (float3, passed as 4 floats for alignment)
+     * arg4: lowerLeftCorner (float3)
+     * arg5: horizontal (float3)
+     * arg6: vertical (float3)
+     */
+    private void sendCameraDataToOpenCL(Camera.View camera, int width, int height) {
+        cl_kernel kernel = openCLManager.getKernel();
+
+        // Set arg0: accumulation buffer
+        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(openCLManager.getAccumulationMem()));
+        // Set arg1: imageWidth (as int)
+        clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ width }));
+        // Set arg2: imageHeight (as int)
+        clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ height }));
+
+        // Get camera parameters from the Camera instance.
+        Vector3 origin = camera.origin();
+        Vector3 lowerLeftCorner = camera.lowerLeftCorner();
+        Vector3 horizontal = camera.horizontal();
+        Vector3 vertical = camera.vertical();
+
+        // Set arg3: camera_center (float3)
+        clSetKernelArg(kernel, 3, 4 * Sizeof.cl_float, Pointer.to(new float[]{
+                (float)origin.getX(), (float)origin.getY(), (float)origin.getZ(), 0.0f
+        }));
+        // Set arg4: lowerLeftCorner (float3)
+        clSetKernelArg(kernel, 4, 4 * Sizeof.cl_float, Pointer.to(new float[]{
+                (float)lowerLeftCorner.getX(), (float)lowerLeftCorner.getY(), (float)lowerLeftCorner.getZ(), 0.0f
+        }));
+        // Set arg5: horizontal (float3)
+        clSetKernelArg(kernel, 5, 4 * Sizeof.cl_float, Pointer.to(new float[]{
+                (float)horizontal.getX(), (float)horizontal.getY(), (float)horizontal.getZ(), 0.0f
+        }));
+        // Set arg6: vertical (float3)
+        clSetKernelArg(kernel, 6, 4 * Sizeof.cl_float, Pointer.to(new float[]{
+                (float)vertical.getX(), (float)vertical.getY(), (float)vertical.getZ(), 0.0f
+        }));
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        if (asyncPipeline != null) {
+            asyncPipeline.release();
+            asyncPipeline = null;
+        }
+        openCLManager.recreatePixelBuffer(width, height);
+        accumulatedSamples = 0;
+    }
+
+    @Override
+    public String getName() {
+        return "OpenCL (" + openCLManager.getDeviceName() + ")";
+    }
+
+    @Override
+    public void release() {
+        if (asyncPipeline != null) {
+            asyncPipeline.release();
+        }
+        if (wavefront != null) {
+            wavefront.release();
+        }
+        if (adaptive != null) {
+            adaptive.release();
+        }
+        if (denoiser != null) {
+            denoiser.release();
+        }
+        clReleaseMemObject(rayCounterMem);
+        sceneBuffers.release();
+        openCLManager.release();
+    }
+}
@@ -2,19 +2,35 @@ package dtu.gpu.raytracer;
 
 import static org.jocl.CL.*;
 
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.KernelSource;
+import dtu.gpu.opencl.ProgramCache;
 import org.jocl.*;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 public class OpenCLManager {
+    private static final String KERNEL_DIR = "kernels/raytracer";
+
     private cl_context context;
+    private cl_device_id device;
     private cl_command_queue commandQueue;
     private cl_kernel kernel;
+    private cl_kernel resolveKernel;
     private cl_mem pixelMem;
 
+    /**
+     * Times the frames rendered on the command queue, if profiling is enabled
+     */
+    private FrameProfiler profiler;
+
+    /**
+     * Running sum of all samples per pixel (float4), averaged into pixelMem by the resolve kernel
+     */
+    private cl_mem accumulationMem;
+
     /**
      * Width and height of the window
      */
@@ -24,9 +40,18 @@ public class OpenCLManager {
      * Create the OpenCLManager via a given width and height
      */
     public OpenCLManager(int width, int height)
+    {
+        this(width, height, null);
+    }
+
+    /**
+     * Create the OpenCLManager for a specific device, or for the default device if it is null
+     */
+    public OpenCLManager(int width, int height, cl_device_id device)
     {
         this.width = width;
         this.height = height;
+        this.device = device;
         initCL();
     }
 
@@ -37,95 +62,142 @@ public class OpenCLManager {
     {
         CL.setExceptionsEnabled(true);
 
-        // Platform and device selection
-        cl_platform_id[]  platforms = new cl_platform_id[1];
-        clGetPlatformIDs(platforms.length, platforms, null);
-        cl_platform_id platform = platforms[0];
+        if (device == null) {
+            device = defaultDevice();
+        }
+        cl_platform_id platform = new cl_platform_id();
+        clGetDeviceInfo(device, CL_DEVICE_PLATFORM, Sizeof.cl_platform_id, Pointer.to(platform), null);
 
         cl_context_properties contextProperties = new cl_context_properties();
         contextProperties.addProperty(CL_CONTEXT_PLATFORM, platform);
 
-        cl_device_id[] devices = new cl_device_id[1];
-        clGetDeviceIDs(platform, CL_DEVICE_TYPE_GPU, devices.length, devices, null);
-        cl_device_id device = devices[0];
-
         context = clCreateContext(contextProperties, 1, new cl_device_id[]{device}, null, null, null);
 
-        cl_queue_properties properties = new cl_queue_properties();
-        commandQueue = clCreateCommandQueueWithProperties(context, device, properties, null);
+        commandQueue = clCreateCommandQueueWithProperties(context, device, FrameProfiler.queueProperties(), null);
+        profiler = FrameProfiler.create(getDeviceName());
 
         // Load kernel source
-        String source = readFile("src/main/resources/kernels/raytracer/raytracer.cl");
-        cl_program program = clCreateProgramWithSource(context, 1, new String[]{source}, null, null);
-        clBuildProgram(program, 0, null, "-I src/main/resources/kernels/raytracer -cl-fast-relaxed-math", null, null);
+        cl_program program = buildProgram("raytracer.cl");
 
         kernel = clCreateKernel(program, "raytrace", null);
+        resolveKernel = clCreateKernel(program, "resolve", null);
 
-        // Allocate memory for pixels
+        // Allocate memory for pixels and accumulated samples
         pixelMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) width * height * Sizeof.cl_int, null, null);
+        accumulationMem = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) width * height * 4 * Sizeof.cl_float, null, null);
+    }
+
+    /**
+     * Platform and device selection: prefer a GPU, but accept any device
+     * (e.g. a CPU OpenCL runtime) if no platform offers one.
+     */
+    private static cl_device_id defaultDevice() {
+        cl_platform_id[] platforms = platforms();
+        for (long deviceType : new long[]{ CL_DEVICE_TYPE_GPU, CL_DEVICE_TYPE_ALL }) {
+            for (cl_platform_id candidate : platforms) {
+                cl_device_id found = firstDevice(candidate, deviceType);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        throw new IllegalStateException("No OpenCL device found");
+    }
+
+    /**
+     * Returns every device of every platform, GPUs and CPUs alike.
+     */
+    public static List<cl_device_id> allDevices() {
+        CL.setExceptionsEnabled(true);
+        List<cl_device_id> result = new ArrayList<>();
+        for (cl_platform_id platform : platforms()) {
+            int[] numDevices = new int[1];
+            try {
+                clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, 0, null, numDevices);
+            } catch (CLException e) {
+                continue;
+            }
+            cl_device_id[] devices = new cl_device_id[numDevices[0]];
+            clGetDeviceIDs(platform, CL_DEVICE_TYPE_ALL, devices.length, devices, null);
+            result.addAll(List.of(devices));
+        }
+        return result;
+    }
+
+    private static cl_platform_id[] platforms() {
+        int[] numPlatforms = new int[1];
+        clGetPlatformIDs(0, null, numPlatforms);
+        cl_platform_id[] platforms = new cl_platform_id[numPlatforms[0]];
+        clGetPlatformIDs(platforms.length, platforms, null);
+        return platforms;
+    }
+
+    /**
+     * Returns the first device of the given type on the platform, or null if there is none.
+     */
+    private static cl_device_id firstDevice(cl_platform_id platform, long deviceType) {
+        int[] numDevices = new int[1];
+        try {
+            // With exceptions enabled, CL_DEVICE_NOT_FOUND is reported as a CLException
+            clGetDeviceIDs(platform, deviceType, 0, null, numDevices);
+        } catch (CLException e) {
+            return null;
+        }
+        if (numDevices[0] == 0) {
+            return null;
+        }
+        cl_device_id[] devices = new cl_device_id[numDevices[0]];
+        clGetDeviceIDs(platform, deviceType, devices.length, devices, null);
+        return devices[0];
+    }
+
+    /**
+     * Builds a program from a kernel file in the raytracer kernel directory on the classpath,
+     * reusing the compiled binary from the {@link ProgramCache} when possible.
+     */
+    public cl_program buildProgram(String fileName) {
+        String source = KernelSource.load(KERNEL_DIR + "/" + fileName);
+        return ProgramCache.build(context, device, source, "-cl-fast-relaxed-math");
     }
 
     public cl_kernel getKernel() { return kernel; }
+    public cl_kernel getResolveKernel() { return resolveKernel; }
     public cl_mem getPixelMem() { return pixelMem; }
+    public cl_mem getAccumulationMem() { return accumulationMem; }
     public cl_command_queue getCommandQueue() { return commandQueue; }
     public cl_context getContext() { return context; }
+    public cl_device_id getDevice() { return device; }
+    public FrameProfiler getProfiler() { return profiler; }
+
+    public String getDeviceName() {
+        long[] size = new long[1];
+        clGetDeviceInfo(device, CL_DEVICE_NAME, 0, null, size);
+        byte[] buffer = new byte[(int) size[0]];
+        clGetDeviceInfo(device, CL_DEVICE_NAME, buffer.length, Pointer.to(buffer), null);
+        // Drop the terminating null
+        return new String(buffer, 0, Math.max(0, buffer.length - 1), StandardCharsets.US_ASCII).trim();
+    }
 
     public void recreatePixelBuffer(int newWidth, int newHeight)
     {
         this.width = newWidth;
         this.height = newHeight;
 
-        // Release the old buffer
+        // Release the old buffers
         clReleaseMemObject(pixelMem);
+        clReleaseMemObject(accumulationMem);
 
-        // Create a new pixel buffer with updated dimensions
+        // Create new pixel and accumulation buffers with updated dimensions
         pixelMem = clCreateBuffer(context, CL_MEM_WRITE_ONLY, (long) newWidth * newHeight * Sizeof.cl_int, null, null);
-    }
-
-    private String readFile(String fileName) {
-        BufferedReader br = null;
-        try
-        {
-            br = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(fileName)));
-            StringBuffer sb = new StringBuffer();
-            String line = null;
-            while (true)
-            {
-                line = br.readLine();
-                if (line == null)
-                {
-                    break;
-                }
-                sb.append(line).append("\n");
-            }
-            return sb.toString();
-        }
-        catch (IOException e)
-        {
-            e.printStackTrace();
-            System.exit(1);
-            return null;
-        }
-        finally
-        {
-            if (br != null)
-            {
-                try
-                {
-                    br.close();
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
-            }
-        }
+        accumulationMem = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) newWidth * newHeight * 4 * Sizeof.cl_float, null, null);
     }
 
     public void release() {
+        profiler.release();
         clReleaseMemObject(pixelMem);
+        clReleaseMemObject(accumulationMem);
         clReleaseKernel(kernel);
+        clReleaseKernel(resolveKernel);
         clReleaseCommandQueue(commandQueue);
         clReleaseContext(context);
     }
@@ -1,5 +1,6 @@
 package dtu.gpu.raytracer;
 
+import dtu.gpu.raytracer.post.PostProcessPipeline;
 import dtu.gpu.raytracer.scene.Scene;
 import dtu.gpu.raytracer.scene.Sphere;
 
@@ -26,6 +27,21 @@ public class RayTracer {
         renderer.setDebug(DEBUG);
         renderer.setSamplesPrPixel(500);
         renderer.setMaxDepth(50);
+        // Show a noisy image right away and refine it while the camera stands still
+        renderer.setProgressive(true);
+        // -Draytracer.mode=wavefront starts with the wavefront kernels, M toggles at runtime
+        renderer.setRenderMode(RenderMode.valueOf(
+                System.getProperty("raytracer.mode", "megakernel").toUpperCase()));
+        // -Draytracer.adaptive=true spends the samples on the pixels that have not converged
+        if (Boolean.getBoolean("raytracer.adaptive")) {
+            renderer.setAdaptiveSampling(true);
+            renderer.setAdaptiveThreshold(Float.parseFloat(System.getProperty("raytracer.adaptive.threshold", "0.005")));
+            renderer.setSampleBudget(Integer.getInteger("raytracer.adaptive.budget", 0));
+        }
+        // -Draytracer.denoise=true filters every pass for a clean preview from a few samples, N toggles
+        if (Boolean.getBoolean("raytracer.denoise")) {
+            renderer.setPostProcess(PostProcessPipeline.denoise());
+        }
 
         // Define material indices
         // 0: Lambertian (diffuse)
@@ -89,9 +105,6 @@ public class RayTracer {
         // A metal sphere on the right
         scene.addSphere(new Sphere(new Vector3(4, 1, 0), 1.0, 1, new Vector3(0.7, 0.6, 0.5), 0.0));
 
-        // Initial render
-        renderer.render(scene);
-
         // Create and display the image in a JFrame
         JFrame frame = new JFrame("Ray Tracer");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -100,6 +113,44 @@ public class RayTracer {
         frame.pack();
         frame.setVisible(true);
 
+        // Passes are traced on a background thread so every finished tile shows up right
+        // away; the thread waits once all samples are accumulated and is woken up whenever
+        // the camera or the window size changes
+        renderer.setCenterOutTiles(true);
+        renderer.setTileListener((tile, pixels) -> imageLabel.repaint(
+                tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight()));
+        // -Draytracer.async=true overlaps the readback of each pass with computing the next one
+        boolean async = Boolean.getBoolean("raytracer.async");
+        Object renderSignal = new Object();
+        Thread renderThread = new Thread(() -> {
+            while (true) {
+                synchronized (renderSignal) {
+                    while (renderer.isComplete()) {
+                        try {
+                            renderSignal.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                if (async) {
+                    // Returns while the frame is still in flight, the pipeline limits how far ahead we get
+                    renderer.renderAsync(scene).thenRun(imageLabel::repaint);
+                } else {
+                    renderer.render(scene);
+                }
+                long activePixels = renderer.getActivePixels();
+                String title = String.format("Ray Tracer - %s %s - %d/%d spp - %.1f Mrays/s%s",
+                        renderer.getBackend().getName(), renderer.getRenderMode(),
+                        renderer.getAccumulatedSamples(), renderer.getSamplesPrPixel(),
+                        renderer.getRaysPerSecond() / 1e6,
+                        activePixels < 0 ? "" : " - " + activePixels + " active pixels");
+                SwingUtilities.invokeLater(() -> frame.setTitle(title));
+            }
+        }, "render");
+        renderThread.setDaemon(true);
+        renderThread.start();
+
         // Add a component listener to update the renderer when resized
         imageLabel.addComponentListener(new ComponentAdapter() {
             @Override
@@ -107,13 +158,14 @@ public class RayTracer {
                 Dimension newSize = imageLabel.getSize();
                 int newWidth = newSize.width;
                 int newHeight = newSize.height;
-                // Update the renderer with the new dimensions
+                // Abort the pass in flight and update the renderer with the new dimensions
+                renderer.cancel();
                 renderer.updateImageSize(newWidth, newHeight);
-                // Re-render the scene
-                renderer.render(scene);
-                // Update the display
                 imageLabel.setIcon(new ImageIcon(renderer.getImage()));
-                imageLabel.repaint();
+                // Re-render the scene
+                synchronized (renderSignal) {
+                    renderSignal.notifyAll();
+                }
             }
         });
 
@@ -155,6 +207,14 @@ public class RayTracer {
                     camera.rotate(-rotationSpeed, 0); // yaw left
                 } else if (key == KeyEvent.VK_RIGHT) {
                     camera.rotate(rotationSpeed, 0);  // yaw right
+                } else if (key == KeyEvent.VK_M) {
+                    // Compare the throughput of both kernel pipelines on the same view
+                    renderer.setRenderMode(renderer.getRenderMode() == RenderMode.MEGAKERNEL
+                            ? RenderMode.WAVEFRONT : RenderMode.MEGAKERNEL);
+                } else if (key == KeyEvent.VK_N) {
+                    // Compare the denoised preview with the raw samples
+                    renderer.setPostProcess(renderer.getPostProcess().isEmpty()
+                            ? PostProcessPipeline.denoise() : PostProcessPipeline.NONE);
                 } else if (key == KeyEvent.VK_ESCAPE) {
                     System.exit(0);
                 }
@@ -164,9 +224,11 @@ public class RayTracer {
                     camera.move(delta);
                 }
 
-                renderer.render(scene);
-                imageLabel.setIcon(new ImageIcon(renderer.getImage()));
-                imageLabel.repaint();
+                // The tiles still queued for the old camera position are not worth finishing
+                renderer.cancel();
+                synchronized (renderSignal) {
+                    renderSignal.notifyAll();
+                }
             }
         });
     }
@@ -0,0 +1,161 @@
+package dtu.gpu.raytracer;
+
+import dtu.gpu.raytracer.cpu.CpuRenderBackend;
+import dtu.gpu.raytracer.post.LinearFrame;
+import dtu.gpu.raytracer.post.PostProcessPipeline;
+import dtu.gpu.raytracer.scene.Scene;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A backend that turns a scene into pixels. The {@link Renderer} owns the image and the
+ * render settings and dispatches every frame to exactly one backend.
+ */
+public interface RenderBackend {
+
+    /**
+     * Renders the scene with {@code settings.getSamplesPrPixel()} samples per pixel.
+     */
+    default void render(Scene scene, RenderSettings settings, int[] pixels) {
+        render(scene, settings, 0, settings.getSamplesPrPixel(), pixels, null);
+    }
+
+    /**
+     * Traces one progressive pass of {@code samples} samples per pixel, adds them to the
+     * backend's accumulation and writes the average over all accumulated samples into the
+     * given pixel array. Pass 0 discards what was accumulated before; every pass seeds the
+     * random number generator differently.
+     * Pixels are stored row by row starting with the top row, encoded as 0xRRGGBB.
+     * <p>
+     * The image is rendered in the tiles given by {@link Tile#cover} for the tile settings,
+     * and the listener (if not null) is notified after each tile.
+     *
+     * @return false if the pass was cancelled before all tiles were rendered, in which case
+     *         the accumulation is incomplete and the next pass should be pass 0
+     */
+    boolean render(Scene scene, RenderSettings settings, int pass, int samples, int[] pixels, TileListener listener);
+
+    /**
+     * Starts a whole pass like {@link #render(Scene, RenderSettings, int, int, int[], TileListener)}
+     * and returns a future that completes with the given pixel array once it holds the image.
+     * Backends that can pipeline frames return before the pass is done, so the caller can
+     * submit the next frame while this one is still computing or transferring; the default
+     * renders synchronously and returns a completed future.
+     */
+    default CompletableFuture<int[]> renderAsync(Scene scene, RenderSettings settings, int pass, int samples,
+                                                 int[] pixels) {
+        if (!render(scene, settings, pass, samples, pixels, null)) {
+            return CompletableFuture.failedFuture(new CancellationException("Pass cancelled"));
+        }
+        return CompletableFuture.completedFuture(pixels);
+    }
+
+    /**
+     * Asks a pass running on another thread to stop after the tile it is working on. The
+     * request stays in effect, also for passes started later, until {@link #resetCancel()}.
+     */
+    void cancel();
+
+    /**
+     * Withdraws an earlier {@link #cancel()}. Callers reset before they decide what the next
+     * pass renders, so a cancel issued after that point, e.g. because the camera moved, stops
+     * the pass instead of being lost.
+     */
+    void resetCancel();
+
+    /**
+     * The number of rays intersected with the scene during the last completed pass, counting
+     * camera rays and every bounce, or -1 if the backend does not count them.
+     */
+    default long getRaysTraced() {
+        return -1;
+    }
+
+    /**
+     * For backends that support adaptive sampling ({@link RenderSettings#isAdaptiveSampling()}):
+     * the number of pixels that get more samples in the next pass, 0 once every pixel has
+     * converged or reached its maximum, or the sample budget is used up.
+     * <p>
+     * In adaptive mode pass 0 traces the given number of samples for every pixel and each
+     * later pass the given number more for each pixel whose error was still above the
+     * threshold, until the budget is spent. The image holds the mean of each pixel's samples.
+     *
+     * @return -1 if the last pass was not adaptive, e.g. because the backend does not
+     *         support it and rendered every pixel with the same number of samples
+     */
+    default long getActivePixels() {
+        return -1;
+    }
+
+    /**
+     * Copies the linear mean color of every pixel after the last completed pass into the
+     * frame, together with the auxiliary buffers if {@link RenderSettings#isAuxBuffers()} was
+     * set on pass 0 and the backend writes them.
+     *
+     * @return false if the backend cannot provide its colors
+     */
+    default boolean readFrame(RenderSettings settings, LinearFrame frame) {
+        return false;
+    }
+
+    /**
+     * Applies the stages of the pipeline to the last completed pass and writes the result
+     * into the pixel array. The default reads the pass into the frame with
+     * {@link #readFrame} and runs the Java implementation of every stage on the host;
+     * backends may run stages on the device instead.
+     *
+     * @param frame a frame the backend may use to hold the pass on the host
+     * @return false if the backend cannot provide its colors, the pixels are unchanged then
+     */
+    default boolean postProcess(PostProcessPipeline pipeline, RenderSettings settings, LinearFrame frame,
+                                int[] pixels) {
+        if (!readFrame(settings, frame)) {
+            return false;
+        }
+        pipeline.apply(frame);
+        frame.writePixels(pixels);
+        return true;
+    }
+
+    /**
+     * Called when the output resolution changes so the backend can re-allocate its buffers.
+     */
+    void resize(int width, int height);
+
+    /**
+     * A short human readable name, e.g. for log output.
+     */
+    String getName();
+
+    /**
+     * Releases all resources held by the backend.
+     */
+    void release();
+
+    /**
+     * Creates the backend selected by the {@code raytracer.backend} system property.
+     * Supported values are {@code opencl}, {@code multi} (all OpenCL devices, see
+     * {@link MultiDeviceBackend}), {@code cpu} and {@code auto} (the default), which tries
+     * OpenCL first and falls back to the CPU backend when no OpenCL device is usable.
+     */
+    static RenderBackend createDefault(int width, int height) {
+        String name = System.getProperty("raytracer.backend", "auto");
+        switch (name) {
+            case "opencl":
+                return new OpenCLBackend(width, height);
+            case "multi":
+                return new MultiDeviceBackend(width, height);
+            case "cpu":
+                return new CpuRenderBackend();
+            case "auto":
+                try {
+                    return new OpenCLBackend(width, height);
+                } catch (RuntimeException | LinkageError e) {
+                    System.err.println("OpenCL backend unavailable (" + e.getMessage() + "), falling back to CPU");
+                    return new CpuRenderBackend();
+                }
+            default:
+                throw new IllegalArgumentException("Unknown render backend: " + name);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package dtu.gpu.raytracer;
+
+/**
+ * How the OpenCL backend organises the work of a pass.
+ */
+public enum RenderMode {
+    /**
+     * One work item per pixel follows whole paths (the {@code raytrace} kernel).
+     */
+    MEGAKERNEL,
+
+    /**
+     * Paths advance one bounce at a time through separate generate, extend, shade and
+     * accumulate kernels that exchange compacted queues of live paths (wavefront.cl).
+     */
+    WAVEFRONT
+}
@@ -0,0 +1,157 @@
+package dtu.gpu.raytracer;
+
+/**
+ * The per-frame parameters shared by all render backends.
+ */
+public class RenderSettings {
+    private int width, height;
+    private int samplesPrPixel = 50;
+    private int maxDepth = 10;
+    private boolean debug = false;
+
+    // Tiles of at most tileSize x tileSize pixels are launched one after another, 0 renders the whole image at once
+    private int tileSize = 256;
+    private boolean centerOutTiles = false;
+
+    private RenderMode renderMode = RenderMode.MEGAKERNEL;
+
+    // Adaptive sampling: after a first round for every pixel, only pixels whose error is
+    // above the threshold get more samples, up to samplesPrPixel each and sampleBudget on average
+    private boolean adaptiveSampling = false;
+    private float adaptiveThreshold = 0.005f;
+    private int adaptiveMinSamples = 16;
+    private int sampleBudget = 0;
+
+    // Whether pass 0 also writes the first hit albedo, normal and depth for post-processing
+    private boolean auxBuffers = false;
+
+    public RenderSettings(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getSamplesPrPixel() {
+        return samplesPrPixel;
+    }
+
+    public void setSamplesPrPixel(int samplesPrPixel) {
+        this.samplesPrPixel = samplesPrPixel;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public boolean isCenterOutTiles() {
+        return centerOutTiles;
+    }
+
+    public void setCenterOutTiles(boolean centerOutTiles) {
+        this.centerOutTiles = centerOutTiles;
+    }
+
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    public void setRenderMode(RenderMode renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return adaptiveSampling;
+    }
+
+    public void setAdaptiveSampling(boolean adaptiveSampling) {
+        this.adaptiveSampling = adaptiveSampling;
+    }
+
+    /**
+     * The error at which a pixel counts as converged, in displayed (gamma corrected) units
+     * where 1 is full white: the brightness of the pixel plus one standard error of its mean,
+     * gamma corrected, minus the gamma corrected brightness. 1/255 is one step of the output.
+     */
+    public float getAdaptiveThreshold() {
+        return adaptiveThreshold;
+    }
+
+    public void setAdaptiveThreshold(float adaptiveThreshold) {
+        this.adaptiveThreshold = adaptiveThreshold;
+    }
+
+    /**
+     * Samples every pixel gets in the first round, before its error is estimated
+     */
+    public int getAdaptiveMinSamples() {
+        return adaptiveMinSamples;
+    }
+
+    public void setAdaptiveMinSamples(int adaptiveMinSamples) {
+        this.adaptiveMinSamples = adaptiveMinSamples;
+    }
+
+    /**
+     * The samples adaptive sampling may spend on the whole image, as an average per pixel;
+     * 0 means no limit other than samplesPrPixel per pixel
+     */
+    public int getSampleBudget() {
+        return sampleBudget;
+    }
+
+    public void setSampleBudget(int sampleBudget) {
+        this.sampleBudget = sampleBudget;
+    }
+
+    /**
+     * True if the backend should write the auxiliary buffers of a
+     * {@link dtu.gpu.raytracer.post.LinearFrame} on pass 0, for the post-processing stages
+     */
+    public boolean isAuxBuffers() {
+        return auxBuffers;
+    }
+
+    public void setAuxBuffers(boolean auxBuffers) {
+        this.auxBuffers = auxBuffers;
+    }
+
+    /**
+     * The total number of samples adaptive sampling may spend on the image
+     */
+    public long getTotalSampleBudget() {
+        long pixels = (long) width * height;
+        return pixels * (sampleBudget > 0 ? Math.min(sampleBudget, samplesPrPixel) : samplesPrPixel);
+    }
+}
@@ -1,205 +1,373 @@
 package dtu.gpu.raytracer;
 
-import static org.jocl.CL.*;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import dtu.gpu.raytracer.post.LinearFrame;
+import dtu.gpu.raytracer.post.PostProcessPipeline;
 import dtu.gpu.raytracer.scene.Scene;
-import dtu.gpu.raytracer.scene.Sphere;
-import java.util.List;
-import org.jocl.*;
 
 public class Renderer {
-    private boolean debug = false;
-    private int samplesPrPixel = 50;
-    private int maxDepth = 10;
-    private int width, height;
-    private BufferedImage image;
-    private OpenCLManager openCLManager;
+    private final RenderSettings settings;
+    // The backends render straight into the raster of its image
+    private final FrameBuffer frameBuffer;
+    private final RenderBackend backend;
 
-    public Renderer(int width, int height) {
-        this.width = width;
-        this.height = height;
-        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        this.openCLManager = new OpenCLManager(width, height);
-    }
+    // Progressive mode: every call to render traces one pass and refines the image
+    private boolean progressive;
+    private int samplesPerPass = 4;
+    private int pass;
+    private int accumulatedSamples;
+    private volatile boolean resetRequested = true;
 
-    public void render(Scene scene) {
-        Camera camera = scene.getCamera();
-        sendCameraDataToOpenCL(camera);
+    // What the accumulated samples were rendered from
+    private Scene accumulatedScene;
+    private long accumulatedSceneVersion;
+    private long accumulatedCameraVersion;
 
-        cl_mem[] sphereBuffers = createSphereBuffers(scene);
-        int numSpheres = scene.getSpheres().size();
-        cl_kernel kernel = openCLManager.getKernel();
+    // Notified after each tile has been written into the image
+    private volatile TileListener tileListener;
 
-        clSetKernelArg(kernel, 7, Sizeof.cl_mem, Pointer.to(sphereBuffers[0])); // centerX
-        clSetKernelArg(kernel, 8, Sizeof.cl_mem, Pointer.to(sphereBuffers[1])); // centerY
-        clSetKernelArg(kernel, 9, Sizeof.cl_mem, Pointer.to(sphereBuffers[2])); // centerZ
-        clSetKernelArg(kernel, 10, Sizeof.cl_mem, Pointer.to(sphereBuffers[3])); // radii
-        clSetKernelArg(kernel, 11, Sizeof.cl_mem, Pointer.to(sphereBuffers[4])); // materialIndices
+    // Throughput of the last completed pass, -1 if the backend does not count rays
+    private volatile double raysPerSecond = -1;
 
-        clSetKernelArg(kernel, 12, Sizeof.cl_mem, Pointer.to(sphereBuffers[5])); // albedoR
-        clSetKernelArg(kernel, 13, Sizeof.cl_mem, Pointer.to(sphereBuffers[6])); // albedoG
-        clSetKernelArg(kernel, 14, Sizeof.cl_mem, Pointer.to(sphereBuffers[7])); // albedoB
-        clSetKernelArg(kernel, 15, Sizeof.cl_mem, Pointer.to(sphereBuffers[8])); // fuzz
-        clSetKernelArg(kernel, 16, Sizeof.cl_mem, Pointer.to(sphereBuffers[9])); // refIdx
-        clSetKernelArg(kernel, 17, Sizeof.cl_int, Pointer.to(new int[]{ numSpheres }));
+    // Applied to every completed pass, with the host copy of the pass it may need
+    private volatile PostProcessPipeline postProcess = PostProcessPipeline.NONE;
+    private final LinearFrame linearFrame = new LinearFrame();
 
+    public Renderer(int width, int height) {
+        this(width, height, RenderBackend.createDefault(width, height));
+    }
 
-        // Convert the boolean to an int: 1 for true, 0 for false
-        int debugFlag = debug ? 1 : 0;
-        clSetKernelArg(kernel, 18, Sizeof.cl_int, Pointer.to(new int[] { debugFlag }));
-        clSetKernelArg(kernel, 19, Sizeof.cl_int, Pointer.to(new int[] { samplesPrPixel }));
-        clSetKernelArg(kernel, 20, Sizeof.cl_int, Pointer.to(new int[] { maxDepth }));
-
+    public Renderer(int width, int height, RenderBackend backend) {
+        this.settings = new RenderSettings(width, height);
+        this.frameBuffer = new FrameBuffer(width, height);
+        this.backend = backend;
+    }
 
-        long[] globalWorkSize = { width, height };
-        clEnqueueNDRangeKernel(openCLManager.getCommandQueue(),
-                kernel, 2, null, globalWorkSize, null, 0, null, null);
+    /**
+     * Renders the scene. In progressive mode this traces a single pass of at most
+     * {@link #getSamplesPerPass()} samples per pixel and refines the image, starting over
+     * whenever the scene, the camera or the render settings changed; once
+     * {@link #isComplete()} returns true further calls do nothing.
+     * <p>
+     * Every finished tile is written into the image right away. A pass that is interrupted by
+     * {@link #cancel()} leaves the tiles rendered so far in the image, and the next pass
+     * starts the accumulation over.
+     * <p>
+     * With adaptive sampling every pass is one round of it; outside of progressive mode the
+     * rounds are traced one after another until the image has converged.
+     */
+    public synchronized void render(Scene scene) {
+        backend.resetCancel();
+        int samples = nextPassSamples(scene);
+        while (samples > 0) {
+            renderPass(scene, pass, samples);
+            completePass(scene, samples);
+            samples = !progressive && settings.isAdaptiveSampling() && !resetRequested ? passSamples() : 0;
+        }
+    }
 
-        int[] pixelData = new int[width * height];
-        clEnqueueReadBuffer(openCLManager.getCommandQueue(), openCLManager.getPixelMem(),
-                CL_TRUE, 0, (long) Sizeof.cl_int * width * height, Pointer.to(pixelData), 0, null, null);
-        image.setRGB(0, 0, width, height, pixelData, 0, width);
+    /**
+     * Like {@link #render(Scene)}, but returns as soon as the pass is submitted to the backend.
+     * With a backend that pipelines frames (see {@link RenderBackend#renderAsync}) the next
+     * call can start computing while this frame is still being transferred. The future
+     * completes with the image once the frame has been written into it, on a thread of the
+     * backend. No tiles are published in between.
+     * <p>
+     * Adaptive rounds depend on the pixels the previous round left active, and
+     * post-processing needs the whole pass, so with either of them this renders synchronously.
+     */
+    public synchronized CompletableFuture<BufferedImage> renderAsync(Scene scene) {
+        BufferedImage target = frameBuffer.getImage();
+        if (settings.isAdaptiveSampling() || !postProcess.isEmpty()) {
+            render(scene);
+            return CompletableFuture.completedFuture(target);
+        }
+        backend.resetCancel();
+        int samples = nextPassSamples(scene);
+        if (samples <= 0) {
+            return CompletableFuture.completedFuture(target);
+        }
+        CompletableFuture<int[]> frame = backend.renderAsync(scene, settings, pass, samples, frameBuffer.getPixels());
+        completePass(scene, samples);
+        return frame.handle((pixels, failure) -> {
+            if (failure != null) {
+                resetRequested = true;
+                throw failure instanceof CompletionException completion ? completion : new CompletionException(failure);
+            }
+            return target;
+        });
+    }
 
-        for (cl_mem buffer : sphereBuffers) {
-            clReleaseMemObject(buffer);
+    /**
+     * Starts the accumulation over if anything changed and returns the number of samples
+     * the next pass should trace, 0 if all samples have been accumulated.
+     */
+    private int nextPassSamples(Scene scene) {
+        if (!progressive || resetRequested || scene != accumulatedScene
+                || scene.getVersion() != accumulatedSceneVersion
+                || scene.getCamera().getVersion() != accumulatedCameraVersion) {
+            pass = 0;
+            accumulatedSamples = 0;
+            rememberAccumulatedState(scene);
         }
+        return passSamples();
     }
 
     /**
-     * Prepares and sends camera data to the kernel.
-     * Kernel expects:
-     * arg0: pixelMem (__global int*)
-     * arg1: imageWidth (int)
-     * arg2: imageHeight (int)
-     * arg3: camera_center (float3, passed as 4 floats for alignment)
-     * arg4: lowerLeftCorner (float3)
-     * arg5: horizontal (float3)
-     * arg6: vertical (float3)
-     */
-    private void sendCameraDataToOpenCL(Camera camera) {
-        cl_kernel kernel = openCLManager.getKernel();
-
-        // Set arg0: pixel memory buffer
-        clSetKernelArg(kernel, 0, Sizeof.cl_mem, Pointer.to(openCLManager.getPixelMem()));
-        // Set arg1: imageWidth (as int)
-        clSetKernelArg(kernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ width }));
-        // Set arg2: imageHeight (as int)
-        clSetKernelArg(kernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ height }));
-
-        // Get camera parameters from the Camera instance.
-        Vector3 origin = camera.getOrigin();
-        Vector3 lowerLeftCorner = camera.getLowerLeftCorner();
-        Vector3 horizontal = camera.getHorizontal();
-        Vector3 vertical = camera.getVertical();
-
-        // Set arg3: camera_center (float3)
-        clSetKernelArg(kernel, 3, 4 * Sizeof.cl_float, Pointer.to(new float[]{
-                (float)origin.getX(), (float)origin.getY(), (float)origin.getZ(), 0.0f
-        }));
-        // Set arg4: lowerLeftCorner (float3)
-        clSetKernelArg(kernel, 4, 4 * Sizeof.cl_float, Pointer.to(new float[]{
-                (float)lowerLeftCorner.getX(), (float)lowerLeftCorner.getY(), (float)lowerLeftCorner.getZ(), 0.0f
-        }));
-        // Set arg5: horizontal (float3)
-        clSetKernelArg(kernel, 5, 4 * Sizeof.cl_float, Pointer.to(new float[]{
-                (float)horizontal.getX(), (float)horizontal.getY(), (float)horizontal.getZ(), 0.0f
-        }));
-        // Set arg6: vertical (float3)
-        clSetKernelArg(kernel, 6, 4 * Sizeof.cl_float, Pointer.to(new float[]{
-                (float)vertical.getX(), (float)vertical.getY(), (float)vertical.getZ(), 0.0f
-        }));
-    }
-
-    /**
-     * Converts the list of spheres in the scene into a flat float array and creates
-     * an OpenCL buffer for them. Each sphere is stored as 4 floats: center.x, center.y, center.z, radius.
-     * This buffer is then passed to the kernel as argument 7, and the number of spheres as argument 8.
-     */
-    private cl_mem[] createSphereBuffers(Scene scene) {
-        List<Sphere> sphereList = scene.getSpheres();
-        int numSpheres = sphereList.size();
-        if (numSpheres == 0) {
-            numSpheres = 1;
-            sphereList.add(new Sphere(
-                    new Vector3(0, -100.5, -1), 100, 0,
-                    new Vector3(0.8, 0.8, 0.0)));  // Ground (lambertian)
+     * The samples of the next pass on top of what is accumulated. Adaptive sampling starts
+     * with at least {@link RenderSettings#getAdaptiveMinSamples()} samples, so every pixel has
+     * enough of them for a meaningful error estimate, and stops once the backend has no
+     * active pixels left.
+     */
+    private int passSamples() {
+        boolean adaptive = settings.isAdaptiveSampling();
+        if (!progressive && !adaptive) {
+            return settings.getSamplesPrPixel();
+        }
+        if (adaptive && pass > 0 && backend.getActivePixels() == 0) {
+            return 0;
         }
+        int samples = adaptive && pass == 0 ? Math.max(samplesPerPass, settings.getAdaptiveMinSamples()) : samplesPerPass;
+        return Math.min(samples, settings.getSamplesPrPixel() - accumulatedSamples);
+    }
+
+    private void completePass(Scene scene, int samples) {
+        pass++;
+        accumulatedSamples += samples;
+        // The backend may have added e.g. a default ground sphere to an empty scene
+        accumulatedSceneVersion = scene.getVersion();
+    }
 
-        float[] centerX = new float[numSpheres];
-        float[] centerY = new float[numSpheres];
-        float[] centerZ = new float[numSpheres];
-        float[] radii = new float[numSpheres];
-        int[] materialIndices = new int[numSpheres];
-
-        float[] albedoR = new float[numSpheres];
-        float[] albedoG = new float[numSpheres];
-        float[] albedoB = new float[numSpheres];
-        float[] fuzz = new float[numSpheres];
-        float[] refIdx = new float[numSpheres];
-
-        for (int i = 0; i < numSpheres; i++) {
-            Sphere s = sphereList.get(i);
-            centerX[i] = (float) s.center.getX();
-            centerY[i] = (float) s.center.getY();
-            centerZ[i] = (float) s.center.getZ();
-            radii[i] = (float) s.radius;
-            materialIndices[i] = s.materialIndex;
-
-            albedoR[i] = (float) s.albedo.getX();
-            albedoG[i] = (float) s.albedo.getY();
-            albedoB[i] = (float) s.albedo.getZ();
-            fuzz[i] = (float) s.fuzz;
-            refIdx[i] = (float) s.ref_idx;
+    private void renderPass(Scene scene, int pass, int samples) {
+        long start = System.nanoTime();
+        boolean finished = backend.render(scene, settings, pass, samples, frameBuffer.getPixels(), (tile, pixels) -> {
+            TileListener listener = tileListener;
+            if (listener != null) {
+                listener.tileFinished(tile, pixels);
+            }
+        });
+        if (!finished) {
+            resetRequested = true;
+            return;
         }
+        long rays = backend.getRaysTraced();
+        long nanos = Math.max(1, System.nanoTime() - start);
+        raysPerSecond = rays < 0 ? -1 : rays * 1e9 / nanos;
+        postProcess();
+    }
+
+    /**
+     * Replaces the image of the pass with its post-processed version and publishes it as a
+     * single tile.
+     */
+    private void postProcess() {
+        PostProcessPipeline pipeline = postProcess;
+        if (pipeline.isEmpty()
+                || !backend.postProcess(pipeline, settings, linearFrame, frameBuffer.getPixels())) {
+            return;
+        }
+        TileListener listener = tileListener;
+        if (listener != null) {
+            listener.tileFinished(new Tile(0, 0, settings.getWidth(), settings.getHeight()), frameBuffer.getPixels());
+        }
+    }
+
+    public PostProcessPipeline getPostProcess() {
+        return postProcess;
+    }
+
+    /**
+     * Sets the stages applied to every completed pass, e.g. {@link PostProcessPipeline#denoise()}
+     * for a clean preview from few samples; {@link PostProcessPipeline#NONE} turns
+     * post-processing off. Tiles are still published as they finish, the processed image
+     * replaces them once the pass is complete. Backends that cannot provide their colors
+     * show the unprocessed image. Starts the accumulation over, so that pass 0 writes the
+     * auxiliary buffers the stages use.
+     */
+    public void setPostProcess(PostProcessPipeline postProcess) {
+        this.postProcess = postProcess;
+        settings.setAuxBuffers(!postProcess.isEmpty());
+        resetRequested = true;
+    }
+
+    /**
+     * Rays intersected with the scene per second during the last completed pass, including
+     * the readback of the image, or -1 if the backend does not count rays.
+     */
+    public double getRaysPerSecond() {
+        return raysPerSecond;
+    }
+
+    public RenderMode getRenderMode() {
+        return settings.getRenderMode();
+    }
+
+    /**
+     * Selects how the OpenCL backend traces paths; the CPU backend ignores this.
+     * Starts the accumulation over.
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        settings.setRenderMode(renderMode);
+        resetRequested = true;
+    }
+
+    /**
+     * Stops the pass currently being rendered by another thread after its current tile, also
+     * if that render call has not reached the backend yet. Safe to call from any thread, e.g.
+     * from a UI event handler when the camera moves.
+     */
+    public void cancel() {
+        backend.cancel();
+    }
 
-        cl_context context = openCLManager.getContext();
-        cl_mem centerXBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * centerX.length, Pointer.to(centerX), null);
-        cl_mem centerYBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * centerY.length, Pointer.to(centerY), null);
-        cl_mem centerZBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * centerZ.length, Pointer.to(centerZ), null);
-        cl_mem radiiBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * radii.length, Pointer.to(radii), null);
-        cl_mem materialIndexBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_int * materialIndices.length, Pointer.to(materialIndices), null);
+    /**
+     * Sets a listener that is notified on the rendering thread after each tile has been
+     * written into the image, e.g. to repaint it.
+     */
+    public void setTileListener(TileListener tileListener) {
+        this.tileListener = tileListener;
+    }
 
-        cl_mem albedoRBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * albedoR.length, Pointer.to(albedoR), null);
-        cl_mem albedoGBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * albedoG.length, Pointer.to(albedoG), null);
-        cl_mem albedoBBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * albedoB.length, Pointer.to(albedoB), null);
-        cl_mem fuzzBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * fuzz.length, Pointer.to(fuzz), null);
-        cl_mem refIdxBuffer = clCreateBuffer(context, CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR, (long) Sizeof.cl_float * refIdx.length, Pointer.to(refIdx), null);
+    public void setTileSize(int tileSize) {
+        settings.setTileSize(tileSize);
+    }
 
-        return new cl_mem[]{
-                centerXBuffer, centerYBuffer, centerZBuffer, radiiBuffer, materialIndexBuffer,
-                albedoRBuffer, albedoGBuffer, albedoBBuffer, fuzzBuffer, refIdxBuffer
-        };
+    public void setCenterOutTiles(boolean centerOutTiles) {
+        settings.setCenterOutTiles(centerOutTiles);
     }
 
-    // This method updates the image size and re-allocates the OpenCL buffer.
-    public void updateImageSize(int newWidth, int newHeight) {
-        this.width = newWidth;
-        this.height = newHeight;
-        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        openCLManager.recreatePixelBuffer(width, height);
+    private void rememberAccumulatedState(Scene scene) {
+        resetRequested = false;
+        accumulatedScene = scene;
+        accumulatedSceneVersion = scene.getVersion();
+        accumulatedCameraVersion = scene.getCamera().getVersion();
     }
 
-    public BufferedImage getImage() {
-        return image;
+    /**
+     * Discards the accumulated samples, the next progressive pass starts from scratch.
+     */
+    public void resetAccumulation() {
+        resetRequested = true;
+    }
+
+    /**
+     * True when all samples per pixel have been accumulated for the last rendered scene and
+     * its camera as they are now.
+     */
+    public boolean isComplete() {
+        return !resetRequested && accumulatedScene != null
+                && accumulatedScene.getVersion() == accumulatedSceneVersion
+                && accumulatedScene.getCamera().getVersion() == accumulatedCameraVersion
+                && (accumulatedSamples >= settings.getSamplesPrPixel()
+                    || settings.isAdaptiveSampling() && pass > 0 && backend.getActivePixels() == 0);
+    }
+
+    /**
+     * The samples per pixel accumulated so far; with adaptive sampling only the pixels that
+     * never converged have that many.
+     */
+    public int getAccumulatedSamples() {
+        return accumulatedSamples;
+    }
+
+    public boolean isAdaptiveSampling() {
+        return settings.isAdaptiveSampling();
+    }
+
+    /**
+     * Spends more samples on the pixels that need them, see {@link RenderBackend#getActivePixels()}.
+     * Backends that do not support it render every pixel with all samples. Starts the
+     * accumulation over.
+     */
+    public void setAdaptiveSampling(boolean adaptiveSampling) {
+        settings.setAdaptiveSampling(adaptiveSampling);
+        resetRequested = true;
+    }
+
+    /**
+     * See {@link RenderSettings#getAdaptiveThreshold()}. Starts the accumulation over.
+     */
+    public void setAdaptiveThreshold(float adaptiveThreshold) {
+        settings.setAdaptiveThreshold(adaptiveThreshold);
+        resetRequested = true;
+    }
+
+    /**
+     * See {@link RenderSettings#getSampleBudget()}. Starts the accumulation over.
+     */
+    public void setSampleBudget(int sampleBudget) {
+        settings.setSampleBudget(sampleBudget);
+        resetRequested = true;
+    }
+
+    /**
+     * The pixels that get more samples in the next adaptive pass, -1 outside of adaptive sampling
+     */
+    public long getActivePixels() {
+        return settings.isAdaptiveSampling() ? backend.getActivePixels() : -1;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    public void setProgressive(boolean progressive) {
+        this.progressive = progressive;
+        resetRequested = true;
+    }
+
+    public int getSamplesPerPass() {
+        return samplesPerPass;
+    }
+
+    public void setSamplesPerPass(int samplesPerPass) {
+        if (samplesPerPass < 1) {
+            throw new IllegalArgumentException("samplesPerPass must be at least 1");
+        }
+        this.samplesPerPass = samplesPerPass;
+    }
+
+    // This method updates the image size and re-allocates the backend buffers.
+    // The pixel array is kept when the image shrinks, only the image wrapping it is new.
+    public synchronized void updateImageSize(int newWidth, int newHeight) {
+        settings.setSize(newWidth, newHeight);
+        frameBuffer.resize(newWidth, newHeight);
+        backend.resize(newWidth, newHeight);
+        resetRequested = true;
+    }
+
+    public synchronized BufferedImage getImage() {
+        return frameBuffer.getImage();
+    }
+
+    public RenderBackend getBackend() {
+        return backend;
     }
 
     public void setDebug(boolean debug) {
-        this.debug = debug;
+        settings.setDebug(debug);
     }
 
     public int getSamplesPrPixel() {
-        return samplesPrPixel;
+        return settings.getSamplesPrPixel();
     }
 
     public void setSamplesPrPixel(int samplesPrPixel) {
-        this.samplesPrPixel = samplesPrPixel;
+        settings.setSamplesPrPixel(samplesPrPixel);
     }
 
     public int getMaxDepth() {
-        return maxDepth;
+        return settings.getMaxDepth();
     }
 
     public void setMaxDepth(int maxDepth) {
-        this.maxDepth = maxDepth;
+        settings.setMaxDepth(maxDepth);
+        resetRequested = true;
+    }
+
+    public synchronized void release() {
+        backend.release();
     }
 }
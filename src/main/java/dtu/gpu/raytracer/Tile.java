@@ -0,0 +1,77 @@
+package dtu.gpu.raytracer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A rectangular part of the image that is rendered, read back and published on its own.
+ */
+public final class Tile {
+    private final int x, y, width, height;
+
+    public Tile(int x, int y, int width, int height) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Splits an image into tiles of at most tileSize x tileSize pixels. A tile size of 0 or
+     * less gives a single tile covering the whole image. Tiles are ordered row by row, or by
+     * their distance to the image centre when centerOut is set.
+     */
+    public static List<Tile> cover(int imageWidth, int imageHeight, int tileSize, boolean centerOut) {
+        return cover(new Tile(0, 0, imageWidth, imageHeight), tileSize, centerOut);
+    }
+
+    /**
+     * Like {@link #cover(int, int, int, boolean)} for a part of the image; centre-out order is
+     * relative to the centre of the region.
+     */
+    public static List<Tile> cover(Tile region, int tileSize, boolean centerOut) {
+        int tileWidth = tileSize > 0 ? tileSize : region.width;
+        int tileHeight = tileSize > 0 ? tileSize : region.height;
+        int right = region.x + region.width;
+        int bottom = region.y + region.height;
+        List<Tile> tiles = new ArrayList<>();
+        for (int y = region.y; y < bottom; y += tileHeight) {
+            for (int x = region.x; x < right; x += tileWidth) {
+                tiles.add(new Tile(x, y, Math.min(tileWidth, right - x), Math.min(tileHeight, bottom - y)));
+            }
+        }
+        if (centerOut) {
+            // Compare doubled coordinates so the centres stay integral
+            tiles.sort(Comparator.comparingLong(t -> t.distanceSquared2(region)));
+        }
+        return tiles;
+    }
+
+    private long distanceSquared2(Tile region) {
+        long dx = 2L * (x - region.x) + width - region.width;
+        long dy = 2L * (y - region.y) + height - region.height;
+        return dx * dx + dy * dy;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "Tile[" + x + ", " + y + ", " + width + "x" + height + "]";
+    }
+}
@@ -0,0 +1,15 @@
+package dtu.gpu.raytracer;
+
+/**
+ * Notified by a {@link RenderBackend} whenever a tile of the current pass has been written
+ * to the pixel array.
+ */
+@FunctionalInterface
+public interface TileListener {
+
+    /**
+     * Called on the rendering thread once the pixels of the tile are final for this pass.
+     * The pixel array covers the whole image, row by row.
+     */
+    void tileFinished(Tile tile, int[] pixels);
+}
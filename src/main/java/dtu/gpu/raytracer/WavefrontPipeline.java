@@ -0,0 +1,307 @@
+package dtu.gpu.raytracer;
+
+import static org.jocl.CL.*;
+
+import dtu.gpu.opencl.FrameProfiler;
+import dtu.gpu.opencl.FrameProfiler.Phase;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.jocl.*;
+
+/**
+ * Host side of the wavefront kernels in wavefront.cl. Paths are advanced one bounce at a
+ * time: after generating a camera ray per pixel of a tile, the extend kernel sorts the hits
+ * into one compacted queue per material, each material is shaded by its own kernel, and the
+ * surviving paths form the (again compacted) ray queue of the next bounce.
+ * <p>
+ * The queue lengths stay on the device. Every stage is launched in whole work groups of
+ * about {@link #TARGET_LOCAL_SIZE} items over an upper bound of its queue, and the items past
+ * the real length return at once. The only thing read back is the length of the next ray queue, once
+ * per bounce and without blocking. The host waits for it one bounce later, when it is needed
+ * as the bound of the bounce after that, so the device always has the next bounce queued.
+ * The bounce loop stops as soon as all paths have terminated.
+ */
+public class WavefrontPipeline {
+    private static final int NUM_MATERIALS = 3;
+
+    // Slots of the counters buffer, see wavefront.cl
+    private static final int NEXT_RAY_COUNT = 0;
+    private static final int MATERIAL_COUNT = 1;
+    private static final int NUM_COUNTERS = MATERIAL_COUNT + NUM_MATERIALS;
+
+    // Work items per group to aim for, enough to fill the SIMD lanes of current GPUs
+    private static final int TARGET_LOCAL_SIZE = 64;
+
+    private final cl_context context;
+    private final cl_command_queue commandQueue;
+    private final FrameProfiler profiler;
+    private final cl_program program;
+    private final cl_kernel generateKernel;
+    private final cl_kernel extendKernel;
+    private final cl_kernel[] shadeKernels;
+    private final cl_kernel accumulateKernel;
+    private final cl_kernel startBounceKernel;
+    private final long localSize;
+
+    /**
+     * Number of paths the buffers can hold, i.e. the pixels of the largest tile so far
+     */
+    private int capacity;
+
+    // Per path state
+    private cl_mem pathOrigin, pathDir, pathThroughput, pathRadiance, pathRng;
+    // Per path hit of the current bounce
+    private cl_mem hitPoint, hitNormal, hitMaterial;
+    // The ray queues of the current and the next bounce, swapped after every bounce
+    private final cl_mem[] rayQueues = new cl_mem[2];
+    // NUM_MATERIALS queues of capacity entries each
+    private cl_mem materialQueues;
+    // Two sets of NUM_COUNTERS, written by alternate bounces, see wavefront.cl
+    private cl_mem counters;
+
+    // The next ray count of each set of counters, read back without blocking
+    private final ByteBuffer rayCounts = ByteBuffer.allocateDirect(2 * Sizeof.cl_int).order(ByteOrder.nativeOrder());
+    private final cl_event[] rayCountRead = new cl_event[2];
+
+    public WavefrontPipeline(OpenCLManager openCLManager) {
+        this.context = openCLManager.getContext();
+        this.commandQueue = openCLManager.getCommandQueue();
+        this.profiler = openCLManager.getProfiler();
+        this.program = openCLManager.buildProgram("wavefront.cl");
+        this.generateKernel = clCreateKernel(program, "wf_generate", null);
+        this.extendKernel = clCreateKernel(program, "wf_extend", null);
+        // Indexed by material type
+        this.shadeKernels = new cl_kernel[]{
+                clCreateKernel(program, "wf_shade_lambertian", null),
+                clCreateKernel(program, "wf_shade_metal", null),
+                clCreateKernel(program, "wf_shade_dielectric", null)
+        };
+        this.accumulateKernel = clCreateKernel(program, "wf_accumulate", null);
+        this.startBounceKernel = clCreateKernel(program, "wf_start_bounce", null);
+        this.localSize = localSize(openCLManager.getDevice(), generateKernel, extendKernel, shadeKernels[0],
+                shadeKernels[1], shadeKernels[2], accumulateKernel);
+        this.counters = clCreateBuffer(context, CL_MEM_READ_WRITE, 2L * NUM_COUNTERS * Sizeof.cl_int, null, null);
+        clSetKernelArg(startBounceKernel, 0, Sizeof.cl_mem, Pointer.to(counters));
+    }
+
+    /**
+     * {@link #TARGET_LOCAL_SIZE} rounded down to the preferred work group size multiple of
+     * the kernels, but at most the largest work group all of them can run
+     */
+    private static long localSize(cl_device_id device, cl_kernel... kernels) {
+        long multiple = 1;
+        long max = Long.MAX_VALUE;
+        long[] value = new long[1];
+        for (cl_kernel kernel : kernels) {
+            clGetKernelWorkGroupInfo(kernel, device, CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE, Sizeof.size_t,
+                    Pointer.to(value), null);
+            multiple = Math.max(multiple, value[0]);
+            clGetKernelWorkGroupInfo(kernel, device, CL_KERNEL_WORK_GROUP_SIZE, Sizeof.size_t, Pointer.to(value), null);
+            max = Math.min(max, value[0]);
+        }
+        return Math.max(1, Math.min(max, Math.max(multiple, TARGET_LOCAL_SIZE / multiple * multiple)));
+    }
+
+    /**
+     * Traces {@code samples} samples for every pixel of the tile and adds them to the
+     * accumulation buffer, overwriting it if this is the first sample of pass 0.
+     *
+     * @return the number of rays intersected with the scene
+     */
+    public long renderTile(Tile tile, RenderSettings settings, Camera.View camera, DeviceSceneBuffers sceneBuffers,
+                           cl_mem accumulation, int pass, int samples) {
+        int paths = tile.getWidth() * tile.getHeight();
+        ensureCapacity(paths);
+        setStaticArgs(settings, camera, sceneBuffers, accumulation, tile, pass);
+
+        int maxDepth = settings.getMaxDepth();
+        long rays = 0;
+        for (int s = 0; s < samples; s++) {
+            clSetKernelArg(generateKernel, 11, Sizeof.cl_int, Pointer.to(new int[]{ s }));
+            enqueue(generateKernel, paths);
+
+            // An upper bound of the rays entering the bounce: the exact count of the bounce
+            // before it, as the queue only shrinks
+            int rayBound = paths;
+            rays += paths;
+            for (int depth = 0; depth < maxDepth && rayBound > 0; depth++) {
+                int set = depth & 1;
+                clSetKernelArg(startBounceKernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ set }));
+                clSetKernelArg(startBounceKernel, 2, Sizeof.cl_int, Pointer.to(new int[]{ depth == 0 ? paths : -1 }));
+                clEnqueueNDRangeKernel(commandQueue, startBounceKernel, 1, null, new long[]{ 1 }, null, 0, null,
+                        profiler.event(Phase.KERNEL, 0));
+
+                clSetKernelArg(extendKernel, 0, Sizeof.cl_mem, Pointer.to(rayQueues[set]));
+                clSetKernelArg(extendKernel, 1, Sizeof.cl_int, Pointer.to(new int[]{ set }));
+                enqueue(extendKernel, rayBound);
+                for (cl_kernel shade : shadeKernels) {
+                    clSetKernelArg(shade, 2, Sizeof.cl_int, Pointer.to(new int[]{ set }));
+                    clSetKernelArg(shade, 10, Sizeof.cl_mem, Pointer.to(rayQueues[1 - set]));
+                    enqueue(shade, rayBound);
+                }
+                if (depth + 1 < maxDepth) {
+                    enqueueRayCountRead(set);
+                }
+                clFlush(commandQueue);
+
+                if (depth > 0) {
+                    // Counted by the previous bounce, which the device has finished or is
+                    // about to finish, while this one is already queued
+                    rayBound = awaitRayCount(1 - set);
+                    rays += rayBound;
+                }
+            }
+            awaitRayCount(0);
+            awaitRayCount(1);
+
+            // Paths still alive after max depth contribute nothing, like in the megakernel
+            int overwrite = (pass == 0 && s == 0) ? 1 : 0;
+            clSetKernelArg(accumulateKernel, 7, Sizeof.cl_int, Pointer.to(new int[]{ overwrite }));
+            enqueue(accumulateKernel, paths);
+        }
+        return rays;
+    }
+
+    /**
+     * Sets the kernel arguments that stay the same for all samples and bounces of a tile.
+     */
+    private void setStaticArgs(RenderSettings settings, Camera.View camera, DeviceSceneBuffers sceneBuffers,
+                               cl_mem accumulation, Tile tile, int pass) {
+        int[] tileArgs = { tile.getX(), tile.getY(), tile.getWidth(), tile.getHeight() };
+        for (int i = 0; i < tileArgs.length; i++) {
+            clSetKernelArg(generateKernel, i, Sizeof.cl_int, Pointer.to(new int[]{ tileArgs[i] }));
+            clSetKernelArg(accumulateKernel, i, Sizeof.cl_int, Pointer.to(new int[]{ tileArgs[i] }));
+        }
+        clSetKernelArg(generateKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ settings.getWidth() }));
+        clSetKernelArg(generateKernel, 5, Sizeof.cl_int, Pointer.to(new int[]{ settings.getHeight() }));
+        clSetKernelArg(generateKernel, 6, 4 * Sizeof.cl_float, Pointer.to(float4(camera.origin())));
+        clSetKernelArg(generateKernel, 7, 4 * Sizeof.cl_float, Pointer.to(float4(camera.lowerLeftCorner())));
+        clSetKernelArg(generateKernel, 8, 4 * Sizeof.cl_float, Pointer.to(float4(camera.horizontal())));
+        clSetKernelArg(generateKernel, 9, 4 * Sizeof.cl_float, Pointer.to(float4(camera.vertical())));
+        clSetKernelArg(generateKernel, 10, Sizeof.cl_uint, Pointer.to(new int[]{ pass }));
+        cl_mem[] generateBuffers = { pathOrigin, pathDir, pathThroughput, pathRadiance, pathRng, rayQueues[0] };
+        for (int i = 0; i < generateBuffers.length; i++) {
+            clSetKernelArg(generateKernel, 12 + i, Sizeof.cl_mem, Pointer.to(generateBuffers[i]));
+        }
+
+        cl_mem[] extendPathBuffers = { pathOrigin, pathDir, pathThroughput, pathRadiance };
+        for (int i = 0; i < extendPathBuffers.length; i++) {
+            clSetKernelArg(extendKernel, 2 + i, Sizeof.cl_mem, Pointer.to(extendPathBuffers[i]));
+        }
+        clSetKernelArg(extendKernel, 6, Sizeof.cl_mem, Pointer.to(sceneBuffers.getGeometryBuffer()));
+        clSetKernelArg(extendKernel, 7, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialIdBuffer()));
+        clSetKernelArg(extendKernel, 8, Sizeof.cl_mem, Pointer.to(sceneBuffers.getMaterialBuffer()));
+        clSetKernelArg(extendKernel, 9, sceneBuffers.getMaterialCacheSize(), null);
+        clSetKernelArg(extendKernel, 10, Sizeof.cl_int, Pointer.to(new int[]{ sceneBuffers.getCachedMaterials() }));
+        clSetKernelArg(extendKernel, 11, Sizeof.cl_int, Pointer.to(new int[]{ sceneBuffers.getCount() }));
+        clSetKernelArg(extendKernel, 12, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhNodes()));
+        clSetKernelArg(extendKernel, 13, Sizeof.cl_mem, Pointer.to(sceneBuffers.getBvhPrimIndices()));
+        clSetKernelArg(extendKernel, 14, Sizeof.cl_mem, Pointer.to(hitPoint));
+        clSetKernelArg(extendKernel, 15, Sizeof.cl_mem, Pointer.to(hitNormal));
+        clSetKernelArg(extendKernel, 16, Sizeof.cl_mem, Pointer.to(hitMaterial));
+        clSetKernelArg(extendKernel, 17, Sizeof.cl_mem, Pointer.to(materialQueues));
+        clSetKernelArg(extendKernel, 18, Sizeof.cl_int, Pointer.to(new int[]{ capacity }));
+        clSetKernelArg(extendKernel, 19, Sizeof.cl_mem, Pointer.to(counters));
+
+        cl_mem[] shadeBuffers = { pathOrigin, pathDir, pathThroughput, pathRng, hitPoint, hitNormal, hitMaterial };
+        for (int m = 0; m < NUM_MATERIALS; m++) {
+            cl_kernel shade = shadeKernels[m];
+            clSetKernelArg(shade, 0, Sizeof.cl_mem, Pointer.to(materialQueues));
+            clSetKernelArg(shade, 1, Sizeof.cl_int, Pointer.to(new int[]{ m * capacity }));
+            for (int i = 0; i < shadeBuffers.length; i++) {
+                clSetKernelArg(shade, 3 + i, Sizeof.cl_mem, Pointer.to(shadeBuffers[i]));
+            }
+            clSetKernelArg(shade, 11, Sizeof.cl_mem, Pointer.to(counters));
+        }
+
+        clSetKernelArg(accumulateKernel, 4, Sizeof.cl_int, Pointer.to(new int[]{ settings.getWidth() }));
+        clSetKernelArg(accumulateKernel, 5, Sizeof.cl_mem, Pointer.to(pathRadiance));
+        clSetKernelArg(accumulateKernel, 6, Sizeof.cl_mem, Pointer.to(accumulation));
+    }
+
+    /**
+     * Launches at least the given number of work items, in whole work groups; the kernels
+     * return at once for items past the length of their queue.
+     */
+    private void enqueue(cl_kernel kernel, int workItems) {
+        long globalSize = (workItems + localSize - 1) / localSize * localSize;
+        clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, new long[]{ globalSize }, new long[]{ localSize },
+                0, null, profiler.event(Phase.KERNEL, 0));
+    }
+
+    private void enqueueRayCountRead(int set) {
+        cl_event event = new cl_event();
+        clEnqueueReadBuffer(commandQueue, counters, CL_FALSE,
+                (long) (set * NUM_COUNTERS + NEXT_RAY_COUNT) * Sizeof.cl_int, Sizeof.cl_int,
+                Pointer.to(rayCounts).withByteOffset((long) set * Sizeof.cl_int), 0, null, event);
+        profiler.record(Phase.READBACK, Sizeof.cl_int, event);
+        rayCountRead[set] = event;
+    }
+
+    /**
+     * Waits for the read of the next ray count of the set, if one is pending, and returns it
+     */
+    private int awaitRayCount(int set) {
+        cl_event event = rayCountRead[set];
+        if (event != null) {
+            clWaitForEvents(1, new cl_event[]{ event });
+            clReleaseEvent(event);
+            rayCountRead[set] = null;
+        }
+        return rayCounts.getInt(set * Sizeof.cl_int);
+    }
+
+    private static float[] float4(Vector3 v) {
+        return new float[]{ (float) v.getX(), (float) v.getY(), (float) v.getZ(), 0.0f };
+    }
+
+    /**
+     * Makes sure the path buffers hold at least the given number of paths. Nothing is kept,
+     * every tile starts with new paths.
+     */
+    private void ensureCapacity(int paths) {
+        if (paths <= capacity) {
+            return;
+        }
+        releasePathBuffers();
+        capacity = paths;
+        long float4Bytes = (long) capacity * 4 * Sizeof.cl_float;
+        pathOrigin = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        pathDir = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        pathThroughput = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        pathRadiance = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        pathRng = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) capacity * 2 * Sizeof.cl_uint, null, null);
+        hitPoint = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        hitNormal = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        hitMaterial = clCreateBuffer(context, CL_MEM_READ_WRITE, float4Bytes, null, null);
+        for (int i = 0; i < rayQueues.length; i++) {
+            rayQueues[i] = clCreateBuffer(context, CL_MEM_READ_WRITE, (long) capacity * Sizeof.cl_int, null, null);
+        }
+        materialQueues = clCreateBuffer(context, CL_MEM_READ_WRITE,
+                (long) NUM_MATERIALS * capacity * Sizeof.cl_int, null, null);
+    }
+
+    private void releasePathBuffers() {
+        if (capacity == 0) {
+            return;
+        }
+        for (cl_mem mem : new cl_mem[]{ pathOrigin, pathDir, pathThroughput, pathRadiance, pathRng,
+                hitPoint, hitNormal, hitMaterial, rayQueues[0], rayQueues[1], materialQueues }) {
+            clReleaseMemObject(mem);
+        }
+        capacity = 0;
+    }
+
+    public void release() {
+        releasePathBuffers();
+        clReleaseMemObject(counters);
+        clReleaseKernel(generateKernel);
+        clReleaseKernel(extendKernel);
+        for (cl_kernel shade : shadeKernels) {
+            clReleaseKernel(shade);
+        }
+        clReleaseKernel(accumulateKernel);
+        clReleaseKernel(startBounceKernel);
+        clReleaseProgram(program);
+    }
+}
@@ -0,0 +1,217 @@
+package dtu.gpu.raytracer.batch;
+
+import dtu.gpu.raytracer.Camera;
+import dtu.gpu.raytracer.RenderMode;
+import dtu.gpu.raytracer.Renderer;
+import dtu.gpu.raytracer.Vector3;
+import dtu.gpu.raytracer.post.AtrousDenoiser;
+import dtu.gpu.raytracer.post.PostProcessPipeline;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.SceneFormat;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+
+/**
+ * Renders a scene file to a sequence of PNG files without opening a window, for render
+ * farms and other headless machines. The camera follows the keyframes of the scene file,
+ * sampled at evenly spaced times from the first to the last keyframe.
+ * <p>
+ * Frames are encoded on a pool of background threads while the next frame renders. Each
+ * encoder works on its own copy of the frame; there is one copy more than there are
+ * encoders, so rendering only waits if the encoders fall behind.
+ * <p>
+ * The backend is chosen like in the viewer, e.g. with {@code --backend cpu}.
+ */
+public class BatchRenderer {
+    private static final String USAGE = """
+            Usage: BatchRenderer --scene <file> [options]
+              --out <dir>            output directory (default: frames)
+              --width <pixels>       image width (default: 1200)
+              --height <pixels>      image height (default: 675)
+              --spp <samples>        samples per pixel (default: 50)
+              --depth <bounces>      maximum path depth (default: 10)
+              --frames <count>       number of frames along the camera path (default: 1)
+              --spheres <file>       map the spheres from a binary scene file instead
+              --encoders <threads>   PNG encoder threads (default: half the processors)
+              --backend <name>       auto, opencl, multi or cpu (default: auto)
+              --mode <mode>          megakernel or wavefront (default: megakernel)
+              --adaptive <threshold> stop sampling pixels whose error is below the threshold,
+                                     e.g. 0.005; --spp is then the maximum per pixel
+              --budget <samples>     with --adaptive, average samples per pixel to spend at most
+              --denoise <iterations> filter every frame with an edge-avoiding a-trous filter of
+                                     the given number of iterations, e.g. 5
+            """;
+
+    public static void main(String[] args) throws Exception {
+        Path scenePath = null;
+        Path outDir = Path.of("frames");
+        Path spheresPath = null;
+        int width = 1200, height = 675, spp = 50, depth = 10, frames = 1;
+        int encoders = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        RenderMode mode = RenderMode.MEGAKERNEL;
+        float adaptiveThreshold = 0;
+        int budget = 0;
+        int denoiseIterations = 0;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--help")) {
+                    System.out.print(USAGE);
+                    return;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--scene" -> scenePath = Path.of(value);
+                    case "--out" -> outDir = Path.of(value);
+                    case "--spheres" -> spheresPath = Path.of(value);
+                    case "--width" -> width = positive(option, value);
+                    case "--height" -> height = positive(option, value);
+                    case "--spp" -> spp = positive(option, value);
+                    case "--depth" -> depth = positive(option, value);
+                    case "--frames" -> frames = positive(option, value);
+                    case "--encoders" -> encoders = positive(option, value);
+                    case "--backend" -> System.setProperty("raytracer.backend", value);
+                    case "--mode" -> mode = RenderMode.valueOf(value.toUpperCase());
+                    case "--adaptive" -> adaptiveThreshold = threshold(option, value);
+                    case "--budget" -> budget = positive(option, value);
+                    case "--denoise" -> denoiseIterations = positive(option, value);
+                    default -> throw new IllegalArgumentException("unknown option " + option);
+                }
+            }
+            if (scenePath == null) {
+                throw new IllegalArgumentException("no scene file given");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+
+        SceneFile sceneFile = SceneFile.read(scenePath);
+        CameraPath path = sceneFile.getCameraPath();
+        // Placed by the camera path before every frame
+        Camera camera = new Camera((double) width / height, sceneFile.getVfov(), sceneFile.getFocalLength(),
+                new Vector3(0, 0, 0), new Vector3(0, 0, -1));
+        Scene scene;
+        if (spheresPath != null) {
+            long start = System.nanoTime();
+            scene = SceneFormat.map(spheresPath, camera);
+            System.out.printf("Mapped %d spheres from %s in %.1f ms%n", scene.getSpheres().size(), spheresPath,
+                    (System.nanoTime() - start) / 1e6);
+        } else {
+            scene = new Scene(camera, sceneFile.getSpheres());
+        }
+        Files.createDirectories(outDir);
+
+        Renderer renderer = new Renderer(width, height);
+        renderer.setSamplesPrPixel(spp);
+        renderer.setMaxDepth(depth);
+        renderer.setRenderMode(mode);
+        if (adaptiveThreshold > 0) {
+            renderer.setAdaptiveSampling(true);
+            renderer.setAdaptiveThreshold(adaptiveThreshold);
+            renderer.setSampleBudget(budget);
+        }
+        if (denoiseIterations > 0) {
+            AtrousDenoiser denoiser = new AtrousDenoiser();
+            denoiser.setIterations(denoiseIterations);
+            renderer.setPostProcess(PostProcessPipeline.of(denoiser));
+        }
+        // Whole frames only, nobody looks at the tiles
+        renderer.setTileSize(0);
+        System.out.printf("Rendering %d frame(s) of %s at %dx%d, %d spp, depth %d on %s%n",
+                frames, scenePath, width, height, spp, depth, renderer.getBackend().getName());
+
+        ExecutorService encoderPool = Executors.newFixedThreadPool(encoders);
+        BlockingQueue<BufferedImage> freeImages = new ArrayBlockingQueue<>(encoders + 1);
+        for (int i = 0; i < encoders + 1; i++) {
+            freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        }
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        long batchStart = System.nanoTime();
+        double renderMillis = 0;
+        try {
+            for (int frame = 0; frame < frames; frame++) {
+                double time = frames == 1 ? path.getStartTime()
+                        : path.getStartTime() + (path.getEndTime() - path.getStartTime()) * frame / (frames - 1);
+                path.apply(camera, time);
+
+                long start = System.nanoTime();
+                renderer.render(scene);
+                double millis = (System.nanoTime() - start) / 1e6;
+                renderMillis += millis;
+                double mrays = renderer.getRaysPerSecond() / 1e6;
+                System.out.printf("frame %04d  t=%.3f  render %9.1f ms  %s%n", frame, time, millis,
+                        mrays < 0 ? "" : String.format("%.1f Mrays/s", mrays));
+
+                // The renderer overwrites its image with the next frame, so encode a copy
+                BufferedImage copy = freeImages.take();
+                int[] pixels = ((DataBufferInt) renderer.getImage().getRaster().getDataBuffer()).getData();
+                System.arraycopy(pixels, 0, ((DataBufferInt) copy.getRaster().getDataBuffer()).getData(), 0,
+                        width * height);
+                Path file = outDir.resolve(String.format("frame_%04d.png", frame));
+                int index = frame;
+                written.add(CompletableFuture.runAsync(() -> {
+                    long encodeStart = System.nanoTime();
+                    try {
+                        ImageIO.write(copy, "png", file.toFile());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Could not write " + file, e);
+                    } finally {
+                        freeImages.add(copy);
+                    }
+                    System.out.printf("frame %04d  written to %s in %.1f ms%n", index, file,
+                            (System.nanoTime() - encodeStart) / 1e6);
+                }, encoderPool));
+            }
+            CompletableFuture.allOf(written.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            encoderPool.shutdown();
+            renderer.release();
+        }
+        double seconds = (System.nanoTime() - batchStart) / 1e9;
+        System.out.printf("%d frame(s) in %.2f s, %.1f ms average render time, %.2f frames/s%n",
+                frames, seconds, renderMillis / frames, frames / seconds);
+    }
+
+    private static float threshold(String option, String value) {
+        float number;
+        try {
+            number = Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number, got '" + value + "'");
+        }
+        if (!(number > 0)) {
+            throw new IllegalArgumentException(option + " must be greater than 0");
+        }
+        return number;
+    }
+
+    private static int positive(String option, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number, got '" + value + "'");
+        }
+        if (number < 1) {
+            throw new IllegalArgumentException(option + " must be at least 1");
+        }
+        return number;
+    }
+}
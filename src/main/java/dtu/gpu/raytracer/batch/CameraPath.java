@@ -0,0 +1,80 @@
+package dtu.gpu.raytracer.batch;
+
+import dtu.gpu.raytracer.Camera;
+import dtu.gpu.raytracer.Vector3;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A camera animation given by keyframes of position and look-at point. In between the
+ * keyframes both points follow a Catmull-Rom spline, so the camera passes through every
+ * keyframe without sudden changes in direction; before the first and after the last
+ * keyframe the camera stands still.
+ */
+public class CameraPath {
+    public record Keyframe(double time, Vector3 position, Vector3 lookAt) {
+    }
+
+    private final List<Keyframe> keyframes = new ArrayList<>();
+
+    public void addKeyframe(double time, Vector3 position, Vector3 lookAt) {
+        keyframes.add(new Keyframe(time, position, lookAt));
+        keyframes.sort(Comparator.comparingDouble(Keyframe::time));
+    }
+
+    public boolean isEmpty() {
+        return keyframes.isEmpty();
+    }
+
+    public double getStartTime() {
+        return keyframes.get(0).time();
+    }
+
+    public double getEndTime() {
+        return keyframes.get(keyframes.size() - 1).time();
+    }
+
+    /**
+     * Moves the camera to where the path is at the given time.
+     */
+    public void apply(Camera camera, double time) {
+        if (keyframes.isEmpty()) {
+            throw new IllegalStateException("The camera path has no keyframes");
+        }
+        int last = keyframes.size() - 1;
+        if (time <= getStartTime() || last == 0) {
+            Keyframe first = keyframes.get(0);
+            camera.lookAt(first.position(), first.lookAt());
+            return;
+        }
+        if (time >= getEndTime()) {
+            Keyframe end = keyframes.get(last);
+            camera.lookAt(end.position(), end.lookAt());
+            return;
+        }
+        int i = 0;
+        while (keyframes.get(i + 1).time() <= time) {
+            i++;
+        }
+        Keyframe k0 = keyframes.get(Math.max(i - 1, 0));
+        Keyframe k1 = keyframes.get(i);
+        Keyframe k2 = keyframes.get(i + 1);
+        Keyframe k3 = keyframes.get(Math.min(i + 2, last));
+        double t = (time - k1.time()) / (k2.time() - k1.time());
+        camera.lookAt(catmullRom(k0.position(), k1.position(), k2.position(), k3.position(), t),
+                catmullRom(k0.lookAt(), k1.lookAt(), k2.lookAt(), k3.lookAt(), t));
+    }
+
+    /**
+     * The point at t in [0, 1] on the segment from p1 to p2 of a uniform Catmull-Rom spline
+     */
+    private static Vector3 catmullRom(Vector3 p0, Vector3 p1, Vector3 p2, Vector3 p3, double t) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        return p0.multiply(-0.5 * t3 + t2 - 0.5 * t)
+                .add(p1.multiply(1.5 * t3 - 2.5 * t2 + 1.0))
+                .add(p2.multiply(-1.5 * t3 + 2.0 * t2 + 0.5 * t))
+                .add(p3.multiply(0.5 * t3 - 0.5 * t2));
+    }
+}
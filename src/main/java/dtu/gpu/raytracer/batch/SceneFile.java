@@ -0,0 +1,127 @@
+package dtu.gpu.raytracer.batch;
+
+import dtu.gpu.raytracer.Vector3;
+import dtu.gpu.raytracer.scene.Material;
+import dtu.gpu.raytracer.scene.SphereStore;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A scene description for batch rendering. The file is plain text with one statement per
+ * line; blank lines and everything after a {@code #} are ignored:
+ * <pre>
+ * lens       &lt;vfov&gt; [focalLength]
+ * camera     &lt;px py pz&gt; &lt;lx ly lz&gt;               # a still camera, same as one keyframe
+ * keyframe   &lt;time&gt; &lt;px py pz&gt; &lt;lx ly lz&gt;        # camera position and look-at point
+ * lambertian &lt;cx cy cz&gt; &lt;radius&gt; &lt;r g b&gt;
+ * metal      &lt;cx cy cz&gt; &lt;radius&gt; &lt;r g b&gt; &lt;fuzz&gt;
+ * dielectric &lt;cx cy cz&gt; &lt;radius&gt; &lt;refractionIndex&gt;
+ * </pre>
+ */
+public class SceneFile {
+    private final SphereStore spheres = new SphereStore();
+    private final CameraPath cameraPath = new CameraPath();
+    private double vfov = 20.0;
+    private double focalLength = 1.0;
+
+    public static SceneFile read(Path file) throws IOException {
+        SceneFile scene = new SceneFile();
+        List<String> lines = Files.readAllLines(file);
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.strip();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                scene.parse(line.split("\\s+"));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + ":" + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (scene.cameraPath.isEmpty()) {
+            throw new IOException(file + ": no camera or keyframe given");
+        }
+        return scene;
+    }
+
+    private void parse(String[] tokens) {
+        switch (tokens[0]) {
+            case "lens" -> {
+                expect(tokens, 2, 3);
+                vfov = number(tokens[1]);
+                if (tokens.length == 3) {
+                    focalLength = number(tokens[2]);
+                }
+            }
+            case "camera" -> {
+                expect(tokens, 7, 7);
+                cameraPath.addKeyframe(0, vector(tokens, 1), vector(tokens, 4));
+            }
+            case "keyframe" -> {
+                expect(tokens, 8, 8);
+                cameraPath.addKeyframe(number(tokens[1]), vector(tokens, 2), vector(tokens, 5));
+            }
+            case "lambertian" -> {
+                expect(tokens, 8, 8);
+                addSphere(tokens, Material.lambertian(vector(tokens, 5)));
+            }
+            case "metal" -> {
+                expect(tokens, 9, 9);
+                addSphere(tokens, Material.metal(vector(tokens, 5), number(tokens[8])));
+            }
+            case "dielectric" -> {
+                expect(tokens, 6, 6);
+                addSphere(tokens, Material.dielectric(number(tokens[5])));
+            }
+            default -> throw new IllegalArgumentException("unknown statement '" + tokens[0] + "'");
+        }
+    }
+
+    private void addSphere(String[] tokens, Material material) {
+        Vector3 center = vector(tokens, 1);
+        spheres.add((float) center.getX(), (float) center.getY(), (float) center.getZ(), (float) number(tokens[4]),
+                material);
+    }
+
+    private static void expect(String[] tokens, int min, int max) {
+        if (tokens.length < min || tokens.length > max) {
+            throw new IllegalArgumentException("'" + tokens[0] + "' takes " + (min - 1)
+                    + (max > min ? " to " + (max - 1) : "") + " numbers, got " + (tokens.length - 1));
+        }
+    }
+
+    private static double number(String token) {
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a number: '" + token + "'");
+        }
+    }
+
+    private static Vector3 vector(String[] tokens, int start) {
+        return new Vector3(number(tokens[start]), number(tokens[start + 1]), number(tokens[start + 2]));
+    }
+
+    public SphereStore getSpheres() {
+        return spheres;
+    }
+
+    public CameraPath getCameraPath() {
+        return cameraPath;
+    }
+
+    public double getVfov() {
+        return vfov;
+    }
+
+    public double getFocalLength() {
+        return focalLength;
+    }
+}
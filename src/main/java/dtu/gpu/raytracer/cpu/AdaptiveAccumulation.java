@@ -0,0 +1,108 @@
+package dtu.gpu.raytracer.cpu;
+
+/**
+ * The per pixel state of adaptive sampling, the Java counterpart of the buffers of
+ * {@code AdaptiveSampler} and the kernels in adaptive.cl: the running mean of the samples
+ * of every pixel, the sum of their squared differences from the mean (M2), their count and
+ * the list of pixels that need more samples.
+ * <p>
+ * Each round traces a batch of samples for the pixels of the list and merges the batch
+ * statistics into the running ones; {@link #compact} then keeps only the pixels whose
+ * {@link #error error} is still above the threshold.
+ */
+final class AdaptiveAccumulation {
+    // Mean (r, g, b) and M2 (r, g, b) per pixel
+    float[] mean = new float[0];
+    float[] m2 = new float[0];
+    float[] count = new float[0];
+
+    // The pixels of the next round, the first activeCount entries are valid
+    int[] active = new int[0];
+    int activeCount;
+
+    // All samples traced since the last reset, counted against the budget
+    long samplesTraced;
+
+    int size() {
+        return count.length;
+    }
+
+    /**
+     * Clears all statistics and makes every pixel active.
+     */
+    void reset(int pixels) {
+        if (count.length != pixels) {
+            mean = new float[3 * pixels];
+            m2 = new float[3 * pixels];
+            count = new float[pixels];
+            active = new int[pixels];
+        }
+        for (int i = 0; i < pixels; i++) {
+            active[i] = i;
+        }
+        activeCount = pixels;
+        samplesTraced = 0;
+    }
+
+    /**
+     * Merges the statistics of a batch of n samples into those of the pixel (Chan et al.),
+     * or replaces them in the first round.
+     */
+    void merge(int pixel, boolean first, float n, PathTracer batch) {
+        int i = 3 * pixel;
+        if (first) {
+            mean[i] = batch.meanR;
+            mean[i + 1] = batch.meanG;
+            mean[i + 2] = batch.meanB;
+            m2[i] = batch.m2R;
+            m2[i + 1] = batch.m2G;
+            m2[i + 2] = batch.m2B;
+            count[pixel] = n;
+            return;
+        }
+        float na = count[pixel];
+        float total = na + n;
+        float dR = batch.meanR - mean[i], dG = batch.meanG - mean[i + 1], dB = batch.meanB - mean[i + 2];
+        float weight = n / total;
+        float cross = na * n / total;
+        mean[i] += dR * weight;
+        mean[i + 1] += dG * weight;
+        mean[i + 2] += dB * weight;
+        m2[i] += batch.m2R + dR * dR * cross;
+        m2[i + 1] += batch.m2G + dG * dG * cross;
+        m2[i + 2] += batch.m2B + dB * dB * cross;
+        count[pixel] = total;
+    }
+
+    /**
+     * Port of adaptive_compact: rebuilds the list from the pixels with fewer than maxSamples
+     * samples whose error is above the threshold, and returns their number.
+     */
+    int compact(float threshold, int maxSamples) {
+        int n = 0;
+        for (int p = 0; p < count.length; p++) {
+            if (count[p] < maxSamples && error(p) > threshold) {
+                active[n++] = p;
+            }
+        }
+        activeCount = n;
+        return n;
+    }
+
+    /**
+     * Port of pixel_error: how far one standard error of the mean moves the pixel on screen,
+     * i.e. after clamping and gamma correction. Pixels with fewer than two samples have no
+     * estimate and count as not converged.
+     */
+    float error(int pixel) {
+        float n = count[pixel];
+        if (n < 2.0f) {
+            return Float.MAX_VALUE;
+        }
+        int i = 3 * pixel;
+        float variance = (m2[i] + m2[i + 1] + m2[i + 2]) / (3.0f * (n - 1.0f));
+        float stdError = (float) Math.sqrt(variance / n);
+        float brightness = Math.max(0.0f, (mean[i] + mean[i + 1] + mean[i + 2]) / 3.0f);
+        return (float) (Math.sqrt(Math.min(brightness + stdError, 1.0f)) - Math.sqrt(Math.min(brightness, 1.0f)));
+    }
+}
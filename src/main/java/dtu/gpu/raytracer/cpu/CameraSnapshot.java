@@ -0,0 +1,33 @@
+package dtu.gpu.raytracer.cpu;
+
+import dtu.gpu.raytracer.Camera;
+import dtu.gpu.raytracer.Vector3;
+
+/**
+ * The camera parameters of one frame, rounded to float just like the kernel arguments.
+ */
+final class CameraSnapshot {
+    final float originX, originY, originZ;
+    final float lowerLeftX, lowerLeftY, lowerLeftZ;
+    final float horizontalX, horizontalY, horizontalZ;
+    final float verticalX, verticalY, verticalZ;
+
+    CameraSnapshot(Camera.View camera) {
+        Vector3 origin = camera.origin();
+        Vector3 lowerLeftCorner = camera.lowerLeftCorner();
+        Vector3 horizontal = camera.horizontal();
+        Vector3 vertical = camera.vertical();
+        originX = (float) origin.getX();
+        originY = (float) origin.getY();
+        originZ = (float) origin.getZ();
+        lowerLeftX = (float) lowerLeftCorner.getX();
+        lowerLeftY = (float) lowerLeftCorner.getY();
+        lowerLeftZ = (float) lowerLeftCorner.getZ();
+        horizontalX = (float) horizontal.getX();
+        horizontalY = (float) horizontal.getY();
+        horizontalZ = (float) horizontal.getZ();
+        verticalX = (float) vertical.getX();
+        verticalY = (float) vertical.getY();
+        verticalZ = (float) vertical.getZ();
+    }
+}
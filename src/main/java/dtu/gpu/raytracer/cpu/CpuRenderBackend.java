@@ -0,0 +1,430 @@
+package dtu.gpu.raytracer.cpu;
+
+import dtu.gpu.raytracer.RenderBackend;
+import dtu.gpu.raytracer.RenderSettings;
+import dtu.gpu.raytracer.Tile;
+import dtu.gpu.raytracer.TileListener;
+import dtu.gpu.raytracer.post.LinearFrame;
+import dtu.gpu.raytracer.scene.MaterialTable;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.SphereStore;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pure Java render backend for machines without a usable OpenCL device.
+ * The tiles of a pass are rendered one after another; each is split further into small
+ * blocks which are traced in parallel on a work-stealing {@link ForkJoinPool}, each block
+ * by its own {@link PathTracer}.
+ * <p>
+ * With adaptive sampling every pass is a round over the pixels still in the
+ * {@link AdaptiveAccumulation}'s list, split into chunks for the pool the same way.
+ */
+public class CpuRenderBackend implements RenderBackend {
+    private static final int BLOCK_SIZE = 32;
+
+    // Pixels of the active list traced by one task in adaptive rounds
+    private static final int ADAPTIVE_CHUNK = 256;
+
+    private final ForkJoinPool pool;
+
+    // The snapshot is only rebuilt when the scene changes, not when just the camera moves
+    private Scene snapshotScene;
+    private long snapshotVersion;
+    private SceneSnapshot snapshot;
+
+    // Running sum of all samples per pixel (r, g, b) since the last pass 0
+    private float[] accumulation = new float[0];
+    private int accumulatedSamples;
+
+    private volatile boolean cancelled;
+
+    private long raysTraced = -1;
+
+    private final AdaptiveAccumulation adaptive = new AdaptiveAccumulation();
+    private long activePixels = -1;
+
+    // First hit albedo (r, g, b), normal (x, y, z) and depth per pixel, written on pass 0 if
+    // the settings ask for them, see LinearFrame
+    private final Aux aux = new Aux();
+
+    /**
+     * Create a CPU backend that uses all available processors
+     */
+    public CpuRenderBackend() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CpuRenderBackend(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    @Override
+    public boolean render(Scene scene, RenderSettings settings, int pass, int samples, int[] pixels,
+                          TileListener listener) {
+        if (snapshot == null || scene != snapshotScene || scene.getVersion() != snapshotVersion) {
+            snapshot = new SceneSnapshot(scene);
+            snapshotScene = scene;
+            snapshotVersion = scene.getVersion();
+        }
+        CameraSnapshot camera = new CameraSnapshot(scene.getCamera().getView());
+        if (settings.isDebug()) {
+            printDebugInfo(snapshot);
+        }
+        if (pass == 0) {
+            aux.prepare(settings);
+        }
+        if (settings.isAdaptiveSampling()) {
+            return renderAdaptive(camera, settings, pass, samples, pixels, listener);
+        }
+        activePixels = -1;
+        int numPixels = settings.getWidth() * settings.getHeight();
+        if (accumulation.length != numPixels * 3) {
+            accumulation = new float[numPixels * 3];
+            aux.prepare(settings);
+            pass = 0;
+        }
+        accumulatedSamples = (pass == 0) ? samples : accumulatedSamples + samples;
+        Pass work = new Pass(snapshot, camera, settings, pass, samples, accumulatedSamples, accumulation, pixels,
+                pass == 0 && aux.written ? aux : null);
+        for (Tile tile : Tile.cover(settings.getWidth(), settings.getHeight(),
+                settings.getTileSize(), settings.isCenterOutTiles())) {
+            if (cancelled) {
+                return false;
+            }
+            int blocksX = (tile.getWidth() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int blocksY = (tile.getHeight() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            pool.invoke(new BlockTask(work, tile, blocksX, 0, blocksX * blocksY));
+            if (listener != null) {
+                listener.tileFinished(tile, pixels);
+            }
+        }
+        raysTraced = work.rays.sum();
+        return true;
+    }
+
+    /**
+     * One round of adaptive sampling: pass 0 traces every pixel, later passes the pixels
+     * left active by the previous round, within the sample budget. The pixels of the round
+     * are written into the image, then the list is compacted for the next one.
+     */
+    private boolean renderAdaptive(CameraSnapshot camera, RenderSettings settings, int pass, int samples,
+                                   int[] pixels, TileListener listener) {
+        int numPixels = settings.getWidth() * settings.getHeight();
+        if (pass == 0 || adaptive.size() != numPixels) {
+            adaptive.reset(numPixels);
+            aux.prepare(settings);
+            pass = 0;
+        }
+        int maxSamples = settings.getSamplesPrPixel();
+        int roundPixels = adaptive.activeCount;
+        int roundSamples = samples;
+        if (pass > 0) {
+            // Spread what is left of the budget over the active pixels
+            long remaining = settings.getTotalSampleBudget() - adaptive.samplesTraced;
+            roundSamples = remaining <= 0 ? 0 : (int) Math.min(samples, Math.max(1, remaining / Math.max(1, roundPixels)));
+            roundPixels = roundSamples == 0 ? 0 : (int) Math.min(roundPixels, remaining / roundSamples);
+        }
+        Round work = new Round(snapshot, camera, settings, pass, roundSamples, maxSamples, adaptive, pixels,
+                pass == 0 && aux.written ? aux : null);
+        int chunk = Math.max(ADAPTIVE_CHUNK, settings.getTileSize() * settings.getTileSize());
+        for (int from = 0; from < roundPixels; from += chunk) {
+            if (cancelled) {
+                return false;
+            }
+            int to = Math.min(roundPixels, from + chunk);
+            pool.invoke(new AdaptiveTask(work, from, to));
+        }
+        adaptive.samplesTraced += work.samplesTraced.sum();
+        boolean budgetLeft = adaptive.samplesTraced < settings.getTotalSampleBudget();
+        activePixels = budgetLeft ? adaptive.compact(settings.getAdaptiveThreshold(), maxSamples) : 0;
+        raysTraced = work.rays.sum();
+        if (listener != null) {
+            listener.tileFinished(new Tile(0, 0, settings.getWidth(), settings.getHeight()), pixels);
+        }
+        return true;
+    }
+
+    @Override
+    public long getRaysTraced() {
+        return raysTraced;
+    }
+
+    @Override
+    public long getActivePixels() {
+        return activePixels;
+    }
+
+    @Override
+    public boolean readFrame(RenderSettings settings, LinearFrame frame) {
+        int numPixels = settings.getWidth() * settings.getHeight();
+        boolean adaptiveFrame = activePixels >= 0;
+        if (adaptiveFrame ? adaptive.size() != numPixels : accumulation.length != 3 * numPixels || accumulatedSamples == 0) {
+            return false;
+        }
+        frame.resize(settings.getWidth(), settings.getHeight());
+        float[] color = frame.getColor();
+        if (adaptiveFrame) {
+            System.arraycopy(adaptive.mean, 0, color, 0, 3 * numPixels);
+        } else {
+            float scale = 1.0f / (float) accumulatedSamples;
+            for (int i = 0; i < 3 * numPixels; i++) {
+                color[i] = accumulation[i] * scale;
+            }
+        }
+        frame.setAux(aux.written && aux.depth.length == numPixels);
+        if (frame.hasAux()) {
+            System.arraycopy(aux.albedo, 0, frame.getAlbedo(), 0, 3 * numPixels);
+            System.arraycopy(aux.normal, 0, frame.getNormal(), 0, 3 * numPixels);
+            System.arraycopy(aux.depth, 0, frame.getDepth(), 0, numPixels);
+        }
+        return true;
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void resetCancel() {
+        cancelled = false;
+    }
+
+    private static void printDebugInfo(SceneSnapshot s) {
+        System.out.printf("Received %d spheres%n", s.numSpheres);
+        for (int i = 0; i < s.numSpheres && i < 5; i++) {
+            int g = i * SphereStore.GEOMETRY_STRIDE;
+            System.out.printf("Sphere[%d]: Center=(%f, %f, %f), Radius=%f, MatIdx=%d%n",
+                    i, s.geometry[g + SphereStore.CENTER_X], s.geometry[g + SphereStore.CENTER_Y],
+                    s.geometry[g + SphereStore.CENTER_Z], s.geometry[g + SphereStore.RADIUS],
+                    Float.floatToRawIntBits(s.materials[s.materialIds[i] * MaterialTable.STRIDE + MaterialTable.TYPE]));
+        }
+    }
+
+    /**
+     * The auxiliary buffers of the last pass 0
+     */
+    private static final class Aux {
+        float[] albedo = new float[0];
+        float[] normal = new float[0];
+        float[] depth = new float[0];
+        boolean written;
+
+        /**
+         * Called on pass 0: makes room for the image if the settings ask for the buffers
+         */
+        void prepare(RenderSettings settings) {
+            int numPixels = settings.getWidth() * settings.getHeight();
+            written = settings.isAuxBuffers();
+            if (written && depth.length != numPixels) {
+                albedo = new float[3 * numPixels];
+                normal = new float[3 * numPixels];
+                depth = new float[numPixels];
+            }
+        }
+
+        void write(int pixel, PathTracer tracer) {
+            int i = 3 * pixel;
+            albedo[i] = tracer.auxAlbedoR;
+            albedo[i + 1] = tracer.auxAlbedoG;
+            albedo[i + 2] = tracer.auxAlbedoB;
+            normal[i] = tracer.auxNormalX;
+            normal[i + 1] = tracer.auxNormalY;
+            normal[i + 2] = tracer.auxNormalZ;
+            depth[pixel] = tracer.auxDepth;
+        }
+    }
+
+    /**
+     * Everything the tiles of one pass share
+     */
+    private static final class Pass {
+        final SceneSnapshot scene;
+        final CameraSnapshot camera;
+        final int width, height, maxDepth;
+        final int pass, samples, totalSamples;
+        final float[] accumulation;
+        final int[] pixels;
+        // Null unless this pass writes the auxiliary buffers
+        final Aux aux;
+        final LongAdder rays = new LongAdder();
+
+        Pass(SceneSnapshot scene, CameraSnapshot camera, RenderSettings settings, int pass, int samples,
+             int totalSamples, float[] accumulation, int[] pixels, Aux aux) {
+            this.scene = scene;
+            this.camera = camera;
+            this.width = settings.getWidth();
+            this.height = settings.getHeight();
+            this.maxDepth = settings.getMaxDepth();
+            this.pass = pass;
+            this.samples = samples;
+            this.totalSamples = totalSamples;
+            this.accumulation = accumulation;
+            this.pixels = pixels;
+            this.aux = aux;
+        }
+    }
+
+    /**
+     * Renders the blocks [start, end) of a tile, splitting the range in half until a single
+     * block is left.
+     */
+    // Fork join tasks are never serialized
+    @SuppressWarnings("serial")
+    private static final class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Pass work;
+        private final Tile tile;
+        private final int blocksX, start, end;
+
+        BlockTask(Pass work, Tile tile, int blocksX, int start, int end) {
+            this.work = work;
+            this.tile = tile;
+            this.blocksX = blocksX;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new BlockTask(work, tile, blocksX, start, mid), new BlockTask(work, tile, blocksX, mid, end));
+                return;
+            }
+            int width = work.width;
+            int x0 = tile.getX() + (start % blocksX) * BLOCK_SIZE;
+            int y0 = tile.getY() + (start / blocksX) * BLOCK_SIZE;
+            int x1 = Math.min(x0 + BLOCK_SIZE, tile.getX() + tile.getWidth());
+            int y1 = Math.min(y0 + BLOCK_SIZE, tile.getY() + tile.getHeight());
+            float[] accumulation = work.accumulation;
+            float scale = 1.0f / (float) work.totalSamples;
+
+            PathTracer tracer = new PathTracer(work.scene, work.camera);
+            for (int y = y0; y < y1; y++) {
+                for (int x = x0; x < x1; x++) {
+                    tracer.traceSamples(x, y, width, work.height, work.pass, work.samples, work.maxDepth);
+                    int i = y * width + x;
+                    if (work.pass == 0) {
+                        accumulation[3 * i] = tracer.sumR;
+                        accumulation[3 * i + 1] = tracer.sumG;
+                        accumulation[3 * i + 2] = tracer.sumB;
+                    } else {
+                        accumulation[3 * i] += tracer.sumR;
+                        accumulation[3 * i + 1] += tracer.sumG;
+                        accumulation[3 * i + 2] += tracer.sumB;
+                    }
+                    work.pixels[i] = PathTracer.writeColor(accumulation[3 * i] * scale,
+                            accumulation[3 * i + 1] * scale, accumulation[3 * i + 2] * scale);
+                    if (work.aux != null) {
+                        tracer.traceAux(x, y, width, work.height);
+                        work.aux.write(i, tracer);
+                    }
+                }
+            }
+            work.rays.add(tracer.raysTraced);
+        }
+    }
+
+    /**
+     * Everything the chunks of one adaptive round share
+     */
+    private static final class Round {
+        final SceneSnapshot scene;
+        final CameraSnapshot camera;
+        final int width, height, maxDepth;
+        final int round, samples, maxSamples;
+        final AdaptiveAccumulation stats;
+        final int[] pixels;
+        // Null unless this round writes the auxiliary buffers
+        final Aux aux;
+        final LongAdder rays = new LongAdder();
+        final LongAdder samplesTraced = new LongAdder();
+
+        Round(SceneSnapshot scene, CameraSnapshot camera, RenderSettings settings, int round, int samples,
+              int maxSamples, AdaptiveAccumulation stats, int[] pixels, Aux aux) {
+            this.scene = scene;
+            this.camera = camera;
+            this.width = settings.getWidth();
+            this.height = settings.getHeight();
+            this.maxDepth = settings.getMaxDepth();
+            this.round = round;
+            this.samples = samples;
+            this.maxSamples = maxSamples;
+            this.stats = stats;
+            this.pixels = pixels;
+            this.aux = aux;
+        }
+    }
+
+    /**
+     * Traces the entries [start, end) of the active list, splitting the range in half until
+     * at most {@link #ADAPTIVE_CHUNK} pixels are left.
+     */
+    // Fork join tasks are never serialized
+    @SuppressWarnings("serial")
+    private static final class AdaptiveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Round work;
+        private final int start, end;
+
+        AdaptiveTask(Round work, int start, int end) {
+            this.work = work;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > ADAPTIVE_CHUNK) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new AdaptiveTask(work, start, mid), new AdaptiveTask(work, mid, end));
+                return;
+            }
+            AdaptiveAccumulation stats = work.stats;
+            boolean first = work.round == 0;
+            PathTracer tracer = new PathTracer(work.scene, work.camera);
+            long traced = 0;
+            for (int i = start; i < end; i++) {
+                int pixel = stats.active[i];
+                // No pixel gets more than maxSamples in total
+                int samples = first ? work.samples
+                        : Math.min(work.samples, work.maxSamples - (int) stats.count[pixel]);
+                tracer.traceSampleStats(pixel % work.width, pixel / work.width, work.width, work.height,
+                        work.round, samples, work.maxDepth);
+                stats.merge(pixel, first, samples, tracer);
+                traced += samples;
+                int m = 3 * pixel;
+                work.pixels[pixel] = PathTracer.writeColor(stats.mean[m], stats.mean[m + 1], stats.mean[m + 2]);
+                if (work.aux != null) {
+                    tracer.traceAux(pixel % work.width, pixel / work.width, work.width, work.height);
+                    work.aux.write(pixel, tracer);
+                }
+            }
+            work.rays.add(tracer.raysTraced);
+            work.samplesTraced.add(traced);
+        }
+    }
+
+    @Override
+    public void resize(int width, int height) {
+        accumulation = new float[width * height * 3];
+        accumulatedSamples = 0;
+    }
+
+    @Override
+    public String getName() {
+        return "CPU (" + pool.getParallelism() + " threads)";
+    }
+
+    @Override
+    public void release() {
+        snapshot = null;
+        snapshotScene = null;
+        pool.shutdown();
+    }
+}
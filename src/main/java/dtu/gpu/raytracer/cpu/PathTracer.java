@@ -0,0 +1,586 @@
+package dtu.gpu.raytracer.cpu;
+
+import dtu.gpu.raytracer.scene.Bvh;
+import dtu.gpu.raytracer.scene.MaterialTable;
+import dtu.gpu.raytracer.scene.SphereStore;
+
+/**
+ * A single threaded Java port of the {@code raytrace} kernel (raytracer.cl) together with
+ * {@code ray_color}, {@code hit_scene}, {@code hit_sphere} and {@code scatter}.
+ * <p>
+ * The port performs the same single precision operations in the same order and draws from
+ * the same MWC64X random number stream, so a pixel traced here follows the same path as
+ * on the device (up to the rounding differences allowed by {@code -cl-fast-relaxed-math}).
+ * All intermediate state lives in fields so that tracing does not allocate; an instance
+ * must therefore only be used by one thread at a time.
+ */
+final class PathTracer {
+    private static final float INFINITY = Float.MAX_VALUE;
+    private static final long MWC64X_A = 4294883355L;
+
+    private static final int LAMBERTIAN = 0;
+    private static final int METAL = 1;
+    private static final int DIELECTRIC = 2;
+
+    // Like AUX_SPECULAR_BOUNCES and AUX_MAX_FUZZ in aux.cl
+    private static final int AUX_SPECULAR_BOUNCES = 4;
+    private static final float AUX_MAX_FUZZ = 0.5f;
+
+    // Must be at least Bvh.MAX_DEPTH, like BVH_STACK_SIZE in bvh.cl
+    private static final int BVH_STACK_SIZE = 64;
+
+    private final SceneSnapshot scene;
+    private final CameraSnapshot camera;
+    private final int[] stack = new int[BVH_STACK_SIZE];
+
+    // MWC64X random number generator state
+    private int rngX, rngC;
+
+    // The ray currently being traced
+    private float originX, originY, originZ;
+    private float dirX, dirY, dirZ;
+
+    // The closest hit found by hitScene
+    private int hitSphere;
+    private float hitPX, hitPY, hitPZ;
+    private float normalX, normalY, normalZ;
+    private boolean frontFace;
+
+    // Attenuation produced by scatter
+    private float attenuationR, attenuationG, attenuationB;
+
+    // Result of randomUnitVector
+    private float unitX, unitY, unitZ;
+
+    // Result of rayColor
+    private float colorR, colorG, colorB;
+
+    // Result of traceSamples
+    float sumR, sumG, sumB;
+
+    // Result of traceSampleStats: mean and sum of squared differences from the mean
+    float meanR, meanG, meanB;
+    float m2R, m2G, m2B;
+
+    // Result of traceAux
+    float auxAlbedoR, auxAlbedoG, auxAlbedoB;
+    float auxNormalX, auxNormalY, auxNormalZ;
+    float auxDepth;
+
+    // Number of rays intersected with the scene so far
+    long raysTraced;
+
+    // Inverse ray direction for the slab tests
+    private float invDirX, invDirY, invDirZ;
+
+    PathTracer(SceneSnapshot scene, CameraSnapshot camera) {
+        this.scene = scene;
+        this.camera = camera;
+    }
+
+    /**
+     * Traces {@code samples} samples of one pixel for the given progressive pass and stores
+     * their (not yet averaged) sum in sumR/sumG/sumB.
+     */
+    void traceSamples(int x, int y, int imageWidth, int imageHeight, int pass, int samples, int maxDepth) {
+        // Initialize MWC64X state per pixel and pass
+        seed(x + y * imageWidth, pass);
+
+        float pixelR = 0.0f, pixelG = 0.0f, pixelB = 0.0f;
+        for (int s = 0; s < samples; s++) {
+            traceSample(x, y, imageWidth, imageHeight, maxDepth);
+            pixelR += colorR;
+            pixelG += colorG;
+            pixelB += colorB;
+        }
+        sumR = pixelR;
+        sumG = pixelG;
+        sumB = pixelB;
+    }
+
+    /**
+     * Port of adaptive_sample (adaptive.cl): traces {@code samples} samples of one pixel for
+     * the given round of adaptive sampling and stores their mean in meanR/meanG/meanB and the
+     * sum of their squared differences from it in m2R/m2G/m2B, updated sample by sample
+     * (Welford's algorithm).
+     */
+    void traceSampleStats(int x, int y, int imageWidth, int imageHeight, int round, int samples, int maxDepth) {
+        seed(x + y * imageWidth, round);
+
+        float n = 0.0f;
+        float mR = 0.0f, mG = 0.0f, mB = 0.0f;
+        float sR = 0.0f, sG = 0.0f, sB = 0.0f;
+        for (int s = 0; s < samples; s++) {
+            traceSample(x, y, imageWidth, imageHeight, maxDepth);
+            n += 1.0f;
+            float dR = colorR - mR, dG = colorG - mG, dB = colorB - mB;
+            mR += dR / n;
+            mG += dG / n;
+            mB += dB / n;
+            sR += dR * (colorR - mR);
+            sG += dG * (colorG - mG);
+            sB += dB * (colorB - mB);
+        }
+        meanR = mR;
+        meanG = mG;
+        meanB = mB;
+        m2R = sR;
+        m2G = sG;
+        m2B = sB;
+    }
+
+    /**
+     * Port of store_aux (aux.cl): averages {@link #firstHit} over a fixed 2x2 grid of rays
+     * through the pixel, so edges in the auxiliary buffers are anti-aliased like the samples.
+     * The depth is the mean over the rays that hit a surface, -1 if none did. None of these
+     * rays are counted in raysTraced, and no random numbers are drawn.
+     */
+    void traceAux(int x, int y, int imageWidth, int imageHeight) {
+        float albedoR = 0.0f, albedoG = 0.0f, albedoB = 0.0f;
+        float nX = 0.0f, nY = 0.0f, nZ = 0.0f;
+        float depthSum = 0.0f;
+        int hits = 0;
+        for (int i = 0; i < 4; i++) {
+            firstHit(x + ((i & 1) == 0 ? -0.25f : 0.25f), y + (i < 2 ? -0.25f : 0.25f), imageWidth, imageHeight);
+            albedoR += auxAlbedoR;
+            albedoG += auxAlbedoG;
+            albedoB += auxAlbedoB;
+            nX += auxNormalX;
+            nY += auxNormalY;
+            nZ += auxNormalZ;
+            if (auxDepth >= 0.0f) {
+                depthSum += auxDepth;
+                hits++;
+            }
+        }
+        setAux(0.25f * albedoR, 0.25f * albedoG, 0.25f * albedoB, 0.25f * nX, 0.25f * nY, 0.25f * nZ,
+                hits == 0 ? -1.0f : depthSum / hits);
+    }
+
+    /**
+     * Port of first_hit (aux.cl): follows a camera ray to the first surface that is not a
+     * mirror or glass and stores its albedo, normal and distance in the aux fields. Mirror-like
+     * metals (fuzz below {@link #AUX_MAX_FUZZ}) and dielectrics are passed through along their
+     * more likely direction, at most {@link #AUX_SPECULAR_BOUNCES} times, so what they show
+     * keeps its edges; the albedo is the product along the way. Rays that end in the sky get
+     * the sky color, a zero normal and depth -1.
+     */
+    private void firstHit(float px, float py, int imageWidth, int imageHeight) {
+        float u = px / (imageWidth - 1);
+        float v = ((float) imageHeight - 1.0f - py) / (imageHeight - 1);
+        originX = camera.originX;
+        originY = camera.originY;
+        originZ = camera.originZ;
+        dirX = camera.lowerLeftX + u * camera.horizontalX + v * camera.verticalX - camera.originX;
+        dirY = camera.lowerLeftY + u * camera.horizontalY + v * camera.verticalY - camera.originY;
+        dirZ = camera.lowerLeftZ + u * camera.horizontalZ + v * camera.verticalZ - camera.originZ;
+
+        float throughputR = 1.0f, throughputG = 1.0f, throughputB = 1.0f;
+        float distance = 0.0f;
+        for (int bounce = 0; ; bounce++) {
+            if (!hitScene(0.001f, INFINITY)) {
+                float invLength = 1.0f / length(dirX, dirY, dirZ);
+                float t = 0.5f * (dirY * invLength + 1.0f);
+                setAux(throughputR * ((1.0f - t) + t * 0.5f), throughputG * ((1.0f - t) + t * 0.7f),
+                        throughputB * ((1.0f - t) + t * 1.0f), 0.0f, 0.0f, 0.0f, -1.0f);
+                return;
+            }
+            distance += length(hitPX - originX, hitPY - originY, hitPZ - originZ);
+            float[] materials = scene.materials;
+            int m = scene.materialIds[hitSphere] * MaterialTable.STRIDE;
+            int type = Float.floatToRawIntBits(materials[m + MaterialTable.TYPE]);
+            boolean mirror = type == METAL && materials[m + MaterialTable.FUZZ] < AUX_MAX_FUZZ;
+            if (bounce == AUX_SPECULAR_BOUNCES || !(mirror || type == DIELECTRIC)) {
+                boolean white = type == DIELECTRIC;
+                setAux(throughputR * (white ? 1.0f : materials[m + MaterialTable.ALBEDO_R]),
+                        throughputG * (white ? 1.0f : materials[m + MaterialTable.ALBEDO_G]),
+                        throughputB * (white ? 1.0f : materials[m + MaterialTable.ALBEDO_B]),
+                        normalX, normalY, normalZ, distance);
+                return;
+            }
+            float invLength = 1.0f / length(dirX, dirY, dirZ);
+            float inX = dirX * invLength, inY = dirY * invLength, inZ = dirZ * invLength;
+            float cosTheta = Math.min(-inX * normalX + -inY * normalY + -inZ * normalZ, 1.0f);
+            boolean reflect = true;
+            if (type == DIELECTRIC) {
+                float refIdx = materials[m + MaterialTable.REF_IDX];
+                float eta = frontFace ? (1.0f / refIdx) : refIdx;
+                float sinTheta = (float) Math.sqrt(1.0f - cosTheta * cosTheta);
+                reflect = eta * sinTheta > 1.0f || reflectance(cosTheta, eta) > 0.5f;
+                if (!reflect) {
+                    float perpX = eta * (inX + cosTheta * normalX);
+                    float perpY = eta * (inY + cosTheta * normalY);
+                    float perpZ = eta * (inZ + cosTheta * normalZ);
+                    float parallel = -(float) Math.sqrt(Math.abs(1.0f - (perpX * perpX + perpY * perpY + perpZ * perpZ)));
+                    setRay(perpX + parallel * normalX, perpY + parallel * normalY, perpZ + parallel * normalZ);
+                }
+            } else {
+                throughputR *= materials[m + MaterialTable.ALBEDO_R];
+                throughputG *= materials[m + MaterialTable.ALBEDO_G];
+                throughputB *= materials[m + MaterialTable.ALBEDO_B];
+            }
+            if (reflect) {
+                float k = -2.0f * cosTheta;
+                setRay(inX - k * normalX, inY - k * normalY, inZ - k * normalZ);
+            }
+        }
+    }
+
+    private void setAux(float albedoR, float albedoG, float albedoB, float nX, float nY, float nZ, float depth) {
+        auxAlbedoR = albedoR;
+        auxAlbedoG = albedoG;
+        auxAlbedoB = albedoB;
+        auxNormalX = nX;
+        auxNormalY = nY;
+        auxNormalZ = nZ;
+        auxDepth = depth;
+    }
+
+    /**
+     * Traces one jittered camera ray through the pixel and leaves its color in colorR/G/B.
+     */
+    private void traceSample(int x, int y, int imageWidth, int imageHeight, int maxDepth) {
+        float offsetU = randomFloat() - 0.5f;
+        float offsetV = randomFloat() - 0.5f;
+        float u = ((float) x + offsetU) / (imageWidth - 1);
+        float v = (((float) imageHeight - 1.0f - y) + offsetV) / (imageHeight - 1);
+
+        originX = camera.originX;
+        originY = camera.originY;
+        originZ = camera.originZ;
+        dirX = camera.lowerLeftX + u * camera.horizontalX + v * camera.verticalX - camera.originX;
+        dirY = camera.lowerLeftY + u * camera.horizontalY + v * camera.verticalY - camera.originY;
+        dirZ = camera.lowerLeftZ + u * camera.horizontalZ + v * camera.verticalZ - camera.originZ;
+
+        rayColor(maxDepth);
+    }
+
+    /**
+     * Port of ray_color: follows the current ray for up to maxDepth bounces.
+     */
+    private void rayColor(int maxDepth) {
+        float accR = 1.0f, accG = 1.0f, accB = 1.0f;
+        for (int depth = 0; depth < maxDepth; depth++) {
+            raysTraced++;
+            if (hitScene(0.001f, INFINITY)) {
+                if (scatter()) {
+                    accR *= attenuationR;
+                    accG *= attenuationG;
+                    accB *= attenuationB;
+                } else {
+                    setColor(0.0f, 0.0f, 0.0f);
+                    return;
+                }
+            } else {
+                float invLength = 1.0f / length(dirX, dirY, dirZ);
+                float t = 0.5f * (dirY * invLength + 1.0f);
+                setColor(accR * ((1.0f - t) + t * 0.5f),
+                        accG * ((1.0f - t) + t * 0.7f),
+                        accB * ((1.0f - t) + t * 1.0f));
+                return;
+            }
+        }
+        setColor(0.0f, 0.0f, 0.0f);
+    }
+
+    /**
+     * Port of hit_scene: finds the closest sphere hit in (tMin, tMax) by walking the BVH
+     * front to back, exactly like the kernel.
+     */
+    private boolean hitScene(float tMin, float tMax) {
+        if (scene.numSpheres == 0) {
+            return false;
+        }
+        float[] nodes = scene.bvhNodes;
+        int[] primIndices = scene.bvhPrimIndices;
+        int closestPrim = -1;
+        float closestSoFar = tMax;
+        invDirX = safeInverse(dirX);
+        invDirY = safeInverse(dirY);
+        invDirZ = safeInverse(dirZ);
+
+        if (intersectNode(0, tMin, closestSoFar) == INFINITY) {
+            return false;
+        }
+
+        int stackSize = 0;
+        int node = 0;
+        while (true) {
+            int base = node * Bvh.FLOATS_PER_NODE;
+            int count = Float.floatToRawIntBits(nodes[base + 7]);
+            if (count > 0) {
+                int first = Float.floatToRawIntBits(nodes[base + 3]);
+                for (int i = first; i < first + count; i++) {
+                    float t = hitSphere(primIndices[i], tMin, closestSoFar);
+                    if (t >= 0.0f) {
+                        closestPrim = primIndices[i];
+                        closestSoFar = t;
+                    }
+                }
+                if (stackSize == 0)
+                    break;
+                node = stack[--stackSize];
+                continue;
+            }
+
+            // Visit the nearer child first and defer the other one
+            int nearChild = Float.floatToRawIntBits(nodes[base + 3]);
+            int farChild = nearChild + 1;
+            float tNear = intersectNode(nearChild, tMin, closestSoFar);
+            float tFar = intersectNode(farChild, tMin, closestSoFar);
+            if (tFar < tNear) {
+                int tmpChild = nearChild; nearChild = farChild; farChild = tmpChild;
+                float tmpT = tNear; tNear = tFar; tFar = tmpT;
+            }
+            if (tNear == INFINITY) {
+                if (stackSize == 0)
+                    break;
+                node = stack[--stackSize];
+            } else {
+                node = nearChild;
+                if (tFar != INFINITY)
+                    stack[stackSize++] = farChild;
+            }
+        }
+        if (closestPrim < 0) {
+            return false;
+        }
+        setHitRecord(closestPrim, closestSoFar);
+        return true;
+    }
+
+    /**
+     * Port of bvh_intersect_node: returns the entry distance into the node's bounds,
+     * or INFINITY if the current ray misses them within [tMin, tMax].
+     */
+    private float intersectNode(int node, float tMin, float tMax) {
+        float[] nodes = scene.bvhNodes;
+        int base = node * Bvh.FLOATS_PER_NODE;
+        float t0x = (nodes[base] - originX) * invDirX;
+        float t0y = (nodes[base + 1] - originY) * invDirY;
+        float t0z = (nodes[base + 2] - originZ) * invDirZ;
+        float t1x = (nodes[base + 4] - originX) * invDirX;
+        float t1y = (nodes[base + 5] - originY) * invDirY;
+        float t1z = (nodes[base + 6] - originZ) * invDirZ;
+        float tEnter = Math.max(Math.max(Math.min(t0x, t1x), Math.min(t0y, t1y)), Math.max(Math.min(t0z, t1z), tMin));
+        float tExit = Math.min(Math.min(Math.max(t0x, t1x), Math.max(t0y, t1y)), Math.min(Math.max(t0z, t1z), tMax));
+        return (tEnter <= tExit) ? tEnter : INFINITY;
+    }
+
+    // Port of bvh_safe_inverse: 1/d without infinities
+    private static float safeInverse(float d) {
+        return 1.0f / (Math.abs(d) < 1e-20f ? Math.copySign(1e-20f, d) : d);
+    }
+
+    /**
+     * Port of hit_sphere: returns the distance to the sphere within (tMin, tMax), or -1.
+     * Only the geometry record is read; the hit record is filled for the closest hit alone.
+     */
+    private float hitSphere(int i, float tMin, float tMax) {
+        float[] geometry = scene.geometry;
+        int g = i * SphereStore.GEOMETRY_STRIDE;
+        float radius = geometry[g + SphereStore.RADIUS];
+        float ocX = geometry[g + SphereStore.CENTER_X] - originX;
+        float ocY = geometry[g + SphereStore.CENTER_Y] - originY;
+        float ocZ = geometry[g + SphereStore.CENTER_Z] - originZ;
+        float a = dirX * dirX + dirY * dirY + dirZ * dirZ;
+        float h = dirX * ocX + dirY * ocY + dirZ * ocZ;
+        float c = ocX * ocX + ocY * ocY + ocZ * ocZ - radius * radius;
+        float discriminant = h * h - a * c;
+        if (discriminant < 0.0f)
+            return -1.0f;
+        float sqrtd = (float) Math.sqrt(discriminant);
+        float root = (h - sqrtd) / a;
+        if (!(tMin < root && root < tMax)) {
+            root = (h + sqrtd) / a;
+            if (!(tMin < root && root < tMax))
+                return -1.0f;
+        }
+        return root;
+    }
+
+    /**
+     * Port of sphere_hit_record: the hit point and normal of the closest hit.
+     */
+    private void setHitRecord(int i, float t) {
+        float[] geometry = scene.geometry;
+        int g = i * SphereStore.GEOMETRY_STRIDE;
+        float radius = geometry[g + SphereStore.RADIUS];
+        hitSphere = i;
+        hitPX = originX + t * dirX;
+        hitPY = originY + t * dirY;
+        hitPZ = originZ + t * dirZ;
+        float outwardX = (hitPX - geometry[g + SphereStore.CENTER_X]) / radius;
+        float outwardY = (hitPY - geometry[g + SphereStore.CENTER_Y]) / radius;
+        float outwardZ = (hitPZ - geometry[g + SphereStore.CENTER_Z]) / radius;
+        frontFace = dirX * outwardX + dirY * outwardY + dirZ * outwardZ < 0.0f;
+        normalX = frontFace ? outwardX : -outwardX;
+        normalY = frontFace ? outwardY : -outwardY;
+        normalZ = frontFace ? outwardZ : -outwardZ;
+    }
+
+    /**
+     * Port of scatter (including load_material) for the material of the last hit.
+     * Replaces the current ray with the scattered one.
+     */
+    private boolean scatter() {
+        float[] materials = scene.materials;
+        int m = scene.materialIds[hitSphere] * MaterialTable.STRIDE;
+        int type = Float.floatToRawIntBits(materials[m + MaterialTable.TYPE]);
+        if (type == METAL) {
+            float invLength = 1.0f / length(dirX, dirY, dirZ);
+            float inX = dirX * invLength, inY = dirY * invLength, inZ = dirZ * invLength;
+            float k = 2.0f * (inX * normalX + inY * normalY + inZ * normalZ);
+            float reflectedX = inX - k * normalX;
+            float reflectedY = inY - k * normalY;
+            float reflectedZ = inZ - k * normalZ;
+            randomUnitVector();
+            float fuzz = materials[m + MaterialTable.FUZZ];
+            setRay(reflectedX + fuzz * unitX, reflectedY + fuzz * unitY, reflectedZ + fuzz * unitZ);
+            attenuationR = materials[m + MaterialTable.ALBEDO_R];
+            attenuationG = materials[m + MaterialTable.ALBEDO_G];
+            attenuationB = materials[m + MaterialTable.ALBEDO_B];
+            return dirX * normalX + dirY * normalY + dirZ * normalZ > 0;
+        } else if (type == DIELECTRIC) {
+            attenuationR = 1.0f;
+            attenuationG = 1.0f;
+            attenuationB = 1.0f;
+            float refIdx = materials[m + MaterialTable.REF_IDX];
+            float eta = frontFace ? (1.0f / refIdx) : refIdx;
+            float invLength = 1.0f / length(dirX, dirY, dirZ);
+            float inX = dirX * invLength, inY = dirY * invLength, inZ = dirZ * invLength;
+            float cosTheta = Math.min(-inX * normalX + -inY * normalY + -inZ * normalZ, 1.0f);
+            float sinTheta = (float) Math.sqrt(1.0f - cosTheta * cosTheta);
+
+            boolean cannotRefract = eta * sinTheta > 1.0f;
+            if (cannotRefract || reflectance(cosTheta, eta) > randomFloat()) {
+                float k = 2.0f * (inX * normalX + inY * normalY + inZ * normalZ);
+                setRay(inX - k * normalX, inY - k * normalY, inZ - k * normalZ);
+            } else {
+                float perpX = eta * (inX + cosTheta * normalX);
+                float perpY = eta * (inY + cosTheta * normalY);
+                float perpZ = eta * (inZ + cosTheta * normalZ);
+                float parallel = -(float) Math.sqrt(Math.abs(1.0f - (perpX * perpX + perpY * perpY + perpZ * perpZ)));
+                setRay(perpX + parallel * normalX, perpY + parallel * normalY, perpZ + parallel * normalZ);
+            }
+            return true;
+        } else {
+            // Lambertian, also used for unknown material indices
+            randomUnitVector();
+            float scatterX = normalX + unitX;
+            float scatterY = normalY + unitY;
+            float scatterZ = normalZ + unitZ;
+            if (length(scatterX, scatterY, scatterZ) < 1e-6) {
+                // Avoid zero direction
+                scatterX = normalX;
+                scatterY = normalY;
+                scatterZ = normalZ;
+            }
+            setRay(scatterX, scatterY, scatterZ);
+            attenuationR = materials[m + MaterialTable.ALBEDO_R];
+            attenuationG = materials[m + MaterialTable.ALBEDO_G];
+            attenuationB = materials[m + MaterialTable.ALBEDO_B];
+            return true;
+        }
+    }
+
+    // Schlick's approximation for reflectance
+    private static float reflectance(float cosine, float refractionIndex) {
+        float r0 = (1.0f - refractionIndex) / (1.0f + refractionIndex);
+        r0 = r0 * r0;
+        return r0 + (1.0f - r0) * (float) Math.pow(1.0f - cosine, 5.0f);
+    }
+
+    // Starts a new ray at the last hit point
+    private void setRay(float x, float y, float z) {
+        originX = hitPX;
+        originY = hitPY;
+        originZ = hitPZ;
+        dirX = x;
+        dirY = y;
+        dirZ = z;
+    }
+
+    private void setColor(float r, float g, float b) {
+        colorR = r;
+        colorG = g;
+        colorB = b;
+    }
+
+    private static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Port of rng_seed: pass 0 gives the original per-pixel seeding, later passes change the carry.
+     */
+    private void seed(int pixelIndex, int pass) {
+        int carry = 0xCAFEBABE ^ (pass * 0x9E3779B9);
+        if (Integer.compareUnsigned(carry, (int) MWC64X_A) >= 0) {
+            // keep the carry below the multiplier
+            carry -= (int) MWC64X_A;
+        }
+        rngX = pixelIndex + 1;
+        rngC = carry;
+    }
+
+    /**
+     * Port of MWC64X: returns the next 32 bit value (interpreted as unsigned).
+     */
+    private int nextUint() {
+        int x = rngX, c = rngC;
+        int res = x ^ c;
+        // The product of two 32 bit values fits in 64 bits; only the bit pattern matters
+        long product = (x & 0xFFFFFFFFL) * MWC64X_A;
+        int hi = (int) (product >>> 32);
+        x = (int) product + c;
+        c = hi + (Integer.compareUnsigned(x, c) < 0 ? 1 : 0);
+        rngX = x;
+        rngC = c;
+        return res;
+    }
+
+    // A float in [0,1) using the full 32 bit range
+    private float randomFloat() {
+        return (float) (nextUint() & 0xFFFFFFFFL) / 4294967296.0f;
+    }
+
+    private float randomFloatRange(float min, float max) {
+        return min + (max - min) * randomFloat();
+    }
+
+    // Rejection samples a unit vector into unitX/Y/Z
+    private void randomUnitVector() {
+        float px, py, pz, lensq;
+        do {
+            px = randomFloatRange(-1.0f, 1.0f);
+            py = randomFloatRange(-1.0f, 1.0f);
+            pz = randomFloatRange(-1.0f, 1.0f);
+            lensq = px * px + py * py + pz * pz;
+        } while (lensq <= 1e-6f || lensq > 1.0f);
+        float len = (float) Math.sqrt(lensq);
+        unitX = px / len;
+        unitY = py / len;
+        unitZ = pz / len;
+    }
+
+    /**
+     * Port of write_color: clamps, gamma corrects and packs a linear color.
+     */
+    static int writeColor(float r, float g, float b) {
+        int ir = (int) (256.0f * linearToGamma(clamp(r)));
+        int ig = (int) (256.0f * linearToGamma(clamp(g)));
+        int ib = (int) (256.0f * linearToGamma(clamp(b)));
+        return (ir << 16) | (ig << 8) | ib;
+    }
+
+    private static float clamp(float x) {
+        if (x < 0.000f) return 0.000f;
+        if (x > 0.999f) return 0.999f;
+        return x;
+    }
+
+    private static float linearToGamma(float linearComponent) {
+        return (linearComponent > 0) ? (float) Math.sqrt(linearComponent) : 0.0f;
+    }
+}
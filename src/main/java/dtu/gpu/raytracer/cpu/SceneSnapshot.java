@@ -0,0 +1,40 @@
+package dtu.gpu.raytracer.cpu;
+
+import dtu.gpu.raytracer.scene.Bvh;
+import dtu.gpu.raytracer.scene.MaterialTable;
+import dtu.gpu.raytracer.scene.Scene;
+import dtu.gpu.raytracer.scene.SphereStore;
+import java.util.Arrays;
+
+/**
+ * An immutable, single precision copy of the spheres of a scene, laid out the same way
+ * as the arrays the OpenCL kernel receives, together with their BVH.
+ */
+final class SceneSnapshot {
+    final int numSpheres;
+    // Packed geometry, SphereStore.GEOMETRY_STRIDE floats per sphere
+    final float[] geometry;
+    final int[] materialIds;
+    // The material table, MaterialTable.STRIDE floats per material
+    final float[] materials;
+
+    // The BVH over the spheres, flattened the same way as for the device
+    final float[] bvhNodes;
+    final int[] bvhPrimIndices;
+
+    SceneSnapshot(Scene scene) {
+        // The store already has the kernel layout, a bulk copy of each array is all it takes
+        SphereStore spheres = scene.getSphereStore();
+        numSpheres = spheres.size();
+        geometry = new float[numSpheres * SphereStore.GEOMETRY_STRIDE];
+        spheres.getGeometryBuffer().get(0, geometry);
+        materialIds = new int[numSpheres];
+        spheres.getMaterialIdBuffer().get(0, materialIds);
+        MaterialTable table = spheres.getMaterials();
+        materials = Arrays.copyOf(table.getRecords(), table.size() * MaterialTable.STRIDE);
+
+        Bvh bvh = Bvh.build(geometry, numSpheres);
+        bvhNodes = bvh.getNodes();
+        bvhPrimIndices = bvh.getPrimitiveIndices();
+    }
+}
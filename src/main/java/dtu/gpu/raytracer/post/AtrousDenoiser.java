@@ -0,0 +1,168 @@
+package dtu.gpu.raytracer.post;
+
+import java.util.stream.IntStream;
+
+/**
+ * Edge-avoiding à-trous wavelet filter (Dammertz et al., "Edge-Avoiding À-Trous Wavelet
+ * Transform for fast Global Illumination Filtering", 2010), the Java port of denoise.cl.
+ * <p>
+ * The colors are first divided by the albedo of the first hit, so only the lighting is
+ * smoothed and textures stay sharp. Each iteration then blurs with a 5x5 B3 spline whose taps
+ * are spread 2^i pixels apart, so five iterations cover a 125x125 pixel footprint with 25
+ * taps each. Every tap is weighted down by how much its color, normal and depth differ from
+ * those of the center pixel, which keeps edges; the color tolerance halves every iteration.
+ * Without auxiliary buffers only the colors stop the filter.
+ * <p>
+ * The settings can be changed between passes. An instance keeps scratch buffers and must
+ * only be used by one thread at a time.
+ */
+public final class AtrousDenoiser implements PostProcess {
+    // B3 spline weights for the offsets 0, ±1 and ±2 step widths
+    private static final float[] KERNEL = { 3.0f / 8.0f, 1.0f / 4.0f, 1.0f / 16.0f };
+
+    // Albedo channels below this are not divided out, they would only amplify noise
+    private static final float MIN_ALBEDO = 0.01f;
+
+    private int iterations = 5;
+    private float sigmaColor = 0.3f;
+    private float sigmaNormal = 0.5f;
+    private float sigmaDepth = 0.2f;
+
+    // Ping-pong buffers of the demodulated colors
+    private float[] front = new float[0];
+    private float[] back = new float[0];
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Number of filter iterations, the footprint doubles with each one
+     */
+    public void setIterations(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("iterations must be at least 1");
+        }
+        this.iterations = iterations;
+    }
+
+    public float getSigmaColor() {
+        return sigmaColor;
+    }
+
+    /**
+     * Tolerance for color differences in the first iteration, in linear units of the lighting
+     */
+    public void setSigmaColor(float sigmaColor) {
+        this.sigmaColor = sigmaColor;
+    }
+
+    public float getSigmaNormal() {
+        return sigmaNormal;
+    }
+
+    /**
+     * Tolerance for the distance between unit normals
+     */
+    public void setSigmaNormal(float sigmaNormal) {
+        this.sigmaNormal = sigmaNormal;
+    }
+
+    public float getSigmaDepth() {
+        return sigmaDepth;
+    }
+
+    /**
+     * Tolerance for depth differences, relative to the depth of the center pixel and per
+     * step width
+     */
+    public void setSigmaDepth(float sigmaDepth) {
+        this.sigmaDepth = sigmaDepth;
+    }
+
+    @Override
+    public void apply(LinearFrame frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int pixels = width * height;
+        if (front.length != 3 * pixels) {
+            front = new float[3 * pixels];
+            back = new float[3 * pixels];
+        }
+        float[] color = frame.getColor();
+        float[] albedo = frame.getAlbedo();
+        boolean aux = frame.hasAux();
+        for (int i = 0; i < 3 * pixels; i++) {
+            front[i] = aux ? color[i] / demodulation(albedo[i]) : color[i];
+        }
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            int step = 1 << iteration;
+            float sigma = sigmaColor / step;
+            float[] in = front, out = back;
+            IntStream.range(0, height).parallel().forEach(
+                    y -> filterRow(in, out, frame, y, step, sigma));
+            back = front;
+            front = out;
+        }
+        for (int i = 0; i < 3 * pixels; i++) {
+            color[i] = aux ? front[i] * demodulation(albedo[i]) : front[i];
+        }
+    }
+
+    /**
+     * Port of denoise_atrous for one row of pixels
+     */
+    private void filterRow(float[] in, float[] out, LinearFrame frame, int y, int step, float sigma) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        boolean aux = frame.hasAux();
+        float[] normal = frame.getNormal();
+        float[] depth = frame.getDepth();
+        float invColor = 1.0f / (sigma * sigma + 1e-10f);
+        float invNormal = 1.0f / (sigmaNormal * sigmaNormal);
+        float invDepth = 1.0f / (sigmaDepth * sigmaDepth * step * step);
+        for (int x = 0; x < width; x++) {
+            int p = y * width + x;
+            float cR = in[3 * p], cG = in[3 * p + 1], cB = in[3 * p + 2];
+            float nX = normal[3 * p], nY = normal[3 * p + 1], nZ = normal[3 * p + 2];
+            float z = depth[p];
+            float sumR = 0.0f, sumG = 0.0f, sumB = 0.0f, weights = 0.0f;
+            for (int dy = -2; dy <= 2; dy++) {
+                int qy = Math.min(Math.max(y + dy * step, 0), height - 1);
+                for (int dx = -2; dx <= 2; dx++) {
+                    int qx = Math.min(Math.max(x + dx * step, 0), width - 1);
+                    int q = qy * width + qx;
+                    float qR = in[3 * q], qG = in[3 * q + 1], qB = in[3 * q + 2];
+                    float dR = qR - cR, dG = qG - cG, dB = qB - cB;
+                    float exponent = (dR * dR + dG * dG + dB * dB) * invColor;
+                    if (aux) {
+                        float zq = depth[q];
+                        // Surfaces and sky are never mixed
+                        if ((z < 0.0f) != (zq < 0.0f)) {
+                            continue;
+                        }
+                        float dnX = normal[3 * q] - nX, dnY = normal[3 * q + 1] - nY, dnZ = normal[3 * q + 2] - nZ;
+                        exponent += (dnX * dnX + dnY * dnY + dnZ * dnZ) * invNormal;
+                        if (z >= 0.0f) {
+                            float dz = (zq - z) / Math.max(z, 1e-3f);
+                            exponent += dz * dz * invDepth;
+                        }
+                    }
+                    float w = KERNEL[Math.abs(dx)] * KERNEL[Math.abs(dy)] * (float) Math.exp(-exponent);
+                    sumR += w * qR;
+                    sumG += w * qG;
+                    sumB += w * qB;
+                    weights += w;
+                }
+            }
+            // The center tap always has a weight
+            out[3 * p] = sumR / weights;
+            out[3 * p + 1] = sumG / weights;
+            out[3 * p + 2] = sumB / weights;
+        }
+    }
+
+    private static float demodulation(float albedo) {
+        return albedo > MIN_ALBEDO ? albedo : 1.0f;
+    }
+}
@@ -0,0 +1,97 @@
+package dtu.gpu.raytracer.post;
+
+/**
+ * A completed pass on the host, as input and output of the {@link PostProcess} stages: the
+ * linear (not yet gamma corrected) mean color of every pixel, and the auxiliary buffers
+ * written from the first hit of a ray through the pixel center.
+ * <p>
+ * All arrays are stored row by row starting with the top row. The auxiliary buffers are
+ * only meaningful if {@link #hasAux()}; backends that cannot write them leave them alone.
+ */
+public final class LinearFrame {
+    private int width, height;
+
+    // Linear color (r, g, b) per pixel
+    private float[] color = new float[0];
+    // Albedo (r, g, b) of the first hit, the sky color for rays that hit nothing
+    private float[] albedo = new float[0];
+    // World space normal (x, y, z) of the first hit, 0 for misses
+    private float[] normal = new float[0];
+    // Distance to the first hit, -1 for misses
+    private float[] depth = new float[0];
+    private boolean aux;
+
+    /**
+     * Makes room for an image of the given size. The contents are undefined afterwards if
+     * the size changed.
+     */
+    public void resize(int width, int height) {
+        int pixels = width * height;
+        if (depth.length != pixels) {
+            color = new float[3 * pixels];
+            albedo = new float[3 * pixels];
+            normal = new float[3 * pixels];
+            depth = new float[pixels];
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float[] getColor() {
+        return color;
+    }
+
+    public float[] getAlbedo() {
+        return albedo;
+    }
+
+    public float[] getNormal() {
+        return normal;
+    }
+
+    public float[] getDepth() {
+        return depth;
+    }
+
+    /**
+     * True if the auxiliary buffers were written for this frame
+     */
+    public boolean hasAux() {
+        return aux;
+    }
+
+    public void setAux(boolean aux) {
+        this.aux = aux;
+    }
+
+    /**
+     * Writes the colors into the pixel array as 0xRRGGBB, clamped and gamma corrected like
+     * write_color in color.cl.
+     */
+    public void writePixels(int[] pixels) {
+        for (int i = 0; i < width * height; i++) {
+            int r = (int) (256.0f * linearToGamma(clamp(color[3 * i])));
+            int g = (int) (256.0f * linearToGamma(clamp(color[3 * i + 1])));
+            int b = (int) (256.0f * linearToGamma(clamp(color[3 * i + 2])));
+            pixels[i] = (r << 16) | (g << 8) | b;
+        }
+    }
+
+    private static float clamp(float x) {
+        if (x < 0.000f) return 0.000f;
+        if (x > 0.999f) return 0.999f;
+        return x;
+    }
+
+    private static float linearToGamma(float linearComponent) {
+        return (linearComponent > 0) ? (float) Math.sqrt(linearComponent) : 0.0f;
+    }
+}
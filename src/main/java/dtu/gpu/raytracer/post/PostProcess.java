@@ -0,0 +1,13 @@
+package dtu.gpu.raytracer.post;
+
+/**
+ * A stage of a {@link PostProcessPipeline}, applied to every completed pass before it is
+ * shown. Stages work on the linear colors of a {@link LinearFrame} in place.
+ * <p>
+ * This is the host implementation of a stage; a backend may run stages it knows on the
+ * device instead, see {@code RenderBackend.postProcess}.
+ */
+public interface PostProcess {
+
+    void apply(LinearFrame frame);
+}
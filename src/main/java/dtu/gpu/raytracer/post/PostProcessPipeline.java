@@ -0,0 +1,54 @@
+package dtu.gpu.raytracer.post;
+
+import java.util.List;
+
+/**
+ * The post-processing stages the {@link dtu.gpu.raytracer.Renderer} applies to every
+ * completed pass, in order. A pipeline is immutable; the stages themselves may have settings
+ * that can be changed between passes.
+ */
+public final class PostProcessPipeline {
+    public static final PostProcessPipeline NONE = new PostProcessPipeline(List.of());
+
+    private final List<PostProcess> stages;
+
+    private PostProcessPipeline(List<PostProcess> stages) {
+        this.stages = stages;
+    }
+
+    public static PostProcessPipeline of(PostProcess... stages) {
+        return new PostProcessPipeline(List.of(stages));
+    }
+
+    /**
+     * A pipeline with a single {@link AtrousDenoiser} with its default settings
+     */
+    public static PostProcessPipeline denoise() {
+        return of(new AtrousDenoiser());
+    }
+
+    public List<PostProcess> getStages() {
+        return stages;
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * True if every stage is an {@link AtrousDenoiser}, so the whole pipeline can run on a
+     * device that implements the filter
+     */
+    public boolean isDenoiseOnly() {
+        return !stages.isEmpty() && stages.stream().allMatch(AtrousDenoiser.class::isInstance);
+    }
+
+    /**
+     * Applies all stages to the frame on the host.
+     */
+    public void apply(LinearFrame frame) {
+        for (PostProcess stage : stages) {
+            stage.apply(frame);
+        }
+    }
+}
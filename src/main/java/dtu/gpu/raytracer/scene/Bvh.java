@@ -0,0 +1,333 @@
+package dtu.gpu.raytracer.scene;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over spheres, built on the host with a binned surface area
+ * heuristic and flattened into the node array the raytrace kernel walks (see bvh.cl).
+ * <p>
+ * Every node takes two float4 (8 floats): {@code (min.x, min.y, min.z, leftOrFirst)} and
+ * {@code (max.x, max.y, max.z, count)}, where the two integers are stored as raw float bits.
+ * A node with {@code count > 0} is a leaf covering the primitive indices
+ * {@code [leftOrFirst, leftOrFirst + count)}; otherwise its children are the adjacent nodes
+ * {@code leftOrFirst} and {@code leftOrFirst + 1}. Node 0 is the root.
+ */
+public final class Bvh {
+    public static final int FLOATS_PER_NODE = 8;
+
+    /**
+     * The deepest a tree can get. This must not exceed BVH_STACK_SIZE in bvh.cl.
+     */
+    public static final int MAX_DEPTH = 64;
+
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 4;
+    private static final float TRAVERSAL_COST = 1.0f;
+    private static final float INTERSECTION_COST = 1.0f;
+
+    /**
+     * From this depth on, splits fall back to the object median, which keeps the tree
+     * below {@link #MAX_DEPTH} for any primitive count that fits in an int.
+     */
+    private static final int SAH_DEPTH_LIMIT = 32;
+
+    // Packed sphere geometry, SphereStore.GEOMETRY_STRIDE floats per sphere
+    private final float[] geometry;
+    private final int[] primitiveIndices;
+    private float[] nodes;
+    private int nodeCount;
+
+    // Scratch space for the binned SAH sweep
+    private final int[] binCount = new int[BINS];
+    private final float[] binBounds = new float[BINS * 6];
+    private final float[] rightArea = new float[BINS];
+    private final int[] rightCount = new int[BINS];
+    private final float[] sweepBounds = new float[6];
+    private int lastBestSplit;
+
+    private Bvh(float[] geometry, int count) {
+        this.geometry = geometry;
+        this.primitiveIndices = new int[count];
+        for (int i = 0; i < count; i++) {
+            primitiveIndices[i] = i;
+        }
+        this.nodes = new float[FLOATS_PER_NODE * Math.max(1, Math.min(2 * count, 1 << 16))];
+    }
+
+    public static Bvh build(Scene scene) {
+        return build(scene.getSphereStore());
+    }
+
+    public static Bvh build(SphereStore spheres) {
+        // The build reads every record many times, so a mapped store is read into an array
+        // for it instead of moving the store itself to the heap
+        FloatBuffer geometry = spheres.getGeometryBuffer();
+        if (geometry.hasArray()) {
+            return build(geometry.array(), spheres.size());
+        }
+        float[] records = new float[spheres.size() * SphereStore.GEOMETRY_STRIDE];
+        geometry.get(0, records);
+        return build(records, spheres.size());
+    }
+
+    /**
+     * Builds a BVH over the first {@code count} spheres of packed geometry records
+     * (center x, y, z and radius, see {@link SphereStore}).
+     * An empty scene yields a single leaf without primitives.
+     */
+    public static Bvh build(float[] geometry, int count) {
+        Bvh bvh = new Bvh(geometry, count);
+        bvh.allocateNode();
+        if (count == 0) {
+            bvh.setLeaf(0, 0, 0);
+        } else {
+            bvh.subdivide(0, 0, count, 0);
+        }
+        bvh.nodes = Arrays.copyOf(bvh.nodes, bvh.nodeCount * FLOATS_PER_NODE);
+        return bvh;
+    }
+
+    /**
+     * Returns the flattened nodes, {@link #FLOATS_PER_NODE} floats per node
+     */
+    public float[] getNodes() {
+        return nodes;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the sphere indices in leaf order
+     */
+    public int[] getPrimitiveIndices() {
+        return primitiveIndices;
+    }
+
+    private int allocateNode() {
+        if ((nodeCount + 1) * FLOATS_PER_NODE > nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+        }
+        return nodeCount++;
+    }
+
+    private void setLeaf(int node, int first, int count) {
+        nodes[node * FLOATS_PER_NODE + 3] = Float.intBitsToFloat(first);
+        nodes[node * FLOATS_PER_NODE + 7] = Float.intBitsToFloat(count);
+    }
+
+    private void subdivide(int node, int start, int end, int depth) {
+        // Bounds of the spheres and of their centers
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        float[] centroidMin = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] centroidMax = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = start; i < end; i++) {
+            int g = primitiveIndices[i] * SphereStore.GEOMETRY_STRIDE;
+            float cx = geometry[g], cy = geometry[g + 1], cz = geometry[g + 2], r = geometry[g + 3];
+            minX = Math.min(minX, cx - r);
+            minY = Math.min(minY, cy - r);
+            minZ = Math.min(minZ, cz - r);
+            maxX = Math.max(maxX, cx + r);
+            maxY = Math.max(maxY, cy + r);
+            maxZ = Math.max(maxZ, cz + r);
+            for (int axis = 0; axis < 3; axis++) {
+                float c = geometry[g + axis];
+                centroidMin[axis] = Math.min(centroidMin[axis], c);
+                centroidMax[axis] = Math.max(centroidMax[axis], c);
+            }
+        }
+        int base = node * FLOATS_PER_NODE;
+        nodes[base] = minX;
+        nodes[base + 1] = minY;
+        nodes[base + 2] = minZ;
+        nodes[base + 4] = maxX;
+        nodes[base + 5] = maxY;
+        nodes[base + 6] = maxZ;
+
+        int count = end - start;
+        if (count <= 1) {
+            setLeaf(node, start, count);
+            return;
+        }
+
+        int mid = -1;
+        if (depth < SAH_DEPTH_LIMIT) {
+            float parentArea = halfArea(maxX - minX, maxY - minY, maxZ - minZ);
+            float leafCost = INTERSECTION_COST * count * parentArea;
+            float bestCost = Float.MAX_VALUE;
+            int bestAxis = -1, bestSplit = -1;
+            for (int axis = 0; axis < 3; axis++) {
+                float cost = findBestSplit(start, end, axis, centroidMin[axis], centroidMax[axis]);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = lastBestSplit;
+                }
+            }
+            if ((bestAxis >= 0 && TRAVERSAL_COST * parentArea + bestCost < leafCost) || count > MAX_LEAF_SIZE) {
+                if (bestAxis >= 0) {
+                    mid = partition(start, end, bestAxis, bestSplit, centroidMin[bestAxis], centroidMax[bestAxis]);
+                }
+            } else {
+                setLeaf(node, start, count);
+                return;
+            }
+        } else if (count <= MAX_LEAF_SIZE) {
+            setLeaf(node, start, count);
+            return;
+        }
+        if (mid <= start || mid >= end) {
+            // No usable SAH split: split at the object median along the widest centroid axis
+            int axis = 0;
+            for (int a = 1; a < 3; a++) {
+                if (centroidMax[a] - centroidMin[a] > centroidMax[axis] - centroidMin[axis]) {
+                    axis = a;
+                }
+            }
+            mid = (start + end) >>> 1;
+            select(start, end, mid, axis);
+        }
+
+        int left = allocateNode();
+        allocateNode();
+        nodes[base + 3] = Float.intBitsToFloat(left);
+        nodes[base + 7] = Float.intBitsToFloat(0);
+        subdivide(left, start, mid, depth + 1);
+        subdivide(left + 1, mid, end, depth + 1);
+    }
+
+    /**
+     * Bins the centroids along one axis and returns the lowest SAH cost (without the
+     * traversal term) of splitting between two bins, storing that bin in lastBestSplit.
+     * Returns Float.MAX_VALUE if the centroids do not spread along the axis.
+     */
+    private float findBestSplit(int start, int end, int axis, float cMin, float cMax) {
+        float extent = cMax - cMin;
+        if (!(extent > 0.0f)) {
+            return Float.MAX_VALUE;
+        }
+        float scale = BINS / extent;
+        Arrays.fill(binCount, 0);
+        for (int b = 0; b < BINS; b++) {
+            resetBounds(binBounds, b * 6);
+        }
+        for (int i = start; i < end; i++) {
+            int p = primitiveIndices[i];
+            int b = Math.min(BINS - 1, (int) ((centroid(p, axis) - cMin) * scale));
+            binCount[b]++;
+            int g = p * SphereStore.GEOMETRY_STRIDE;
+            float cx = geometry[g], cy = geometry[g + 1], cz = geometry[g + 2], r = geometry[g + 3];
+            growBounds(binBounds, b * 6, cx - r, cy - r, cz - r, cx + r, cy + r, cz + r);
+        }
+
+        // Sweep from the right to get the area and count right of each split plane
+        float[] bounds = sweepBounds;
+        resetBounds(bounds, 0);
+        int count = 0;
+        for (int b = BINS - 1; b > 0; b--) {
+            count += binCount[b];
+            mergeBounds(bounds, binBounds, b * 6);
+            rightCount[b] = count;
+            rightArea[b] = count > 0 ? halfArea(bounds) : 0.0f;
+        }
+
+        // Sweep from the left and evaluate the split after every bin
+        resetBounds(bounds, 0);
+        count = 0;
+        float bestCost = Float.MAX_VALUE;
+        for (int b = 0; b < BINS - 1; b++) {
+            count += binCount[b];
+            mergeBounds(bounds, binBounds, b * 6);
+            if (count == 0 || rightCount[b + 1] == 0) {
+                continue;
+            }
+            float cost = INTERSECTION_COST * (halfArea(bounds) * count + rightArea[b + 1] * rightCount[b + 1]);
+            if (cost < bestCost) {
+                bestCost = cost;
+                lastBestSplit = b + 1;
+            }
+        }
+        return bestCost;
+    }
+
+    /**
+     * Moves the primitives whose centroid falls in a bin below splitBin to the front.
+     */
+    private int partition(int start, int end, int axis, int splitBin, float cMin, float cMax) {
+        float scale = BINS / (cMax - cMin);
+        int i = start, j = end - 1;
+        while (i <= j) {
+            int p = primitiveIndices[i];
+            int b = Math.min(BINS - 1, (int) ((centroid(p, axis) - cMin) * scale));
+            if (b < splitBin) {
+                i++;
+            } else {
+                primitiveIndices[i] = primitiveIndices[j];
+                primitiveIndices[j--] = p;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Quickselect: reorders [start, end) so the primitive at k has the k-th smallest centroid
+     * along the axis, with smaller ones before it and larger ones after.
+     */
+    private void select(int start, int end, int k, int axis) {
+        int lo = start, hi = end - 1;
+        while (lo < hi) {
+            float pivot = centroid(primitiveIndices[(lo + hi) >>> 1], axis);
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (centroid(primitiveIndices[i], axis) < pivot) i++;
+                while (centroid(primitiveIndices[j], axis) > pivot) j--;
+                if (i <= j) {
+                    int tmp = primitiveIndices[i];
+                    primitiveIndices[i++] = primitiveIndices[j];
+                    primitiveIndices[j--] = tmp;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private float centroid(int p, int axis) {
+        return geometry[p * SphereStore.GEOMETRY_STRIDE + axis];
+    }
+
+    private static float halfArea(float dx, float dy, float dz) {
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private static float halfArea(float[] b) {
+        return halfArea(b[3] - b[0], b[4] - b[1], b[5] - b[2]);
+    }
+
+    private static void resetBounds(float[] b, int o) {
+        b[o] = b[o + 1] = b[o + 2] = Float.MAX_VALUE;
+        b[o + 3] = b[o + 4] = b[o + 5] = -Float.MAX_VALUE;
+    }
+
+    private static void growBounds(float[] b, int o, float minX, float minY, float minZ,
+                                   float maxX, float maxY, float maxZ) {
+        b[o] = Math.min(b[o], minX);
+        b[o + 1] = Math.min(b[o + 1], minY);
+        b[o + 2] = Math.min(b[o + 2], minZ);
+        b[o + 3] = Math.max(b[o + 3], maxX);
+        b[o + 4] = Math.max(b[o + 4], maxY);
+        b[o + 5] = Math.max(b[o + 5], maxZ);
+    }
+
+    private static void mergeBounds(float[] b, float[] other, int o) {
+        growBounds(b, 0, other[o], other[o + 1], other[o + 2], other[o + 3], other[o + 4], other[o + 5]);
+    }
+}
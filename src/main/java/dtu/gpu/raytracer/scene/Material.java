@@ -0,0 +1,125 @@
+package dtu.gpu.raytracer.scene;
+
+import dtu.gpu.raytracer.Vector3;
+
+/**
+ * An immutable material, shared by any number of spheres through its id in the
+ * {@link MaterialTable} of the scene.
+ * <p>
+ * Values are kept in single precision, as the kernels see them, and the parameters a type
+ * does not use are cleared (like {@code materialFromIndex} used to do on every hit), so two
+ * materials that render the same are also equal and end up as one table entry.
+ */
+public final class Material {
+    public static final int LAMBERTIAN = 0;
+    public static final int METAL = 1;
+    public static final int DIELECTRIC = 2;
+
+    private final int type;
+    private final float albedoR, albedoG, albedoB;
+    private final float fuzz;
+    private final float refIdx;
+
+    /**
+     * Unknown types are treated as Lambertian, like on the device.
+     */
+    public Material(int type, float albedoR, float albedoG, float albedoB, float fuzz, float refIdx) {
+        if (type != METAL && type != DIELECTRIC) {
+            type = LAMBERTIAN;
+        }
+        this.type = type;
+        if (type == DIELECTRIC) {
+            // Dielectrics are white
+            albedoR = albedoG = albedoB = 1.0f;
+        }
+        this.albedoR = albedoR;
+        this.albedoG = albedoG;
+        this.albedoB = albedoB;
+        this.fuzz = type == METAL ? fuzz : 0.0f;
+        this.refIdx = type == DIELECTRIC ? refIdx : 0.0f;
+    }
+
+    public Material(int type, Vector3 albedo, double fuzz, double refIdx) {
+        this(type, (float) albedo.getX(), (float) albedo.getY(), (float) albedo.getZ(), (float) fuzz, (float) refIdx);
+    }
+
+    public static Material lambertian(Vector3 albedo) {
+        return new Material(LAMBERTIAN, albedo, 0.0, 0.0);
+    }
+
+    public static Material metal(Vector3 albedo, double fuzz) {
+        return new Material(METAL, albedo, fuzz, 0.0);
+    }
+
+    public static Material dielectric(double refIdx) {
+        return new Material(DIELECTRIC, new Vector3(1.0, 1.0, 1.0), 0.0, refIdx);
+    }
+
+    /**
+     * 0: Lambertian, 1: Metal, 2: Dielectric
+     */
+    public int getType() {
+        return type;
+    }
+
+    public Vector3 getAlbedo() {
+        return new Vector3(albedoR, albedoG, albedoB);
+    }
+
+    public float getAlbedoR() {
+        return albedoR;
+    }
+
+    public float getAlbedoG() {
+        return albedoG;
+    }
+
+    public float getAlbedoB() {
+        return albedoB;
+    }
+
+    // Metal roughness
+    public float getFuzz() {
+        return fuzz;
+    }
+
+    // Dielectric refraction
+    public float getRefIdx() {
+        return refIdx;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Material other)) {
+            return false;
+        }
+        return type == other.type
+                && Float.compare(albedoR, other.albedoR) == 0
+                && Float.compare(albedoG, other.albedoG) == 0
+                && Float.compare(albedoB, other.albedoB) == 0
+                && Float.compare(fuzz, other.fuzz) == 0
+                && Float.compare(refIdx, other.refIdx) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = type;
+        hash = 31 * hash + Float.hashCode(albedoR);
+        hash = 31 * hash + Float.hashCode(albedoG);
+        hash = 31 * hash + Float.hashCode(albedoB);
+        hash = 31 * hash + Float.hashCode(fuzz);
+        return 31 * hash + Float.hashCode(refIdx);
+    }
+
+    @Override
+    public String toString() {
+        return switch (type) {
+            case METAL -> "Metal(" + albedoR + ", " + albedoG + ", " + albedoB + ", fuzz " + fuzz + ")";
+            case DIELECTRIC -> "Dielectric(" + refIdx + ")";
+            default -> "Lambertian(" + albedoR + ", " + albedoG + ", " + albedoB + ")";
+        };
+    }
+}
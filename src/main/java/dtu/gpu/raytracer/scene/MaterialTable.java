@@ -0,0 +1,110 @@
+package dtu.gpu.raytracer.scene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The deduplicated materials of a scene. Spheres refer to them by id, the index of the
+ * material in the table; adding a material that is already present returns the id of the
+ * existing entry. Ids stay valid for the lifetime of the table, materials are never removed.
+ * <p>
+ * Next to the {@link Material} objects the table keeps the packed records the kernels
+ * read, {@value #STRIDE} floats (two float4) per material:
+ * {@code albedo r, g, b, fuzz, refIdx, type (raw int bits), 0, 0}.
+ * <p>
+ * Replacing a material with {@link #set(int, Material)} changes every sphere that uses it
+ * without touching the spheres themselves; only the table, which is small, is uploaded again.
+ */
+public final class MaterialTable {
+    public static final int STRIDE = 8;
+
+    // Offsets within a record
+    public static final int ALBEDO_R = 0;
+    public static final int ALBEDO_G = 1;
+    public static final int ALBEDO_B = 2;
+    public static final int FUZZ = 3;
+    public static final int REF_IDX = 4;
+    public static final int TYPE = 5;
+
+    private final List<Material> materials = new ArrayList<>();
+    // Every entry points to a slot that holds an equal material, so add never returns an id
+    // whose material was replaced since
+    private final Map<Material, Integer> ids = new HashMap<>();
+    private float[] records = new float[16 * STRIDE];
+    private long version;
+
+    /**
+     * Returns the id of the given material, adding it to the table if no equal material is present.
+     */
+    public int add(Material material) {
+        Integer id = ids.get(material);
+        if (id != null) {
+            return id;
+        }
+        int newId = materials.size();
+        if ((newId + 1) * STRIDE > records.length) {
+            records = Arrays.copyOf(records, 2 * records.length);
+        }
+        materials.add(material);
+        ids.put(material, newId);
+        write(newId, material);
+        version++;
+        return newId;
+    }
+
+    /**
+     * Replaces the material with the given id, changing all spheres that use it.
+     */
+    public void set(int id, Material material) {
+        Material old = materials.get(id);
+        if (old.equals(material)) {
+            return;
+        }
+        materials.set(id, material);
+        if (ids.remove(old, id)) {
+            // An earlier replacement may have left an equal material in another slot
+            int other = materials.indexOf(old);
+            if (other >= 0) {
+                ids.put(old, other);
+            }
+        }
+        ids.putIfAbsent(material, id);
+        write(id, material);
+        version++;
+    }
+
+    public Material get(int id) {
+        return materials.get(id);
+    }
+
+    public int size() {
+        return materials.size();
+    }
+
+    /**
+     * The packed records, valid up to {@link #size()} materials and replaced when the table grows
+     */
+    public float[] getRecords() {
+        return records;
+    }
+
+    /**
+     * Incremented on every change to the table
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    private void write(int id, Material material) {
+        int r = id * STRIDE;
+        records[r + ALBEDO_R] = material.getAlbedoR();
+        records[r + ALBEDO_G] = material.getAlbedoG();
+        records[r + ALBEDO_B] = material.getAlbedoB();
+        records[r + FUZZ] = material.getFuzz();
+        records[r + REF_IDX] = material.getRefIdx();
+        records[r + TYPE] = Float.intBitsToFloat(material.getType());
+    }
+}
@@ -1,27 +1,105 @@
 package dtu.gpu.raytracer.scene;
 
 import dtu.gpu.raytracer.Camera;
-import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.RandomAccess;
 
 public class Scene {
     private Camera camera;
-    private List<Sphere> spheres;
+
+    /**
+     * The spheres as packed records; it counts the changes to them in its version and
+     * keeps track of the spheres that changed since the last call to {@link #takeDirtySpheres()}.
+     */
+    private final SphereStore spheres;
 
     public Scene(Camera camera) {
+        this(camera, new SphereStore());
+    }
+
+    /**
+     * A scene over existing spheres, e.g. imported in bulk. The scene takes the store over;
+     * all of its spheres count as changed.
+     */
+    public Scene(Camera camera, SphereStore spheres) {
         this.camera = camera;
-        this.spheres = new ArrayList<>();
+        this.spheres = spheres;
+        spheres.markDirty(0, spheres.size());
     }
 
     public Camera getCamera() {
         return camera;
     }
 
+    /**
+     * Returns a read-only list of views of the spheres. The views themselves can be changed
+     * and write through to the scene. Use {@link #addSphere}, {@link #setSphere} and
+     * {@link #removeSphere} to change the list, or {@link #getSphereStore()} for bulk changes.
+     */
     public List<Sphere> getSpheres() {
+        return new SphereList();
+    }
+
+    /**
+     * The records holding the spheres, for bulk reads and changes
+     */
+    public SphereStore getSphereStore() {
         return spheres;
     }
 
+    /**
+     * The deduplicated materials the spheres refer to by id. Changing a material here changes
+     * every sphere that uses it.
+     */
+    public MaterialTable getMaterials() {
+        return spheres.getMaterials();
+    }
+
     public void addSphere(Sphere sphere) {
-        spheres.add(sphere);
+        spheres.addAll(sphere.getStore(), sphere.getIndex(), sphere.getIndex() + 1);
+    }
+
+    public void setSphere(int index, Sphere sphere) {
+        spheres.setAll(index, sphere.getStore(), sphere.getIndex(), sphere.getIndex() + 1);
+    }
+
+    public void removeSphere(int index) {
+        spheres.remove(index);
+    }
+
+    public void markSphereDirty(int index) {
+        spheres.markDirty(index, index + 1);
+    }
+
+    /**
+     * Incremented on every change to the spheres or the materials, so consumers can cheaply
+     * tell whether anything changed since they last looked.
+     */
+    public long getVersion() {
+        return spheres.getVersion() + spheres.getMaterials().getVersion();
+    }
+
+    /**
+     * Returns the indices of all spheres changed since the previous call and clears the dirty set.
+     */
+    public BitSet takeDirtySpheres() {
+        return spheres.takeDirty();
+    }
+
+    private final class SphereList extends AbstractList<Sphere> implements RandomAccess {
+        @Override
+        public Sphere get(int index) {
+            if (index < 0 || index >= spheres.size()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return new Sphere(spheres, index);
+        }
+
+        @Override
+        public int size() {
+            return spheres.size();
+        }
     }
 }
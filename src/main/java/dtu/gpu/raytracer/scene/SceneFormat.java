@@ -0,0 +1,173 @@
+package dtu.gpu.raytracer.scene;
+
+import dtu.gpu.raytracer.Camera;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A compact binary scene format that is mapped into memory and used in place instead of
+ * parsed, so even scenes with millions of spheres load in milliseconds.
+ * <p>
+ * All values are little endian. The file starts with a {@value #HEADER_SIZE} byte header:
+ * <pre>
+ * int magic          'DTUS'
+ * int version        {@value #VERSION}
+ * int sphereCount
+ * int materialCount
+ * (reserved up to the end of the header)
+ * </pre>
+ * followed by the {@code sphereCount} geometry records, {@value #GEOMETRY_SIZE} bytes each
+ * and laid out exactly like the geometry buffer of the device ({@code float centerX,
+ * centerY, centerZ, radius}), then {@code sphereCount} ints with the material id of every
+ * sphere. The material table comes last, one {@value #MATERIAL_SIZE} byte entry per
+ * material: {@code int type, float albedoR, albedoG, albedoB, fuzz, refIdx}.
+ */
+public final class SceneFormat {
+    public static final int MAGIC = 'D' | 'T' << 8 | 'U' << 16 | 'S' << 24;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int GEOMETRY_SIZE = SphereStore.GEOMETRY_STRIDE * 4;
+    public static final int MATERIAL_ID_SIZE = 4;
+    public static final int MATERIAL_SIZE = 24;
+
+    private SceneFormat() {
+    }
+
+    /**
+     * Maps a scene file into memory as the {@link SphereStore} of a new scene; no object is
+     * created per sphere and the records are not copied. The device buffers are uploaded
+     * straight from the mapping, and the store only moves its records to the heap when the
+     * scene is first changed.
+     */
+    public static Scene map(Path file, Camera camera) throws IOException {
+        return new Scene(camera, mapSpheres(file));
+    }
+
+    public static SphereStore mapSpheres(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + ": scene files larger than 2 GB are not supported");
+            }
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + ": not a scene file (too short)");
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt(0) != MAGIC) {
+                throw new IOException(file + ": not a scene file (bad magic number)");
+            }
+            int version = data.getInt(4);
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported scene file version " + version);
+            }
+            int sphereCount = data.getInt(8);
+            int materialCount = data.getInt(12);
+            if (sphereCount < 0 || materialCount < 0
+                    || size != fileSize(sphereCount, materialCount)) {
+                throw new IOException(file + ": truncated or corrupt scene file");
+            }
+            return readSpheres(file, data, sphereCount, materialCount);
+        }
+    }
+
+    private static SphereStore readSpheres(Path file, ByteBuffer data, int n, int materialCount) throws IOException {
+        // Equal entries in the file end up as one entry of the table, so the ids are mapped
+        MaterialTable materials = new MaterialTable();
+        int[] tableIds = new int[materialCount];
+        boolean remap = false;
+        for (int m = 0; m < materialCount; m++) {
+            ByteBuffer entry = data.slice(materialOffset(n) + m * MATERIAL_SIZE, MATERIAL_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            tableIds[m] = materials.add(new Material(entry.getInt(), entry.getFloat(), entry.getFloat(),
+                    entry.getFloat(), entry.getFloat(), entry.getFloat()));
+            remap |= tableIds[m] != m;
+        }
+
+        FloatBuffer geometry = data.slice(HEADER_SIZE, n * GEOMETRY_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer();
+        IntBuffer ids = materialIds(data, n).asIntBuffer();
+        if (remap) {
+            // Only files not written by write() have duplicate entries; their ids go to the heap
+            int[] copy = new int[n];
+            ids.get(0, copy);
+            ids = IntBuffer.wrap(copy);
+        }
+        for (int i = 0; i < n; i++) {
+            int m = ids.get(i);
+            if (m < 0 || m >= materialCount) {
+                throw new IOException(file + ": sphere " + i + " refers to material " + m
+                        + " but the table has " + materialCount);
+            }
+            if (remap) {
+                ids.put(i, tableIds[m]);
+            }
+        }
+        SphereStore spheres = SphereStore.wrap(geometry, ids, n, materials);
+        if (ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            // The device buffers take the records as they are, so convert them on the heap
+            spheres.getGeometry();
+        }
+        return spheres;
+    }
+
+    /**
+     * Writes the spheres of any scene to a file, together with its material table. The file
+     * is written next to the target and then moved over it, so a scene still mapped from the
+     * target keeps its records.
+     */
+    public static void write(Scene scene, Path file) throws IOException {
+        SphereStore spheres = scene.getSphereStore();
+        MaterialTable materials = spheres.getMaterials();
+        int n = spheres.size();
+        long size = fileSize(n, materials.size());
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large for the file format: " + n + " spheres");
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(0, MAGIC);
+            out.putInt(4, VERSION);
+            out.putInt(8, n);
+            out.putInt(12, materials.size());
+            out.slice(HEADER_SIZE, n * GEOMETRY_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                    .asFloatBuffer().put(0, spheres.getGeometryBuffer(), 0, n * SphereStore.GEOMETRY_STRIDE);
+            materialIds(out, n).asIntBuffer().put(0, spheres.getMaterialIdBuffer(), 0, n);
+            for (int m = 0; m < materials.size(); m++) {
+                ByteBuffer entry = out.slice(materialOffset(n) + m * MATERIAL_SIZE, MATERIAL_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                Material material = materials.get(m);
+                entry.putInt(material.getType()).putFloat(material.getAlbedoR()).putFloat(material.getAlbedoG())
+                        .putFloat(material.getAlbedoB()).putFloat(material.getFuzz()).putFloat(material.getRefIdx());
+            }
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer materialIds(ByteBuffer data, int sphereCount) {
+        return data.slice(HEADER_SIZE + sphereCount * GEOMETRY_SIZE, sphereCount * MATERIAL_ID_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int materialOffset(int sphereCount) {
+        return HEADER_SIZE + sphereCount * (GEOMETRY_SIZE + MATERIAL_ID_SIZE);
+    }
+
+    private static long fileSize(int sphereCount, int materialCount) {
+        return HEADER_SIZE + (long) sphereCount * (GEOMETRY_SIZE + MATERIAL_ID_SIZE)
+                + (long) materialCount * MATERIAL_SIZE;
+    }
+}
@@ -2,41 +2,114 @@ package dtu.gpu.raytracer.scene;
 
 import dtu.gpu.raytracer.Vector3;
 
+/**
+ * A view of one sphere in a {@link SphereStore}. The spheres returned by
+ * {@link Scene#getSpheres()} read and write the scene's store directly, and refer to a
+ * slot rather than a sphere: after a removal in front of them they show the next sphere.
+ * <p>
+ * The public constructors create a sphere in a store of its own, to be copied into a
+ * scene with {@link Scene#addSphere(Sphere)}, which adds its material to the scene's
+ * {@link MaterialTable} unless an equal material is already there.
+ */
 public class Sphere {
-    public Vector3 center;
-    public double radius;
-    public int materialIndex;
-    public Vector3 albedo;  // Color
-    public double fuzz;      // Metal roughness
-    public double ref_idx;   // Dielectric refraction
+    private final SphereStore store;
+    private final int index;
+
+    public Sphere(Vector3 center, double radius, Material material) {
+        this(detached(center, radius, material), 0);
+    }
 
     // **Constructor for Lambertian**
     public Sphere(Vector3 center, double radius, int materialIndex, Vector3 albedo) {
-        this.center = center;
-        this.radius = radius;
-        this.materialIndex = materialIndex;
-        this.albedo = albedo;
-        this.fuzz = 0.0;
-        this.ref_idx = 0.0;
+        this(center, radius, new Material(materialIndex, albedo, 0.0, 0.0));
     }
 
     // **Constructor for Metal**
     public Sphere(Vector3 center, double radius, int materialIndex, Vector3 albedo, double fuzz) {
-        this.center = center;
-        this.radius = radius;
-        this.materialIndex = materialIndex;
-        this.albedo = albedo;
-        this.fuzz = fuzz;
-        this.ref_idx = 0.0;
+        this(center, radius, new Material(materialIndex, albedo, fuzz, 0.0));
     }
 
     // **Constructor for Dielectric**
     public Sphere(Vector3 center, double radius, int materialIndex, double ref_idx) {
-        this.center = center;
-        this.radius = radius;
-        this.materialIndex = materialIndex;
-        this.albedo = new Vector3(1.0, 1.0, 1.0);  // Default white for dielectric
-        this.fuzz = 0.0;
-        this.ref_idx = ref_idx;
+        // Default white for dielectric
+        this(center, radius, new Material(materialIndex, new Vector3(1.0, 1.0, 1.0), 0.0, ref_idx));
+    }
+
+    Sphere(SphereStore store, int index) {
+        this.store = store;
+        this.index = index;
+    }
+
+    private static SphereStore detached(Vector3 center, double radius, Material material) {
+        SphereStore store = new SphereStore(1);
+        store.add((float) center.getX(), (float) center.getY(), (float) center.getZ(), (float) radius, material);
+        return store;
+    }
+
+    SphereStore getStore() {
+        return store;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    public Vector3 getCenter() {
+        return new Vector3(store.getCenterX(index), store.getCenterY(index), store.getCenterZ(index));
+    }
+
+    public void setCenter(Vector3 center) {
+        store.setCenter(index, (float) center.getX(), (float) center.getY(), (float) center.getZ());
+    }
+
+    public double getRadius() {
+        return store.getRadius(index);
+    }
+
+    public void setRadius(double radius) {
+        store.setRadius(index, (float) radius);
+    }
+
+    public Material getMaterial() {
+        return store.getMaterial(index);
+    }
+
+    /**
+     * Gives this sphere another material; the other spheres sharing its current material keep it.
+     */
+    public void setMaterial(Material material) {
+        store.setMaterial(index, material);
+    }
+
+    /**
+     * The id of the material in the {@link MaterialTable} of the store the sphere is in
+     */
+    public int getMaterialId() {
+        return store.getMaterialId(index);
+    }
+
+    /**
+     * 0: Lambertian, 1: Metal, 2: Dielectric
+     */
+    public int getMaterialIndex() {
+        return getMaterial().getType();
+    }
+
+    public Vector3 getAlbedo() {
+        return getMaterial().getAlbedo();
+    }
+
+    // Metal roughness
+    public double getFuzz() {
+        return getMaterial().getFuzz();
+    }
+
+    // Dielectric refraction
+    public double getRefIdx() {
+        return getMaterial().getRefIdx();
+    }
+
+    public void setMaterial(int materialIndex, Vector3 albedo, double fuzz, double refIdx) {
+        setMaterial(new Material(materialIndex, albedo, fuzz, refIdx));
     }
 }
@@ -0,0 +1,384 @@
+package dtu.gpu.raytracer.scene;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The spheres of a scene as packed records, laid out exactly like the sphere buffers the
+ * kernels read. There is no object per sphere; {@link Sphere} is only a view of one record.
+ * <p>
+ * Geometry and material are kept apart, so intersection tests only touch the geometry:
+ * <ul>
+ * <li>geometry, {@value #GEOMETRY_STRIDE} floats (one float4) per sphere:
+ *     {@code center x, y, z, radius}</li>
+ * <li>material ids, one int per sphere, indexing the store's {@link MaterialTable}</li>
+ * </ul>
+ * The arrays grow geometrically. {@link #getGeometry()} and {@link #getMaterialIds()} return
+ * the backing arrays themselves, valid up to {@link #size()} records and replaced when the
+ * store grows, so uploads and snapshots can copy them in bulk.
+ * <p>
+ * A store loaded with {@link SceneFormat} keeps its records in the mapped scene file
+ * instead, off the heap, until the first change copies them into arrays.
+ * {@link #getGeometryBuffer()} and {@link #getMaterialIdBuffer()} read the records either
+ * way without copying them.
+ * <p>
+ * Every change increments the {@link #getVersion() version} and marks the changed records
+ * dirty, so consumers can re-upload only what changed. Writing to the backing arrays
+ * directly is allowed, followed by {@link #markDirty(int, int)} for the records touched.
+ */
+public final class SphereStore {
+    public static final int GEOMETRY_STRIDE = 4;
+
+    // Offsets within a geometry record
+    public static final int CENTER_X = 0;
+    public static final int CENTER_Y = 1;
+    public static final int CENTER_Z = 2;
+    public static final int RADIUS = 3;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final MaterialTable materials;
+    private float[] geometry;
+    private int[] materialIds;
+    private int size;
+
+    // The columns of a mapped scene file, only set while geometry and materialIds are null
+    private FloatBuffer mappedGeometry;
+    private IntBuffer mappedMaterialIds;
+
+    private long version;
+    private final BitSet dirty = new BitSet();
+
+    public SphereStore() {
+        this(MIN_CAPACITY);
+    }
+
+    public SphereStore(int capacity) {
+        this(capacity, new MaterialTable());
+    }
+
+    /**
+     * A store whose spheres refer to the given, possibly shared, material table
+     */
+    public SphereStore(int capacity, MaterialTable materials) {
+        this.materials = materials;
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * A store over the first {@code size} records of mapped columns, which the device
+     * buffers are uploaded from as they are; see {@link SceneFormat#mapSpheres(java.nio.file.Path)}.
+     */
+    static SphereStore wrap(FloatBuffer geometry, IntBuffer materialIds, int size, MaterialTable materials) {
+        SphereStore spheres = new SphereStore(materials);
+        spheres.mappedGeometry = geometry;
+        spheres.mappedMaterialIds = materialIds;
+        spheres.size = size;
+        spheres.markDirty(0, size);
+        return spheres;
+    }
+
+    private SphereStore(MaterialTable materials) {
+        this.materials = materials;
+    }
+
+    public MaterialTable getMaterials() {
+        return materials;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return geometry != null ? geometry.length / GEOMETRY_STRIDE : size;
+    }
+
+    /**
+     * Appends a sphere and returns its index; the material is added to the table if needed.
+     */
+    public int add(float centerX, float centerY, float centerZ, float radius, Material material) {
+        return add(centerX, centerY, centerZ, radius, materials.add(material));
+    }
+
+    /**
+     * Appends a sphere using the material with the given id and returns its index.
+     */
+    public int add(float centerX, float centerY, float centerZ, float radius, int materialId) {
+        checkMaterialId(materialId);
+        int index = addRows(1);
+        write(index, centerX, centerY, centerZ, radius, materialId);
+        return index;
+    }
+
+    /**
+     * Appends the spheres [from, to) of another store and returns the index of the first.
+     * If the other store has a different material table, its materials are added to this one.
+     */
+    public int addAll(SphereStore source, int from, int to) {
+        int first = addRows(to - from);
+        copyRows(source, from, this, first, to - from);
+        return first;
+    }
+
+    /**
+     * Appends {@code count} spheres with all values 0 and material id 0, and returns the
+     * index of the first. Meant for bulk imports that fill the new rows through the backing
+     * arrays.
+     */
+    public int addRows(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative");
+        }
+        toHeap();
+        ensureCapacity((long) size + count);
+        int first = size;
+        size += count;
+        markDirty(first, size);
+        return first;
+    }
+
+    public void set(int index, float centerX, float centerY, float centerZ, float radius, int materialId) {
+        checkIndex(index);
+        checkMaterialId(materialId);
+        toHeap();
+        write(index, centerX, centerY, centerZ, radius, materialId);
+        markDirty(index, index + 1);
+    }
+
+    /**
+     * Overwrites the spheres starting at {@code index} with the spheres [from, to) of another store.
+     */
+    public void setAll(int index, SphereStore source, int from, int to) {
+        if (index < 0 || index + (to - from) > size) {
+            throw new IndexOutOfBoundsException("Rows " + index + " to " + (index + to - from) + " of " + size);
+        }
+        toHeap();
+        copyRows(source, from, this, index, to - from);
+        markDirty(index, index + to - from);
+    }
+
+    public void setCenter(int index, float x, float y, float z) {
+        int g = checkIndex(index) * GEOMETRY_STRIDE;
+        toHeap();
+        geometry[g + CENTER_X] = x;
+        geometry[g + CENTER_Y] = y;
+        geometry[g + CENTER_Z] = z;
+        markDirty(index, index + 1);
+    }
+
+    public void setRadius(int index, float radius) {
+        int g = checkIndex(index) * GEOMETRY_STRIDE;
+        toHeap();
+        geometry[g + RADIUS] = radius;
+        markDirty(index, index + 1);
+    }
+
+    /**
+     * Gives one sphere another material; to change all spheres sharing a material, change
+     * the material in the table instead.
+     */
+    public void setMaterial(int index, Material material) {
+        setMaterialId(index, materials.add(material));
+    }
+
+    public void setMaterialId(int index, int materialId) {
+        checkMaterialId(materialId);
+        checkIndex(index);
+        toHeap();
+        materialIds[index] = materialId;
+        markDirty(index, index + 1);
+    }
+
+    public void remove(int index) {
+        removeRange(index, index + 1);
+    }
+
+    /**
+     * Removes the spheres [from, to); the spheres after them move down.
+     */
+    public void removeRange(int from, int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("Rows " + from + " to " + to + " of " + size);
+        }
+        toHeap();
+        copyRows(this, to, this, from, size - to);
+        size -= to - from;
+        // Every sphere from the first removed one on changed its slot
+        dirty.set(from, size);
+        dirty.clear(size, Math.max(size, dirty.length()));
+        version++;
+    }
+
+    public void clear() {
+        removeRange(0, size);
+    }
+
+    public float getCenterX(int index) {
+        return geometryAt(checkIndex(index) * GEOMETRY_STRIDE + CENTER_X);
+    }
+
+    public float getCenterY(int index) {
+        return geometryAt(checkIndex(index) * GEOMETRY_STRIDE + CENTER_Y);
+    }
+
+    public float getCenterZ(int index) {
+        return geometryAt(checkIndex(index) * GEOMETRY_STRIDE + CENTER_Z);
+    }
+
+    public float getRadius(int index) {
+        return geometryAt(checkIndex(index) * GEOMETRY_STRIDE + RADIUS);
+    }
+
+    public int getMaterialId(int index) {
+        return materialIdAt(checkIndex(index));
+    }
+
+    public Material getMaterial(int index) {
+        return materials.get(getMaterialId(index));
+    }
+
+    /**
+     * The backing array of the geometry records, valid up to {@link #size()} records.
+     * A mapped store is copied into arrays first.
+     */
+    public float[] getGeometry() {
+        toHeap();
+        return geometry;
+    }
+
+    /**
+     * The backing array of the material ids, valid up to {@link #size()} records.
+     * A mapped store is copied into arrays first.
+     */
+    public int[] getMaterialIds() {
+        toHeap();
+        return materialIds;
+    }
+
+    /**
+     * The geometry records, valid up to {@link #size()} records, without copying them: the
+     * mapped scene file, or else a buffer over the backing array. Like the array, it is
+     * replaced when the store grows or is first changed, and is only meant to be read.
+     */
+    public FloatBuffer getGeometryBuffer() {
+        return geometry != null ? FloatBuffer.wrap(geometry) : mappedGeometry.duplicate();
+    }
+
+    /**
+     * The material ids, like {@link #getGeometryBuffer()}
+     */
+    public IntBuffer getMaterialIdBuffer() {
+        return materialIds != null ? IntBuffer.wrap(materialIds) : mappedMaterialIds.duplicate();
+    }
+
+    /**
+     * Marks the spheres [from, to) as changed, after writing to the backing arrays directly.
+     */
+    public void markDirty(int from, int to) {
+        dirty.set(from, to);
+        version++;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the indices of all spheres changed since the previous call and clears the dirty set.
+     */
+    public BitSet takeDirty() {
+        BitSet taken = (BitSet) dirty.clone();
+        dirty.clear();
+        return taken;
+    }
+
+    private void write(int index, float centerX, float centerY, float centerZ, float radius, int materialId) {
+        int g = index * GEOMETRY_STRIDE;
+        geometry[g + CENTER_X] = centerX;
+        geometry[g + CENTER_Y] = centerY;
+        geometry[g + CENTER_Z] = centerZ;
+        geometry[g + RADIUS] = radius;
+        materialIds[index] = materialId;
+    }
+
+    private float geometryAt(int i) {
+        return geometry != null ? geometry[i] : mappedGeometry.get(i);
+    }
+
+    private int materialIdAt(int i) {
+        return materialIds != null ? materialIds[i] : mappedMaterialIds.get(i);
+    }
+
+    /**
+     * Copies the records of a mapped store into arrays, before the first change
+     */
+    private void toHeap() {
+        if (geometry != null) {
+            return;
+        }
+        allocate(Math.max(1, size));
+        mappedGeometry.get(0, geometry, 0, size * GEOMETRY_STRIDE);
+        mappedMaterialIds.get(0, materialIds, 0, size);
+        mappedGeometry = null;
+        mappedMaterialIds = null;
+    }
+
+    // The target is always on the heap, the source may still be mapped
+    private static void copyRows(SphereStore source, int from, SphereStore target, int to, int count) {
+        if (source.geometry != null) {
+            System.arraycopy(source.geometry, from * GEOMETRY_STRIDE, target.geometry, to * GEOMETRY_STRIDE,
+                    count * GEOMETRY_STRIDE);
+        } else {
+            source.mappedGeometry.get(from * GEOMETRY_STRIDE, target.geometry, to * GEOMETRY_STRIDE,
+                    count * GEOMETRY_STRIDE);
+        }
+        if (source.materials != target.materials) {
+            for (int i = 0; i < count; i++) {
+                target.materialIds[to + i] = target.materials.add(source.materials.get(source.materialIdAt(from + i)));
+            }
+        } else if (source.materialIds != null) {
+            System.arraycopy(source.materialIds, from, target.materialIds, to, count);
+        } else {
+            source.mappedMaterialIds.get(from, target.materialIds, to, count);
+        }
+    }
+
+    private void ensureCapacity(long required) {
+        int capacity = getCapacity();
+        if (required <= capacity) {
+            return;
+        }
+        // The geometry array must stay addressable with an int
+        int maxCapacity = (Integer.MAX_VALUE - 8) / GEOMETRY_STRIDE;
+        if (required > maxCapacity) {
+            throw new OutOfMemoryError("sphere capacity exceeded: " + required + " > " + maxCapacity);
+        }
+        int newCapacity = Math.max(capacity, MIN_CAPACITY);
+        while (newCapacity < required) {
+            newCapacity = (int) Math.min(maxCapacity, 2L * newCapacity);
+        }
+        geometry = Arrays.copyOf(geometry, newCapacity * GEOMETRY_STRIDE);
+        materialIds = Arrays.copyOf(materialIds, newCapacity);
+    }
+
+    private void allocate(int capacity) {
+        geometry = new float[capacity * GEOMETRY_STRIDE];
+        materialIds = new int[capacity];
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index;
+    }
+
+    private void checkMaterialId(int materialId) {
+        if (materialId < 0 || materialId >= materials.size()) {
+            throw new IllegalArgumentException("No material with id " + materialId);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+
+// Deep zoom by perturbation: instead of iterating z = z² + c for every pixel, which needs
+// more digits than a double has once the view gets narrower than about 1e-13, every pixel
+// iterates its difference dz from a reference orbit Z computed on the host with as many
+// digits as needed (ReferenceOrbit.java):
+//
+//   z  = Z + dz,  c = C + dc
+//   dz' = 2 Z dz + dz² + dc
+//
+// dz and dc are tiny, but doubles keep their relative precision down to about 1e-300.
+//
+// The difference loses its precision when the pixel's orbit passes much closer to 0 than the
+// reference does, or when the reference escapes first: then |z| < |dz|, and the result would
+// show as a "glitch", a flat blob of wrong iteration counts. The pixel is rebased instead: it
+// takes its full value as the new difference and continues against the reference from Z_0 = 0,
+// which is exact since the orbit of every pixel starts at 0.
+//
+// The first skip iterations are replaced by the series approximation (SeriesApproximation.java)
+// dz = A u + B u² + C u³ with u = dc / scale.
+//
+// The iteration counts and colors match computeMandelbrot in SimpleMandelbrot.cl.
+
+inline double2 complex_mul(double2 a, double2 b)
+{
+    return (double2)(a.x * b.x - a.y * b.y, a.x * b.y + a.y * b.x);
+}
+
+__kernel void computeMandelbrotPerturbed(
+    __global uint *output,
+    int sizeX, int sizeY,
+    double offsetX, double offsetY,
+    double stepX, double stepY,
+    int maxIterations,
+    __global uint *colorMap,
+    int colorMapSize,
+    __global const double2 *orbit,
+    int orbitLength,
+    int skip,
+    double scale,
+    double2 seriesA, double2 seriesB, double2 seriesC)
+{
+    unsigned int ix = get_global_id(0);
+    unsigned int iy = get_global_id(1);
+
+    // The pixel relative to the reference point
+    double2 dc = (double2)(offsetX + (double)ix * stepX, offsetY + (double)iy * stepY);
+
+    double2 dz = (double2)(0.0, 0.0);
+    if (skip > 0)
+    {
+        double2 u = dc / scale;
+        dz = complex_mul(u, seriesA + complex_mul(u, seriesB + complex_mul(u, seriesC)));
+    }
+
+    // m counts the iterations of the pixel, n indexes the reference orbit
+    int m = skip;
+    int n = skip;
+    while (m < maxIterations)
+    {
+        double2 Z = orbit[n];
+        double2 z = Z + dz;
+        double magnitudeSquared = dot(z, z);
+        if (magnitudeSquared >= 4.0)
+        {
+            break;
+        }
+        if (magnitudeSquared < dot(dz, dz) || n == orbitLength - 1)
+        {
+            // Rebase
+            dz = z;
+            Z = (double2)(0.0, 0.0);
+            n = 0;
+        }
+        dz = 2.0 * complex_mul(Z, dz) + complex_mul(dz, dz) + dc;
+        n++;
+        m++;
+    }
+
+    // computeMandelbrot counts the iteration that reached |z| >= 2 as well
+    int iteration = min(m + 1, maxIterations);
+    if (iteration == maxIterations)
+    {
+        output[iy * sizeX + ix] = 0;
+    }
+    else
+    {
+        float alpha = (float)iteration / (float)maxIterations;
+        int colorIndex = (int)(alpha * colorMapSize);
+        output[iy * sizeX + ix] = colorMap[colorIndex];
+    }
+}
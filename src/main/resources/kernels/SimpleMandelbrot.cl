@@ -1,5 +1,103 @@
 #pragma OPENCL EXTENSION cl_khr_fp64 : enable
 
+// Early outs for points in the set, which otherwise take all maxIterations, each enabled by
+// a build option so they can be compared (see Mandelbrot.kernelOptions):
+//
+//   MANDELBROT_CARDIOID_CHECK     points in the main cardioid
+//   MANDELBROT_BULB_CHECK         points in the period 2 bulb, the disk around -1
+//   MANDELBROT_PERIODICITY_CHECK  orbits that come back to within
+//                                 MANDELBROT_PERIODICITY_TOLERANCE of an earlier value,
+//                                 i.e. that settled on a cycle
+//
+// All of them return maxIterations, the count of a point that did not escape.
+
+#ifndef MANDELBROT_PERIODICITY_TOLERANCE
+#define MANDELBROT_PERIODICITY_TOLERANCE 1e-10
+#endif
+
+// The state of a pixel between calls of continueIterations
+#define MANDELBROT_ITERATING 0
+#define MANDELBROT_ESCAPED 1
+#define MANDELBROT_INSIDE 2
+
+// Continues the orbit of (r, i) from z = (*zx, *zy) after *count iterations, until it escapes
+// or reaches maxIterations, and stores z and the count back. Returns the state of the pixel:
+// MANDELBROT_INSIDE if a check proved it is in the set, with the count set to maxIterations.
+//
+// A pixel that stopped at the limit continues exactly as if it had never stopped: the loop
+// would have gone on since |z| was below 2 one iteration before.
+inline uchar iterateFrom(double r, double i, double *zx, double *zy, int *count, int maxIterations)
+{
+    if (*count == 0)
+    {
+#ifdef MANDELBROT_CARDIOID_CHECK
+        double q = (r - 0.25) * (r - 0.25) + i * i;
+        if (q * (q + (r - 0.25)) <= 0.25 * i * i)
+        {
+            *count = maxIterations;
+            return MANDELBROT_INSIDE;
+        }
+#endif
+#ifdef MANDELBROT_BULB_CHECK
+        if ((r + 1.0) * (r + 1.0) + i * i <= 0.0625)
+        {
+            *count = maxIterations;
+            return MANDELBROT_INSIDE;
+        }
+#endif
+    }
+
+    double x = *zx;
+    double y = *zy;
+    double magnitudeSquared = 0.0;
+#ifdef MANDELBROT_PERIODICITY_CHECK
+    // Brent: compare with the value saved at the last power of two
+    double savedX = x;
+    double savedY = y;
+    int period = 0;
+    int periodLimit = 1;
+#endif
+
+    int iteration = *count;
+    while (iteration < maxIterations && magnitudeSquared < 4.0)
+    {
+        double xx = x * x;
+        double yy = y * y;
+        y = 2.0 * x * y + i;
+        x = xx - yy + r;
+        magnitudeSquared = xx + yy;
+        iteration++;
+#ifdef MANDELBROT_PERIODICITY_CHECK
+        if (fabs(x - savedX) < MANDELBROT_PERIODICITY_TOLERANCE
+                && fabs(y - savedY) < MANDELBROT_PERIODICITY_TOLERANCE)
+        {
+            *count = maxIterations;
+            return MANDELBROT_INSIDE;
+        }
+        if (++period == periodLimit)
+        {
+            savedX = x;
+            savedY = y;
+            period = 0;
+            periodLimit *= 2;
+        }
+#endif
+    }
+    *zx = x;
+    *zy = y;
+    *count = iteration;
+    return magnitudeSquared >= 4.0 ? MANDELBROT_ESCAPED : MANDELBROT_ITERATING;
+}
+
+inline int iterate(double r, double i, int maxIterations)
+{
+    double x = 0.0;
+    double y = 0.0;
+    int iteration = 0;
+    iterateFrom(r, i, &x, &y, &iteration, maxIterations);
+    return iteration;
+}
+
 __kernel void computeMandelbrot(
     __global uint *output,
     int sizeX, int sizeY,
@@ -15,28 +113,105 @@ __kernel void computeMandelbrot(
     double r = x0 + (double)ix * (x1 - x0) / (double)sizeX;
     double i = y0 + (double)iy * (y1 - y0) / (double)sizeY;
 
-    double x = 0.0;
-    double y = 0.0;
-    double magnitudeSquared = 0.0;
+    int iteration = iterate(r, i, maxIterations);
+    if (iteration == maxIterations)
+    {
+        output[iy * sizeX + ix] = 0;
+    }
+    else
+    {
+        float alpha = (float)iteration / (float)maxIterations;
+        int colorIndex = (int)(alpha * colorMapSize);
+        output[iy * sizeX + ix] = colorMap[colorIndex];
+    }
+}
+
 
+// The iteration counts of computeMandelbrot for a block of pixels, with maxIterations for
+// the pixels in the set, so they can be cached and colored later. Pixel (ix, iy) of the
+// block lies at (x0 + ix * step, y0 + iy * step).
+__kernel void computeIterations(
+    __global int *iterations,
+    int sizeX, int sizeY,
+    double x0, double y0,
+    double step,
+    int maxIterations)
+{
+    unsigned int ix = get_global_id(0);
+    unsigned int iy = get_global_id(1);
+
+    double r = x0 + (double)ix * step;
+    double i = y0 + (double)iy * step;
+
+    int iteration = iterate(r, i, maxIterations);
+    iterations[iy * sizeX + ix] = iteration;
+}
+
+
+// The iteration counts of computeMandelbrot, kept in per pixel state so that raising
+// maxIterations for the same view only continues the pixels that have not escaped. With
+// restart set, or for a new view, every pixel starts from z = 0; otherwise pixels that
+// escaped, that are known to be inside or that already reached maxIterations are left as
+// they are. colorIterations turns the counts into colors.
+__kernel void continueIterations(
+    __global double2 *z,
+    __global int *iterations,
+    __global uchar *state,
+    int sizeX, int sizeY,
+    double x0, double y0,
+    double x1, double y1,
+    int maxIterations,
+    int restart)
+{
+    unsigned int ix = get_global_id(0);
+    unsigned int iy = get_global_id(1);
+    unsigned int index = iy * sizeX + ix;
+
+    double zx = 0.0;
+    double zy = 0.0;
     int iteration = 0;
-    while (iteration < maxIterations && magnitudeSquared < 4.0)
+    if (!restart)
     {
-        double xx = x * x;
-        double yy = y * y;
-        y = 2.0 * x * y + i;
-        x = xx - yy + r;
-        magnitudeSquared = xx + yy;
-        iteration++;
+        if (state[index] != MANDELBROT_ITERATING || iterations[index] >= maxIterations)
+        {
+            return;
+        }
+        zx = z[index].x;
+        zy = z[index].y;
+        iteration = iterations[index];
     }
-    if (iteration == maxIterations)
+
+    double r = x0 + (double)ix * (x1 - x0) / (double)sizeX;
+    double i = y0 + (double)iy * (y1 - y0) / (double)sizeY;
+
+    state[index] = iterateFrom(r, i, &zx, &zy, &iteration, maxIterations);
+    z[index] = (double2)(zx, zy);
+    iterations[index] = iteration;
+}
+
+
+// The colors of computeMandelbrot for the counts of continueIterations, so that a new color
+// map needs no iterations at all. The counts may have been computed for a higher limit:
+// the pixels that reached maxIterations, or are inside, are black.
+__kernel void colorIterations(
+    __global uint *output,
+    __global const int *iterations,
+    __global const uchar *state,
+    int maxIterations,
+    __global uint *colorMap,
+    int colorMapSize)
+{
+    unsigned int index = get_global_id(0);
+
+    int iteration = iterations[index];
+    if (iteration >= maxIterations || state[index] == MANDELBROT_INSIDE)
     {
-        output[iy * sizeX + ix] = 0;
+        output[index] = 0;
     }
     else
     {
         float alpha = (float)iteration / (float)maxIterations;
         int colorIndex = (int)(alpha * colorMapSize);
-        output[iy * sizeX + ix] = colorMap[colorIndex];
+        output[index] = colorMap[colorIndex];
     }
 }
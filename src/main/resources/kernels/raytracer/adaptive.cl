@@ -0,0 +1,153 @@
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+#include "geometry.cl"
+#include "sphere.cl"
+#include "scene.cl"
+#include "color.cl"
+#include "util.cl"
+#include "aux.cl"
+
+// Adaptive sampling: instead of tracing the same number of samples for every pixel, the
+// image is refined in rounds and every round only covers the pixels that have not converged.
+//
+//   adaptive_sample   traces a batch of samples for each pixel of the active list and merges
+//                     their mean and variance into the running statistics of the pixel
+//   adaptive_compact  rebuilds the active list from the pixels whose error is still above
+//                     the threshold
+//
+// The statistics are kept as a running mean (xyz, sample count in w) and the sum of squared
+// differences from the mean (M2, xyz), so no pass has to keep every sample around. Round 0
+// covers every pixel and starts the statistics over. The resolve kernel in raytracer.cl turns
+// the means into pixels with total_samples = 1.
+
+// How far one standard error of the mean moves the pixel on screen, i.e. after clamping and
+// gamma correction. Pixels with fewer than two samples have no estimate and count as not
+// converged.
+float pixel_error(float4 mean, float4 m2) {
+    float n = mean.w;
+    if (n < 2.0f)
+        return MAXFLOAT;
+    float variance = (m2.x + m2.y + m2.z) / (3.0f * (n - 1.0f));
+    float std_error = sqrt(variance / n);
+    float brightness = max(0.0f, (mean.x + mean.y + mean.z) / 3.0f);
+    return sqrt(min(brightness + std_error, 1.0f)) - sqrt(min(brightness, 1.0f));
+}
+
+// Traces up to samples_per_pixel samples for the entries [global offset, active_count) of the
+// active list, in round 0 for the pixels [global offset, active_count) instead. No pixel gets
+// more than max_samples samples in total. With write_aux set, round 0 also writes the
+// auxiliary buffers of the denoiser (aux.cl).
+__kernel void adaptive_sample(__global const int* activePixels,
+                              int active_count,
+                              __global float4* mean,
+                              __global float4* m2,
+                              int imageWidth, int imageHeight,
+                              point3 camera_center,
+                              point3 lowerLeftCorner,
+                              vec3 horizontal,
+                              vec3 vertical,
+                              __global const float4* sphereGeometry,
+                              __global const int* sphereMaterialIds,
+                              __global const float4* materials,
+                              __local float4* material_cache,
+                              int cached_materials,
+                              int num_spheres,
+                              __global const float4* bvhNodes,
+                              __global const int* bvhPrimIndices,
+                              int samples_per_pixel,
+                              int max_samples,
+                              int max_depth,
+                              uint round,
+                              __global int* ray_counter,
+                              int write_aux,
+                              __global float4* aux_albedo,
+                              __global float4* aux_normal_depth)
+{
+    // Before the bounds check: every work item of the group has to reach the barrier
+    cache_materials(material_cache, materials, cached_materials);
+
+    int i = get_global_id(0);
+    if (i >= active_count)
+        return;
+    int pixel = (round == 0) ? i : activePixels[i];
+    int x = pixel % imageWidth;
+    int y = pixel / imageWidth;
+
+    float4 previous = (round == 0) ? (float4)(0.0f) : mean[pixel];
+    int samples = min(samples_per_pixel, max_samples - (int)previous.w);
+
+    // Every round uses a different random stream
+    __private uint2 rng_state = rng_seed(pixel, round);
+
+    // Mean and M2 of this batch, updated sample by sample (Welford's algorithm)
+    float n = 0.0f;
+    float3 batch_mean = (float3)(0.0f, 0.0f, 0.0f);
+    float3 batch_m2 = (float3)(0.0f, 0.0f, 0.0f);
+    int rays = 0;
+    for (int s = 0; s < samples; s++) {
+        float offset_u = random_float(&rng_state) - 0.5f;
+        float offset_v = random_float(&rng_state) - 0.5f;
+        float u = ((float)x + offset_u) / (imageWidth - 1);
+        float v = (((float)imageHeight - 1.0f - y) + offset_v) / (imageHeight - 1);
+        ray r;
+        r.orig = camera_center;
+        r.dir = lowerLeftCorner + u * horizontal + v * vertical - camera_center;
+        float3 color = ray_color(r, sphereGeometry, sphereMaterialIds, materials, material_cache, cached_materials,
+                                 num_spheres, bvhNodes, bvhPrimIndices, max_depth, &rng_state, &rays);
+        n += 1.0f;
+        float3 delta = color - batch_mean;
+        batch_mean += delta / n;
+        batch_m2 += delta * (color - batch_mean);
+    }
+    atomic_add(ray_counter, rays);
+
+    if (round == 0) {
+        if (write_aux)
+            store_aux(x, y, imageWidth, imageHeight, camera_center, lowerLeftCorner, horizontal, vertical,
+                      sphereGeometry, sphereMaterialIds, materials, material_cache, cached_materials, num_spheres,
+                      bvhNodes, bvhPrimIndices, aux_albedo, aux_normal_depth);
+        mean[pixel] = (float4)(batch_mean, n);
+        m2[pixel] = (float4)(batch_m2, 0.0f);
+        return;
+    }
+    // Merge the batch into the running statistics (Chan et al.)
+    float total = previous.w + n;
+    float3 delta = batch_mean - previous.xyz;
+    mean[pixel] = (float4)(previous.xyz + delta * (n / total), total);
+    m2[pixel] = (float4)(m2[pixel].xyz + batch_m2 + delta * delta * (previous.w * n / total), 0.0f);
+}
+
+// Appends every pixel with fewer than max_samples samples whose error is above the threshold
+// to the active list; active_count has to be 0 before the launch. Each group counts its
+// pixels in local memory and reserves their slots with a single global atomic.
+__kernel void adaptive_compact(__global const float4* mean,
+                               __global const float4* m2,
+                               int num_pixels,
+                               float threshold,
+                               int max_samples,
+                               __global int* activePixels,
+                               __global int* active_count)
+{
+    __local int group_count;
+    __local int group_base;
+
+    int pixel = get_global_id(0);
+    if (get_local_id(0) == 0)
+        group_count = 0;
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    // No early return: every work item has to reach the barriers
+    bool active = false;
+    if (pixel < num_pixels) {
+        float4 pixel_mean = mean[pixel];
+        active = pixel_mean.w < (float)max_samples && pixel_error(pixel_mean, m2[pixel]) > threshold;
+    }
+    int slot = active ? atomic_inc(&group_count) : 0;
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (get_local_id(0) == 0)
+        group_base = atomic_add(active_count, group_count);
+    barrier(CLK_LOCAL_MEM_FENCE);
+
+    if (active)
+        activePixels[group_base + slot] = pixel;
+}
@@ -0,0 +1,104 @@
+#ifndef AUX_CL
+#define AUX_CL
+
+#include "geometry.cl"
+#include "scene.cl"
+#include "color.cl"
+#include "scatter.cl"
+
+// Auxiliary buffers for the denoiser (see denoise.cl), written on pass 0 if requested:
+//   albedo:       (albedo r, g, b, 0) of the first surface, the sky color for misses
+//   normal_depth: (world space normal x, y, z, distance to the surface), depth -1 for misses
+// Mirror-like metals and glass are looked through along their more likely direction, so
+// what they show keeps its edges; the albedo is the product along the way.
+
+#define AUX_SPECULAR_BOUNCES 4
+#define AUX_MAX_FUZZ 0.5f
+
+// Follows a camera ray through (px, py) to the first surface that is not a mirror or glass.
+// Draws no random numbers and counts no rays.
+void first_hit(float px, float py, int imageWidth, int imageHeight,
+               point3 camera_center, point3 lowerLeftCorner, vec3 horizontal, vec3 vertical,
+               __global const float4* geometry, __global const int* materialIds,
+               __global const float4* materials, __local const float4* material_cache, int cached_materials,
+               int num_spheres, __global const float4* bvhNodes, __global const int* bvhPrimIndices,
+               __private float3 *albedo, __private float3 *normal, __private float *depth)
+{
+    float u = px / (imageWidth - 1);
+    float v = ((float)imageHeight - 1.0f - py) / (imageHeight - 1);
+    ray r;
+    r.orig = camera_center;
+    r.dir = lowerLeftCorner + u * horizontal + v * vertical - camera_center;
+
+    float3 throughput = (float3)(1.0f, 1.0f, 1.0f);
+    float distance = 0.0f;
+    for (int bounce = 0; ; bounce++) {
+        hit_record rec;
+        if (!hit_scene(geometry, materialIds, materials, material_cache, cached_materials, num_spheres,
+                       bvhNodes, bvhPrimIndices, r, interval_create(0.001f, infinity), &rec)) {
+            *albedo = throughput * background_color(r);
+            *normal = (float3)(0.0f, 0.0f, 0.0f);
+            *depth = -1.0f;
+            return;
+        }
+        distance += length(rec.p - r.orig);
+        bool mirror = rec.mat.type == METAL && rec.mat.fuzz < AUX_MAX_FUZZ;
+        if (bounce == AUX_SPECULAR_BOUNCES || !(mirror || rec.mat.type == DIELECTRIC)) {
+            *albedo = throughput * (rec.mat.type == DIELECTRIC ? (float3)(1.0f, 1.0f, 1.0f) : rec.mat.albedo);
+            *normal = rec.normal;
+            *depth = distance;
+            return;
+        }
+        float3 unit_direction = normalize(r.dir);
+        float cos_theta = min(dot(-unit_direction, rec.normal), 1.0f);
+        bool reflect_ray = true;
+        float3 direction;
+        if (rec.mat.type == DIELECTRIC) {
+            float eta = rec.front_face ? (1.0f / rec.mat.ref_idx) : rec.mat.ref_idx;
+            float sin_theta = sqrt(1.0f - cos_theta * cos_theta);
+            reflect_ray = eta * sin_theta > 1.0f || reflectance(cos_theta, eta) > 0.5f;
+            if (!reflect_ray)
+                refract(unit_direction, rec.normal, eta, &direction);
+        } else {
+            throughput *= rec.mat.albedo;
+        }
+        if (reflect_ray)
+            direction = reflect(unit_direction, rec.normal);
+        r = (ray){rec.p, direction};
+    }
+}
+
+// Averages first_hit over a fixed 2x2 grid of rays through the pixel, so edges in the
+// auxiliary buffers are anti-aliased like the samples. The depth is the mean over the rays
+// that hit a surface, -1 if none did.
+void store_aux(int x, int y, int imageWidth, int imageHeight,
+               point3 camera_center, point3 lowerLeftCorner, vec3 horizontal, vec3 vertical,
+               __global const float4* geometry, __global const int* materialIds,
+               __global const float4* materials, __local const float4* material_cache, int cached_materials,
+               int num_spheres, __global const float4* bvhNodes, __global const int* bvhPrimIndices,
+               __global float4* aux_albedo, __global float4* aux_normal_depth)
+{
+    float3 albedo_sum = (float3)(0.0f, 0.0f, 0.0f);
+    float3 normal_sum = (float3)(0.0f, 0.0f, 0.0f);
+    float depth_sum = 0.0f;
+    int hits = 0;
+    for (int i = 0; i < 4; i++) {
+        float3 albedo, normal;
+        float depth;
+        first_hit(x + ((i & 1) == 0 ? -0.25f : 0.25f), y + (i < 2 ? -0.25f : 0.25f), imageWidth, imageHeight,
+                  camera_center, lowerLeftCorner, horizontal, vertical,
+                  geometry, materialIds, materials, material_cache, cached_materials, num_spheres,
+                  bvhNodes, bvhPrimIndices, &albedo, &normal, &depth);
+        albedo_sum += albedo;
+        normal_sum += normal;
+        if (depth >= 0.0f) {
+            depth_sum += depth;
+            hits++;
+        }
+    }
+    int pixel = y * imageWidth + x;
+    aux_albedo[pixel] = (float4)(0.25f * albedo_sum, 0.0f);
+    aux_normal_depth[pixel] = (float4)(0.25f * normal_sum, hits == 0 ? -1.0f : depth_sum / hits);
+}
+
+#endif // AUX_CL
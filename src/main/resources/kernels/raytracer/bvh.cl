@@ -0,0 +1,37 @@
+#ifndef BVH_CL
+#define BVH_CL
+
+#include "util.cl"
+
+// Traversal stack depth; must be at least Bvh.MAX_DEPTH on the host
+#define BVH_STACK_SIZE 64
+
+// BVH nodes are built and flattened on the host (see Bvh.java). Each node is two float4:
+//   lo = (min.x, min.y, min.z, leftOrFirst)
+//   hi = (max.x, max.y, max.z, count)
+// with the two integers stored as raw float bits. count > 0 marks a leaf covering
+// bvhPrimIndices[leftOrFirst .. leftOrFirst + count), otherwise the children are the
+// adjacent nodes leftOrFirst and leftOrFirst + 1.
+
+// 1/d without infinities, which -cl-fast-relaxed-math does not promise to handle
+inline float3 bvh_safe_inverse(float3 d) {
+    float3 tiny = copysign((float3)(1e-20f), d);
+    return 1.0f / select(d, tiny, isless(fabs(d), (float3)(1e-20f)));
+}
+
+// Slab test against the bounds of a node.
+// Returns the entry distance, or infinity if the ray misses the box within [t_min, t_max].
+inline float bvh_intersect_node(__global const float4* bvhNodes, int node,
+                                float3 orig, float3 inv_dir, float t_min, float t_max) {
+    float3 lo = bvhNodes[2 * node].xyz;
+    float3 hi = bvhNodes[2 * node + 1].xyz;
+    float3 t0 = (lo - orig) * inv_dir;
+    float3 t1 = (hi - orig) * inv_dir;
+    float3 t_small = fmin(t0, t1);
+    float3 t_big = fmax(t0, t1);
+    float t_enter = fmax(fmax(t_small.x, t_small.y), fmax(t_small.z, t_min));
+    float t_exit = fmin(fmin(t_big.x, t_big.y), fmin(t_big.z, t_max));
+    return (t_enter <= t_exit) ? t_enter : infinity;
+}
+
+#endif // BVH_CL
@@ -25,18 +25,25 @@ int write_color(float3 pixel_color) {
     return (r << 16) | (g << 8) | b;
 }
 
+// Sky gradient seen by rays that leave the scene
+inline float3 background_color(ray r) {
+    float3 unit_direction = normalize(r.dir);
+    float t = 0.5f * (unit_direction.y + 1.0f);
+    return (1.0f - t) * (float3)(1.0f, 1.0f, 1.0f) + t * (float3)(0.5f, 0.7f, 1.0f);
+}
+
+// Follows a path for up to max_depth bounces; ray_count is increased by the number of
+// rays intersected with the scene.
 float3 ray_color(ray r,
-                 __constant float* centerX,
-                 __constant float* centerY,
-                 __constant float* centerZ,
-                 __constant float* radii,
-                 __constant int* materialIndices,
-                 __constant float* albedoR,
-                 __constant float* albedoG,
-                 __constant float* albedoB,
-                 __constant float* fuzz,
-                 __constant float* refIdx,
-                 int num_spheres, int max_depth, __private uint2 *rng_state) {
+                 __global const float4* geometry,
+                 __global const int* materialIds,
+                 __global const float4* materials,
+                 __local const float4* material_cache,
+                 int cached_materials,
+                 int num_spheres,
+                 __global const float4* bvhNodes,
+                 __global const int* bvhPrimIndices,
+                 int max_depth, __private uint2 *rng_state, __private int *ray_count) {
 
     float3 accumulated_color = (float3)(1.0f, 1.0f, 1.0f);
     float3 attenuation = (float3)(1.0f, 1.0f, 1.0f);
@@ -44,8 +51,8 @@ float3 ray_color(ray r,
     for (int depth = 0; depth < max_depth; depth++) {
         hit_record rec;
 
-        if (hit_scene(centerX, centerY, centerZ, radii, materialIndices, albedoR, albedoG, albedoB, fuzz, refIdx, num_spheres,
-                      r, interval_create(0.001f, infinity), &rec)) {
+        (*ray_count)++;
+        if (hit_scene(geometry, materialIds, materials, material_cache, cached_materials, num_spheres, bvhNodes, bvhPrimIndices, r, interval_create(0.001f, infinity), &rec)) {
 
             ray scattered;
             float3 new_attenuation;
@@ -56,9 +63,7 @@ float3 ray_color(ray r,
                 return (float3)(0.0f, 0.0f, 0.0f);
             }
         } else {
-            float3 unit_direction = normalize(r.dir);
-            float t = 0.5f * (unit_direction.y + 1.0f);
-            return attenuation * ((1.0f - t) * (float3)(1.0f, 1.0f, 1.0f) + t * (float3)(0.5f, 0.7f, 1.0f));
+            return attenuation * background_color(r);
         }
     }
     return (float3)(0.0f, 0.0f, 0.0f);
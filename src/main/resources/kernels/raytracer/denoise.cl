@@ -0,0 +1,106 @@
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+#include "color.cl"
+
+// Edge-avoiding à-trous wavelet filter (Dammertz et al. 2010), the device version of
+// AtrousDenoiser:
+//
+//   denoise_demodulate  divides the mean color of every pixel by the albedo of its first
+//                       hit, so only the lighting is smoothed and textures stay sharp
+//   denoise_atrous      one iteration: a 5x5 B3 spline with its taps 2^i pixels apart, every
+//                       tap weighted down by how much its color, normal and depth differ
+//                       from the center pixel; launched once per iteration, ping-ponging
+//   denoise_remodulate  multiplies the albedo back in and writes the gamma corrected pixels
+//
+// Without auxiliary buffers (has_aux = 0) only the colors stop the filter.
+
+// Albedo channels below this are not divided out, they would only amplify noise
+#define MIN_ALBEDO 0.01f
+
+__constant float ATROUS_KERNEL[3] = { 3.0f / 8.0f, 1.0f / 4.0f, 1.0f / 16.0f };
+
+inline float3 demodulation(float4 albedo) {
+    return (float3)(albedo.x > MIN_ALBEDO ? albedo.x : 1.0f,
+                    albedo.y > MIN_ALBEDO ? albedo.y : 1.0f,
+                    albedo.z > MIN_ALBEDO ? albedo.z : 1.0f);
+}
+
+// color_scale turns the color buffer into means, e.g. 1 / accumulated samples
+__kernel void denoise_demodulate(__global const float4* color,
+                                 float color_scale,
+                                 __global const float4* albedo,
+                                 int has_aux,
+                                 __global float4* out,
+                                 int num_pixels)
+{
+    int p = get_global_id(0);
+    if (p >= num_pixels)
+        return;
+    float3 c = color[p].xyz * color_scale;
+    out[p] = (float4)(has_aux ? c / demodulation(albedo[p]) : c, 0.0f);
+}
+
+__kernel void denoise_atrous(__global const float4* in,
+                             __global float4* out,
+                             __global const float4* normal_depth,
+                             int has_aux,
+                             int width, int height,
+                             int step,
+                             float sigma_color,
+                             float sigma_normal,
+                             float sigma_depth)
+{
+    int x = get_global_id(0);
+    int y = get_global_id(1);
+    if (x >= width || y >= height)
+        return;
+
+    int p = y * width + x;
+    float3 center = in[p].xyz;
+    float4 center_nd = has_aux ? normal_depth[p] : (float4)(0.0f);
+    float inv_color = 1.0f / (sigma_color * sigma_color + 1e-10f);
+    float inv_normal = 1.0f / (sigma_normal * sigma_normal);
+    float inv_depth = 1.0f / (sigma_depth * sigma_depth * step * step);
+
+    float3 sum = (float3)(0.0f, 0.0f, 0.0f);
+    float weights = 0.0f;
+    for (int dy = -2; dy <= 2; dy++) {
+        int qy = clamp(y + dy * step, 0, height - 1);
+        for (int dx = -2; dx <= 2; dx++) {
+            int qx = clamp(x + dx * step, 0, width - 1);
+            int q = qy * width + qx;
+            float3 c = in[q].xyz;
+            float3 dc = c - center;
+            float exponent = dot(dc, dc) * inv_color;
+            if (has_aux) {
+                float4 nd = normal_depth[q];
+                // Surfaces and sky are never mixed
+                if ((center_nd.w < 0.0f) != (nd.w < 0.0f))
+                    continue;
+                float3 dn = nd.xyz - center_nd.xyz;
+                exponent += dot(dn, dn) * inv_normal;
+                if (center_nd.w >= 0.0f) {
+                    float dz = (nd.w - center_nd.w) / max(center_nd.w, 1e-3f);
+                    exponent += dz * dz * inv_depth;
+                }
+            }
+            float w = ATROUS_KERNEL[abs(dx)] * ATROUS_KERNEL[abs(dy)] * exp(-exponent);
+            sum += w * c;
+            weights += w;
+        }
+    }
+    // The center tap always has a weight
+    out[p] = (float4)(sum / weights, 0.0f);
+}
+
+__kernel void denoise_remodulate(__global const float4* in,
+                                 __global const float4* albedo,
+                                 int has_aux,
+                                 __global int* pixels,
+                                 int num_pixels)
+{
+    int p = get_global_id(0);
+    if (p >= num_pixels)
+        return;
+    float3 c = in[p].xyz;
+    pixels[p] = write_color(has_aux ? c * demodulation(albedo[p]) : c);
+}
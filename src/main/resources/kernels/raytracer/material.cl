@@ -14,30 +14,36 @@ typedef struct {
     float ref_idx;  // Refractive index for dielectric materials
 } Material;
 
-// Function to get material from material index and color
-Material materialFromIndex(int materialIndex, float3 color, float fuzz, float ref_idx) {
-    Material mat;
-    if (materialIndex == LAMBERTIAN) {
-        mat.type = LAMBERTIAN;
-        mat.albedo = color;
-        mat.fuzz = 0.0f;
-        mat.ref_idx = 0.0f;
-    } else if (materialIndex == METAL) {
-        mat.type = METAL;
-        mat.albedo = color;
-        mat.fuzz = fuzz;
-        mat.ref_idx = 0.0f;
-    } else if (materialIndex == DIELECTRIC) {
-        mat.type = DIELECTRIC;
-        mat.albedo = (float3)(1.0f, 1.0f, 1.0f);
-        mat.fuzz = 0.0f;
-        mat.ref_idx = ref_idx;
+// The material table has two float4 per material (see MaterialTable):
+//   (albedo r, g, b, fuzz) and (ref_idx, type bits, 0, 0)
+// It is normalized on the host, so a material is read as is. Its first cached_materials
+// entries are kept in local memory by cache_materials, the rest is read from global memory.
+
+// Copies the first count materials into local memory. Every work item of the group must
+// call this before any of them returns, because of the barrier.
+void cache_materials(__local float4* material_cache, __global const float4* materials, int count) {
+    int lid = get_local_id(1) * get_local_size(0) + get_local_id(0);
+    int group_size = get_local_size(0) * get_local_size(1);
+    for (int i = lid; i < 2 * count; i += group_size)
+        material_cache[i] = materials[i];
+    barrier(CLK_LOCAL_MEM_FENCE);
+}
+
+Material load_material(int id, __local const float4* material_cache, int cached_materials,
+                       __global const float4* materials) {
+    float4 m0, m1;
+    if (id < cached_materials) {
+        m0 = material_cache[2 * id];
+        m1 = material_cache[2 * id + 1];
     } else {
-        mat.type = LAMBERTIAN;
-        mat.albedo = color;
-        mat.fuzz = 0.0f;
-        mat.ref_idx = 0.0f;
+        m0 = materials[2 * id];
+        m1 = materials[2 * id + 1];
     }
+    Material mat;
+    mat.type = (enum MaterialType)as_int(m1.y);
+    mat.albedo = m0.xyz;
+    mat.fuzz = m0.w;
+    mat.ref_idx = m1.x;
     return mat;
 }
 
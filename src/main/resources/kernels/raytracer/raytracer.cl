@@ -4,30 +4,43 @@
 #include "scene.cl"
 #include "color.cl"
 #include "util.cl"
+#include "aux.cl"
 
-__kernel void raytrace(__global int* pixels,
+// Traces samples_per_pixel samples for every pixel and adds their sum to the accumulation
+// buffer. Pass 0 starts a new accumulation; every pass uses a different random stream.
+// With write_aux set, pass 0 also writes the auxiliary buffers of the denoiser (aux.cl).
+__kernel void raytrace(__global float4* accumulation,
                        int imageWidth, int imageHeight,
                        // Camera parameters passed from host:
                        point3 camera_center,
                        point3 lowerLeftCorner,
                        vec3 horizontal,
                        vec3 vertical,
-                       // Sphere data passed as __constant arrays:
-                       __constant float* sphereCenterX,
-                       __constant float* sphereCenterY,
-                       __constant float* sphereCenterZ,
-                       __constant float* sphereRadii,
-                       __constant int* sphereMaterialIndices,
-                       __constant float* sphereAlbedoR,
-                       __constant float* sphereAlbedoG,
-                       __constant float* sphereAlbedoB,
-                       __constant float* sphereFuzz,
-                       __constant float* sphereRefIdx,
+                       // Sphere records, see sphere.cl:
+                       __global const float4* sphereGeometry,
+                       __global const int* sphereMaterialIds,
+                       // Material table and its local copy, see material.cl:
+                       __global const float4* materials,
+                       __local float4* material_cache,
+                       int cached_materials,
                        int num_spheres,
+                       // Bounding volume hierarchy over the spheres (see bvh.cl):
+                       __global const float4* bvhNodes,
+                       __global const int* bvhPrimIndices,
                        int debugging,
                        int samples_per_pixel,
-                       int max_depth)
+                       int max_depth,
+                       uint pass_index,
+                       // Total number of rays intersected with the scene, for throughput statistics
+                       __global int* ray_counter,
+                       // Auxiliary buffers, may be null unless write_aux is set
+                       int write_aux,
+                       __global float4* aux_albedo,
+                       __global float4* aux_normal_depth)
 {
+    // Before the bounds check: every work item of the group has to reach the barrier
+    cache_materials(material_cache, materials, cached_materials);
+
     int x = get_global_id(0);
     int y = get_global_id(1);
     if (x >= imageWidth || y >= imageHeight)
@@ -37,22 +50,22 @@ __kernel void raytrace(__global int* pixels,
     bool debugByte = (debugging != 0);
     if (debugByte && (x == 0 && y == 0)) {
         printf("Received %d spheres\n", num_spheres);
-        // Optionally, print sphere data by reconstructing a few spheres:
+        // Optionally, print the data of a few spheres:
         for (int i = 0; i < num_spheres && i < 5; i++) {
-            sphere s = reconstruct_sphere(i, sphereCenterX, sphereCenterY, sphereCenterZ, sphereRadii, sphereMaterialIndices,
-                                          sphereAlbedoR, sphereAlbedoG, sphereAlbedoB, sphereFuzz, sphereRefIdx);
+            float4 s = sphereGeometry[i];
             printf("Sphere[%d]: Center=(%f, %f, %f), Radius=%f, MatIdx=%d\n",
                    i,
-                   s.center.x, s.center.y, s.center.z,
-                   s.radius,
-                   s.materialIndex);
+                   s.x, s.y, s.z,
+                   s.w,
+                   as_int(materials[2 * sphereMaterialIds[i] + 1].y));
         }
     }
 
-    // Initialize MWC64X state per pixel
-    __private uint2 rng_state = (uint2)(x + y * imageWidth + 1, 0xCAFEBABE);
+    // Initialize MWC64X state per pixel and pass
+    __private uint2 rng_state = rng_seed(x + y * imageWidth, pass_index);
 
     float3 pixel_color = (float3)(0.0f, 0.0f, 0.0f);
+    int rays = 0;
     for (int s = 0; s < samples_per_pixel; s++) {
         float offset_u = random_float(&rng_state) - 0.5f;
         float offset_v = random_float(&rng_state) - 0.5f;
@@ -61,11 +74,31 @@ __kernel void raytrace(__global int* pixels,
         ray r;
         r.orig = camera_center;
         r.dir = lowerLeftCorner + u * horizontal + v * vertical - camera_center;
-        pixel_color += ray_color(r, sphereCenterX, sphereCenterY, sphereCenterZ, sphereRadii, sphereMaterialIndices,
-                                          sphereAlbedoR, sphereAlbedoG, sphereAlbedoB, sphereFuzz, sphereRefIdx,
-                                          num_spheres, max_depth, &rng_state);
+        pixel_color += ray_color(r, sphereGeometry, sphereMaterialIds, materials, material_cache, cached_materials,
+                                 num_spheres, bvhNodes, bvhPrimIndices, max_depth, &rng_state, &rays);
     }
-    pixel_color = pixel_color / (float)samples_per_pixel;
+    atomic_add(ray_counter, rays);
+    if (write_aux && pass_index == 0)
+        store_aux(x, y, imageWidth, imageHeight, camera_center, lowerLeftCorner, horizontal, vertical,
+                  sphereGeometry, sphereMaterialIds, materials, material_cache, cached_materials, num_spheres,
+                  bvhNodes, bvhPrimIndices, aux_albedo, aux_normal_depth);
+    int pixelIndex = y * imageWidth + x;
+    float4 sum = (float4)(pixel_color, 0.0f);
+    accumulation[pixelIndex] = (pass_index == 0) ? sum : accumulation[pixelIndex] + sum;
+}
+
+// Averages the accumulated samples and writes the gamma corrected colors.
+__kernel void resolve(__global const float4* accumulation,
+                      __global int* pixels,
+                      int imageWidth, int imageHeight,
+                      int total_samples)
+{
+    int x = get_global_id(0);
+    int y = get_global_id(1);
+    if (x >= imageWidth || y >= imageHeight)
+        return;
+
     int pixelIndex = y * imageWidth + x;
+    float3 pixel_color = accumulation[pixelIndex].xyz / (float)total_samples;
     pixels[pixelIndex] = write_color(pixel_color);
 }
\ No newline at end of file
@@ -2,24 +2,69 @@
 #define SCENE_CL
 #include "sphere.cl"
 #include "interval.cl"
+#include "bvh.cl"
 
-// Checks for intersections with any sphere in the scene.
-bool hit_scene(__constant float* centerX, __constant float* centerY, __constant float* centerZ,
-               __constant float* radii, __constant int* materialIndices, __constant float* albedoR, __constant float* albedoG, __constant float* albedoB,
-               __constant float* fuzz, __constant float* refIdx,
-               int num_spheres, ray r, interval ray_t, __private hit_record *rec) {
-    hit_record temp_rec;
-    bool hit_anything = false;
+// Finds the closest sphere hit by walking the BVH front to back with a short stack.
+// Only the geometry is read during the walk; the hit record is filled once at the end.
+bool hit_scene(__global const float4* geometry, __global const int* materialIds,
+               __global const float4* materials, __local const float4* material_cache, int cached_materials,
+               int num_spheres,
+               __global const float4* bvhNodes, __global const int* bvhPrimIndices,
+               ray r, interval ray_t, __private hit_record *rec) {
+    int closest_prim = -1;
     float closest_so_far = ray_t.max;
-    for (int i = 0; i < num_spheres; i++) {
-        sphere s = reconstruct_sphere(i, centerX, centerY, centerZ, radii, materialIndices, albedoR, albedoG, albedoB, fuzz, refIdx);
-        if (hit_sphere(s, r, interval_create(ray_t.min, closest_so_far), &temp_rec)) {
-            hit_anything = true;
-            closest_so_far = temp_rec.t;
-            *rec = temp_rec;
+    float3 inv_dir = bvh_safe_inverse(r.dir);
+
+    if (bvh_intersect_node(bvhNodes, 0, r.orig, inv_dir, ray_t.min, closest_so_far) == infinity)
+        return false;
+
+    int stack[BVH_STACK_SIZE];
+    int stack_size = 0;
+    int node = 0;
+    while (true) {
+        float4 lo = bvhNodes[2 * node];
+        float4 hi = bvhNodes[2 * node + 1];
+        int count = as_int(hi.w);
+        if (count > 0) {
+            int first = as_int(lo.w);
+            for (int i = first; i < first + count; i++) {
+                int prim = bvhPrimIndices[i];
+                float t = hit_sphere(geometry[prim], r, interval_create(ray_t.min, closest_so_far));
+                if (t >= 0.0f) {
+                    closest_prim = prim;
+                    closest_so_far = t;
+                }
+            }
+            if (stack_size == 0)
+                break;
+            node = stack[--stack_size];
+            continue;
+        }
+
+        // Visit the nearer child first and defer the other one
+        int near_child = as_int(lo.w);
+        int far_child = near_child + 1;
+        float t_near = bvh_intersect_node(bvhNodes, near_child, r.orig, inv_dir, ray_t.min, closest_so_far);
+        float t_far = bvh_intersect_node(bvhNodes, far_child, r.orig, inv_dir, ray_t.min, closest_so_far);
+        if (t_far < t_near) {
+            int tmp_child = near_child; near_child = far_child; far_child = tmp_child;
+            float tmp_t = t_near; t_near = t_far; t_far = tmp_t;
+        }
+        if (t_near == infinity) {
+            if (stack_size == 0)
+                break;
+            node = stack[--stack_size];
+        } else {
+            node = near_child;
+            if (t_far != infinity)
+                stack[stack_size++] = far_child;
         }
     }
-    return hit_anything;
+    if (closest_prim < 0)
+        return false;
+    sphere_hit_record(geometry[closest_prim], r, closest_so_far, rec);
+    rec->mat = load_material(materialIds[closest_prim], material_cache, cached_materials, materials);
+    return true;
 }
 
-#endif // SCENE_CL
\ No newline at end of file
+#endif // SCENE_CL
@@ -5,53 +5,35 @@
 #include "interval.cl"
 #include "material.cl"
 
-// A sphere structure
-typedef struct {
-    point3 center;
-    float radius;
-    int materialIndex;
-    float3 albedo;
-    float fuzz;
-    float ref_idx;
-} sphere;
+// Spheres come as packed records (see SphereStore):
+//   geometry:     one float4 per sphere, (center x, y, z, radius)
+//   material ids: one int per sphere, indexing the material table (see material.cl)
+// Intersection tests only read the geometry; the material is fetched for the closest hit.
 
-// Reconstruct a sphere from separate __constant arrays
-sphere reconstruct_sphere(int i,
-    __constant float* centerX, __constant float* centerY, __constant float* centerZ,
-    __constant float* radii, __constant int* materialIndices,
-    __constant float* albedoR, __constant float* albedoG, __constant float* albedoB,
-    __constant float* fuzz, __constant float* refIdx) {
-    sphere s;
-    s.center = (point3)(centerX[i], centerY[i], centerZ[i]);
-    s.radius = radii[i];
-    s.materialIndex = materialIndices[i];
-    s.albedo = (float3)(albedoR[i], albedoG[i], albedoB[i]);
-    s.fuzz = fuzz[i];
-    s.ref_idx = refIdx[i];
-    return s;
-}
-
-// Ray-sphere intersection remains the same:
-bool hit_sphere(sphere s, ray r, interval ray_t, __private hit_record *rec) {
-    vec3 oc = s.center - r.orig;
+// Ray-sphere intersection: returns the distance to the sphere within ray_t, or -1.
+float hit_sphere(float4 s, ray r, interval ray_t) {
+    vec3 oc = s.xyz - r.orig;
     float a = dot(r.dir, r.dir);
     float h = dot(r.dir, oc);
-    float c = dot(oc, oc) - s.radius * s.radius;
+    float c = dot(oc, oc) - s.w * s.w;
     float discriminant = h * h - a * c;
     if (discriminant < 0.0f)
-        return false;
+        return -1.0f;
     float sqrtd = sqrt(discriminant);
     float root = (h - sqrtd) / a;
     if (!interval_surrounds(ray_t, root)) {
         root = (h + sqrtd) / a;
         if (!interval_surrounds(ray_t, root))
-            return false;
+            return -1.0f;
     }
-    rec->t = root;
-    rec->p = ray_at(r, root);
-    rec->mat = materialFromIndex(s.materialIndex, s.albedo, s.fuzz, s.ref_idx);
-    vec3 outward_normal = (rec->p - s.center) / s.radius;
+    return root;
+}
+
+// Fills the geometric part of the hit record for a hit at distance t, once the closest hit is known.
+void sphere_hit_record(float4 s, ray r, float t, __private hit_record *rec) {
+    rec->t = t;
+    rec->p = ray_at(r, t);
+    vec3 outward_normal = (rec->p - s.xyz) / s.w;
     set_face_normal(r, outward_normal, rec);
-    return true;
 }
 #endif // SPHERE_CL
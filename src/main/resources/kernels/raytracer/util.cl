@@ -21,6 +21,15 @@ inline uint MWC64X(__private uint2 *state) {
     return res;
 }
 
+// Seeds the MWC64X state for a pixel and a progressive pass. Pass 0 gives the original
+// per-pixel seeding; later passes change the carry so that every pass draws a new stream.
+inline uint2 rng_seed(uint pixel_index, uint pass_index) {
+    uint carry = 0xCAFEBABEu ^ (pass_index * 0x9E3779B9u);
+    if (carry >= 4294883355u)  // keep the carry below the multiplier
+        carry -= 4294883355u;
+    return (uint2)(pixel_index + 1, carry);
+}
+
 // Convert a 32-bit integer to a floating-point value in [0,1)
 inline float random_float(__private uint2 *state) {
     return (float)MWC64X(state) / 4294967296.0f;  // Use full 32-bit range
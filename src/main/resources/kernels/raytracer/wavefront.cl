@@ -0,0 +1,207 @@
+#pragma OPENCL EXTENSION cl_khr_fp64 : enable
+#include "geometry.cl"
+#include "sphere.cl"
+#include "scene.cl"
+#include "color.cl"
+#include "scatter.cl"
+#include "util.cl"
+
+// Wavefront path tracing: instead of following a whole path per work item like the raytrace
+// megakernel, every bounce of all live paths is split into small kernels that communicate
+// through global queues of path indices:
+//
+//   wf_generate    one camera ray per pixel of the tile, all paths enter the ray queue
+//   wf_extend      intersects the queued rays; misses add the sky to the path radiance,
+//                  hits are appended to the queue of their material
+//   wf_shade_*     scatters the paths of one material, surviving paths are appended to
+//                  the ray queue of the next bounce
+//   wf_accumulate  adds the finished sample of each path to the accumulation buffer
+//
+// Queues are compacted with atomic_inc, so the live paths of every launch are contiguous and
+// each shading kernel runs a single material without divergent branches.
+// Path i always belongs to pixel i of the tile (row by row).
+//
+// The queue lengths stay on the device: the host launches every stage with an upper bound
+// of work items, rounded up to whole work groups, and items past the real length return at
+// once. The counters buffer holds two sets of counters; the bounce writing set s reads the
+// length of its ray queue from set 1 - s, which the previous bounce wrote.
+
+// Slots of a set of counters
+#define WF_NEXT_RAY_COUNT 0
+#define WF_MATERIAL_COUNT 1  // one counter per MaterialType from here on
+#define WF_NUM_COUNTERS (WF_MATERIAL_COUNT + 3)
+
+// Run as a single work item before each bounce. Clears the counters the bounce writes, and
+// for the first bounce also sets the length of its ray queue, which holds every path.
+__kernel void wf_start_bounce(__global int* counters, int counter_set, int first_ray_count)
+{
+    for (int i = 0; i < WF_NUM_COUNTERS; i++)
+        counters[counter_set * WF_NUM_COUNTERS + i] = 0;
+    if (first_ray_count >= 0)
+        counters[(1 - counter_set) * WF_NUM_COUNTERS + WF_NEXT_RAY_COUNT] = first_ray_count;
+}
+
+__kernel void wf_generate(int tileX, int tileY, int tileWidth, int tileHeight,
+                          int imageWidth, int imageHeight,
+                          point3 camera_center,
+                          point3 lowerLeftCorner,
+                          vec3 horizontal,
+                          vec3 vertical,
+                          uint pass_index,
+                          int sample_index,
+                          __global float4* pathOrigin,
+                          __global float4* pathDir,
+                          __global float4* pathThroughput,
+                          __global float4* pathRadiance,
+                          __global uint2* pathRng,
+                          __global int* rayQueue)
+{
+    int path = get_global_id(0);
+    if (path >= tileWidth * tileHeight)
+        return;
+    int x = tileX + path % tileWidth;
+    int y = tileY + path / tileWidth;
+
+    // The first sample seeds the generator like the megakernel, later ones continue its stream
+    __private uint2 rng_state = (sample_index == 0) ? rng_seed(x + y * imageWidth, pass_index) : pathRng[path];
+
+    float offset_u = random_float(&rng_state) - 0.5f;
+    float offset_v = random_float(&rng_state) - 0.5f;
+    float u = ((float)x + offset_u) / (imageWidth - 1);
+    float v = (((float)imageHeight - 1.0f - y) + offset_v) / (imageHeight - 1);
+
+    pathOrigin[path] = (float4)(camera_center, 0.0f);
+    pathDir[path] = (float4)(lowerLeftCorner + u * horizontal + v * vertical - camera_center, 0.0f);
+    pathThroughput[path] = (float4)(1.0f, 1.0f, 1.0f, 0.0f);
+    pathRadiance[path] = (float4)(0.0f, 0.0f, 0.0f, 0.0f);
+    pathRng[path] = rng_state;
+    rayQueue[path] = path;
+}
+
+__kernel void wf_extend(__global const int* rayQueue,
+                        int counter_set,
+                        __global const float4* pathOrigin,
+                        __global const float4* pathDir,
+                        __global const float4* pathThroughput,
+                        __global float4* pathRadiance,
+                        __global const float4* sphereGeometry,
+                        __global const int* sphereMaterialIds,
+                        __global const float4* materials,
+                        __local float4* material_cache,
+                        int cached_materials,
+                        int num_spheres,
+                        __global const float4* bvhNodes,
+                        __global const int* bvhPrimIndices,
+                        // Hit point (xyz) and distance (w)
+                        __global float4* hitPoint,
+                        // Normal facing the ray (xyz) and 1 for a front face hit (w)
+                        __global float4* hitNormal,
+                        // Albedo (xyz) and fuzz or refraction index (w)
+                        __global float4* hitMaterial,
+                        __global int* materialQueues,
+                        int queue_capacity,
+                        __global int* counters)
+{
+    // Before the bounds check: every work item of the group has to reach the barrier
+    cache_materials(material_cache, materials, cached_materials);
+
+    int i = get_global_id(0);
+    if (i >= counters[(1 - counter_set) * WF_NUM_COUNTERS + WF_NEXT_RAY_COUNT])
+        return;
+    int path = rayQueue[i];
+
+    ray r;
+    r.orig = pathOrigin[path].xyz;
+    r.dir = pathDir[path].xyz;
+    hit_record rec;
+    if (!hit_scene(sphereGeometry, sphereMaterialIds, materials, material_cache, cached_materials, num_spheres,
+                   bvhNodes, bvhPrimIndices, r, interval_create(0.001f, infinity), &rec)) {
+        pathRadiance[path] = pathThroughput[path] * (float4)(background_color(r), 0.0f);
+        return;
+    }
+
+    hitPoint[path] = (float4)(rec.p, rec.t);
+    hitNormal[path] = (float4)(rec.normal, rec.front_face ? 1.0f : 0.0f);
+    float parameter = (rec.mat.type == METAL) ? rec.mat.fuzz : rec.mat.ref_idx;
+    hitMaterial[path] = (float4)(rec.mat.albedo, parameter);
+
+    int slot = atomic_inc(&counters[counter_set * WF_NUM_COUNTERS + WF_MATERIAL_COUNT + rec.mat.type]);
+    materialQueues[rec.mat.type * queue_capacity + slot] = path;
+}
+
+// Shared body of the shading kernels; type is a compile time constant in each of them, so
+// scatter() collapses to the code of a single material.
+inline void wf_shade(enum MaterialType type,
+                     __global const int* materialQueues, int queue_offset, int counter_set,
+                     __global float4* pathOrigin, __global float4* pathDir,
+                     __global float4* pathThroughput, __global uint2* pathRng,
+                     __global const float4* hitPoint, __global const float4* hitNormal,
+                     __global const float4* hitMaterial,
+                     __global int* nextRayQueue, __global int* counters)
+{
+    __global int* set = counters + counter_set * WF_NUM_COUNTERS;
+    int i = get_global_id(0);
+    if (i >= set[WF_MATERIAL_COUNT + type])
+        return;
+    int path = materialQueues[queue_offset + i];
+
+    ray r_in;
+    r_in.orig = pathOrigin[path].xyz;
+    r_in.dir = pathDir[path].xyz;
+
+    hit_record rec;
+    float4 p = hitPoint[path];
+    float4 n = hitNormal[path];
+    float4 m = hitMaterial[path];
+    rec.p = p.xyz;
+    rec.t = p.w;
+    rec.normal = n.xyz;
+    rec.front_face = (n.w != 0.0f);
+    rec.mat.type = type;
+    rec.mat.albedo = m.xyz;
+    rec.mat.fuzz = (type == METAL) ? m.w : 0.0f;
+    rec.mat.ref_idx = (type == DIELECTRIC) ? m.w : 0.0f;
+
+    __private uint2 rng_state = pathRng[path];
+    ray scattered;
+    float3 attenuation;
+    if (scatter(r_in, rec, rec.mat, &attenuation, &scattered, &rng_state)) {
+        pathThroughput[path] *= (float4)(attenuation, 0.0f);
+        pathOrigin[path] = (float4)(scattered.orig, 0.0f);
+        pathDir[path] = (float4)(scattered.dir, 0.0f);
+        int slot = atomic_inc(&set[WF_NEXT_RAY_COUNT]);
+        nextRayQueue[slot] = path;
+    }
+    pathRng[path] = rng_state;
+}
+
+#define WF_SHADE_KERNEL(name, type)                                                           \
+__kernel void name(__global const int* materialQueues, int queue_offset, int counter_set,     \
+                   __global float4* pathOrigin, __global float4* pathDir,                     \
+                   __global float4* pathThroughput, __global uint2* pathRng,                  \
+                   __global const float4* hitPoint, __global const float4* hitNormal,         \
+                   __global const float4* hitMaterial,                                        \
+                   __global int* nextRayQueue, __global int* counters)                        \
+{                                                                                             \
+    wf_shade(type, materialQueues, queue_offset, counter_set,                                 \
+             pathOrigin, pathDir, pathThroughput, pathRng,                                    \
+             hitPoint, hitNormal, hitMaterial, nextRayQueue, counters);                       \
+}
+
+WF_SHADE_KERNEL(wf_shade_lambertian, LAMBERTIAN)
+WF_SHADE_KERNEL(wf_shade_metal, METAL)
+WF_SHADE_KERNEL(wf_shade_dielectric, DIELECTRIC)
+
+__kernel void wf_accumulate(int tileX, int tileY, int tileWidth, int tileHeight,
+                            int imageWidth,
+                            __global const float4* pathRadiance,
+                            __global float4* accumulation,
+                            int overwrite)
+{
+    int path = get_global_id(0);
+    if (path >= tileWidth * tileHeight)
+        return;
+    int pixelIndex = (tileY + path / tileWidth) * imageWidth + tileX + path % tileWidth;
+    float4 radiance = pathRadiance[path];
+    accumulation[pixelIndex] = overwrite ? radiance : accumulation[pixelIndex] + radiance;
+}